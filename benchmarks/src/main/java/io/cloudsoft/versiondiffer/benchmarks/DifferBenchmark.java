@@ -0,0 +1,83 @@
+package io.cloudsoft.versiondiffer.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Predicates;
+
+import io.cloudsoft.versiondiffer.Differ;
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+import io.cloudsoft.versiondiffer.FileLister;
+import io.cloudsoft.versiondiffer.JavaFileComparer;
+
+/**
+ * End-to-end {@link Differ#compare(io.cloudsoft.versiondiffer.SourceTree, io.cloudsoft.versiondiffer.SourceTree, io.cloudsoft.versiondiffer.FileComparer.Factory)}
+ * over synthetic pre/post trees, with controlled ratios of moved, renamed and modified files.
+ * A new {@link JavaFileComparer.Factory} is used each time, so nothing is cached between invocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DifferBenchmark {
+
+    /** Held so the level set below is not lost if the logger is garbage collected. */
+    private static final Logger DIFFER_LOGGER = Logger.getLogger(Differ.class.getName());
+
+    @Param({"2000"})
+    public int files;
+
+    @Param({"0.05"})
+    public double moveRatio;
+
+    @Param({"0.02"})
+    public double renameRatio;
+
+    @Param({"0.2"})
+    public double modifyRatio;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path dir;
+    private FileLister preLister;
+    private FileLister postLister;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void setUp() throws IOException {
+        DIFFER_LOGGER.setLevel(Level.WARNING);
+        dir = Files.createTempDirectory("version-differ-bench");
+        new SyntheticSources(files).writeTrees(dir.resolve("pre"), dir.resolve("post"), files, 5000, moveRatio, renameRatio, modifyRatio);
+        preLister = new FileLister(dir.resolve("pre"), Predicates.alwaysTrue());
+        postLister = new FileLister(dir.resolve("post"), Predicates.alwaysTrue());
+    }
+
+    @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticSources.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public DifferResult compare() throws IOException {
+        return new Differ(parallelism).compare(preLister, postLister, new JavaFileComparer.Factory());
+    }
+}
@@ -0,0 +1,57 @@
+package io.cloudsoft.versiondiffer.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Predicates;
+
+import io.cloudsoft.versiondiffer.FileLister;
+
+/**
+ * {@link FileLister} construction over a generated tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileListerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("version-differ-bench");
+        new SyntheticSources(files).writeTrees(dir.resolve("pre"), dir.resolve("post"), files, 200, 0, 0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticSources.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public FileLister list() throws IOException {
+        return new FileLister(dir.resolve("pre"), Predicates.alwaysTrue());
+    }
+}
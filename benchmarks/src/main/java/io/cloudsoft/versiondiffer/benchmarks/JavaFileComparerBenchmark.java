@@ -0,0 +1,81 @@
+package io.cloudsoft.versiondiffer.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.cloudsoft.versiondiffer.FileComparer;
+import io.cloudsoft.versiondiffer.JavaFileComparer;
+import io.cloudsoft.versiondiffer.SourceFile;
+
+/**
+ * {@link JavaFileComparer} construction (reading and fingerprinting the first file) and
+ * {@link JavaFileComparer#similarity(SourceFile)}, both uncached and via a shared factory cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JavaFileComparerBenchmark {
+
+    @Param({"2000", "20000", "200000"})
+    public int chars;
+
+    private Path dir;
+    private Path p1;
+    private Path p2;
+    private SourceFile f2;
+    private FileComparer uncached;
+    private FileComparer cached;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticSources sources = new SyntheticSources(chars);
+        dir = Files.createTempDirectory("version-differ-bench");
+        String source = sources.source("Example", chars);
+        p1 = dir.resolve("Example.java");
+        p2 = dir.resolve("Example2.java");
+        SyntheticSources.write(p1, source);
+        SyntheticSources.write(p2, sources.modify(source, 0.1));
+        uncached = new JavaFileComparer(p1);
+        f2 = SourceFile.of(p2);
+        cached = new JavaFileComparer.Factory().newComparer(SourceFile.of(p1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticSources.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public FileComparer construct() throws IOException {
+        return new JavaFileComparer(p1);
+    }
+
+    @Benchmark
+    public double similarityUncached() throws IOException {
+        return uncached.similarity(f2);
+    }
+
+    @Benchmark
+    public double similarityCached() throws IOException {
+        return cached.similarity(f2);
+    }
+}
@@ -0,0 +1,47 @@
+package io.cloudsoft.versiondiffer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.cloudsoft.versiondiffer.LetterPairSimilarity;
+
+/**
+ * {@link LetterPairSimilarity#compareStrings(String, String)} for strings of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LetterPairSimilarityBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int chars;
+
+    private String s1;
+    private String s2;
+
+    @Setup
+    public void setUp() {
+        SyntheticSources sources = new SyntheticSources(chars);
+        s1 = sources.source("Example", chars);
+        s2 = sources.modify(s1, 0.1);
+    }
+
+    @Benchmark
+    public double compareStrings() {
+        return LetterPairSimilarity.compareStrings(s1, s2);
+    }
+}
@@ -0,0 +1,115 @@
+package io.cloudsoft.versiondiffer.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Generates deterministic Java-like sources and pre/post source trees for the benchmarks.
+ */
+public class SyntheticSources {
+
+    private static final String[] WORDS = {
+            "public", "private", "static", "final", "class", "void", "return", "new", "if", "else",
+            "for", "int", "String", "List<String>", "Map<String, Integer>", "this", "null", "true",
+            "throws", "IOException", "result", "value", "path", "name", "=", "==", "+", ";", "{", "}",
+            "(", ")", "LOGGER.info(\"Comparing\");", "get()", "size()", "contains(key)", "// comment"};
+
+    private final Random random;
+
+    public SyntheticSources(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Java-like source text of roughly the given number of characters.
+     */
+    public String source(String className, int approxChars) {
+        StringBuilder result = new StringBuilder(approxChars + 100);
+        result.append("package io.cloudsoft.example;\n\n");
+        result.append("import java.util.List;\n");
+        result.append("import java.util.Map;\n\n");
+        result.append("public class ").append(className).append(" {\n");
+        while (result.length() < approxChars) {
+            result.append("    ");
+            int words = 3 + random.nextInt(8);
+            for (int i = 0; i < words; i++) {
+                result.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            result.append('\n');
+        }
+        result.append("}\n");
+        return result.toString();
+    }
+
+    /**
+     * Changes roughly the given fraction of the lines of the source.
+     */
+    public String modify(String source, double fraction) {
+        String[] lines = source.split("\n", -1);
+        StringBuilder result = new StringBuilder(source.length());
+        for (String line : lines) {
+            if (random.nextDouble() < fraction) {
+                result.append("    ").append(WORDS[random.nextInt(WORDS.length)]).append(" changed();\n");
+            } else {
+                result.append(line).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes a pre tree of the given number of files, and a post tree where the given fractions
+     * of files have been moved (same name, different package), renamed (different name), or
+     * modified in place; the remainder are unchanged.
+     */
+    public void writeTrees(Path pre, Path post, int numFiles, int approxChars, double moveRatio, double renameRatio, double modifyRatio) throws IOException {
+        for (int i = 0; i < numFiles; i++) {
+            String name = "Class" + i;
+            String pkg = "pkg" + (i % 50);
+            String source = source(name, approxChars);
+            write(pre.resolve("src/main/java/" + pkg + "/" + name + ".java"), source);
+
+            double action = random.nextDouble();
+            if (action < moveRatio) {
+                write(post.resolve("src/main/java/moved/" + pkg + "/" + name + ".java"), modify(source, 0.05));
+            } else if (action < moveRatio + renameRatio) {
+                write(post.resolve("src/main/java/" + pkg + "/Renamed" + name + ".java"), modify(source, 0.05));
+            } else if (action < moveRatio + renameRatio + modifyRatio) {
+                write(post.resolve("src/main/java/" + pkg + "/" + name + ".java"), modify(source, 0.2));
+            } else {
+                write(post.resolve("src/main/java/" + pkg + "/" + name + ".java"), source);
+            }
+        }
+    }
+
+    public static void write(Path file, String contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        final List<Path> toDelete = Lists.newArrayList();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                toDelete.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override public FileVisitResult postVisitDirectory(Path d, IOException exc) {
+                toDelete.add(d);
+                return FileVisitResult.CONTINUE;
+            }});
+        for (Path path : toDelete) {
+            Files.delete(path);
+        }
+    }
+}
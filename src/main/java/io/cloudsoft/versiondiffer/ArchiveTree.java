@@ -0,0 +1,350 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+/**
+ * The files in an archive (e.g. a release's "-src.zip" or ".tar.gz"), read in place rather than
+ * extracted to disk: see {@link ZipTree} and {@link TarTree}.
+ *
+ * The archive is indexed when constructed, recording each file's size and CRC-32 (from the zip's
+ * central directory, or computed while scanning a tar). The CRC and size make up the {@link #contentId(Path)},
+ * so {@link Differ} can tell which files are unchanged or moved without reading them, even between a
+ * zip and a tarball.
+ *
+ * Release archives usually put everything under a single top-level directory named after the version
+ * (e.g. "brooklyn-0.7.0-src/"), which would make every path differ; by default that directory is stripped.
+ * Paths passed to the filters are those after stripping, using the default file system's separator,
+ * as for {@link FileLister}.
+ *
+ * Must be closed when no longer used.
+ */
+public abstract class ArchiveTree implements SourceTree, Closeable {
+
+    /**
+     * See {@link #contentId(Path)}.
+     */
+    public static final String CONTENT_ID_TYPE = "crc32-size";
+
+    /**
+     * Strip the top-level directory if everything in the archive is under the same one; otherwise strip nothing.
+     */
+    public static final int AUTO_STRIP = -1;
+
+    /**
+     * Opens a zip (or jar) as a {@link ZipTree}, or anything else as a {@link TarTree}.
+     */
+    public static ArchiveTree open(Path archive) throws IOException {
+        return open(archive, AUTO_STRIP, Predicates.alwaysTrue(), Predicates.alwaysTrue());
+    }
+
+    /**
+     * Opens a zip (or jar) as a {@link ZipTree}, or anything else as a {@link TarTree}; zips are
+     * recognised by their contents, not their file name.
+     *
+     * @param stripComponents The number of leading directories to strip from each entry's path
+     *                        (entries with no more than that are skipped), or {@link #AUTO_STRIP}
+     * @param accepts         Whether to include a file, given its path relative to the root
+     * @param acceptsDir      Whether to include the files in a directory, given its path relative to the root
+     */
+    public static ArchiveTree open(Path archive, int stripComponents, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        if (ZipTree.isZip(archive)) {
+            return new ZipTree(archive, stripComponents, accepts, acceptsDir);
+        } else {
+            return new TarTree(archive, stripComponents, accepts, acceptsDir);
+        }
+    }
+
+    protected final Path archive;
+    private final FileSystem fileSystem = FileSystems.getDefault();
+
+    /** The relative paths of the files, in archive order. */
+    private PathIndex index;
+
+    /** Per file (in archive order): the size and CRC-32. */
+    private long[] sizes;
+    private int[] crcs;
+
+    protected ArchiveTree(Path archive) {
+        this.archive = checkNotNull(archive, "archive");
+    }
+
+    /**
+     * Called by the subclass's constructor once it has scanned the archive.
+     */
+    protected final void init(Entries entries) {
+        this.index = entries.indexBuilder.build();
+        this.sizes = Arrays.copyOf(entries.sizes, entries.size());
+        this.crcs = Arrays.copyOf(entries.crcs, entries.size());
+    }
+
+    /**
+     * The archive's contents, as read by the subclass; numbered in the order added, which is also
+     * the numbering passed to {@link ArchiveTree#openEntry(int)}.
+     *
+     * Applies the filters (to the path after stripping) and skips duplicate paths, keeping the first.
+     */
+    protected class Entries {
+        private final int stripComponents;
+        private final Predicate<? super String> accepts;
+        private final Predicate<? super String> acceptsDir;
+        private final String separator = fileSystem.getSeparator();
+        private final Map<String, Boolean> acceptedDirs = Maps.newHashMap();
+        private final Set<String> added = Sets.newHashSet();
+        private final PathIndex.Builder indexBuilder = new PathIndex.Builder(fileSystem);
+        private long[] sizes = new long[16];
+        private int[] crcs = new int[16];
+
+        protected Entries(int stripComponents, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) {
+            checkArgument(stripComponents >= 0, "stripComponents must not be negative");
+            this.stripComponents = stripComponents;
+            this.accepts = checkNotNull(accepts, "accepts");
+            this.acceptsDir = checkNotNull(acceptsDir, "acceptsDir");
+        }
+
+        /**
+         * The path that the file with the given entry name (using "/" as separator) would have:
+         * stripped, and using the file system's separator. Null if it is to be skipped, because it has too
+         * few components, is filtered out, or has the same path as a file already added.
+         */
+        protected String relativePath(String entryName) {
+            List<String> parts = components(entryName);
+            if (parts.size() <= stripComponents) {
+                return null;
+            }
+            StringBuilder result = new StringBuilder();
+            for (String part : parts.subList(stripComponents, parts.size())) {
+                if (part.equals("..")) return null;
+                if (result.length() > 0) {
+                    if (!acceptsDir(result.toString())) return null;
+                    result.append(separator);
+                }
+                result.append(part);
+            }
+            String relativePath = result.toString();
+            if (relativePath.isEmpty() || added.contains(relativePath) || !accepts.apply(relativePath)) {
+                return null;
+            }
+            return relativePath;
+        }
+
+        private boolean acceptsDir(String relativeDir) {
+            Boolean result = acceptedDirs.get(relativeDir);
+            if (result == null) {
+                result = acceptsDir.apply(relativeDir);
+                acceptedDirs.put(relativeDir, result);
+            }
+            return result;
+        }
+
+        /**
+         * Adds the file, returning its index.
+         *
+         * @param relativePath As returned by {@link #relativePath(String)}
+         */
+        protected int add(String relativePath, long size, int crc) {
+            int i = relativePath.lastIndexOf(separator);
+            int result = (i < 0)
+                    ? indexBuilder.add("", relativePath)
+                    : indexBuilder.add(relativePath.substring(0, i), relativePath.substring(i + separator.length()));
+            added.add(relativePath);
+            if (result == sizes.length) {
+                sizes = Arrays.copyOf(sizes, result * 2);
+                crcs = Arrays.copyOf(crcs, result * 2);
+            }
+            sizes[result] = size;
+            crcs[result] = crc;
+            return result;
+        }
+
+        protected int size() {
+            return indexBuilder.size();
+        }
+    }
+
+    /**
+     * Whether all the given file entry names (using "/" as separator) are under the same top-level directory.
+     */
+    protected static boolean hasSingleRoot(Iterable<String> entryNames) {
+        String root = null;
+        for (String name : entryNames) {
+            String entryRoot = root(name);
+            if (entryRoot == null || (root != null && !root.equals(entryRoot))) {
+                return false;
+            }
+            root = entryRoot;
+        }
+        return root != null;
+    }
+
+    /**
+     * The top-level directory of the given entry name, or null if it is not in one.
+     */
+    protected static String root(String entryName) {
+        List<String> parts = components(entryName);
+        return (parts.size() < 2) ? null : parts.get(0);
+    }
+
+    /**
+     * The directories and file name of the given entry name, ignoring any leading "/" or "./".
+     */
+    private static List<String> components(String entryName) {
+        List<String> result = Lists.newArrayList();
+        for (String part : Splitter.on('/').omitEmptyStrings().split(entryName)) {
+            if (!part.equals(".")) result.add(part);
+        }
+        return result;
+    }
+
+    /**
+     * The contents of the file with the given index (just its {@link #size(Path)} bytes).
+     * May be called concurrently.
+     */
+    protected abstract InputStream openEntry(int index) throws IOException;
+
+    /**
+     * The size of the file with the given index.
+     */
+    protected final long entrySize(int index) {
+        return sizes[index];
+    }
+
+    public Path getArchive() {
+        return archive;
+    }
+
+    @Override
+    public Set<Path> listAll() {
+        return index.asSet();
+    }
+
+    @Override
+    public Collection<Path> findFilename(String filename) {
+        return index.findFilename(filename);
+    }
+
+    @Override
+    public boolean contains(Path relativePath) {
+        return index.indexOf(relativePath) >= 0;
+    }
+
+    @Override
+    public long size(Path relativePath) {
+        return sizes[checkIndexOf(relativePath)];
+    }
+
+    @Override
+    public SourceFile file(Path relativePath) {
+        return new EntryFile(checkIndexOf(relativePath));
+    }
+
+    /**
+     * {@value #CONTENT_ID_TYPE}.
+     */
+    @Override
+    public String contentIdType() {
+        return CONTENT_ID_TYPE;
+    }
+
+    /**
+     * The CRC-32 followed by the size.
+     */
+    @Override
+    public HashCode contentId(Path relativePath) {
+        int i = checkIndexOf(relativePath);
+        return HashCode.fromBytes(ByteBuffer.allocate(12).putInt(crcs[i]).putLong(sizes[i]).array());
+    }
+
+    @Override
+    public String toString() {
+        return archive.toString();
+    }
+
+    private int checkIndexOf(Path relativePath) {
+        int result = index.indexOf(relativePath);
+        if (result < 0) {
+            throw new IllegalArgumentException("No such file "+relativePath+" in "+this);
+        }
+        return result;
+    }
+
+    /**
+     * A file in the archive. Its {@link #id()} includes the CRC, so a store keyed by it will not
+     * reuse results for an entry whose contents have changed (its last-modified time is not used).
+     */
+    private class EntryFile extends SourceFile {
+        private final int index;
+
+        EntryFile(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String id() {
+            return archive.toAbsolutePath().normalize()+"!"+ArchiveTree.this.index.path(index)+"#"+Integer.toHexString(crcs[index]);
+        }
+
+        @Override
+        public String name() {
+            return ArchiveTree.this.index.path(index).getFileName().toString();
+        }
+
+        @Override
+        public long size() {
+            return sizes[index];
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return openEntry(index);
+        }
+
+        private ArchiveTree tree() {
+            return ArchiveTree.this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntryFile)) return false;
+            EntryFile o = (EntryFile) obj;
+            return tree() == o.tree() && index == o.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(System.identityHashCode(ArchiveTree.this), index);
+        }
+
+        @Override
+        public String toString() {
+            return archive+"!"+ArchiveTree.this.index.path(index);
+        }
+    }
+}
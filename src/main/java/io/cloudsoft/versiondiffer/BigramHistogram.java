@@ -0,0 +1,270 @@
+package io.cloudsoft.versiondiffer;
+
+/**
+ * A multiset of adjacent letter pairs, as used by {@link LetterPairSimilarity}.
+ *
+ * Each pair is packed into a single int (first char in the high 16 bits, second char in the
+ * low 16 bits) and counted in a primitive open-addressing hash table, so building the histogram
+ * allocates nothing per pair and the Dice intersection of two histograms is linear in the number
+ * of distinct pairs.
+ *
+ * Pairs never span whitespace: this matches splitting the string with {@code split("\\s")} and
+ * taking the letter pairs of each word.
+ *
+ * Instances are mutable only while being built (via {@link #add(char, char)} etc); once built
+ * they are safe to share between threads as long as they are no longer modified.
+ */
+public class BigramHistogram {
+
+    /** Marks an empty slot; the pair that packs to this value is counted in {@link #emptyKeyCount}. */
+    private static final int EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * For iterating over the distinct pairs of a histogram; see {@link BigramHistogram#forEach(PairVisitor)}.
+     */
+    public static interface PairVisitor {
+        /**
+         * @param pair  The pair, packed as {@code (first << 16) | second}
+         * @param count The number of times the pair occurs
+         */
+        public void visit(int pair, int count);
+    }
+
+    /**
+     * Builds the histogram of all letter pairs in the given string, with word boundaries
+     * as defined by {@code split("\\s")}.
+     */
+    public static BigramHistogram of(CharSequence str) {
+        BigramHistogram result = new BigramHistogram(Math.max(MIN_CAPACITY, str.length() / 4));
+        result.addAll(str);
+        return result;
+    }
+
+    /**
+     * Whether the given char is a word separator; equivalent to the regex {@code \s}
+     * (i.e. {@code [ \t\n\x0B\f\r]}).
+     */
+    public static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    static int pack(char first, char second) {
+        return (first << 16) | second;
+    }
+
+    private int[] keys;
+    private int[] counts;
+    private int emptyKeyCount;
+    private int distinct;
+    private int total;
+
+    public BigramHistogram() {
+        this(MIN_CAPACITY);
+    }
+
+    public BigramHistogram(int expectedDistinct) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedDistinct * 2) - 1) << 1;
+        keys = new int[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * Adds all letter pairs of the given string (pairs do not span separator chars).
+     */
+    public void addAll(CharSequence str) {
+        int len = str.length();
+        if (len < 2) return;
+        char prev = str.charAt(0);
+        for (int i = 1; i < len; i++) {
+            char c = str.charAt(i);
+            if (!isSeparator(prev) && !isSeparator(c)) {
+                add(prev, c);
+            }
+            prev = c;
+        }
+    }
+
+    public void add(char first, char second) {
+        add(pack(first, second), 1);
+    }
+
+    void add(int key, int count) {
+        total += count;
+        if (key == EMPTY) {
+            if (emptyKeyCount == 0) distinct++;
+            emptyKeyCount += count;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (true) {
+            int existing = keys[slot];
+            if (existing == key) {
+                counts[slot] += count;
+                break;
+            } else if (existing == EMPTY) {
+                keys[slot] = key;
+                counts[slot] = count;
+                distinct++;
+                if (distinct * 2 > keys.length) {
+                    grow();
+                }
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * The number of times the given pair occurs.
+     */
+    public int count(char first, char second) {
+        return get(pack(first, second));
+    }
+
+    int get(int key) {
+        if (key == EMPTY) {
+            return emptyKeyCount;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (true) {
+            int existing = keys[slot];
+            if (existing == key) {
+                return counts[slot];
+            } else if (existing == EMPTY) {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * The total number of pairs (i.e. counting duplicates).
+     */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * The number of distinct pairs.
+     */
+    public int distinct() {
+        return distinct;
+    }
+
+    /**
+     * Calls the visitor for each distinct pair, in no particular order.
+     */
+    public void forEach(PairVisitor visitor) {
+        if (emptyKeyCount > 0) {
+            visitor.visit(EMPTY, emptyKeyCount);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(keys[i], counts[i]);
+            }
+        }
+    }
+
+    /**
+     * The size of the multiset intersection: for each pair, the smaller of its two counts.
+     */
+    public int intersection(BigramHistogram other) {
+        BigramHistogram smaller = (distinct <= other.distinct) ? this : other;
+        BigramHistogram larger = (smaller == this) ? other : this;
+        int result = Math.min(smaller.emptyKeyCount, larger.emptyKeyCount);
+        int[] smallerKeys = smaller.keys;
+        int[] smallerCounts = smaller.counts;
+        for (int i = 0; i < smallerKeys.length; i++) {
+            int key = smallerKeys[i];
+            if (key != EMPTY) {
+                int otherCount = larger.get(key);
+                if (otherCount != 0) {
+                    result += Math.min(smallerCounts[i], otherCount);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The Dice coefficient of the two multisets, as per {@link LetterPairSimilarity#compareStrings(String, String)}.
+     * Like the original algorithm, returns {@link Double#NaN} if neither histogram has any pairs.
+     */
+    public double dice(BigramHistogram other) {
+        int union = total + other.total;
+        return (2.0*intersection(other))/union;
+    }
+
+    /**
+     * Whether {@code dice(other) >= threshold}, but stopping as soon as the answer is known: rejects
+     * immediately if the totals alone make the threshold unreachable, and otherwise accumulates the
+     * intersection until it either reaches the threshold or the remaining pairs could no longer reach it.
+     */
+    public boolean diceAtLeast(BigramHistogram other, double threshold) {
+        int union = total + other.total;
+        if (union == 0) {
+            return dice(other) >= threshold;
+        }
+        if ((2.0*Math.min(total, other.total))/union < threshold) {
+            return false;
+        }
+        BigramHistogram smaller = (distinct <= other.distinct) ? this : other;
+        BigramHistogram larger = (smaller == this) ? other : this;
+        int result = Math.min(smaller.emptyKeyCount, larger.emptyKeyCount);
+        int remaining = smaller.total - smaller.emptyKeyCount;
+        int[] smallerKeys = smaller.keys;
+        int[] smallerCounts = smaller.counts;
+        for (int i = 0; i < smallerKeys.length; i++) {
+            int key = smallerKeys[i];
+            if (key != EMPTY) {
+                int count = smallerCounts[i];
+                result += Math.min(count, larger.get(key));
+                remaining -= count;
+                if ((2.0*result)/union >= threshold) {
+                    return true;
+                }
+                if ((2.0*(result + remaining))/union < threshold) {
+                    return false;
+                }
+            }
+        }
+        return (2.0*result)/union >= threshold;
+    }
+
+    @Override
+    public String toString() {
+        return "BigramHistogram[distinct="+distinct+", total="+total+"]";
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = mix(key) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /** Murmur3 finalizer, to spread the packed chars (which are mostly ASCII) across the table. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,322 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * Compares each adjacent pair in an ordered list of trees, e.g. a release train v1, v2, ... vN, using
+ * a {@link Differ} (with {@link JavaFileComparer}) for each step.
+ *
+ * Each tree is opened (e.g. walked, for a {@link FileLister}) once, when first needed, and used as the
+ * post tree of one step and the pre tree of the next; its files' fingerprints and content hashes are
+ * likewise computed at most once, and shared by both steps. Once both steps are done the tree is
+ * released: its fingerprints and hashes are forgotten, and it is closed (if {@link Closeable}). So at
+ * most two trees are held at once, however long the chain.
+ *
+ * As well as each step's {@link DifferResult}, records how each file's path changed from step to step
+ * (just the moves, and the files that appeared or disappeared), so a file can be followed through the
+ * whole chain; see {@link ChainResult#lineage(int, Path)}.
+ */
+public class ChainDiffer {
+
+    private static final Logger LOGGER = Logger.getLogger(ChainDiffer.class.getName());
+
+    private static final Fingerprinter STANDARD_NORMALIZATION = NormalizationRegistry.standard(JavaFileComparer.DEFAULT_SKETCH_THRESHOLD);
+
+    /**
+     * Opens a tree when it is first needed.
+     */
+    public static interface TreeOpener {
+        public SourceTree open() throws IOException;
+    }
+
+    /**
+     * A tree that is already open (and which will still be closed, if {@link Closeable}, once released).
+     */
+    public static TreeOpener of(final SourceTree tree) {
+        checkNotNull(tree, "tree");
+        return new TreeOpener() {
+            @Override public SourceTree open() {
+                return tree;
+            }
+            @Override public String toString() {
+                return tree.toString();
+            }
+        };
+    }
+
+    public static class ChainResult {
+        private final List<DifferResult> steps = Lists.newArrayList();
+        private final List<StepLineage> lineages = Lists.newArrayList();
+
+        /**
+         * The result of each step: the first compares trees 0 and 1, and so on. Empty results if they
+         * were not retained (see {@link ChainDiffer#retainResults(boolean)}).
+         */
+        public List<DifferResult> steps() {
+            return Collections.unmodifiableList(steps);
+        }
+
+        public int numTrees() {
+            return lineages.size() + 1;
+        }
+
+        /**
+         * The paths of the given file through the chain, from the tree it first appeared in (as a new file,
+         * or one that was ambiguous) to the last tree it was still in (i.e. unchanged or moved).
+         *
+         * @param tree The index of a tree in the chain
+         * @param path The path of a file in that tree
+         */
+        public Lineage lineage(int tree, Path path) {
+            checkArgument(tree >= 0 && tree < numTrees(), "No tree %s; there are %s", tree, numTrees());
+            checkNotNull(path, "path");
+            List<Path> before = Lists.newArrayList();
+            Path current = path;
+            int firstTree = tree;
+            for (int step = tree - 1; step >= 0; step--) {
+                StepLineage lineage = lineages.get(step);
+                if (lineage.started.contains(current)) {
+                    break;
+                }
+                Path prev = lineage.moved.inverse().get(current);
+                if (prev != null) current = prev;
+                before.add(current);
+                firstTree = step;
+            }
+            List<Path> paths = Lists.newArrayList(Lists.reverse(before));
+            paths.add(path);
+            current = path;
+            for (int step = tree; step < lineages.size(); step++) {
+                StepLineage lineage = lineages.get(step);
+                if (lineage.ended.contains(current)) {
+                    break;
+                }
+                Path next = lineage.moved.get(current);
+                if (next != null) current = next;
+                paths.add(current);
+            }
+            return new Lineage(firstTree, paths);
+        }
+    }
+
+    /**
+     * A file's path in each of a run of consecutive trees.
+     */
+    public static class Lineage {
+        private final int firstTree;
+        private final List<Path> paths;
+
+        public Lineage(int firstTree, List<Path> paths) {
+            this.firstTree = firstTree;
+            this.paths = ImmutableList.copyOf(paths);
+        }
+
+        public int firstTree() {
+            return firstTree;
+        }
+
+        public int lastTree() {
+            return firstTree + paths.size() - 1;
+        }
+
+        /**
+         * The paths, starting with the one in {@link #firstTree()}.
+         */
+        public List<Path> paths() {
+            return paths;
+        }
+
+        /**
+         * The file's path in the given tree, or null if it is not in that tree.
+         */
+        public Path pathIn(int tree) {
+            return (tree < firstTree || tree > lastTree()) ? null : paths.get(tree - firstTree);
+        }
+
+        @Override
+        public String toString() {
+            return "Lineage[from "+firstTree+": "+paths+"]";
+        }
+    }
+
+    /**
+     * How paths changed in a single step: pre files that moved, pre files that did not carry on (i.e.
+     * ambiguous), and post files that did not come from a pre file (i.e. new, or ambiguous). All others
+     * are unchanged, so are not recorded.
+     */
+    private static class StepLineage implements DifferListener {
+        final BiMap<Path, Path> moved = HashBiMap.create();
+        final Set<Path> ended = Sets.newHashSet();
+        final Set<Path> started = Sets.newHashSet();
+
+        @Override
+        public void onUnchanged(UnchangedResult result) {
+        }
+
+        @Override
+        public void onMoved(MovedResult result) {
+            moved.put(result.origPath, result.newPath);
+        }
+
+        @Override
+        public void onAmbiguous(AmbiguousResult result) {
+            ended.add(result.origPath);
+            started.addAll(result.newPaths.keySet());
+        }
+
+        @Override
+        public void onNewFile(Path path) {
+            started.add(path);
+        }
+
+        @Override
+        public void onUnevaluated(Path path) {
+            // Not known whether it carried on, so neither is the post file (if any) at the same location
+            ended.add(path);
+            started.add(path);
+        }
+    }
+
+    private final int parallelism;
+    private volatile FingerprintStore fingerprintStore;
+    private volatile double similarityThreshold = Differ.DEFAULT_SIMILARITY_THRESHOLD;
+    private volatile boolean retainResults = true;
+    private volatile DiffMetrics metrics;
+
+    /**
+     * @param parallelism The number of threads for comparing files in each step; 1 means sequential
+     */
+    public ChainDiffer(int parallelism) {
+        checkArgument(parallelism >= 1, "parallelism must be positive, but was %s", parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * See {@link Differ#fingerprintStore(FingerprintStore)}; also used for fingerprints. Not saved by this {@link ChainDiffer}.
+     */
+    public ChainDiffer fingerprintStore(FingerprintStore val) {
+        this.fingerprintStore = val;
+        return this;
+    }
+
+    /**
+     * See {@link Differ#similarityThreshold(double)}.
+     */
+    public ChainDiffer similarityThreshold(double val) {
+        this.similarityThreshold = val;
+        return this;
+    }
+
+    /**
+     * Whether to keep each step's {@link DifferResult} (the default); if not, only the lineage is kept.
+     */
+    public ChainDiffer retainResults(boolean val) {
+        this.retainResults = val;
+        return this;
+    }
+
+    /**
+     * See {@link Differ#metrics(DiffMetrics)}; also records the files read to fingerprint them (unless there is a
+     * {@link #fingerprintStore(FingerprintStore)}, whose own fingerprinter can be instrumented), and the time opening trees.
+     */
+    public ChainDiffer metrics(DiffMetrics val) {
+        this.metrics = val;
+        return this;
+    }
+
+    /**
+     * Compares each tree with the next. Every tree that was opened is closed (if {@link Closeable}),
+     * even if the comparison fails.
+     *
+     * @param trees At least two
+     */
+    public ChainResult compare(List<? extends TreeOpener> trees) throws IOException {
+        checkArgument(trees.size() >= 2, "Need at least two trees, but got %s", trees.size());
+
+        // Shared by all steps; entries are removed when a tree is released, so unbounded
+        DiffMetrics metrics = this.metrics;
+        Fingerprinter fingerprinter = (fingerprintStore != null) ? fingerprintStore
+                : (metrics != null) ? metrics.instrument(STANDARD_NORMALIZATION) : STANDARD_NORMALIZATION;
+        JavaFileComparer.Factory factory = new JavaFileComparer.Factory(Long.MAX_VALUE, fingerprinter);
+        ContentHasher contentHasher = new ContentHasher(fingerprintStore, metrics, Long.MAX_VALUE);
+
+        ChainResult result = new ChainResult();
+        SourceTree preTree = null;
+        SourceTree postTree = null;
+        try {
+            preTree = open(trees.get(0), metrics);
+            for (int i = 1; i < trees.size(); i++) {
+                postTree = open(trees.get(i), metrics);
+                LOGGER.info("Step "+i+" of "+(trees.size() - 1));
+
+                StepLineage lineage = new StepLineage();
+                DifferResult step = new Differ(parallelism)
+                        .fingerprintStore(fingerprintStore)
+                        .contentHasher(contentHasher)
+                        .similarityThreshold(similarityThreshold)
+                        .listener(lineage)
+                        .retainResults(retainResults)
+                        .metrics(metrics)
+                        .compare(preTree, postTree, factory);
+                result.steps.add(step);
+                result.lineages.add(lineage);
+
+                SourceTree done = preTree;
+                preTree = postTree;
+                postTree = null;
+                release(done, factory, contentHasher);
+            }
+        } finally {
+            // Only if failed part way through, or for the last tree
+            if (postTree != null) release(postTree, factory, contentHasher);
+            if (preTree != null) release(preTree, factory, contentHasher);
+        }
+        return result;
+    }
+
+    private static SourceTree open(TreeOpener opener, DiffMetrics metrics) throws IOException {
+        if (metrics == null) {
+            return opener.open();
+        }
+        DiffMetrics.Timer timer = metrics.time(DiffMetrics.Phase.LIST);
+        try {
+            return opener.open();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Forgets the tree's fingerprints and content hashes, and closes it (if {@link Closeable}).
+     */
+    static void release(SourceTree tree, JavaFileComparer.Factory factory, ContentHasher contentHasher) throws IOException {
+        for (Path path : tree.listAll()) {
+            SourceFile file = tree.file(path);
+            factory.getFingerprints().invalidate(file);
+            contentHasher.invalidate(file);
+        }
+        if (tree instanceof Closeable) {
+            ((Closeable) tree).close();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+/**
+ * Finds clusters of near-duplicate files within a tree (e.g. a class that was copied and then modified),
+ * and for each new file the existing file it was most likely copied from, without comparing every pair
+ * of files.
+ *
+ * Each file is fingerprinted (e.g. by a {@link JavaFileComparer.Factory}, so normalized), and files whose
+ * normalized contents are identical are grouped up front. One file of each group is indexed by its
+ * {@link MinHash} signature in an {@link LshIndex}, and compared exactly with only its few most likely
+ * candidates. Pairs whose similarity is at or above the threshold are near-duplicates, and are joined into
+ * clusters (transitively). So the work grows roughly linearly with the size of the tree; fingerprinting and
+ * comparing are spread over the given number of threads.
+ *
+ * Files with fewer than {@link #minLetterPairs(int)} letter pairs (after normalization) are left out, as
+ * small files (e.g. trivial interfaces) are all much alike. So are files fingerprinted as just a sketch
+ * (see {@link FileFingerprint#isSketched()}), as there is no exact comparison to confirm candidates with.
+ */
+public class CloneDetector {
+
+    private static final Logger LOGGER = Logger.getLogger(CloneDetector.class.getName());
+
+    /**
+     * Stricter than {@link Differ#DEFAULT_SIMILARITY_THRESHOLD}, as clusters are joined transitively (so the
+     * first and last of a cluster can be much less alike).
+     */
+    public static final double DEFAULT_SIMILARITY_THRESHOLD = 0.9;
+
+    public static final int DEFAULT_MIN_LETTER_PAIRS = 500;
+
+    /** The most likely candidates compared exactly for each file; as for renames in {@link Differ}. */
+    public static final int DEFAULT_MAX_CANDIDATES = 5;
+
+    private static final int NUM_HASHES = 128;
+    private static final long SEED = 0x434C4F4E45L;
+
+    public static class CloneResult {
+        private final List<List<Path>> clusters;
+        private final Map<Path, Origin> origins;
+
+        CloneResult(List<List<Path>> clusters, Map<Path, Origin> origins) {
+            this.clusters = Collections.unmodifiableList(clusters);
+            this.origins = Collections.unmodifiableMap(origins);
+        }
+
+        /**
+         * The groups of (at least two) near-duplicate files, each in the tree's order, and ordered by their first file.
+         */
+        public List<List<Path>> clusters() {
+            return clusters;
+        }
+
+        /**
+         * The existing file that each new file is most similar to (if any is similar enough), in the order of
+         * the new files.
+         */
+        public Map<Path, Origin> origins() {
+            return origins;
+        }
+    }
+
+    public static class Origin {
+        public final Path path;
+        public final double similarity;
+
+        public Origin(Path path, double similarity) {
+            this.path = checkNotNull(path, "path");
+            this.similarity = similarity;
+        }
+
+        @Override
+        public String toString() {
+            return path+" ("+similarity+")";
+        }
+    }
+
+    /**
+     * A pair of near-duplicates, by index in the tree's order.
+     */
+    private static class Edge {
+        final int file1;
+        final int file2;
+        final double similarity;
+
+        Edge(int file1, int file2, double similarity) {
+            this.file1 = file1;
+            this.file2 = file2;
+            this.similarity = similarity;
+        }
+    }
+
+    private final int parallelism;
+    private volatile double similarityThreshold = DEFAULT_SIMILARITY_THRESHOLD;
+    private volatile int minLetterPairs = DEFAULT_MIN_LETTER_PAIRS;
+    private volatile int maxCandidates = DEFAULT_MAX_CANDIDATES;
+
+    /**
+     * @param parallelism The number of threads for fingerprinting and comparing files; 1 means sequential
+     */
+    public CloneDetector(int parallelism) {
+        checkArgument(parallelism >= 1, "parallelism must be positive, but was %s", parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * The similarity at or above which two files are near-duplicates; defaults to {@link #DEFAULT_SIMILARITY_THRESHOLD}.
+     */
+    public CloneDetector similarityThreshold(double val) {
+        this.similarityThreshold = val;
+        return this;
+    }
+
+    /**
+     * The fewest letter pairs (after normalization) a file must have to be considered; defaults to
+     * {@link #DEFAULT_MIN_LETTER_PAIRS}.
+     */
+    public CloneDetector minLetterPairs(int val) {
+        this.minLetterPairs = val;
+        return this;
+    }
+
+    /**
+     * The most files each file is compared with exactly; defaults to {@link #DEFAULT_MAX_CANDIDATES}.
+     * Larger clusters are still found, through their files' other near-duplicates.
+     */
+    public CloneDetector maxCandidates(int val) {
+        checkArgument(val >= 1, "maxCandidates must be positive, but was %s", val);
+        this.maxCandidates = val;
+        return this;
+    }
+
+    /**
+     * Finds the near-duplicates in the tree.
+     *
+     * @param fingerprinter Should be backed by a cache (e.g. a {@link JavaFileComparer.Factory}), as files are
+     *                      fingerprinted once to index them and again when compared
+     * @param newFiles      The files whose origins to find (e.g. {@link Differ.DifferResult#newFiles()}); the other
+     *                      files of the tree are the existing files they could have been copied from
+     */
+    public CloneResult detect(final SourceTree tree, final Fingerprinter fingerprinter, Collection<Path> newFiles) throws IOException {
+        final List<Path> paths = ImmutableList.copyOf(tree.listAll());
+        final int numFiles = paths.size();
+        final double threshold = similarityThreshold;
+        final int minPairs = minLetterPairs;
+        final int maxCandidates = this.maxCandidates;
+        final MinHash minHash = new MinHash(NUM_HASHES, SEED);
+        LOGGER.info("Looking for near-duplicates amongst "+numFiles+" files of "+tree);
+
+        ExecutorService pool = (parallelism > 1) ? Executors.newFixedThreadPool(parallelism) : null;
+        try {
+            // Index each file by its signature (just one of each group of identical files)
+            final HashCode[] normalizedHashes = new HashCode[numFiles];
+            final int[][] signatures = new int[numFiles][];
+            forEachChunk(pool, numFiles, new ChunkTask<Void>() {
+                @Override public List<Void> run(int start, int end) throws IOException {
+                    for (int i = start; i < end; i++) {
+                        FileFingerprint fingerprint = fingerprinter.fingerprint(tree.file(paths.get(i)));
+                        if (!fingerprint.isSketched() && fingerprint.letterPairs() >= minPairs) {
+                            normalizedHashes[i] = fingerprint.normalizedHash();
+                            signatures[i] = minHash.signature(fingerprint.bigrams());
+                        }
+                    }
+                    return ImmutableList.of();
+                }});
+
+            int[] parents = new int[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                parents[i] = i;
+            }
+            int[] groups = new int[numFiles];
+            Arrays.fill(groups, -1);
+            Map<HashCode, Integer> firstWithHash = Maps.newHashMap();
+            final List<Integer> representatives = Lists.newArrayList();
+            final LshIndex<Integer> index = LshIndex.forThreshold(minHash, MinHash.diceToJaccard(threshold));
+            for (int i = 0; i < numFiles; i++) {
+                if (signatures[i] == null) continue;
+                Integer first = firstWithHash.get(normalizedHashes[i]);
+                if (first == null) {
+                    firstWithHash.put(normalizedHashes[i], i);
+                    representatives.add(i);
+                    index.put(i, signatures[i]);
+                    groups[i] = i;
+                } else {
+                    groups[i] = first;
+                    union(parents, first, i);
+                }
+            }
+
+            // Compare each with its likely near-duplicates (each pair may be found from both ends)
+            List<Edge> edges = forEachChunk(pool, representatives.size(), new ChunkTask<Edge>() {
+                @Override public List<Edge> run(int start, int end) throws IOException {
+                    List<Edge> result = Lists.newArrayList();
+                    for (int r = start; r < end; r++) {
+                        int file = representatives.get(r);
+                        FileFingerprint fingerprint = null;
+                        for (int candidate : index.candidates(signatures[file], maxCandidates + 1)) {
+                            if (candidate == file) continue;
+                            if (fingerprint == null) {
+                                fingerprint = fingerprinter.fingerprint(tree.file(paths.get(file)));
+                            }
+                            FileFingerprint other = fingerprinter.fingerprint(tree.file(paths.get(candidate)));
+                            if (fingerprint.similarityAtLeast(other, threshold)) {
+                                result.add(new Edge(file, candidate, fingerprint.similarity(other)));
+                            }
+                        }
+                    }
+                    return result;
+                }});
+            for (Edge edge : edges) {
+                union(parents, edge.file1, edge.file2);
+            }
+
+            return new CloneResult(clusters(paths, parents, groups), origins(paths, groups, edges, newFiles));
+
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+    }
+
+    private static List<List<Path>> clusters(List<Path> paths, int[] parents, int[] groups) {
+        Map<Integer, List<Path>> byRoot = Maps.newLinkedHashMap();
+        for (int i = 0; i < paths.size(); i++) {
+            if (groups[i] < 0) continue;
+            int root = find(parents, i);
+            List<Path> cluster = byRoot.get(root);
+            if (cluster == null) {
+                cluster = Lists.newArrayList();
+                byRoot.put(root, cluster);
+            }
+            cluster.add(paths.get(i));
+        }
+        List<List<Path>> result = Lists.newArrayList();
+        for (List<Path> cluster : byRoot.values()) {
+            if (cluster.size() > 1) {
+                result.add(ImmutableList.copyOf(cluster));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * For each new file: an existing file with identical normalized contents, or otherwise the most similar existing
+     * file (of any group) that it is a near-duplicate of, preferring the first in the tree's order.
+     */
+    private static Map<Path, Origin> origins(List<Path> paths, int[] groups, List<Edge> edges, Collection<Path> newFiles) {
+        Set<Path> isNew = Sets.newHashSet(newFiles);
+        // Per group: its first existing file
+        int[] existing = new int[paths.size()];
+        Arrays.fill(existing, -1);
+        for (int i = 0; i < paths.size(); i++) {
+            if (groups[i] >= 0 && existing[groups[i]] < 0 && !isNew.contains(paths.get(i))) {
+                existing[groups[i]] = i;
+            }
+        }
+        // Per group: its best near-duplicate existing file
+        int[] best = new int[paths.size()];
+        double[] bestSimilarity = new double[paths.size()];
+        Arrays.fill(best, -1);
+        for (Edge edge : edges) {
+            for (int end = 0; end < 2; end++) {
+                int group = (end == 0) ? edge.file1 : edge.file2;
+                int other = existing[(end == 0) ? edge.file2 : edge.file1];
+                if (other >= 0 && (best[group] < 0 || edge.similarity > bestSimilarity[group]
+                        || (edge.similarity == bestSimilarity[group] && other < best[group]))) {
+                    best[group] = other;
+                    bestSimilarity[group] = edge.similarity;
+                }
+            }
+        }
+
+        Map<Path, Integer> indexes = Maps.newHashMapWithExpectedSize(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            indexes.put(paths.get(i), i);
+        }
+        Map<Path, Origin> result = Maps.newLinkedHashMap();
+        for (Path newFile : newFiles) {
+            Integer i = indexes.get(newFile);
+            if (i == null || groups[i] < 0) continue;
+            int group = groups[i];
+            if (existing[group] >= 0) {
+                result.put(newFile, new Origin(paths.get(existing[group]), 1.0));
+            } else if (best[group] >= 0) {
+                result.put(newFile, new Origin(paths.get(best[group]), bestSimilarity[group]));
+            }
+        }
+        return result;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Joins the sets, keeping the lower index as the root.
+     */
+    private static void union(int[] parents, int i, int j) {
+        int rootI = find(parents, i);
+        int rootJ = find(parents, j);
+        if (rootI < rootJ) {
+            parents[rootJ] = rootI;
+        } else if (rootJ < rootI) {
+            parents[rootI] = rootJ;
+        }
+    }
+
+    private interface ChunkTask<T> {
+        List<T> run(int start, int end) throws IOException;
+    }
+
+    /**
+     * Runs the task over {@code [0, size)} in chunks, in the pool (or in this thread if none), concatenating
+     * the results in order.
+     */
+    private <T> List<T> forEachChunk(ExecutorService pool, int size, final ChunkTask<T> task) throws IOException {
+        if (pool == null) {
+            return task.run(0, size);
+        }
+        int chunkSize = Math.max(1, size / (parallelism * 8));
+        List<Future<List<T>>> futures = Lists.newArrayList();
+        try {
+            for (int start = 0; start < size; start += chunkSize) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(size, start + chunkSize);
+                futures.add(pool.submit(new Callable<List<T>>() {
+                    @Override public List<T> call() throws IOException {
+                        return task.run(chunkStart, chunkEnd);
+                    }}));
+            }
+            List<T> result = Lists.newArrayList();
+            for (Future<List<T>> future : futures) {
+                result.addAll(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted looking for near-duplicates");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<List<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
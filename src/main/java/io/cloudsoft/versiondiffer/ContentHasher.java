@@ -0,0 +1,97 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Cheaply determines whether two files are byte-for-byte identical: compares sizes first,
+ * and only then a (streamed) hash of the raw contents.
+ * 
+ * Remembers the hashes of up to a given number of files, so each file is hashed at most once
+ * (unless evicted). If given a {@link FingerprintStore} then hashes are also looked up in (and
+ * added to) that, so unchanged files need not be read at all on subsequent runs. Thread-safe.
+ */
+public class ContentHasher {
+
+    /** Hashes are small, so many more are remembered than fingerprints (see {@link FingerprintCache#DEFAULT_MAX_SIZE}). */
+    public static final long DEFAULT_MAX_SIZE = 100000;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final FingerprintStore store;
+    private final DiffMetrics metrics;
+
+    private final Cache<SourceFile, HashCode> hashes;
+
+    public ContentHasher() {
+        this(null);
+    }
+
+    /**
+     * @param store Where hashes are persisted between runs; or null
+     */
+    public ContentHasher(FingerprintStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param store   Where hashes are persisted between runs; or null
+     * @param metrics Where to count the files read; or null
+     */
+    public ContentHasher(FingerprintStore store, DiffMetrics metrics) {
+        this(store, metrics, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param store   Where hashes are persisted between runs; or null
+     * @param metrics Where to count the files read; or null
+     * @param maxSize The maximum number of hashes to remember; least-recently-used are evicted first
+     */
+    public ContentHasher(FingerprintStore store, DiffMetrics metrics, long maxSize) {
+        this.store = store;
+        this.metrics = metrics;
+        this.hashes = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * The hash of the file's raw contents. For files on disk, the {@link FingerprintStore} is checked
+     * using the size and last-modified time in the {@link SourceFile} (e.g. from {@link FileLister}),
+     * so without a stat.
+     */
+    public HashCode hash(SourceFile file) throws IOException {
+        HashCode result = hashes.getIfPresent(file);
+        if (result == null) {
+            result = (store != null) ? store.getContentHash(file) : null;
+            if (result == null) {
+                result = file.hash(HASH_FUNCTION);
+                if (metrics != null) {
+                    metrics.recordContentHashed(file.size());
+                }
+                if (store != null) {
+                    store.putContentHash(file, result);
+                }
+            }
+            hashes.put(file, result);
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the file's hash (but not any in the {@link FingerprintStore}), e.g. once it will not be compared again.
+     */
+    public void invalidate(SourceFile file) {
+        hashes.invalidate(file);
+    }
+
+    /**
+     * Whether the two files have identical contents.
+     */
+    public boolean identical(SourceFile f1, SourceFile f2) throws IOException {
+        return f1.size() == f2.size() && hash(f1).equals(hash(f2));
+    }
+}
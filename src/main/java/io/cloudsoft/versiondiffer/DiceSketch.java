@@ -0,0 +1,115 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size sketch of a letter-pair multiset, from which the Dice coefficient of two files (as per
+ * {@link BigramHistogram#dice(BigramHistogram)}) can be estimated; for files too big to keep the full
+ * histogram of (e.g. generated sources).
+ *
+ * It is a one-permutation MinHash: each shingle (each occurrence of each pair, as for {@link MinHash})
+ * is hashed once, the top bits of its hash pick one of the bins, and each bin keeps the smallest hash
+ * that falls in it. So building it costs one hash per shingle (rather than one per shingle per hash
+ * function), and it takes 4 bytes per bin however big the file. The fraction of bins (of those not
+ * empty in both) that agree estimates the multiset Jaccard index {@code j}, which is converted to Dice
+ * as {@code 2j/(1+j)}.
+ *
+ * Error bound: the Jaccard estimate's standard error is about {@code sqrt(j(1-j)/bins)}, so at most
+ * 0.016 with the default {@value #DEFAULT_NUM_BINS} bins. The Dice estimate's is {@code 2/(1+j)^2} times
+ * that: about 0.012 at the default threshold of 0.75, and at most 0.02 for any score above 0.5. So a
+ * score within about 0.04 (three standard errors) of a threshold could be on the wrong side of it, and
+ * should be re-checked exactly if that matters (see {@link JavaFileComparer#exactSimilarity(SourceFile, SourceFile)}).
+ * With fewer shingles than bins, many bins are empty and the estimate is coarser.
+ *
+ * Immutable.
+ */
+public class DiceSketch {
+
+    public static final int DEFAULT_NUM_BINS = 1024;
+
+    private static final long SEED = 0x534B45544348L;
+
+    /** Marks an empty bin; hashes kept are non-negative. */
+    private static final int EMPTY = -1;
+
+    /**
+     * Sketches the given histogram.
+     *
+     * @param numBins A power of two
+     */
+    public static DiceSketch of(BigramHistogram bigrams, int numBins) {
+        checkArgument(numBins > 0 && Integer.bitCount(numBins) == 1, "numBins must be a power of two, but was %s", numBins);
+        final int[] bins = new int[numBins];
+        Arrays.fill(bins, EMPTY);
+        final int binShift = 64 - Integer.numberOfTrailingZeros(numBins);
+        bigrams.forEach(new BigramHistogram.PairVisitor() {
+            @Override public void visit(int pair, int count) {
+                for (int occurrence = 0; occurrence < count; occurrence++) {
+                    long hash = MinHash.mix((((long) pair << 32) | occurrence) ^ SEED);
+                    int bin = (binShift == 64) ? 0 : (int) (hash >>> binShift);
+                    int val = (int) (hash & Integer.MAX_VALUE);
+                    if (bins[bin] == EMPTY || val < bins[bin]) {
+                        bins[bin] = val;
+                    }
+                }
+            }});
+        return new DiceSketch(bins, bigrams.total());
+    }
+
+    public static DiceSketch of(BigramHistogram bigrams) {
+        return of(bigrams, DEFAULT_NUM_BINS);
+    }
+
+    private final int[] bins;
+    private final int total;
+
+    /**
+     * @param bins  Not copied, so must not be modified after this call
+     * @param total The number of letter pairs sketched
+     */
+    DiceSketch(int[] bins, int total) {
+        this.bins = bins;
+        this.total = total;
+    }
+
+    public int numBins() {
+        return bins.length;
+    }
+
+    /**
+     * The number of letter pairs sketched, as per {@link BigramHistogram#total()}.
+     */
+    public int total() {
+        return total;
+    }
+
+    int bin(int i) {
+        return bins[i];
+    }
+
+    /**
+     * The estimated Dice coefficient of the two sketched histograms; {@link Double#NaN} if both are empty
+     * (as for {@link BigramHistogram#dice(BigramHistogram)}).
+     */
+    public double estimateDice(DiceSketch other) {
+        checkArgument(bins.length == other.bins.length, "Sketch sizes differ: %s and %s", bins.length, other.bins.length);
+        int matches = 0;
+        int used = 0;
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] == EMPTY && other.bins[i] == EMPTY) continue;
+            used++;
+            if (bins[i] == other.bins[i]) matches++;
+        }
+        if (used == 0) {
+            return Double.NaN;
+        }
+        return MinHash.jaccardToDice(((double) matches) / used);
+    }
+
+    @Override
+    public String toString() {
+        return "DiceSketch[bins="+bins.length+", total="+total+"]";
+    }
+}
@@ -0,0 +1,452 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Counters, phase timings and latency histograms for a run (or, for {@link DiffServer}, for all its
+ * runs), cheap enough to always collect: each is an atomic increment, and timing a similarity call
+ * costs two {@link System#nanoTime()} calls. Readable while the run is going via JMX (see
+ * {@link #registerMBean(String)}), and at the end as JSON (see {@link #writeJson(Writer)}).
+ *
+ * The values are:
+ * <ul>
+ * <li>preFiles, postFiles: the files listed in each tree
+ * <li>fingerprintsComputed, contentHashesComputed: the files actually read (i.e. not found in a cache or
+ *     {@link FingerprintStore}) to fingerprint them (by an {@link #instrument(Fingerprinter) instrumented}
+ *     {@link Fingerprinter}) or to hash them (by a {@link ContentHasher} given these metrics)
+ * <li>filesRead, bytesRead: the total of those reads
+ * <li>similarityCalls: calls to {@link FileComparer#similarity(SourceFile)} or
+ *     {@link FileComparer#similarityAtLeast(SourceFile, double)}, by {@link Differ}
+ * <li>identicalFastPathHits: files found identical by content id or hash, so not compared
+ * <li>fingerprintCache/StoreHits/Misses: lookups in the {@link FingerprintCache} and {@link FingerprintStore}
+ *     (as given to {@link #fingerprintCache(FingerprintCache)} and {@link #fingerprintStore(FingerprintStore)},
+ *     counting from then)
+ * <li>phaseMillis: the wall time spent in each {@link Phase}
+ * <li>similarityLatency: a histogram of similarity call times, per bucket of file size (the larger of the two)
+ * </ul>
+ *
+ * Thread-safe.
+ */
+public class DiffMetrics implements DiffMetricsMXBean {
+
+    public static final String MBEAN_DOMAIN = "io.cloudsoft.versiondiffer";
+
+    public enum Phase {
+        /** Listing the trees (e.g. walking directories). */
+        LIST,
+        /** Comparing each pre file with the post file(s) it could be. */
+        COMPARE,
+        /** Matching the moved and renamed files. */
+        MATCH,
+        /** Diffing the lines of the matched files (see {@link LineDiffComparer}). */
+        LINE_DIFF,
+        /** Finding near-duplicate files (see {@link CloneDetector}). */
+        CLONES;
+
+        public String label() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /** The upper bounds (exclusive) of the file size buckets, in bytes; the last bucket has none. */
+    private static final long[] SIZE_BUCKET_LIMITS = {1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final ImmutableList<String> SIZE_BUCKET_LABELS = ImmutableList.of(
+            "<1KiB", "1-4KiB", "4-16KiB", "16-64KiB", "64-256KiB", ">=256KiB");
+
+    /**
+     * A summary of a {@link LatencyHistogram}; the percentiles are the upper bounds of the (power of two)
+     * buckets they fall in (capped at the maximum), so are within a factor of two.
+     */
+    public static class LatencySummary {
+        private final long calls;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+
+        LatencySummary(long calls, double meanMicros, double p50Micros, double p90Micros, double p99Micros, double maxMicros) {
+            this.calls = calls;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    /**
+     * Counts of durations in power-of-two buckets of nanos: bucket i holds durations in [2^(i-1), 2^i).
+     */
+    static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {}
+        }
+
+        LatencySummary summary() {
+            long n = count.get();
+            double mean = (n == 0) ? 0 : totalNanos.get() / 1000.0 / n;
+            return new LatencySummary(n, mean, percentileMicros(n, 0.5), percentileMicros(n, 0.9), percentileMicros(n, 0.99),
+                    maxNanos.get() / 1000.0);
+        }
+
+        private double percentileMicros(long n, double fraction) {
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    // The bucket's upper bound (2^i nanos), but no more than the slowest seen
+                    return Math.min(Math.scalb(1.0, i), maxNanos.get()) / 1000.0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Times a phase, from its creation until {@link #stop()}; typically stopped in a {@code finally} block.
+     */
+    public class Timer {
+        private final Phase phase;
+        private final long startTime = System.nanoTime();
+
+        Timer(Phase phase) {
+            this.phase = phase;
+        }
+
+        /**
+         * Records the time since this was created against the phase.
+         */
+        public void stop() {
+            recordPhase(phase, System.nanoTime() - startTime);
+        }
+    }
+
+    private final AtomicLong preFiles = new AtomicLong();
+    private final AtomicLong postFiles = new AtomicLong();
+    private final AtomicLong fingerprintsComputed = new AtomicLong();
+    private final AtomicLong contentHashesComputed = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong similarityCalls = new AtomicLong();
+    private final AtomicLong identicalFastPathHits = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final LatencyHistogram[] similarityLatency = new LatencyHistogram[SIZE_BUCKET_LABELS.size()];
+
+    private volatile FingerprintCache fingerprintCache;
+    private volatile CacheStats fingerprintCacheBaseline;
+    private volatile FingerprintStore fingerprintStore;
+    private volatile long fingerprintStoreBaseHits;
+    private volatile long fingerprintStoreBaseMisses;
+
+    private volatile ObjectName mbeanName;
+
+    public DiffMetrics() {
+        for (int i = 0; i < similarityLatency.length; i++) {
+            similarityLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Reports the hits and misses of the given cache, from now on. Only one cache is reported; {@link Differ}
+     * sets it when given a {@link JavaFileComparer.Factory}, unless already set.
+     */
+    public synchronized DiffMetrics fingerprintCache(FingerprintCache val) {
+        this.fingerprintCacheBaseline = val.stats();
+        this.fingerprintCache = val;
+        return this;
+    }
+
+    /**
+     * Reports the hits and misses of the given store, from now on. Only one store is reported; {@link Differ}
+     * sets it when given a store, unless already set.
+     */
+    public synchronized DiffMetrics fingerprintStore(FingerprintStore val) {
+        this.fingerprintStoreBaseHits = val.hitCount();
+        this.fingerprintStoreBaseMisses = val.missCount();
+        this.fingerprintStore = val;
+        return this;
+    }
+
+    FingerprintCache getFingerprintCache() {
+        return fingerprintCache;
+    }
+
+    FingerprintStore getFingerprintStore() {
+        return fingerprintStore;
+    }
+
+    /**
+     * Wraps the fingerprinter to count (and size) the files it reads. Wrap the fingerprinter that actually
+     * reads the files (e.g. {@link JavaFileComparer#FINGERPRINTER}), rather than a cache or store in front of it.
+     */
+    public Fingerprinter instrument(final Fingerprinter delegate) {
+        checkNotNull(delegate, "delegate");
+        return new Fingerprinter() {
+            @Override public FileFingerprint fingerprint(SourceFile file) throws IOException {
+                FileFingerprint result = delegate.fingerprint(file);
+                fingerprintsComputed.incrementAndGet();
+                bytesRead.addAndGet(file.size());
+                return result;
+            }
+            @Override public String toString() {
+                return delegate.toString();
+            }};
+    }
+
+    /**
+     * Starts timing the phase, until the returned {@link Timer} is stopped.
+     */
+    public Timer time(Phase phase) {
+        return new Timer(phase);
+    }
+
+    public void recordPhase(Phase phase, long nanos) {
+        phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    public void recordTreeSizes(int preFiles, int postFiles) {
+        this.preFiles.addAndGet(preFiles);
+        this.postFiles.addAndGet(postFiles);
+    }
+
+    void recordContentHashed(long size) {
+        contentHashesComputed.incrementAndGet();
+        bytesRead.addAndGet(size);
+    }
+
+    void recordIdentical() {
+        identicalFastPathHits.incrementAndGet();
+    }
+
+    /**
+     * @param fileSize The larger of the two files' sizes
+     */
+    void recordSimilarity(long fileSize, long nanos) {
+        similarityCalls.incrementAndGet();
+        similarityLatency[sizeBucket(fileSize)].record(nanos);
+    }
+
+    @Override
+    public long getPreFiles() {
+        return preFiles.get();
+    }
+
+    @Override
+    public long getPostFiles() {
+        return postFiles.get();
+    }
+
+    @Override
+    public long getFilesRead() {
+        return fingerprintsComputed.get() + contentHashesComputed.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getFingerprintsComputed() {
+        return fingerprintsComputed.get();
+    }
+
+    @Override
+    public long getContentHashesComputed() {
+        return contentHashesComputed.get();
+    }
+
+    @Override
+    public long getSimilarityCalls() {
+        return similarityCalls.get();
+    }
+
+    @Override
+    public long getIdenticalFastPathHits() {
+        return identicalFastPathHits.get();
+    }
+
+    @Override
+    public long getFingerprintCacheHits() {
+        FingerprintCache cache = fingerprintCache;
+        return (cache == null) ? 0 : cache.stats().minus(fingerprintCacheBaseline).hitCount();
+    }
+
+    @Override
+    public long getFingerprintCacheMisses() {
+        FingerprintCache cache = fingerprintCache;
+        return (cache == null) ? 0 : cache.stats().minus(fingerprintCacheBaseline).missCount();
+    }
+
+    @Override
+    public long getFingerprintStoreHits() {
+        FingerprintStore store = fingerprintStore;
+        return (store == null) ? 0 : store.hitCount() - fingerprintStoreBaseHits;
+    }
+
+    @Override
+    public long getFingerprintStoreMisses() {
+        FingerprintStore store = fingerprintStore;
+        return (store == null) ? 0 : store.missCount() - fingerprintStoreBaseMisses;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (Phase phase : Phase.values()) {
+            result.put(phase.label(), TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase.ordinal())));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getSimilarityLatency() {
+        Map<String, LatencySummary> result = Maps.newLinkedHashMap();
+        for (int i = 0; i < similarityLatency.length; i++) {
+            result.put(SIZE_BUCKET_LABELS.get(i), similarityLatency[i].summary());
+        }
+        return result;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as {@code io.cloudsoft.versiondiffer:type=DiffMetrics,name=<name>}.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName(MBEAN_DOMAIN+":type=DiffMetrics,name="+ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics MBean "+name, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                throw new IllegalStateException("Failed to unregister metrics MBean "+mbeanName, e);
+            } finally {
+                mbeanName = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the current values as a JSON object, e.g. for a run report.
+     */
+    public void writeJson(Writer out) throws IOException {
+        StringBuilder result = new StringBuilder();
+        result.append("{\n");
+        result.append("  \"counters\": {\n");
+        appendField(result, "    ", "preFiles", getPreFiles(), true);
+        appendField(result, "    ", "postFiles", getPostFiles(), true);
+        appendField(result, "    ", "filesRead", getFilesRead(), true);
+        appendField(result, "    ", "bytesRead", getBytesRead(), true);
+        appendField(result, "    ", "fingerprintsComputed", getFingerprintsComputed(), true);
+        appendField(result, "    ", "contentHashesComputed", getContentHashesComputed(), true);
+        appendField(result, "    ", "similarityCalls", getSimilarityCalls(), true);
+        appendField(result, "    ", "identicalFastPathHits", getIdenticalFastPathHits(), true);
+        appendField(result, "    ", "fingerprintCacheHits", getFingerprintCacheHits(), true);
+        appendField(result, "    ", "fingerprintCacheMisses", getFingerprintCacheMisses(), true);
+        appendField(result, "    ", "fingerprintStoreHits", getFingerprintStoreHits(), true);
+        appendField(result, "    ", "fingerprintStoreMisses", getFingerprintStoreMisses(), false);
+        result.append("  },\n");
+        result.append("  \"phaseMillis\": {\n");
+        int i = 0;
+        Map<String, Long> phases = getPhaseMillis();
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            appendField(result, "    ", entry.getKey(), entry.getValue(), ++i < phases.size());
+        }
+        result.append("  },\n");
+        result.append("  \"similarityLatency\": [\n");
+        i = 0;
+        Map<String, LatencySummary> latencies = getSimilarityLatency();
+        for (Map.Entry<String, LatencySummary> entry : latencies.entrySet()) {
+            LatencySummary summary = entry.getValue();
+            result.append("    {\"fileSize\": \"").append(entry.getKey()).append("\"")
+                    .append(", \"calls\": ").append(summary.getCalls())
+                    .append(", \"meanMicros\": ").append(summary.getMeanMicros())
+                    .append(", \"p50Micros\": ").append(summary.getP50Micros())
+                    .append(", \"p90Micros\": ").append(summary.getP90Micros())
+                    .append(", \"p99Micros\": ").append(summary.getP99Micros())
+                    .append(", \"maxMicros\": ").append(summary.getMaxMicros())
+                    .append(++i < latencies.size() ? "},\n" : "}\n");
+        }
+        result.append("  ]\n");
+        result.append("}\n");
+        out.write(result.toString());
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "DiffMetrics[filesRead="+getFilesRead()+", bytesRead="+getBytesRead()+", similarityCalls="+getSimilarityCalls()
+                +", identicalFastPathHits="+getIdenticalFastPathHits()+", phaseMillis="+getPhaseMillis()+"]";
+    }
+
+    private static void appendField(StringBuilder result, String indent, String name, long val, boolean more) {
+        result.append(indent).append('"').append(name).append("\": ").append(val).append(more ? ",\n" : "\n");
+    }
+
+    private static int sizeBucket(long size) {
+        for (int i = 0; i < SIZE_BUCKET_LIMITS.length; i++) {
+            if (size < SIZE_BUCKET_LIMITS[i]) return i;
+        }
+        return SIZE_BUCKET_LIMITS.length;
+    }
+}
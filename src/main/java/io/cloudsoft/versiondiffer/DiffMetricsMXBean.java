@@ -0,0 +1,41 @@
+package io.cloudsoft.versiondiffer;
+
+import java.util.Map;
+
+import io.cloudsoft.versiondiffer.DiffMetrics.LatencySummary;
+
+/**
+ * The JMX view of {@link DiffMetrics}; see there for what each value counts.
+ */
+public interface DiffMetricsMXBean {
+
+    public long getPreFiles();
+
+    public long getPostFiles();
+
+    public long getFilesRead();
+
+    public long getBytesRead();
+
+    public long getFingerprintsComputed();
+
+    public long getContentHashesComputed();
+
+    public long getSimilarityCalls();
+
+    public long getIdenticalFastPathHits();
+
+    public long getFingerprintCacheHits();
+
+    public long getFingerprintCacheMisses();
+
+    public long getFingerprintStoreHits();
+
+    public long getFingerprintStoreMisses();
+
+    /** Wall time so far in each phase, keyed by phase name. */
+    public Map<String, Long> getPhaseMillis();
+
+    /** Latency of similarity calls, keyed by file size bucket. */
+    public Map<String, LatencySummary> getSimilarityLatency();
+}
@@ -0,0 +1,470 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+
+/**
+ * Serves diffs over HTTP (on the loopback interface only), keeping registered trees warm between
+ * requests: each tree's {@link FileLister} snapshot, and the fingerprints and content hashes of its
+ * files. A repeat diff against a registered baseline therefore reads only the files that have changed.
+ *
+ * Before each diff, a registered tree is listed again (which stats each file, but reads none). Files
+ * whose size or last-modified time changed, or that were removed, have their fingerprints forgotten,
+ * so are read again when next compared. Unregistered trees (directories, or archives as for
+ * {@link Main}) can also be diffed, but are read afresh each time and forgotten afterwards. The
+ * {@link DiffMetrics} accumulate over all diffs.
+ *
+ * Requests are handled one at a time (each diff is itself parallel):
+ * <ul>
+ * <li>{@code GET /diff?pre=<path>&post=<path>[&format=yaml|jsonl]} streams the results, as written
+ *     by {@link StreamingResultWriter#create(String, Writer, Function)} (by default yaml)
+ * <li>{@code POST /trees?path=<dir>} registers the directory, reading all its files now
+ * <li>{@code DELETE /trees?path=<dir>} unregisters it
+ * <li>{@code GET /trees} lists the registered trees, one per line
+ * </ul>
+ */
+public class DiffServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(DiffServer.class.getName());
+
+    public static final int DEFAULT_PORT = 8790;
+
+    /**
+     * A registered directory, and its latest listing.
+     */
+    private class WarmTree {
+        final Path dir;
+        FileLister lister;
+
+        WarmTree(Path dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Lists the directory again, forgetting about the files that changed since it was last listed.
+         */
+        FileLister refresh() throws IOException {
+            FileLister latest;
+            DiffMetrics.Timer timer = metrics.time(DiffMetrics.Phase.LIST);
+            try {
+                latest = new FileLister(dir, filter, dirFilter, listingPool);
+            } finally {
+                timer.stop();
+            }
+            if (lister != null) {
+                int changed = 0;
+                for (Path path : lister.listAll()) {
+                    SourceFile file = lister.file(path);
+                    if (!latest.contains(path) || !file.equals(latest.file(path))) {
+                        factory.getFingerprints().invalidate(file);
+                        contentHasher.invalidate(file);
+                        changed++;
+                    }
+                }
+                LOGGER.fine("Refreshed "+dir+": "+changed+" files changed or removed, of "+lister.listAll().size());
+            }
+            lister = latest;
+            return latest;
+        }
+    }
+
+    private final Predicate<? super String> filter;
+    private final Predicate<? super String> dirFilter;
+    private final int parallelism;
+    private final FingerprintStore fingerprintStore;
+    private final DiffMetrics metrics;
+    private volatile Function<? super Path, String> toFqn;
+
+    /** Shared by all diffs; entries are removed when files change or trees are unregistered, so unbounded. */
+    private final JavaFileComparer.Factory factory;
+    private final ContentHasher contentHasher;
+
+    /** Shared by all listings (each refresh of a registered tree, and each other directory diffed). */
+    private final ForkJoinPool listingPool;
+
+    /** Keyed by absolute path. Only used by the request thread (or before the server is started). */
+    private final ConcurrentMap<Path, WarmTree> trees = Maps.newConcurrentMap();
+
+    private HttpServer server;
+    private ExecutorService requestExecutor;
+
+    /**
+     * @param filter           Which files to include, as for {@link FileLister}
+     * @param dirFilter        Which directories to look in, as for {@link FileLister}
+     * @param parallelism      The number of threads for listing and comparing files
+     * @param fingerprintStore Where fingerprints are also persisted (saved and closed when this is closed); or null.
+     *                         Used as is, so for its misses to be counted its delegate should be
+     *                         {@link DiffMetrics#instrument(Fingerprinter) instrumented} with the same metrics
+     *                         (as {@link Main} does)
+     * @param metrics          Where the metrics of all diffs are recorded
+     */
+    public DiffServer(Predicate<? super String> filter, Predicate<? super String> dirFilter, int parallelism, FingerprintStore fingerprintStore,
+            DiffMetrics metrics) {
+        checkArgument(parallelism >= 1, "parallelism must be positive, but was %s", parallelism);
+        this.filter = checkNotNull(filter, "filter");
+        this.dirFilter = checkNotNull(dirFilter, "dirFilter");
+        this.parallelism = parallelism;
+        this.fingerprintStore = fingerprintStore;
+        this.metrics = checkNotNull(metrics, "metrics");
+        Fingerprinter fingerprinter = (fingerprintStore != null) ? fingerprintStore : metrics.instrument(NormalizationRegistry.standard(JavaFileComparer.DEFAULT_SKETCH_THRESHOLD));
+        this.factory = new JavaFileComparer.Factory(Long.MAX_VALUE, fingerprinter);
+        this.contentHasher = new ContentHasher(fingerprintStore, metrics, Long.MAX_VALUE);
+        this.listingPool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * For including the fully qualified class name of each path in the results; by default omitted.
+     */
+    public DiffServer toFqn(Function<? super Path, String> val) {
+        this.toFqn = val;
+        return this;
+    }
+
+    /**
+     * Listens on the loopback interface.
+     *
+     * @param port The port, or 0 for any free port
+     * @return The address listened on
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        checkArgument(server == null, "Already started");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/diff", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) {
+                handleRequest(exchange, "GET");
+            }});
+        server.createContext("/trees", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) {
+                handleRequest(exchange, "GET", "POST", "DELETE");
+            }});
+        requestExecutor = Executors.newSingleThreadExecutor();
+        server.setExecutor(requestExecutor);
+        server.start();
+        LOGGER.info("Serving diffs on "+server.getAddress());
+        return server.getAddress();
+    }
+
+    /**
+     * Stops serving, and saves and closes the {@link FingerprintStore} (if any).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (server != null) {
+            server.stop(0);
+            requestExecutor.shutdownNow();
+            server = null;
+        }
+        listingPool.shutdownNow();
+        if (fingerprintStore != null) {
+            try {
+                fingerprintStore.save();
+            } finally {
+                fingerprintStore.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the directory warm: lists it, and fingerprints and hashes all its files, now.
+     *
+     * @return The number of files
+     */
+    public int register(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        if (!Files.isDirectory(dir)) {
+            throw Files.exists(dir) ? new IOException("Not a directory: "+dir) : new NoSuchFileException(dir.toString());
+        }
+        WarmTree tree = trees.get(dir);
+        if (tree == null) {
+            tree = new WarmTree(dir);
+        }
+        FileLister lister = tree.refresh();
+        warm(lister);
+        trees.put(dir, tree);
+        LOGGER.info("Registered "+dir+" ("+lister.listAll().size()+" files)");
+        return lister.listAll().size();
+    }
+
+    /**
+     * Forgets the directory and its files' fingerprints.
+     *
+     * @return Whether it was registered
+     */
+    public boolean unregister(Path dir) throws IOException {
+        WarmTree tree = trees.remove(dir.toAbsolutePath().normalize());
+        if (tree == null) {
+            return false;
+        }
+        ChainDiffer.release(tree.lister, factory, contentHasher);
+        LOGGER.info("Unregistered "+tree.dir);
+        return true;
+    }
+
+    /**
+     * Compares the trees, telling the listener about each result; the results are not retained. Registered
+     * trees are refreshed first; others are opened just for this diff.
+     */
+    public DifferResult diff(Path pre, Path post, DifferListener listener) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            SourceTree preTree = open(pre, closer);
+            SourceTree postTree = open(post, closer);
+            return new Differ(parallelism)
+                    .fingerprintStore(fingerprintStore)
+                    .contentHasher(contentHasher)
+                    .listener(listener)
+                    .retainResults(false)
+                    .metrics(metrics)
+                    .compare(preTree, postTree, factory);
+        } catch (Throwable e) {
+            throw closer.rethrow(e, IOException.class);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private SourceTree open(Path path, Closer closer) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        WarmTree warm = trees.get(path);
+        if (warm != null) {
+            return warm.refresh();
+        }
+        final SourceTree result;
+        DiffMetrics.Timer timer = metrics.time(DiffMetrics.Phase.LIST);
+        try {
+            result = Files.isDirectory(path)
+                    ? new FileLister(path, filter, dirFilter, listingPool)
+                    : ArchiveTree.open(path, ArchiveTree.AUTO_STRIP, filter, dirFilter);
+        } finally {
+            timer.stop();
+        }
+        closer.register(new Closeable() {
+            @Override public void close() throws IOException {
+                ChainDiffer.release(result, factory, contentHasher);
+            }});
+        return result;
+    }
+
+    /**
+     * Fingerprints and hashes all the files, in parallel.
+     */
+    private void warm(final SourceTree tree) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final Path path : tree.listAll()) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override public Void call() throws IOException {
+                        SourceFile file = tree.file(path);
+                        factory.fingerprint(file);
+                        contentHasher.hash(file);
+                        return null;
+                    }}));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted warming "+tree);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange, String... methods) {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!Lists.newArrayList(methods).contains(method)) {
+                exchange.getResponseHeaders().set("Allow", Joiner.on(", ").join(methods));
+                sendText(exchange, 405, "Method "+method+" not allowed\n");
+                return;
+            }
+            Map<String, String> params = params(exchange);
+            if (exchange.getHttpContext().getPath().equals("/diff")) {
+                handleDiff(exchange, params);
+            } else {
+                handleTrees(exchange, method, params);
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e);
+        } catch (NoSuchFileException e) {
+            sendError(exchange, 404, e);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to handle "+exchange.getRequestMethod()+" "+exchange.getRequestURI(), e);
+            sendError(exchange, 500, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleDiff(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Path pre = path(params, "pre");
+        Path post = path(params, "post");
+        String format = Optional.fromNullable(params.get("format")).or("yaml");
+        String contentType = format.equals("jsonl") ? "application/x-ndjson" : "application/x-yaml";
+        ResponseBody body = new ResponseBody(exchange, contentType+"; charset=utf-8");
+        StreamingResultWriter writer = StreamingResultWriter.create(format, new OutputStreamWriter(body, StandardCharsets.UTF_8), toFqn);
+        long startTime = System.currentTimeMillis();
+        diff(pre, post, writer);
+        writer.close();
+        LOGGER.info("Diffed "+pre+" and "+post+" in "+(System.currentTimeMillis() - startTime)+"ms");
+    }
+
+    private void handleTrees(HttpExchange exchange, String method, Map<String, String> params) throws IOException {
+        switch (method) {
+        case "POST":
+            Path dir = path(params, "path");
+            int size = register(dir);
+            sendText(exchange, 200, "Registered "+dir+" ("+size+" files)\n");
+            break;
+        case "DELETE":
+            dir = path(params, "path");
+            if (!unregister(dir)) {
+                throw new NoSuchFileException(dir.toString(), null, "not registered");
+            }
+            sendText(exchange, 200, "Unregistered "+dir+"\n");
+            break;
+        default:
+            StringBuilder result = new StringBuilder();
+            for (WarmTree tree : trees.values()) {
+                result.append(tree.dir).append('\t').append(tree.lister.listAll().size()).append('\n');
+            }
+            sendText(exchange, 200, result.toString());
+        }
+    }
+
+    private static Path path(Map<String, String> params, String name) {
+        String val = params.get(name);
+        checkArgument(val != null && !val.isEmpty(), "Missing parameter %s", name);
+        return FileSystems.getDefault().getPath(val).toAbsolutePath().normalize();
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> result = Maps.newLinkedHashMap();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : Splitter.on('&').omitEmptyStrings().split(query)) {
+                int eq = param.indexOf('=');
+                String key = (eq < 0) ? param : param.substring(0, eq);
+                String val = (eq < 0) ? "" : param.substring(eq + 1);
+                result.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(val, "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends the error, unless the response was already started (in which case it is just cut short).
+     */
+    private static void sendError(HttpExchange exchange, int code, Exception e) {
+        if (exchange.getResponseCode() >= 0) {
+            LOGGER.warning("Response to "+exchange.getRequestURI()+" cut short: "+e);
+            return;
+        }
+        try {
+            String msg = (e instanceof NoSuchFileException) ? "No such file: "+e.getMessage() : String.valueOf(e.getMessage());
+            sendText(exchange, code, msg+"\n");
+        } catch (IOException e2) {
+            LOGGER.log(Level.FINE, "Failed to send error response for "+exchange.getRequestURI(), e2);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * The (chunked) response body, only sending the response headers when first written to, so that
+     * a failure before then (e.g. a tree not found) can still be sent as an error response.
+     */
+    private static class ResponseBody extends OutputStream {
+        private final HttpExchange exchange;
+        private final String contentType;
+        private OutputStream out;
+
+        ResponseBody(HttpExchange exchange, String contentType) {
+            this.exchange = exchange;
+            this.contentType = contentType;
+        }
+
+        private OutputStream out() throws IOException {
+            if (out == null) {
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, 0);
+                out = exchange.getResponseBody();
+            }
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out().close();
+        }
+    }
+}
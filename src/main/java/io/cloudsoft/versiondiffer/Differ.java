@@ -1,37 +1,103 @@
 package io.cloudsoft.versiondiffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 
 import brooklyn.util.collections.MutableSet;
+import io.cloudsoft.versiondiffer.DiffMetrics.Phase;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+import io.cloudsoft.versiondiffer.ProgressListener.Progress;
+import io.cloudsoft.versiondiffer.ProgressListener.Stage;
 
 public class Differ {
 
     private static final Logger LOGGER = Logger.getLogger(Differ.class.getName());
+    
+    /** 
+     * The similarity at or above which two files are considered the same file. 
+     */
+    public static final double DEFAULT_SIMILARITY_THRESHOLD = 0.75;
+    
+    private static final String NO_FILE_WITH_SAME_NAME = "No file with same name";
+    
+    /** For a file that would be moved, but a file more similar to its destination was moved there. */
+    private static final String MATCHED_WITH_ANOTHER_FILE = "Matching file was more similar to another original file";
+    
+    /** For a file that would be moved, but its destination is the unchanged file at that location. */
+    private static final String UNCHANGED_AT_ORIGINAL_PATH = "Matching file is unchanged at its original path";
+    
+    /** For a file that would be moved, but its destination is (significantly changed, or not evaluated) at its original location. */
+    private static final String AT_ORIGINAL_PATH = "Matching file is still at its original path";
+    
+    /** The number of MinHash hashes when looking for renames, and the seed for choosing them. */
+    private static final int RENAME_NUM_HASHES = 128;
+    private static final long RENAME_SEED = 0x52454E414D45L;
+    
+    /** The most likely candidates compared exactly for each possibly-renamed file. */
+    private static final int MAX_RENAME_CANDIDATES = 5;
+    
+    /** 
+     * The default for {@link #readAheadWindow(int)}: well within {@link FingerprintCache#DEFAULT_MAX_SIZE}, even
+     * when each file has several contenders.
+     */
+    public static final int DEFAULT_READ_AHEAD_WINDOW = 256;
         
     public static class DifferResult {
         public static class UnchangedResult {
             public final Path path;
             public final double similarity;
             
+            /** Whether the similarity was estimated from a sketch of a big file; see {@link FileFingerprint#isSketched()}. */
+            public final boolean estimated;
+            
             public UnchangedResult(Path path, double similarity) {
+                this(path, similarity, false);
+            }
+            
+            public UnchangedResult(Path path, double similarity, boolean estimated) {
                 this.path = path;
                 this.similarity = similarity;
+                this.estimated = estimated;
             }
         }
 
@@ -40,10 +106,18 @@ public class Differ {
             public final Path newPath;
             public final double similarity;
             
+            /** Whether the similarity was estimated from a sketch of a big file; see {@link FileFingerprint#isSketched()}. */
+            public final boolean estimated;
+            
             public MovedResult(Path origPath, Path newPath, double similarity) {
+                this(origPath, newPath, similarity, false);
+            }
+            
+            public MovedResult(Path origPath, Path newPath, double similarity, boolean estimated) {
                 this.origPath = origPath;
                 this.newPath = newPath;
                 this.similarity = similarity;
+                this.estimated = estimated;
             }
         }
 
@@ -52,10 +126,18 @@ public class Differ {
             public final Map<Path, Double> newPaths;
             public final String msg;
             
+            /** The new paths whose similarity was estimated from a sketch of a big file; see {@link FileFingerprint#isSketched()}. */
+            public final Set<Path> estimated;
+            
             public AmbiguousResult(Path origPath, Map<Path, Double> newPaths, String msg) {
+                this(origPath, newPaths, msg, ImmutableSet.<Path>of());
+            }
+            
+            public AmbiguousResult(Path origPath, Map<Path, Double> newPaths, String msg, Set<Path> estimated) {
                 this.origPath = origPath;
                 this.newPaths = ImmutableMap.copyOf(newPaths);
                 this.msg = msg;
+                this.estimated = ImmutableSet.copyOf(estimated);
             }
         }
 
@@ -63,6 +145,7 @@ public class Differ {
         final List<MovedResult> moved = Lists.newArrayList();
         final List<AmbiguousResult> ambiguous = Lists.newArrayList();
         final List<Path> newFiles = Lists.newArrayList();
+        final List<Path> unevaluated = Lists.newArrayList();
         
         public List<UnchangedResult> unchanged() {
             return Collections.unmodifiableList(unchanged);
@@ -76,74 +159,1125 @@ public class Differ {
         public List<Path> newFiles() {
             return Collections.unmodifiableList(newFiles);
         }
+        /**
+         * The pre files that were not compared, or whose renames were not looked for, before the
+         * {@link Differ#timeBudget(long, TimeUnit)} ran out; empty if there was no budget, or it was enough.
+         */
+        public List<Path> unevaluated() {
+            return Collections.unmodifiableList(unevaluated);
+        }
     }
     
-    public DifferResult compare(FileLister preLister, FileLister postLister, FileComparer.Factory fileComparerFactory) throws IOException {
-        LOGGER.info("Comparing "+preLister.getBasedir()+" and "+postLister.getBasedir());
+    /**
+     * What was decided for a single pre file; exactly one of the results (or unevaluated) is set.
+     */
+    private static class FileOutcome {
+        UnchangedResult unchanged;
+        MovedResult moved;
+        AmbiguousResult ambiguous;
+        Path unevaluated;
+        
+        /**
+         * Whether the ambiguous result is provisional (for a file that is not at the same location in the post
+         * tree), until the global matching; see {@link Comparison#match(List, Set, Set)}. It holds the scores of
+         * the post files it could be, and what to report if it is not matched with any of them.
+         */
+        boolean unresolved;
+        
+        /**
+         * Whether the unresolved result is for a post file that clears the threshold, so is only reported if
+         * that file goes to another pre file in the global matching (or is at another's original location).
+         */
+        boolean matchedIfUnclaimed;
+        
+        static FileOutcome of(UnchangedResult val) {
+            FileOutcome result = new FileOutcome();
+            result.unchanged = val;
+            return result;
+        }
+        static FileOutcome of(MovedResult val) {
+            FileOutcome result = new FileOutcome();
+            result.moved = val;
+            return result;
+        }
+        static FileOutcome of(AmbiguousResult val) {
+            FileOutcome result = new FileOutcome();
+            result.ambiguous = val;
+            return result;
+        }
+        static FileOutcome unevaluated(Path val) {
+            FileOutcome result = new FileOutcome();
+            result.unevaluated = val;
+            return result;
+        }
+        static FileOutcome unresolved(AmbiguousResult val) {
+            FileOutcome result = of(val);
+            result.unresolved = true;
+            return result;
+        }
+        static FileOutcome unclaimed(AmbiguousResult val) {
+            FileOutcome result = unresolved(val);
+            result.matchedIfUnclaimed = true;
+            return result;
+        }
+    }
+    
+    /**
+     * A candidate pairing of an unresolved pre file (by its index) with a post file, for the global matching.
+     */
+    private static class Match {
+        final int pre;
+        final Path post;
+        final double similarity;
+        final boolean estimated;
+        
+        Match(int pre, Path post, double similarity, boolean estimated) {
+            this.pre = pre;
+            this.post = post;
+            this.similarity = similarity;
+            this.estimated = estimated;
+        }
+    }
+    
+    /**
+     * Best first; ties broken by the order of the pre files and then by post path, so the matching is deterministic.
+     */
+    private static final Comparator<Match> BEST_MATCH_FIRST = new Comparator<Match>() {
+        @Override public int compare(Match o1, Match o2) {
+            int result = Double.compare(o2.similarity, o1.similarity);
+            if (result == 0) result = Integer.compare(o1.pre, o2.pre);
+            if (result == 0) result = o1.post.compareTo(o2.post);
+            return result;
+        }
+    };
+    
+    /**
+     * Where the outcomes of a single call to {@link Differ#compare(SourceTree, SourceTree, FileComparer.Factory)}
+     * go: into the {@link DifferResult} (if results are retained) and to the {@link DifferListener} (if any).
+     * Also keeps track of which post files are not yet accounted for, and of the pre files whose outcome
+     * is unresolved (which are held back until the global matching).
+     * 
+     * Only used by the thread calling {@code compare}.
+     */
+    private static class ResultSink {
+        final DifferResult result;
+        final DifferListener listener;
+        final boolean retainResults;
+        final Set<Path> postFilesUnaccountedFor;
+        final List<FileOutcome> unresolved = Lists.newArrayList();
+        
+        /**
+         * The files accounted for at their original location, other than as unchanged (i.e. significantly changed,
+         * or not evaluated); so any other file at an original location that is accounted for is unchanged.
+         */
+        final Set<Path> notUnchangedAtOriginalPath = Sets.newHashSet();
+        
+        ResultSink(DifferResult result, DifferListener listener, boolean retainResults, Set<Path> postFilesUnaccountedFor) {
+            this.result = result;
+            this.listener = listener;
+            this.retainResults = retainResults;
+            this.postFilesUnaccountedFor = postFilesUnaccountedFor;
+        }
+        
+        void accept(FileOutcome outcome) throws IOException {
+            if (outcome.unresolved) {
+                unresolved.add(outcome);
+            } else {
+                emit(outcome);
+            }
+        }
+        
+        void emit(FileOutcome outcome) throws IOException {
+            if (outcome.unchanged != null) {
+                postFilesUnaccountedFor.remove(outcome.unchanged.path);
+                if (retainResults) result.unchanged.add(outcome.unchanged);
+                if (listener != null) listener.onUnchanged(outcome.unchanged);
+            }
+            if (outcome.moved != null) {
+                postFilesUnaccountedFor.remove(outcome.moved.newPath);
+                if (retainResults) result.moved.add(outcome.moved);
+                if (listener != null) listener.onMoved(outcome.moved);
+            }
+            if (outcome.ambiguous != null) {
+                if (outcome.ambiguous.newPaths.containsKey(outcome.ambiguous.origPath)) {
+                    notUnchangedAtOriginalPath.add(outcome.ambiguous.origPath);
+                }
+                postFilesUnaccountedFor.removeAll(outcome.ambiguous.newPaths.keySet());
+                if (retainResults) result.ambiguous.add(outcome.ambiguous);
+                if (listener != null) listener.onAmbiguous(outcome.ambiguous);
+            }
+            if (outcome.unevaluated != null) {
+                // Not new, if at the same location: it is just not known what it is
+                if (postFilesUnaccountedFor.remove(outcome.unevaluated)) {
+                    notUnchangedAtOriginalPath.add(outcome.unevaluated);
+                }
+                if (retainResults) result.unevaluated.add(outcome.unevaluated);
+                if (listener != null) listener.onUnevaluated(outcome.unevaluated);
+            }
+        }
+        
+        void emitNewFile(Path path) throws IOException {
+            if (retainResults) result.newFiles.add(path);
+            if (listener != null) listener.onNewFile(path);
+        }
+    }
+    
+    /**
+     * A mutable set of some of a tree's files, as a bit per file of the tree's {@link PathIndex} (in the order of
+     * {@code listAll()}), so that e.g. keeping track of which post files are accounted for does not copy all their
+     * paths; see {@link #copyOf(Set)}. Not thread-safe.
+     */
+    private static class FileSubset extends AbstractSet<Path> {
+        
+        /**
+         * A mutable copy of the files (of {@link SourceTree#listAll()}, or of such a copy), iterating in the same order:
+         * a {@link FileSubset} if they are a view of a {@link PathIndex}, or otherwise a copy of the paths.
+         */
+        static Set<Path> copyOf(Set<Path> files) {
+            if (files instanceof FileSubset) {
+                FileSubset subset = (FileSubset) files;
+                return new FileSubset(subset.index, (BitSet) subset.members.clone(), subset.size);
+            } else if (files instanceof PathIndex.PathSet) {
+                BitSet members = new BitSet(files.size());
+                members.set(0, files.size());
+                return new FileSubset(((PathIndex.PathSet) files).index(), members, files.size());
+            } else {
+                return MutableSet.copyOf(files);
+            }
+        }
+        
+        /**
+         * The files (of {@link SourceTree#listAll()}) as a list, in order: a view if they are a view of a
+         * {@link PathIndex}, or otherwise a copy.
+         */
+        static List<Path> listOf(Set<Path> files) {
+            return (files instanceof PathIndex.PathSet) ? ((PathIndex.PathSet) files).index().asList() : ImmutableList.copyOf(files);
+        }
+        
+        private final PathIndex index;
+        private final BitSet members;
+        private int size;
+        
+        private FileSubset(PathIndex index, BitSet members, int size) {
+            this.index = index;
+            this.members = members;
+            this.size = size;
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            int i = (o instanceof Path) ? index.indexOf((Path) o) : -1;
+            return i >= 0 && members.get(i);
+        }
+        
+        @Override
+        public boolean remove(Object o) {
+            int i = (o instanceof Path) ? index.indexOf((Path) o) : -1;
+            if (i < 0 || !members.get(i)) {
+                return false;
+            }
+            members.clear(i);
+            size--;
+            return true;
+        }
+        
+        @Override
+        public Iterator<Path> iterator() {
+            return new Iterator<Path>() {
+                int next = members.nextSetBit(0);
+                int last = -1;
+                @Override public boolean hasNext() {
+                    return next >= 0;
+                }
+                @Override public Path next() {
+                    if (next < 0) throw new NoSuchElementException();
+                    last = next;
+                    next = members.nextSetBit(next + 1);
+                    return index.path(last);
+                }
+                @Override public void remove() {
+                    checkState(last >= 0 && members.get(last), "No file to remove");
+                    members.clear(last);
+                    size--;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Reports to the {@link ProgressListener} (if any); only used by the thread calling {@code compare}.
+     */
+    private static class ProgressTracker {
+        private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(ProgressListener.INTERVAL_MILLIS);
+        
+        final ProgressListener listener;
+        final int filesTotal;
+        final long startTime = System.nanoTime();
+        Stage stage;
+        long stageStartTime;
+        int stageStartDone;
+        int filesDone;
+        long lastReport;
+        
+        ProgressTracker(ProgressListener listener, int filesTotal) {
+            this.listener = listener;
+            this.filesTotal = filesTotal;
+        }
+        
+        void startStage(Stage val) {
+            stage = val;
+            stageStartTime = System.nanoTime();
+            stageStartDone = filesDone;
+            report(false);
+        }
+        
+        void fileDone() {
+            filesDone++;
+            if (listener != null && System.nanoTime() - lastReport >= INTERVAL_NANOS) {
+                report(false);
+            }
+        }
+        
+        void finish() {
+            report(true);
+        }
+        
+        private void report(boolean finished) {
+            if (listener == null) return;
+            long now = System.nanoTime();
+            lastReport = now;
+            long remaining = -1;
+            int stageDone = filesDone - stageStartDone;
+            if (finished) {
+                remaining = 0;
+            } else if (stage != Stage.MATCH && stageDone > 0) {
+                remaining = TimeUnit.NANOSECONDS.toMillis((now - stageStartTime) / stageDone * (filesTotal - filesDone));
+            }
+            listener.onProgress(new Progress(stage, filesDone, filesTotal, TimeUnit.NANOSECONDS.toMillis(now - startTime), remaining));
+        }
+    }
+    
+    private final int parallelism;
+    private final ExecutorService executor;
+    private volatile FingerprintStore fingerprintStore;
+    private volatile ContentHasher contentHasher;
+    private volatile double similarityThreshold = DEFAULT_SIMILARITY_THRESHOLD;
+    private volatile DifferListener listener;
+    private volatile boolean retainResults = true;
+    private volatile DiffMetrics metrics;
+    private volatile int readAheadThreads;
+    private volatile int readAheadWindow = DEFAULT_READ_AHEAD_WINDOW;
+    private volatile long timeBudgetNanos;
+    private volatile ProgressListener progressListener;
+    
+    /**
+     * Compares files sequentially, in the calling thread.
+     */
+    public Differ() {
+        this(1);
+    }
+    
+    /**
+     * Compares files using the given number of threads (in a fork-join pool created for each
+     * call to {@link #compare(SourceTree, SourceTree, FileComparer.Factory)}); 1 means sequential.
+     */
+    public Differ(int parallelism) {
+        checkArgument(parallelism >= 1, "parallelism must be positive, but was %s", parallelism);
+        this.parallelism = parallelism;
+        this.executor = null;
+    }
+    
+    /**
+     * Compares files using the given executor, which is not shut down by this {@link Differ}.
+     * The {@link FileComparer.Factory} used must then be thread-safe.
+     */
+    public Differ(ExecutorService executor) {
+        this.parallelism = 0;
+        this.executor = checkNotNull(executor, "executor");
+    }
+    
+    /**
+     * Looks up (and records) content hashes in the given store, so unchanged files need not
+     * be read on subsequent runs. The store is not saved by this {@link Differ}.
+     */
+    public Differ fingerprintStore(FingerprintStore val) {
+        this.fingerprintStore = val;
+        return this;
+    }
+    
+    /**
+     * Remembers content hashes in the given {@link ContentHasher}, rather than in a new one for each call to
+     * {@link #compare(SourceTree, SourceTree, FileComparer.Factory)}, so they can be shared between comparisons
+     * of the same tree (see {@link ChainDiffer}). The hasher's own {@link FingerprintStore} (if any) is then
+     * used for content hashes, rather than the {@link #fingerprintStore(FingerprintStore)}.
+     */
+    public Differ contentHasher(ContentHasher val) {
+        this.contentHasher = val;
+        return this;
+    }
+    
+    /**
+     * The similarity at or above which two files are considered the same file (i.e. unchanged or
+     * moved, rather than ambiguous); defaults to {@link #DEFAULT_SIMILARITY_THRESHOLD}.
+     */
+    public Differ similarityThreshold(double val) {
+        this.similarityThreshold = val;
+        return this;
+    }
+    
+    /**
+     * Tells the given listener about each result as soon as it is decided; see {@link DifferListener}.
+     */
+    public Differ listener(DifferListener val) {
+        this.listener = val;
+        return this;
+    }
+    
+    /**
+     * Whether to also collect all results into the returned {@link DifferResult} (the default).
+     * When streaming results to a {@link #listener(DifferListener)}, set this to false so that
+     * results are not all held in memory; the returned {@link DifferResult} is then empty.
+     */
+    public Differ retainResults(boolean val) {
+        this.retainResults = val;
+        return this;
+    }
+    
+    /**
+     * Records counters and timings of each comparison in the given {@link DiffMetrics}; by default none.
+     * Also reports the hits of the {@link #fingerprintStore(FingerprintStore)} and (if the {@link FileComparer.Factory}
+     * is a {@link JavaFileComparer.Factory}) its cache, unless the metrics already report others.
+     */
+    public Differ metrics(DiffMetrics val) {
+        this.metrics = val;
+        return this;
+    }
+    
+    /**
+     * Reads files ahead of comparing them, in a separate pool of the given number of threads, so that reading
+     * (e.g. from a network file system or a cold page cache) overlaps with comparing, rather than each compare
+     * thread waiting for its own reads. 0 (the default) means each file is read when it is compared.
+     * 
+     * The readers go through the pre files in order, reading what comparing each will need (see
+     * {@link Comparison#prefetch(Path)}) into the {@link ContentHasher} and the {@link FileComparer.Factory}'s
+     * cache; each file is then queued to be compared. At most {@link #readAheadWindow(int)} files are read
+     * but not yet compared, so the readers wait for the comparers rather than filling memory.
+     * 
+     * Cannot be combined with a {@link #timeBudget(long, TimeUnit)}, whose stages each read only what they need.
+     */
+    public Differ readAhead(int threads) {
+        checkArgument(threads >= 0, "threads must not be negative, but was %s", threads);
+        checkArgument(threads == 0 || timeBudgetNanos == 0, "read-ahead cannot be combined with a time budget");
+        this.readAheadThreads = threads;
+        return this;
+    }
+    
+    /**
+     * The most files read ahead but not yet compared; defaults to {@link #DEFAULT_READ_AHEAD_WINDOW}. Their
+     * fingerprints are held in the {@link FileComparer.Factory}'s cache, so this should be well within its size.
+     */
+    public Differ readAheadWindow(int files) {
+        checkArgument(files >= 1, "files must be positive, but was %s", files);
+        this.readAheadWindow = files;
+        return this;
+    }
+    
+    /**
+     * Stops comparing once the given time has passed (from the start of each call to
+     * {@link #compare(SourceTree, SourceTree, FileComparer.Factory)}), returning what was decided by then;
+     * 0 (the default) means no limit. The pre files are then compared in stages, cheapest first (see
+     * {@link ProgressListener.Stage}), so that as many as possible are decided within the budget.
+     * 
+     * Cannot be combined with {@link #readAhead(int)}: a file read ahead for a later stage would be read before
+     * those of earlier stages, which the budget may not then reach.
+     */
+    public Differ timeBudget(long duration, TimeUnit unit) {
+        checkArgument(duration >= 0, "duration must not be negative, but was %s", duration);
+        checkArgument(duration == 0 || readAheadThreads == 0, "a time budget cannot be combined with read-ahead");
+        this.timeBudgetNanos = unit.toNanos(duration);
+        return this;
+    }
+    
+    /**
+     * Tells the given listener how far each comparison has got; see {@link ProgressListener}.
+     */
+    public Differ progressListener(ProgressListener val) {
+        this.progressListener = val;
+        return this;
+    }
+    
+    /**
+     * Compares the pre and post trees. The result is the same regardless of the parallelism:
+     * the results are in the order of {@code preTree.listAll()}, apart from files that are not at
+     * the same location in the post tree (which come after the others, in the same order, once they
+     * have been matched; see {@link DifferListener}).
+     * 
+     * With a {@link #timeBudget(long, TimeUnit)}, results are only given to the
+     * {@link #listener(DifferListener)} once all stages are done. Once the budget runs out no more files are
+     * started (those already being compared are finished), and no more renames are looked for; those files
+     * are reported as {@link DifferResult#unevaluated()}. A post file at the same location as one of them is
+     * not reported as new, but any other post file it (or a file not looked for as a rename) was moved to is.
+     * If the budget does not run out, the result is the same as without one.
+     */
+    public DifferResult compare(SourceTree preTree, SourceTree postTree, FileComparer.Factory fileComparerFactory) throws IOException {
+        LOGGER.info("Comparing "+preTree+" and "+postTree);
+        
+        DiffMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordTreeSizes(preTree.listAll().size(), postTree.listAll().size());
+            if (fingerprintStore != null && metrics.getFingerprintStore() == null) {
+                metrics.fingerprintStore(fingerprintStore);
+            }
+            if (fileComparerFactory instanceof JavaFileComparer.Factory && metrics.getFingerprintCache() == null) {
+                metrics.fingerprintCache(((JavaFileComparer.Factory) fileComparerFactory).getFingerprints());
+            }
+        }
         
+        ContentHasher hasher = (contentHasher != null) ? contentHasher : new ContentHasher(fingerprintStore, metrics);
+        long timeBudgetNanos = this.timeBudgetNanos;
+        Comparison comparison = new Comparison(preTree, postTree, fileComparerFactory, hasher, similarityThreshold, metrics, timeBudgetNanos);
         DifferResult result = new DifferResult();
-        for (Path path : preLister.listAll()) {
+        ResultSink sink = new ResultSink(result, listener, retainResults, FileSubset.copyOf(postTree.listAll()));
+        ProgressTracker progress = new ProgressTracker(progressListener, preTree.listAll().size());
+        long startTime = System.nanoTime();
+        if (timeBudgetNanos > 0) {
+            ExecutorService pool = (executor != null) ? executor : (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+            try {
+                for (Path path : comparison.compareInStages(pool, sink, progress)) {
+                    sink.emit(FileOutcome.unevaluated(path));
+                }
+            } finally {
+                if (pool != null && pool != executor) pool.shutdownNow();
+            }
+        } else if (readAheadThreads > 0) {
+            progress.startStage(Stage.COMPARE);
+            ExecutorService readers = Executors.newFixedThreadPool(readAheadThreads);
+            ExecutorService pool = (executor != null) ? executor : new ForkJoinPool(parallelism);
+            try {
+                comparison.compareAllWithReadAhead(readers, pool, readAheadWindow, sink, progress);
+            } finally {
+                readers.shutdownNow();
+                if (pool != executor) pool.shutdownNow();
+            }
+        } else if (executor != null) {
+            progress.startStage(Stage.COMPARE);
+            comparison.compareAll(executor, sink, progress);
+        } else if (parallelism > 1) {
+            progress.startStage(Stage.COMPARE);
+            ExecutorService pool = new ForkJoinPool(parallelism);
+            try {
+                comparison.compareAll(pool, sink, progress);
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            progress.startStage(Stage.COMPARE);
+            for (Path path : preTree.listAll()) {
+                sink.accept(comparison.compareFile(path));
+                progress.fileDone();
+            }
+        }
+        if (metrics != null) {
+            metrics.recordPhase(Phase.COMPARE, System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+        }
+        
+        // Which of the contenders is each file, or is there a file that looks like a rename?
+        progress.startStage(Stage.MATCH);
+        for (FileOutcome outcome : comparison.match(sink.unresolved, sink.postFilesUnaccountedFor, sink.notUnchangedAtOriginalPath)) {
+            sink.emit(outcome);
+        }
+        if (metrics != null) {
+            metrics.recordPhase(Phase.MATCH, System.nanoTime() - startTime);
+        }
+        for (Path newFile : sink.postFilesUnaccountedFor) {
+            sink.emitNewFile(newFile);
+        }
+        if (comparison.outOfTime()) {
+            LOGGER.warning("Time budget ran out comparing "+preTree+" and "+postTree+"; some files were not evaluated");
+        }
+        progress.finish();
+        
+        return result;
+    }
+    
+    /**
+     * The state of a single call to {@link Differ#compare(SourceTree, SourceTree, FileComparer.Factory)}.
+     * Thread-safe, so that pre files can be compared in parallel.
+     */
+    private static class Comparison {
+        private final SourceTree preTree;
+        private final SourceTree postTree;
+        private final FileComparer.Factory fileComparerFactory;
+        private final ContentHasher contentHasher;
+        private final double threshold;
+        private final DiffMetrics metrics;
+        
+        /** When the time budget runs out (by {@link System#nanoTime()}), if {@link #hasDeadline}. */
+        private final long deadline;
+        private final boolean hasDeadline;
+        
+        /** Whether the trees' content ids can be compared, so identical files are found without reading them. */
+        private final boolean useContentIds;
+        
+        /**
+         * Post files that are not in the same location in the pre tree (i.e. that could be 
+         * the destination of a move), indexed for finding identical files: by content id if
+         * {@link #useContentIds}, or otherwise by size.
+         */
+        private final Multimap<Object, Path> moveCandidates;
+        
+        Comparison(SourceTree preTree, SourceTree postTree, FileComparer.Factory fileComparerFactory, ContentHasher contentHasher, double threshold,
+                DiffMetrics metrics, long timeBudgetNanos) throws IOException {
+            this.preTree = preTree;
+            this.postTree = postTree;
+            this.fileComparerFactory = fileComparerFactory;
+            this.contentHasher = contentHasher;
+            this.threshold = threshold;
+            this.metrics = metrics;
+            this.hasDeadline = timeBudgetNanos > 0;
+            this.deadline = System.nanoTime() + timeBudgetNanos;
+            this.useContentIds = preTree.contentIdType() != null && preTree.contentIdType().equals(postTree.contentIdType());
+            this.moveCandidates = ArrayListMultimap.create();
+            for (Path path : postTree.listAll()) {
+                if (!preTree.contains(path)) {
+                    moveCandidates.put(identityKey(postTree, path), path);
+                }
+            }
+        }
+        
+        /**
+         * Compares every pre file as a separate task; the outcomes are passed to the sink in the order
+         * of {@code preTree.listAll()} (each as soon as it and all before it are done) so that the
+         * result is deterministic.
+         */
+        void compareAll(ExecutorService executor, ResultSink sink, ProgressTracker progress) throws IOException {
+            List<Future<FileOutcome>> futures = Lists.newArrayList();
+            try {
+                for (final Path path : preTree.listAll()) {
+                    futures.add(executor.submit(new Callable<FileOutcome>() {
+                        @Override public FileOutcome call() throws IOException {
+                            return compareFile(path);
+                        }}));
+                }
+                for (Future<FileOutcome> future : futures) {
+                    sink.accept(future.get());
+                    progress.fileDone();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted comparing "+preTree+" and "+postTree);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                for (Future<FileOutcome> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        
+        /**
+         * As {@link #compareAll(ExecutorService, ResultSink, ProgressTracker)}, but each pre file is first read by one of the
+         * readers (see {@link #prefetch(Path)}), and only then queued for the comparers. At most {@code window}
+         * files are read but not yet compared; while the window is full, outcomes are passed to the sink
+         * instead of reading more.
+         */
+        void compareAllWithReadAhead(ExecutorService readers, final ExecutorService comparers, int window, ResultSink sink, ProgressTracker progress) throws IOException {
+            final Semaphore permits = new Semaphore(window);
+            List<Future<Future<FileOutcome>>> futures = Lists.newArrayList();
+            int accepted = 0;
+            try {
+                for (final Path path : preTree.listAll()) {
+                    // The window is full only while some files are not yet compared, so not yet accepted
+                    while (!permits.tryAcquire()) {
+                        sink.accept(futures.get(accepted++).get().get());
+                        progress.fileDone();
+                    }
+                    futures.add(readers.submit(new Callable<Future<FileOutcome>>() {
+                        @Override public Future<FileOutcome> call() {
+                            prefetch(path);
+                            try {
+                                return comparers.submit(new Callable<FileOutcome>() {
+                                    @Override public FileOutcome call() throws IOException {
+                                        try {
+                                            return compareFile(path);
+                                        } finally {
+                                            permits.release();
+                                        }
+                                    }});
+                            } catch (RuntimeException e) {
+                                permits.release();
+                                throw e;
+                            }
+                        }}));
+                }
+                for (; accepted < futures.size(); accepted++) {
+                    sink.accept(futures.get(accepted).get().get());
+                    progress.fileDone();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted comparing "+preTree+" and "+postTree);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                for (Future<Future<FileOutcome>> future : futures) {
+                    future.cancel(true);
+                    if (future.isDone() && !future.isCancelled()) {
+                        try {
+                            future.get().cancel(true);
+                        } catch (ExecutionException | InterruptedException e) {
+                            // Nothing was queued to compare
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * For a time budget: compares the pre files in stages, cheapest first (see {@link ProgressListener.Stage}),
+         * each stage taking just the files not decided by an earlier one. Each file's outcome is the same as from
+         * {@link #compareFile(Path)}. The outcomes are passed to the sink in the order of {@code preTree.listAll()}
+         * once all stages are done; returns the files that were not compared before the budget ran out, in that order.
+         */
+        List<Path> compareInStages(ExecutorService executor, ResultSink sink, ProgressTracker progress) throws IOException {
+            List<Path> paths = FileSubset.listOf(preTree.listAll());
+            FileOutcome[] outcomes = new FileOutcome[paths.size()];
+            List<Integer> remaining = Lists.newArrayListWithCapacity(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                remaining.add(i);
+            }
+            
+            progress.startStage(Stage.IDENTICAL);
+            remaining = compareStage(executor, paths, remaining, outcomes, progress, new FileTask() {
+                @Override public FileOutcome compare(Path path) throws IOException {
+                    return compareIfIdentical(path);
+                }});
+            progress.startStage(Stage.SINGLE_CONTENDER);
+            remaining = compareStage(executor, paths, remaining, outcomes, progress, new FileTask() {
+                @Override public FileOutcome compare(Path path) throws IOException {
+                    boolean single = postTree.contains(path) || postTree.findFilename(path.getFileName().toString()).size() == 1;
+                    return single ? compareFile(path) : null;
+                }});
+            progress.startStage(Stage.MULTIPLE_CONTENDERS);
+            remaining = compareStage(executor, paths, remaining, outcomes, progress, new FileTask() {
+                @Override public FileOutcome compare(Path path) throws IOException {
+                    return compareFile(path);
+                }});
+            
+            List<Path> result = Lists.newArrayList();
+            for (int i = 0; i < paths.size(); i++) {
+                if (outcomes[i] != null) {
+                    sink.accept(outcomes[i]);
+                } else {
+                    result.add(paths.get(i));
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Decides the outcome of a single file, or returns null if it cannot (or is left to a later stage).
+         */
+        private interface FileTask {
+            FileOutcome compare(Path path) throws IOException;
+        }
+        
+        /**
+         * Runs the task on each of the remaining files (by index into {@code paths}), in the executor if any,
+         * recording the outcomes that it decides; files are skipped once out of time. Returns the files that
+         * still have no outcome, in order.
+         */
+        private List<Integer> compareStage(ExecutorService executor, final List<Path> paths, List<Integer> remaining, FileOutcome[] outcomes,
+                ProgressTracker progress, final FileTask task) throws IOException {
+            List<Integer> result = Lists.newArrayList();
+            if (executor == null) {
+                for (int i : remaining) {
+                    FileOutcome outcome = outOfTime() ? null : task.compare(paths.get(i));
+                    if (outcome != null) {
+                        outcomes[i] = outcome;
+                        progress.fileDone();
+                    } else {
+                        result.add(i);
+                    }
+                }
+                return result;
+            }
+            
+            List<Future<FileOutcome>> futures = Lists.newArrayListWithCapacity(remaining.size());
+            try {
+                for (final int i : remaining) {
+                    futures.add(executor.submit(new Callable<FileOutcome>() {
+                        @Override public FileOutcome call() throws IOException {
+                            return outOfTime() ? null : task.compare(paths.get(i));
+                        }}));
+                }
+                for (int j = 0; j < remaining.size(); j++) {
+                    FileOutcome outcome = futures.get(j).get();
+                    if (outcome != null) {
+                        outcomes[remaining.get(j)] = outcome;
+                        progress.fileDone();
+                    } else {
+                        result.add(remaining.get(j));
+                    }
+                }
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted comparing "+preTree+" and "+postTree);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                for (Future<FileOutcome> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        
+        boolean outOfTime() {
+            return hasDeadline && System.nanoTime() - deadline >= 0;
+        }
+        
+        /**
+         * Reads what {@link #compareFile(Path)} will need, so that it is cached by then: the content hashes of the
+         * file and of the post files it could be identical to, and (unless one is identical) the fingerprints of
+         * the file and of the post files it will be compared with, if the {@link FileComparer.Factory} is a
+         * {@link Fingerprinter}. Any failure is left for {@link #compareFile(Path)} to hit (and report) in turn.
+         */
+        void prefetch(Path path) {
+            try {
+                Collection<Path> contenders;
+                if (postTree.contains(path)) {
+                    if (contentsIdentical(path, path)) return;
+                    contenders = ImmutableList.of(path);
+                } else {
+                    for (Path candidate : moveCandidates.get(identityKey(preTree, path))) {
+                        if (contentsIdentical(path, candidate)) return;
+                    }
+                    contenders = postTree.findFilename(path.getFileName().toString());
+                }
+                if (fileComparerFactory instanceof Fingerprinter) {
+                    Fingerprinter fingerprinter = (Fingerprinter) fileComparerFactory;
+                    fingerprinter.fingerprint(preTree.file(path));
+                    for (Path contender : contenders) {
+                        fingerprinter.fingerprint(postTree.file(contender));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to read ahead "+path+"; will retry when comparing it", e);
+            }
+        }
+        
+        FileOutcome compareFile(Path path) throws IOException {
             LOGGER.info("  Comparing "+path);
             
-            FileComparer fileComparer = fileComparerFactory.newComparer(preLister.toAbsolute(path));
+            SourceFile file = preTree.file(path);
+            
+            // Is it identical to the file in that location, or (if none) to a file elsewhere?
+            FileOutcome identicalOutcome = compareIfIdentical(path);
+            if (identicalOutcome != null) {
+                return identicalOutcome;
+            }
             
-            // Is there an exact match - i.e. still a file in that location; and is its contents similar
-            Optional<Path> val = postLister.tryToAbsolute(path);
-            if (val.isPresent()) {
-                double similarity = fileComparer.similarity(val.get());
-                if (similarity >= 0.75) {
-                    result.unchanged.add(new UnchangedResult(path, similarity));
+            // Is there still a file in that location; and is its contents similar
+            if (postTree.contains(path)) {
+                double similarity = similarity(fileComparerFactory.newComparer(file), path, path);
+                boolean estimated = estimated(path, path);
+                if (similarity >= threshold) {
+                    return FileOutcome.of(new UnchangedResult(path, similarity, estimated));
                 } else {
-                    result.ambiguous.add(new AmbiguousResult(path, ImmutableMap.of(path, similarity), "File significantly changed; is it definitely the same file?"));
+                    return FileOutcome.of(new AmbiguousResult(path, ImmutableMap.of(path, similarity), "File significantly changed; is it definitely the same file?",
+                            estimated ? ImmutableSet.of(path) : ImmutableSet.<Path>of()));
                 }
-                continue;
             }
             
+            // Otherwise it has moved: the post files it could be are scored now, but which (if any) it is
+            // is decided once all files have been compared, as another file may be more similar; see match
+            
+            FileComparer fileComparer = fileComparerFactory.newComparer(file);
+            
             // Is there a file with the same name?
-            Collection<Path> contenders = postLister.findFilename(path.getFileName().toString());
+            Collection<Path> contenders = postTree.findFilename(path.getFileName().toString());
             if (contenders.size() == 1) {
                 Path newPath = Iterables.getOnlyElement(contenders);
-                Optional<Path> newPathAbsolute = postLister.tryToAbsolute(newPath);
-                double similarity = fileComparer.similarity(newPathAbsolute.get());
-
-                if (similarity >= 0.75) {
-                    result.moved.add(new MovedResult(path, newPath, similarity));
+                double similarity = similarity(fileComparer, path, newPath);
+                Set<Path> estimated = estimated(path, newPath) ? ImmutableSet.of(newPath) : ImmutableSet.<Path>of();
+    
+                if (similarity >= threshold) {
+                    return FileOutcome.unclaimed(new AmbiguousResult(path, ImmutableMap.of(newPath, similarity), MATCHED_WITH_ANOTHER_FILE, estimated));
                 } else {
-                    result.ambiguous.add(new AmbiguousResult(path, ImmutableMap.of(newPath, similarity), "Moved file significantly changed; is it definitely the same file?"));
+                    return FileOutcome.unresolved(new AmbiguousResult(path, ImmutableMap.of(newPath, similarity), "Moved file significantly changed; is it definitely the same file?", estimated));
                 }
-                continue;
                 
             } else if (contenders.isEmpty()) {
-                // Future enhancement: could look for a renamed file.
-                result.ambiguous.add(new AmbiguousResult(path, ImmutableMap.<Path, Double>of(), "No file with same name"));
-                continue;
+                // Renamed files are looked for amongst the post files that are left over; see addRenameCandidates
+                return FileOutcome.unresolved(new AmbiguousResult(path, ImmutableMap.<Path, Double>of(), NO_FILE_WITH_SAME_NAME));
                 
             } else {
                 Map<Path, Double> newPaths = Maps.newLinkedHashMap();
+                Set<Path> estimated = Sets.newLinkedHashSet();
                 for (Path newPath : contenders) {
-                    Optional<Path> newPathAbsolute = postLister.tryToAbsolute(newPath);
-                    double similarity = fileComparer.similarity(newPathAbsolute.get());
+                    double similarity = similarity(fileComparer, path, newPath);
                     newPaths.put(newPath, similarity);
+                    if (estimated(path, newPath)) estimated.add(newPath);
                 }
                 
-                result.ambiguous.add(new AmbiguousResult(path, newPaths, "Multiple files with same name as original"));
-                continue;
+                return FileOutcome.unresolved(new AmbiguousResult(path, newPaths, "Multiple files with same name as original", estimated));
+            }
+        }
+        
+        /**
+         * The outcome of the pre file if it is identical to the post file at the same location or (if there is none)
+         * to a post file elsewhere, which is still to be matched; otherwise null.
+         */
+        private FileOutcome compareIfIdentical(Path path) throws IOException {
+            if (postTree.contains(path)) {
+                return identical(path, path) ? FileOutcome.of(new UnchangedResult(path, 1.0)) : null;
+            }
+            Optional<Path> identicalPath = findIdenticalMoveCandidate(path);
+            if (identicalPath.isPresent()) {
+                return FileOutcome.unclaimed(new AmbiguousResult(path, ImmutableMap.of(identicalPath.get(), 1.0), MATCHED_WITH_ANOTHER_FILE));
+            }
+            return null;
+        }
+        
+        /**
+         * Decides the outcome of the pre files that could not be decided on their own, as they are not at the
+         * same location in the post tree: which post file (if any) each moved to. Each post file can be matched
+         * with at most one pre file, and only if not otherwise accounted for.
+         * 
+         * First collects the candidate pairs that clear the threshold, each scored once: the identical or
+         * same-named files (already scored when the file was compared), and the likely renames of files with
+         * no file of the same name (see {@link #addRenameCandidates(List, Set, List)}). Then matches them
+         * one-to-one, best pair first, so a post file goes to whichever pre file is most similar to it, rather
+         * than whichever came first.
+         * 
+         * Returns an outcome for each unresolved file, in order: a {@link MovedResult} if it was matched (in
+         * which case the post file is removed from {@code postFilesUnaccountedFor}), or otherwise its
+         * original {@link AmbiguousResult} (or, if it was not looked for as a rename before the time budget
+         * ran out, unevaluated). If that was for a file that would have been moved, but whose destination is
+         * at the original location of another pre file (so was accounted for by it), the message says so,
+         * rather than that another file was more similar.
+         * 
+         * @param notUnchangedAtOriginalPath The post files accounted for at their original location, other
+         *                                   than as unchanged
+         */
+        List<FileOutcome> match(List<FileOutcome> outcomes, Set<Path> postFilesUnaccountedFor, Set<Path> notUnchangedAtOriginalPath) throws IOException {
+            List<AmbiguousResult> unresolved = Lists.newArrayListWithCapacity(outcomes.size());
+            List<FileOutcome> result = Lists.newArrayListWithCapacity(outcomes.size());
+            List<Match> candidates = Lists.newArrayList();
+            for (int i = 0; i < outcomes.size(); i++) {
+                AmbiguousResult ambiguous = outcomes.get(i).ambiguous;
+                unresolved.add(ambiguous);
+                result.add(FileOutcome.of(ambiguous));
+                for (Map.Entry<Path, Double> entry : ambiguous.newPaths.entrySet()) {
+                    if (entry.getValue() >= threshold && postFilesUnaccountedFor.contains(entry.getKey())) {
+                        candidates.add(new Match(i, entry.getKey(), entry.getValue(), ambiguous.estimated.contains(entry.getKey())));
+                    }
+                }
+            }
+            List<Integer> notLookedFor = addRenameCandidates(unresolved, postFilesUnaccountedFor, candidates);
+            
+            Collections.sort(candidates, BEST_MATCH_FIRST);
+            boolean[] matched = new boolean[unresolved.size()];
+            for (Match candidate : candidates) {
+                if (matched[candidate.pre] || !postFilesUnaccountedFor.contains(candidate.post)) {
+                    continue; // already matched with something more similar
+                }
+                AmbiguousResult ambiguous = unresolved.get(candidate.pre);
+                if (ambiguous.newPaths.isEmpty()) LOGGER.info("  Renamed "+ambiguous.origPath+" to "+candidate.post);
+                result.set(candidate.pre, FileOutcome.of(new MovedResult(ambiguous.origPath, candidate.post, candidate.similarity, candidate.estimated)));
+                matched[candidate.pre] = true;
+                postFilesUnaccountedFor.remove(candidate.post);
+            }
+            for (int i = 0; i < unresolved.size(); i++) {
+                AmbiguousResult ambiguous = unresolved.get(i);
+                if (!matched[i] && outcomes.get(i).matchedIfUnclaimed) {
+                    Path newPath = Iterables.getOnlyElement(ambiguous.newPaths.keySet());
+                    if (preTree.contains(newPath)) {
+                        String msg = notUnchangedAtOriginalPath.contains(newPath) ? AT_ORIGINAL_PATH : UNCHANGED_AT_ORIGINAL_PATH;
+                        result.set(i, FileOutcome.of(new AmbiguousResult(ambiguous.origPath, ambiguous.newPaths, msg, ambiguous.estimated)));
+                    }
+                }
+            }
+            for (int i : notLookedFor) {
+                result.set(i, FileOutcome.unevaluated(unresolved.get(i).origPath));
+            }
+            return result;
+        }
+        
+        /**
+         * Adds the candidate renames of the pre files that had no file with the same name, amongst the post
+         * files that are not otherwise accounted for (and not the same-named or identical file of some other
+         * pre file, which are left to be matched with those files, or to be reported with them). Uses an {@link LshIndex} of {@link MinHash} signatures
+         * to find a few likely candidates for each file, and only compares against those (computing exact
+         * scores only for those that clear the threshold). Files fingerprinted as just a sketch (see
+         * {@link FileFingerprint#isSketched()}) are left out, on either side: their estimates are too rough to
+         * decide a rename on.
+         * 
+         * Requires the {@link FileComparer.Factory} to also be a {@link Fingerprinter}; otherwise
+         * renames are not looked for. Returns the pre files whose renames were not looked for as the time
+         * budget ran out (by index, in order).
+         */
+        private List<Integer> addRenameCandidates(List<AmbiguousResult> unresolved, Set<Path> postFilesUnaccountedFor, List<Match> candidates) throws IOException {
+            List<Integer> orphans = Lists.newArrayList();
+            Set<Path> newFiles = FileSubset.copyOf(postFilesUnaccountedFor);
+            for (int i = 0; i < unresolved.size(); i++) {
+                AmbiguousResult ambiguous = unresolved.get(i);
+                if (ambiguous.newPaths.isEmpty()) {
+                    orphans.add(i);
+                } else {
+                    newFiles.removeAll(ambiguous.newPaths.keySet());
+                }
             }
+            if (orphans.isEmpty() || newFiles.isEmpty()) {
+                return ImmutableList.of();
+            }
+            if (!(fileComparerFactory instanceof Fingerprinter)) {
+                LOGGER.fine("Not looking for renamed files: "+fileComparerFactory+" is not a "+Fingerprinter.class.getSimpleName());
+                return ImmutableList.of();
+            }
+            LOGGER.info("Looking for renames of "+orphans.size()+" files, amongst "+newFiles.size()+" new files");
+            
+            Fingerprinter fingerprinter = (Fingerprinter) fileComparerFactory;
+            MinHash minHash = new MinHash(RENAME_NUM_HASHES, RENAME_SEED);
+            LshIndex<Path> index = LshIndex.forThreshold(minHash, MinHash.diceToJaccard(threshold));
+            for (Path newPath : newFiles) {
+                if (outOfTime()) return orphans;
+                FileFingerprint fingerprint = fingerprinter.fingerprint(postTree.file(newPath));
+                if (!fingerprint.isSketched()) {
+                    index.put(newPath, minHash.signature(fingerprint.bigrams()));
+                }
+            }
+            
+            for (int o = 0; o < orphans.size(); o++) {
+                if (outOfTime()) return orphans.subList(o, orphans.size());
+                int i = orphans.get(o);
+                SourceFile file = preTree.file(unresolved.get(i).origPath);
+                FileFingerprint fingerprint = fingerprinter.fingerprint(file);
+                if (fingerprint.isSketched()) {
+                    continue;
+                }
+                int[] signature = minHash.signature(fingerprint.bigrams());
+                FileComparer fileComparer = null;
+                for (Path candidate : index.candidates(signature, MAX_RENAME_CANDIDATES)) {
+                    if (fileComparer == null) {
+                        fileComparer = fileComparerFactory.newComparer(file);
+                    }
+                    // Only need the exact similarity of candidates that could be matched
+                    Path origPath = unresolved.get(i).origPath;
+                    if (similarityAtLeast(fileComparer, origPath, candidate)) {
+                        candidates.add(new Match(i, candidate, similarity(fileComparer, origPath, candidate), false));
+                    }
+                }
+            }
+            return ImmutableList.of();
+        }
+        
+        /**
+         * Finds a post file (not at the original location) with identical contents. If there are
+         * several then prefers the one with the same file name; if that does not resolve it then
+         * returns absent, leaving it to the normal comparison.
+         */
+        private Optional<Path> findIdenticalMoveCandidate(Path path) throws IOException {
+            Collection<Path> sameKey = moveCandidates.get(identityKey(preTree, path));
+            if (sameKey.isEmpty()) {
+                return Optional.absent();
+            }
+            List<Path> identical = Lists.newArrayList();
+            for (Path candidate : sameKey) {
+                if (identical(path, candidate)) {
+                    identical.add(candidate);
+                }
+            }
+            if (identical.size() > 1) {
+                List<Path> sameName = Lists.newArrayList();
+                for (Path candidate : identical) {
+                    if (candidate.getFileName().equals(path.getFileName())) {
+                        sameName.add(candidate);
+                    }
+                }
+                identical = sameName;
+            }
+            return (identical.size() == 1) ? Optional.of(identical.get(0)) : Optional.<Path>absent();
         }
         
-        // Is there a file that looks like a rename?
-        Set<Path> postFilesUnaccountedFor = MutableSet.copyOf(postLister.listAll());
-        for (UnchangedResult unchanged : result.unchanged) {
-            postFilesUnaccountedFor.remove(unchanged.path);
+        /**
+         * The similarity of the pre file (whose comparer it is) to the post file, timed if there are {@link #metrics}.
+         */
+        private double similarity(FileComparer fileComparer, Path prePath, Path postPath) throws IOException {
+            if (metrics == null) {
+                return fileComparer.similarity(postTree.file(postPath));
+            }
+            long startTime = System.nanoTime();
+            double result = fileComparer.similarity(postTree.file(postPath));
+            metrics.recordSimilarity(Math.max(preTree.size(prePath), postTree.size(postPath)), System.nanoTime() - startTime);
+            return result;
         }
-        for (MovedResult moved : result.moved) {
-            postFilesUnaccountedFor.remove(moved.newPath);
+        
+        /**
+         * Whether the similarity of the two files is an estimate, as either was fingerprinted as just a sketch
+         * (see {@link FileFingerprint#isSketched()}); only known if the {@link FileComparer.Factory} is also a
+         * {@link Fingerprinter}, whose (typically cached) fingerprints are checked.
+         */
+        private boolean estimated(Path prePath, Path postPath) throws IOException {
+            if (!(fileComparerFactory instanceof Fingerprinter)) {
+                return false;
+            }
+            Fingerprinter fingerprinter = (Fingerprinter) fileComparerFactory;
+            FileFingerprint pre = fingerprinter.fingerprint(preTree.file(prePath));
+            FileFingerprint post = fingerprinter.fingerprint(postTree.file(postPath));
+            return !pre.isExactWith(post);
         }
-        for (AmbiguousResult ambiguous : result.ambiguous) {
-            postFilesUnaccountedFor.removeAll(ambiguous.newPaths.keySet());
+        
+        private boolean similarityAtLeast(FileComparer fileComparer, Path prePath, Path postPath) throws IOException {
+            if (metrics == null) {
+                return fileComparer.similarityAtLeast(postTree.file(postPath), threshold);
+            }
+            long startTime = System.nanoTime();
+            boolean result = fileComparer.similarityAtLeast(postTree.file(postPath), threshold);
+            metrics.recordSimilarity(Math.max(preTree.size(prePath), postTree.size(postPath)), System.nanoTime() - startTime);
+            return result;
         }
-        result.newFiles.addAll(postFilesUnaccountedFor);
         
-        return result;
+        /**
+         * Whether the pre and post files have identical contents: compares their content ids if
+         * {@link #useContentIds}; otherwise compares the sizes recorded by the {@link SourceTree}s
+         * first, and only then the content hashes.
+         */
+        private boolean identical(Path prePath, Path postPath) throws IOException {
+            boolean result = contentsIdentical(prePath, postPath);
+            if (result && metrics != null) {
+                metrics.recordIdentical();
+            }
+            return result;
+        }
+        
+        private boolean contentsIdentical(Path prePath, Path postPath) throws IOException {
+            if (useContentIds) {
+                return preTree.contentId(prePath).equals(postTree.contentId(postPath));
+            }
+            if (preTree.size(prePath) != postTree.size(postPath)) {
+                return false;
+            }
+            HashCode preHash = contentHasher.hash(preTree.file(prePath));
+            HashCode postHash = contentHasher.hash(postTree.file(postPath));
+            return preHash.equals(postHash);
+        }
+        
+        /**
+         * Identical files have equal keys (though not necessarily vice versa).
+         */
+        private Object identityKey(SourceTree tree, Path path) throws IOException {
+            return useContentIds ? tree.contentId(path) : (Object) tree.size(path);
+        }
     }
 }
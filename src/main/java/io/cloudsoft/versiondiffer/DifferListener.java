@@ -0,0 +1,39 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * Told about each result of {@link Differ#compare(SourceTree, SourceTree, FileComparer.Factory)}
+ * as soon as it is decided, rather than waiting for the whole {@link Differ.DifferResult}.
+ *
+ * Results for pre files are given in the order of the pre {@link SourceTree#listAll()}, except
+ * for files that are not at the same location in the post tree: those are given (in the same order)
+ * once all files have been compared and they have been matched with post files, as a {@link MovedResult}
+ * if matched or otherwise an {@link AmbiguousResult}. New files are given last. (With a
+ * {@link Differ#timeBudget(long, java.util.concurrent.TimeUnit)}, all results are given once the files
+ * have been compared, in the same order; files not evaluated in time are given just before the
+ * matched ones.)
+ *
+ * All methods are called from the thread calling {@code compare}, so implementations need not be
+ * thread-safe. An exception thrown by the listener aborts the comparison.
+ */
+public interface DifferListener {
+
+    public void onUnchanged(UnchangedResult result) throws IOException;
+
+    public void onMoved(MovedResult result) throws IOException;
+
+    public void onAmbiguous(AmbiguousResult result) throws IOException;
+
+    public void onNewFile(Path path) throws IOException;
+
+    /**
+     * A pre file that was not evaluated before the {@link Differ#timeBudget(long, java.util.concurrent.TimeUnit)} ran out.
+     */
+    public void onUnevaluated(Path path) throws IOException;
+}
@@ -1,7 +1,6 @@
 package io.cloudsoft.versiondiffer;
 
 import java.io.IOException;
-import java.nio.file.Path;
 
 /**
  * Compares the similarity of pairs of files: 1.0 means identical; 0.0 means nothing in common.
@@ -14,17 +13,31 @@ public interface FileComparer {
      * For creating a {@link FileComparer}.
      */
     public static interface Factory {
-        public FileComparer newComparer(Path p1) throws IOException;
+        public FileComparer newComparer(SourceFile f1) throws IOException;
     }
     
     /**
      * The level of similarity between two files: 1.0 means identical; 0.0 means nothing in common.
-     * Compares the file at the given path with the file used when creating this {@link FileComparer}.
+     * Compares the given file with the file used when creating this {@link FileComparer}.
      * See {@link FileComparer.Factory}.
      * 
-     * @param p2
+     * @param f2
      * @return
      * @throws IOException
      */
-    public double similarity(Path p2) throws IOException;
+    public double similarity(SourceFile f2) throws IOException;
+    
+    /**
+     * Whether {@code similarity(f2) >= threshold}. By default computes the exact similarity; implementations
+     * should override this where they can answer more cheaply (e.g. by rejecting early once the
+     * threshold cannot be reached), so callers that only need a yes/no answer should prefer it.
+     * 
+     * @param f2
+     * @param threshold
+     * @return
+     * @throws IOException
+     */
+    public default boolean similarityAtLeast(SourceFile f2, double threshold) throws IOException {
+        return similarity(f2) >= threshold;
+    }
 }
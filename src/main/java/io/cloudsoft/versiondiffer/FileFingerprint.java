@@ -0,0 +1,134 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * An immutable signature of a file's (normalized) contents, from which the similarity
+ * of two files can be computed without re-reading either of them.
+ * 
+ * Normally holds the file's letter pairs, so similarities are exact. For very large files it
+ * may instead hold just a fixed-size {@link DiceSketch} of them (see {@link #isSketched()}),
+ * in which case similarities involving it are estimates; see {@link #isExactWith(FileFingerprint)}.
+ * 
+ * See {@link Fingerprinter} for how these are created.
+ */
+public class FileFingerprint {
+
+    private final HashCode normalizedHash;
+    private final BigramHistogram bigrams;
+    
+    /** Given if sketched; otherwise computed when first compared with a sketched fingerprint. */
+    private volatile DiceSketch sketch;
+
+    /**
+     * @param normalizedHash A hash of the normalized file contents
+     * @param bigrams        The letter pairs of the normalized file contents; must not be modified after this call.
+     */
+    public FileFingerprint(HashCode normalizedHash, BigramHistogram bigrams) {
+        this.normalizedHash = checkNotNull(normalizedHash, "normalizedHash");
+        this.bigrams = checkNotNull(bigrams, "bigrams");
+    }
+
+    /**
+     * A fingerprint that keeps just a sketch of the letter pairs, for very large files.
+     * 
+     * @param normalizedHash A hash of the normalized file contents
+     * @param sketch         Of the letter pairs of the normalized file contents
+     */
+    public FileFingerprint(HashCode normalizedHash, DiceSketch sketch) {
+        this.normalizedHash = checkNotNull(normalizedHash, "normalizedHash");
+        this.bigrams = null;
+        this.sketch = checkNotNull(sketch, "sketch");
+    }
+
+    public HashCode normalizedHash() {
+        return normalizedHash;
+    }
+
+    /**
+     * Whether only a {@link DiceSketch} of the letter pairs is kept, rather than the letter pairs themselves.
+     */
+    public boolean isSketched() {
+        return bigrams == null;
+    }
+
+    /**
+     * @throws IllegalStateException if {@link #isSketched()}
+     */
+    public BigramHistogram bigrams() {
+        checkState(bigrams != null, "Only a sketch of the letter pairs is kept");
+        return bigrams;
+    }
+
+    /**
+     * The sketch of the letter pairs: as given if {@link #isSketched()}, or otherwise computed from them.
+     */
+    public DiceSketch sketch() {
+        DiceSketch result = sketch;
+        if (result == null) {
+            result = DiceSketch.of(bigrams);
+            sketch = result;
+        }
+        return result;
+    }
+
+    /**
+     * The number of letter pairs (counting duplicates).
+     */
+    public int letterPairs() {
+        return (bigrams != null) ? bigrams.total() : sketch.total();
+    }
+
+    /**
+     * Whether the similarity of the two files is exact, rather than estimated from their sketches
+     * (as happens if either is {@link #isSketched() sketched}, unless they are equivalent).
+     */
+    public boolean isExactWith(FileFingerprint other) {
+        return isEquivalent(other) || (bigrams != null && other.bigrams != null);
+    }
+
+    /**
+     * Whether the normalized contents of the two files are identical.
+     */
+    public boolean isEquivalent(FileFingerprint other) {
+        return normalizedHash.equals(other.normalizedHash);
+    }
+
+    /**
+     * The similarity of the two files, as per {@link LetterPairSimilarity#compareStrings(String, String)};
+     * 1.0 without comparing letter pairs if the normalized contents are identical (and have any letter
+     * pairs; if neither has any it is {@link Double#NaN}, as always). Estimated (see
+     * {@link DiceSketch#estimateDice(DiceSketch)}) unless {@link #isExactWith(FileFingerprint)}.
+     */
+    public double similarity(FileFingerprint other) {
+        if (isEquivalent(other) && letterPairs() > 0) {
+            return 1.0;
+        }
+        if (bigrams == null || other.bigrams == null) {
+            return sketch().estimateDice(other.sketch());
+        }
+        return bigrams.dice(other.bigrams);
+    }
+
+    /**
+     * Whether {@code similarity(other) >= threshold}; may be much cheaper than computing the 
+     * similarity, when the answer is no.
+     */
+    public boolean similarityAtLeast(FileFingerprint other, double threshold) {
+        if (isEquivalent(other) && letterPairs() > 0) {
+            return 1.0 >= threshold;
+        }
+        if (bigrams == null || other.bigrams == null) {
+            return sketch().estimateDice(other.sketch()) >= threshold;
+        }
+        return bigrams.diceAtLeast(other.bigrams, threshold);
+    }
+
+    @Override
+    public String toString() {
+        return "FileFingerprint["+normalizedHash+", "+((bigrams != null) ? bigrams : sketch)+"]";
+    }
+}
@@ -2,55 +2,196 @@ package io.cloudsoft.versiondiffer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
 
 /**
  * Finds all files within a given base directory that match a given filter.
  * 
  * Does some initial heavy lifting to allow subsequent efficient queries, such as
  * listing all files or getting all files with a given name.
+ * 
+ * Sub-directories are scanned in parallel, and whole directories can be skipped with a
+ * directory filter (so their contents are never listed). The files are listed in the same
+ * order as a sequential {@link Files#walkFileTree(Path, FileVisitor)}.
+ * 
+ * The index is a compact snapshot, taken when constructed: a {@link PathIndex} of the files,
+ * along with each file's size and last-modified time in primitive arrays. Lookups therefore
+ * never touch the file system (so they do not notice files added or removed since).
  */
-public class FileLister {
+public class FileLister implements SourceTree {
     
     private final Path basedir;
-    private final Set<Path> files;
-    private final Multimap<String, Path> filenameToPaths;
+    
+    /** The relative paths of the files, in listing order. */
+    private final PathIndex index;
+    
+    /** Per file (in listing order): size and last-modified time. */
+    private final long[] fileSizes;
+    private final long[] fileLastModifieds;
     
     public FileLister(File basedir) throws IOException {
         this(FileSystems.getDefault().getPath(basedir.getAbsolutePath()), Predicates.alwaysTrue());
     }
     
-    public FileLister(final Path basedir, final Predicate<? super String> accepts) throws IOException {
+    public FileLister(Path basedir, Predicate<? super String> accepts) throws IOException {
+        this(basedir, accepts, Predicates.alwaysTrue());
+    }
+    
+    /**
+     * @param basedir    The directory to list
+     * @param accepts    Whether to include a file, given its path relative to the basedir
+     * @param acceptsDir Whether to look inside a directory, given its path relative to the basedir
+     */
+    public FileLister(Path basedir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        this(basedir, accepts, acceptsDir, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param basedir     The directory to list
+     * @param accepts     Whether to include a file, given its path relative to the basedir
+     * @param acceptsDir  Whether to look inside a directory, given its path relative to the basedir
+     * @param parallelism The number of threads for scanning directories
+     */
+    public FileLister(Path basedir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir, int parallelism) throws IOException {
+        this(basedir, scan(basedir, accepts, acceptsDir, parallelism));
+    }
+    
+    /**
+     * For listing many directories (e.g. each time they are refreshed) without starting new threads for each.
+     * 
+     * @param basedir    The directory to list
+     * @param accepts    Whether to include a file, given its path relative to the basedir
+     * @param acceptsDir Whether to look inside a directory, given its path relative to the basedir
+     * @param pool       Where to scan directories; left running, for the caller to shut down
+     */
+    public FileLister(Path basedir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir, ForkJoinPool pool) throws IOException {
+        this(basedir, scan(basedir, accepts, acceptsDir, pool));
+    }
+    
+    private FileLister(Path basedir, List<ScannedFile> found) {
         this.basedir = basedir;
-        this.files = Sets.newLinkedHashSet();
-        this.filenameToPaths = ArrayListMultimap.create();
-        FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (accepts.apply(basedir.relativize(file).toString())) {
-                    Path relativePath = basedir.relativize(file);
-                    files.add(relativePath);
-                    filenameToPaths.put(file.getFileName().toString(), relativePath);
+        
+        int numFiles = found.size();
+        fileSizes = new long[numFiles];
+        fileLastModifieds = new long[numFiles];
+        PathIndex.Builder indexBuilder = new PathIndex.Builder(basedir.getFileSystem());
+        for (int i = 0; i < numFiles; i++) {
+            ScannedFile file = found.get(i);
+            indexBuilder.add(file.dir, file.name);
+            fileSizes[i] = file.size;
+            fileLastModifieds[i] = file.lastModified;
+        }
+        index = indexBuilder.build();
+    }
+    
+    private static List<ScannedFile> scan(Path basedir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return scan(basedir, accepts, acceptsDir, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private static List<ScannedFile> scan(Path basedir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir, ForkJoinPool pool) throws IOException {
+        try {
+            String separator = basedir.getFileSystem().getSeparator();
+            return pool.invoke(new DirectoryScan(basedir, "", separator, accepts, acceptsDir));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * A file found by {@link DirectoryScan}; only used while constructing the index.
+     */
+    private static class ScannedFile {
+        final String dir;
+        final String name;
+        final long size;
+        final long lastModified;
+        
+        ScannedFile(String dir, String name, long size, long lastModified) {
+            this.dir = dir;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+    
+    /**
+     * Lists the accepted files in a directory, scanning sub-directories as separate tasks;
+     * the results are concatenated in directory-listing order, so are the same as for a
+     * depth-first walk.
+     */
+    private static class DirectoryScan extends RecursiveTask<List<ScannedFile>> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Path dir;
+        private final String relativeDir;
+        private final String separator;
+        private final Predicate<? super String> accepts;
+        private final Predicate<? super String> acceptsDir;
+        
+        DirectoryScan(Path dir, String relativeDir, String separator, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) {
+            this.dir = dir;
+            this.relativeDir = relativeDir;
+            this.separator = separator;
+            this.accepts = accepts;
+            this.acceptsDir = acceptsDir;
+        }
+        
+        @Override
+        protected List<ScannedFile> compute() {
+            // Each element is either a file, or a sub-directory's scan
+            List<Object> entries = Lists.newArrayList();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    String name = child.getFileName().toString();
+                    String relativePath = relativeDir.isEmpty() ? name : relativeDir + separator + name;
+                    if (attrs.isDirectory()) {
+                        if (acceptsDir.apply(relativePath)) {
+                            DirectoryScan scan = new DirectoryScan(child, relativePath, separator, accepts, acceptsDir);
+                            scan.fork();
+                            entries.add(scan);
+                        }
+                    } else if (accepts.apply(relativePath)) {
+                        entries.add(new ScannedFile(relativeDir, name, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
                 }
-                return FileVisitResult.CONTINUE;
-            }};
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
             
-        Files.walkFileTree(basedir, visitor);
+            List<ScannedFile> result = Lists.newArrayList();
+            for (Object entry : entries) {
+                if (entry instanceof DirectoryScan) {
+                    result.addAll(((DirectoryScan)entry).join());
+                } else {
+                    result.add((ScannedFile) entry);
+                }
+            }
+            return result;
+        }
     }
     
     public Path getBasedir() {
@@ -60,16 +201,18 @@ public class FileLister {
     /**
      * Gets all files within the base directory, including recursive sub-directories.
      */
+    @Override
     public Set<Path> listAll() {
-        return Collections.unmodifiableSet(files);
+        return index.asSet();
     }
 
     /**
      * Returns the relative paths (compared to {@link #getBasedir()}) of all files
      * with the given filename.
      */
+    @Override
     public Collection<Path> findFilename(String filename) {
-        return filenameToPaths.get(filename);
+        return index.findFilename(filename);
     }
 
     /**
@@ -77,26 +220,81 @@ public class FileLister {
      * absolute path (or returns {@link Optional#absent()} if not found.
      */
     public Optional<Path> tryToAbsolute(Path relativePath) {
-        return files.contains(relativePath) ? Optional.of(toAbsolute(relativePath)) : Optional.<Path>absent(); 
+        return contains(relativePath) ? Optional.of(basedir.resolve(relativePath)) : Optional.<Path>absent(); 
     }
     
     /**
      * Given a relative path (compared to {@link #getBasedir()}), returns the absolute path.
      * 
-     * @throws IllegalArgumentException if the file does not exist. 
+     * @throws IllegalArgumentException if the file was not listed. 
      */
     public Path toAbsolute(Path relativePath) {
-        Path result = basedir.resolve(relativePath);
-        if (!Files.exists(result)) {
-            throw new IllegalArgumentException("No such file "+result.toString());
-        }
-        return result;
+        checkIndexOf(relativePath);
+        return basedir.resolve(relativePath);
     }
 
     /**
      * Whether the given relative path exists within this {@link #getBasedir()}).
      */
+    @Override
     public boolean contains(Path relativePath) {
-        return files.contains(relativePath);
+        return index.indexOf(relativePath) >= 0;
+    }
+
+    /**
+     * The size of the file (as at the time it was listed).
+     * 
+     * @throws IllegalArgumentException if the file was not listed. 
+     */
+    @Override
+    public long size(Path relativePath) {
+        return fileSizes[checkIndexOf(relativePath)];
+    }
+
+    /**
+     * The last-modified time (in millis) of the file (as at the time it was listed).
+     * 
+     * @throws IllegalArgumentException if the file was not listed. 
+     */
+    public long lastModified(Path relativePath) {
+        return fileLastModifieds[checkIndexOf(relativePath)];
+    }
+
+    /**
+     * The file, with the size and last-modified time as at the time it was listed.
+     * 
+     * @throws IllegalArgumentException if the file was not listed. 
+     */
+    @Override
+    public SourceFile file(Path relativePath) {
+        int i = checkIndexOf(relativePath);
+        return SourceFile.of(basedir.resolve(relativePath), fileSizes[i], fileLastModifieds[i]);
+    }
+
+    /**
+     * None: files on disk are only known to be identical by reading them.
+     */
+    @Override
+    public String contentIdType() {
+        return null;
+    }
+
+    @Override
+    public HashCode contentId(Path relativePath) {
+        checkIndexOf(relativePath);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return basedir.toString();
+    }
+
+    private int checkIndexOf(Path relativePath) {
+        int result = index.indexOf(relativePath);
+        if (result < 0) {
+            throw new IllegalArgumentException("No such file "+basedir.resolve(relativePath));
+        }
+        return result;
     }
 }
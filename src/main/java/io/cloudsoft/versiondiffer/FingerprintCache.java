@@ -0,0 +1,78 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A bounded cache of {@link FileFingerprint}s, so that each file is read and tokenized at most
+ * once per run (unless evicted), no matter how many other files it is compared against.
+ * 
+ * Keyed by {@link SourceFile} (e.g. path, size and last-modified time), so it can be shared across
+ * the pre and post trees. Thread-safe.
+ */
+public class FingerprintCache implements Fingerprinter {
+
+    public static final long DEFAULT_MAX_SIZE = 10000;
+
+    private final Fingerprinter delegate;
+    private final LoadingCache<SourceFile, FileFingerprint> cache;
+
+    public FingerprintCache(Fingerprinter delegate) {
+        this(delegate, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param delegate     Computes the fingerprint on a cache miss
+     * @param maxSize      The maximum number of fingerprints to hold; least-recently-used are evicted first
+     */
+    public FingerprintCache(final Fingerprinter delegate, long maxSize) {
+        this.delegate = checkNotNull(delegate, "delegate");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build(new CacheLoader<SourceFile, FileFingerprint>() {
+                    @Override public FileFingerprint load(SourceFile file) throws IOException {
+                        return delegate.fingerprint(file);
+                    }});
+    }
+
+    @Override
+    public FileFingerprint fingerprint(SourceFile file) throws IOException {
+        try {
+            return cache.get(file);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    public void invalidate(SourceFile file) {
+        cache.invalidate(file);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public Fingerprinter getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintCache[size="+cache.size()+", "+cache.stats()+"]";
+    }
+}
@@ -0,0 +1,531 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * A persistent store of {@link FileFingerprint}s and raw content hashes, so that re-runs against
+ * the same (or mostly unchanged) trees only read the files that have changed.
+ *
+ * Entries are keyed by the file's {@link SourceFile#id()} (e.g. its absolute path), and are only used
+ * if the file's size and last-modified time are unchanged; otherwise the fingerprint is recomputed by the delegate {@link Fingerprinter}
+ * (and the entry replaced).
+ *
+ * {@link #load(Path, String, Fingerprinter)} reads just the size, last-modified time and content hash of each
+ * entry, and where its fingerprint is in the file; fingerprints are read from the file when asked for, so
+ * should be cached in front of the store (e.g. by a {@link JavaFileComparer.Factory}). Fingerprints computed
+ * since loading are appended to a journal (a temporary file alongside the store). {@link #save()} copies the
+ * entries used since loading, from the file or the journal, to a new file replacing the old one, so stale
+ * entries do not accumulate.
+ *
+ * The file is a compact binary format (see {@link #save()}), tagged with a format id describing how the
+ * fingerprints were computed: if that, or the file's version, differs then the whole store is discarded.
+ * A corrupt or truncated file is likewise discarded rather than failing the run; as is a fingerprint that
+ * cannot be read back, which is recomputed instead.
+ *
+ * Thread-safe. {@link #close()} when done with it, after saving.
+ */
+public class FingerprintStore implements Fingerprinter, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintStore.class.getName());
+
+    private static final int MAGIC = 0x56444650; // "VDFP"
+    private static final int VERSION = 2;
+    private static final int HASH_BYTES = 16;
+
+    /** How an entry's fingerprint (if any) is stored: none, the letter pairs, or a sketch of them. */
+    private static final byte NONE = 0;
+    private static final byte HISTOGRAM = 1;
+    private static final byte SKETCH = 2;
+
+    /**
+     * What is known about a file at a given size and modification time, and where its fingerprint (if any)
+     * is stored: the bytes from its kind onwards, in the store's file or journal. Immutable.
+     */
+    static class Entry {
+        final long size;
+        final long lastModified;
+        final HashCode contentHash;
+        final FileChannel source;
+        final long offset;
+        final int length;
+
+        Entry(long size, long lastModified, HashCode contentHash, FileChannel source, long offset, int length) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        boolean hasFingerprint() {
+            return source != null;
+        }
+
+        Entry withContentHash(HashCode val) {
+            return new Entry(size, lastModified, val, source, offset, length);
+        }
+
+        Entry withFingerprint(FileChannel source, long offset, int length) {
+            return new Entry(size, lastModified, contentHash, source, offset, length);
+        }
+    }
+
+    /**
+     * Loads the store from the given file, or returns an empty store if the file does not exist
+     * or cannot be used (e.g. corrupt, or written with a different format id).
+     *
+     * @param file          Where the store is persisted
+     * @param formatId      Identifies how fingerprints are computed, e.g. "java-v1"; must change
+     *                      whenever the normalization or fingerprint contents change
+     * @param delegate      For computing fingerprints of new or changed files
+     */
+    public static FingerprintStore load(Path file, String formatId, Fingerprinter delegate) {
+        FingerprintStore result = new FingerprintStore(file, formatId, delegate);
+        try {
+            result.read();
+            LOGGER.info("Loaded "+result.entries.size()+" fingerprints from "+file);
+        } catch (NoSuchFileException e) {
+            LOGGER.fine("No fingerprint store at "+file+"; starting empty");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Discarding unusable fingerprint store "+file+": "+e, e);
+            result.entries.clear();
+            result.closeQuietly(result.stored);
+            result.stored = null;
+        }
+        return result;
+    }
+
+    private final Path file;
+    private final String formatId;
+    private final Fingerprinter delegate;
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+    private final Set<String> used = Sets.newConcurrentHashSet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Held to read fingerprints; held exclusively to replace the file. */
+    private final ReadWriteLock channels = new ReentrantReadWriteLock();
+
+    /** The file as loaded (or last saved); null if there was none. */
+    private FileChannel stored;
+
+    /** Fingerprints computed since then; created on first use, and guarded by this. */
+    private FileChannel journal;
+    private long journalSize;
+
+    private FingerprintStore(Path file, String formatId, Fingerprinter delegate) {
+        this.file = checkNotNull(file, "file");
+        this.formatId = checkNotNull(formatId, "formatId");
+        this.delegate = checkNotNull(delegate, "delegate");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public FileFingerprint fingerprint(SourceFile file) throws IOException {
+        String key = file.id();
+        long size = file.size();
+        FileFingerprint result = lookupFingerprint(key, size, file.lastModified());
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+        result = delegate.fingerprint(file);
+        update(key, size, file.lastModified(), null, result);
+        return result;
+    }
+
+    /**
+     * Returns the stored hash of the raw contents of the file, if still valid.
+     */
+    public HashCode getContentHash(SourceFile file) throws IOException {
+        String key = file.id();
+        Entry entry = lookup(key, file.size(), file.lastModified());
+        if (entry != null && entry.contentHash != null) {
+            hits.incrementAndGet();
+            return entry.contentHash;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records the hash of the raw contents of the file, which must be 128 bits (as from a {@link ContentHasher}).
+     */
+    public void putContentHash(SourceFile file, HashCode contentHash) throws IOException {
+        checkArgument(contentHash.bits() == HASH_BYTES * 8, "content hash must be %s bits, but was %s", HASH_BYTES * 8, contentHash.bits());
+        update(file.id(), file.size(), file.lastModified(), contentHash, null);
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * The fraction of lookups (fingerprints and content hashes) answered from the store;
+     * {@link Double#NaN} if there have been none.
+     */
+    public double hitRatio() {
+        long h = hits.get();
+        long m = misses.get();
+        return ((double) h) / (h + m);
+    }
+
+    /**
+     * Writes the entries used since loading to the file (atomically replacing it, where supported), copying
+     * their fingerprints from the old file or the journal without holding them all in memory; entries not
+     * used are then forgotten.
+     *
+     * Format: magic, version, format id, entry count, then for each entry: path, size, last-modified,
+     * content hash (if present), and fingerprint kind followed by the fingerprint: nothing; or normalized hash,
+     * number of distinct letter pairs, then each pair and its count; or (if sketched) normalized hash, number
+     * of letter pairs, number of bins, then each bin.
+     */
+    public synchronized void save() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> keys = Lists.newArrayList();
+        List<Entry> toWrite = Lists.newArrayList();
+        for (String key : used) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                keys.add(key);
+                toWrite.add(entry);
+            }
+        }
+        long[] offsets = new long[toWrite.size()];
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(out));
+            DataOutputStream data = new DataOutputStream(counting);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeUTF(formatId);
+            data.writeInt(toWrite.size());
+            for (int i = 0; i < toWrite.size(); i++) {
+                Entry entry = toWrite.get(i);
+                data.writeUTF(keys.get(i));
+                data.writeLong(entry.size);
+                data.writeLong(entry.lastModified);
+                data.writeBoolean(entry.contentHash != null);
+                if (entry.contentHash != null) {
+                    data.write(entry.contentHash.asBytes());
+                }
+                offsets[i] = counting.getCount();
+                if (entry.hasFingerprint()) {
+                    data.write(readBytes(entry));
+                } else {
+                    data.writeByte(NONE);
+                }
+            }
+            data.flush();
+        }
+
+        channels.writeLock().lock();
+        try {
+            closeQuietly(stored);
+            stored = null;
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            stored = FileChannel.open(file, StandardOpenOption.READ);
+            Set<String> saved = Sets.newHashSetWithExpectedSize(keys.size());
+            for (int i = 0; i < toWrite.size(); i++) {
+                Entry entry = toWrite.get(i);
+                entries.put(keys.get(i), entry.hasFingerprint() ? entry.withFingerprint(stored, offsets[i], entry.length) : entry);
+                saved.add(keys.get(i));
+            }
+            entries.keySet().retainAll(saved);
+            if (journal != null) {
+                journal.truncate(0);
+                journalSize = 0;
+            }
+        } finally {
+            channels.writeLock().unlock();
+        }
+        LOGGER.info("Saved "+toWrite.size()+" fingerprints to "+file+" (hit ratio "+hitRatio()+")");
+    }
+
+    /**
+     * Closes the file and discards the journal (so anything not {@link #save() saved} is lost); fingerprints
+     * are then recomputed rather than read from the store.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channels.writeLock().lock();
+        try {
+            closeQuietly(stored);
+            stored = null;
+            closeQuietly(journal);
+            journal = null;
+            journalSize = 0;
+        } finally {
+            channels.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintStore["+file+", entries="+entries.size()+", hits="+hits+", misses="+misses+"]";
+    }
+
+    private Entry lookup(String key, long size, long lastModified) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.matches(size, lastModified)) {
+            used.add(key);
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * The stored fingerprint, read from the file or journal; or null if there is none (or it cannot be read).
+     */
+    private FileFingerprint lookupFingerprint(String key, long size, long lastModified) {
+        byte[] bytes;
+        channels.readLock().lock();
+        try {
+            Entry entry = lookup(key, size, lastModified);
+            if (entry == null || !entry.hasFingerprint()) {
+                return null;
+            }
+            bytes = readBytes(entry);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Recomputing fingerprint of "+key+", as it cannot be read from "+file+": "+e, e);
+            return null;
+        } finally {
+            channels.readLock().unlock();
+        }
+        try {
+            return readFingerprint(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Recomputing fingerprint of "+key+", as it is corrupt in "+file+": "+e, e);
+            return null;
+        }
+    }
+
+    private synchronized void update(String key, long size, long lastModified, HashCode contentHash, FileFingerprint fingerprint) {
+        Entry existing = entries.get(key);
+        Entry entry = (existing != null && existing.matches(size, lastModified)) ? existing
+                : new Entry(size, lastModified, null, null, 0, 0);
+        if (contentHash != null) {
+            entry = entry.withContentHash(contentHash);
+        }
+        if (fingerprint != null) {
+            try {
+                entry = append(entry, fingerprint);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Not storing fingerprint of "+key+", as the journal of "+file+" cannot be written: "+e, e);
+            }
+        }
+        entries.put(key, entry);
+        used.add(key);
+    }
+
+    /**
+     * Writes the fingerprint to the end of the journal, returning the entry with it there. Called while synchronized.
+     */
+    private Entry append(Entry entry, FileFingerprint fingerprint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeFingerprint(new DataOutputStream(bytes), fingerprint);
+        FileChannel channel = journal();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, journalSize + buffer.position());
+        }
+        Entry result = entry.withFingerprint(channel, journalSize, bytes.size());
+        journalSize += bytes.size();
+        return result;
+    }
+
+    private FileChannel journal() throws IOException {
+        if (journal == null) {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path path = Files.createTempFile(parent, file.getFileName()+".", ".journal");
+            journal = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        return journal;
+    }
+
+    /**
+     * Reads the entries, skipping over their fingerprints (but noting where they are), and keeps the file open.
+     */
+    private void read() throws IOException {
+        stored = FileChannel.open(file, StandardOpenOption.READ);
+        try (InputStream in = Files.newInputStream(file)) {
+            CountingInputStream counting = new CountingInputStream(new BufferedInputStream(in));
+            DataInputStream data = new DataInputStream(counting);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a fingerprint store");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version "+version);
+            }
+            String storedFormatId = data.readUTF();
+            if (!formatId.equals(storedFormatId)) {
+                throw new IOException("Format "+storedFormatId+" does not match "+formatId);
+            }
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = data.readUTF();
+                long size = data.readLong();
+                long lastModified = data.readLong();
+                HashCode contentHash = data.readBoolean() ? readHash(data) : null;
+                long offset = counting.getCount();
+                byte kind = data.readByte();
+                if (kind == HISTOGRAM) {
+                    ByteStreams.skipFully(data, HASH_BYTES);
+                    ByteStreams.skipFully(data, 8L * data.readInt());
+                } else if (kind == SKETCH) {
+                    ByteStreams.skipFully(data, HASH_BYTES + 4);
+                    ByteStreams.skipFully(data, 4L * data.readInt());
+                } else if (kind != NONE) {
+                    throw new IOException("Unknown fingerprint kind "+kind);
+                }
+                FileChannel source = (kind != NONE) ? stored : null;
+                entries.put(key, new Entry(size, lastModified, contentHash, source, offset, (int) (counting.getCount() - offset)));
+            }
+        }
+    }
+
+    /**
+     * The entry's fingerprint as stored, from its kind onwards.
+     */
+    private static byte[] readBytes(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (entry.source.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new EOFException("Fingerprint truncated at "+(entry.offset + buffer.position()));
+            }
+        }
+        return buffer.array();
+    }
+
+    private static FileFingerprint readFingerprint(DataInputStream data) throws IOException {
+        byte kind = data.readByte();
+        if (kind == HISTOGRAM) {
+            HashCode normalizedHash = readHash(data);
+            int distinct = data.readInt();
+            BigramHistogram bigrams = new BigramHistogram(distinct);
+            for (int j = 0; j < distinct; j++) {
+                int pair = data.readInt();
+                int pairCount = data.readInt();
+                bigrams.add(pair, pairCount);
+            }
+            return new FileFingerprint(normalizedHash, bigrams);
+        } else if (kind == SKETCH) {
+            HashCode normalizedHash = readHash(data);
+            int total = data.readInt();
+            int[] bins = new int[data.readInt()];
+            for (int j = 0; j < bins.length; j++) {
+                bins[j] = data.readInt();
+            }
+            return new FileFingerprint(normalizedHash, new DiceSketch(bins, total));
+        } else {
+            throw new IOException("Unknown fingerprint kind "+kind);
+        }
+    }
+
+    private static void writeFingerprint(final DataOutputStream data, FileFingerprint fingerprint) throws IOException {
+        if (fingerprint.isSketched()) {
+            data.writeByte(SKETCH);
+            data.write(fingerprint.normalizedHash().asBytes());
+            DiceSketch sketch = fingerprint.sketch();
+            data.writeInt(sketch.total());
+            data.writeInt(sketch.numBins());
+            for (int i = 0; i < sketch.numBins(); i++) {
+                data.writeInt(sketch.bin(i));
+            }
+        } else {
+            data.writeByte(HISTOGRAM);
+            data.write(fingerprint.normalizedHash().asBytes());
+            BigramHistogram bigrams = fingerprint.bigrams();
+            data.writeInt(bigrams.distinct());
+            final IOException[] failure = new IOException[1];
+            bigrams.forEach(new BigramHistogram.PairVisitor() {
+                @Override public void visit(int pair, int count) {
+                    if (failure[0] != null) return;
+                    try {
+                        data.writeInt(pair);
+                        data.writeInt(count);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }});
+            if (failure[0] != null) throw failure[0];
+        }
+    }
+
+    private static HashCode readHash(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[HASH_BYTES];
+        data.readFully(bytes);
+        return HashCode.fromBytes(bytes);
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close "+closeable+" of "+file+": "+e, e);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+
+/**
+ * Computes the {@link FileFingerprint} of a file.
+ */
+public interface Fingerprinter {
+
+    public FileFingerprint fingerprint(SourceFile file) throws IOException;
+}
@@ -0,0 +1,995 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+/**
+ * Reads objects straight from a local git repository's object store: loose objects, and packfiles
+ * (via their v1 or v2 index, resolving offset and ref deltas). Also resolves revisions (refs, tags,
+ * {@code HEAD}, and full or abbreviated object ids) to their trees. No git installation is needed.
+ *
+ * Packfiles are read with positional reads, so only the objects asked for (and their delta bases)
+ * are read and inflated; recently inflated objects are cached, as delta chains share bases.
+ *
+ * If an object is not found (e.g. because a concurrent {@code git gc} packed and pruned it), the pack
+ * directories are scanned again for new packs, as git itself does. Revision expressions such as
+ * {@code v1.0~2} are not supported, and nor are replace refs or grafts. Supports sha1 and sha256 repositories.
+ *
+ * Thread-safe.
+ */
+public class GitRepository implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(GitRepository.class.getName());
+
+    public static final int OBJ_COMMIT = 1;
+    public static final int OBJ_TREE = 2;
+    public static final int OBJ_BLOB = 3;
+    public static final int OBJ_TAG = 4;
+    private static final int OBJ_OFS_DELTA = 6;
+    private static final int OBJ_REF_DELTA = 7;
+
+    /** Tree entry modes. */
+    public static final int MODE_TREE = 040000;
+    public static final int MODE_FILE = 0100644;
+    public static final int MODE_EXECUTABLE = 0100755;
+    public static final int MODE_SYMLINK = 0120000;
+    public static final int MODE_GITLINK = 0160000;
+
+    /** The total size of inflated objects to keep, e.g. for resolving delta chains. */
+    private static final long CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    private static final int CACHE_MAX_OBJECT_SIZE = 1024 * 1024;
+
+    private static final int MAX_REF_DEPTH = 10;
+    private static final int MAX_PEEL_DEPTH = 100;
+    private static final int MIN_ABBREV_LENGTH = 4;
+
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]+");
+
+    /**
+     * An object's type and inflated contents. The contents must not be modified.
+     */
+    public static class GitObject {
+        public final int type;
+        public final byte[] data;
+
+        GitObject(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * An entry in a tree object.
+     */
+    public static class TreeEntry {
+        public final int mode;
+        public final String name;
+        public final HashCode id;
+
+        TreeEntry(int mode, String name, HashCode id) {
+            this.mode = mode;
+            this.name = name;
+            this.id = id;
+        }
+
+        public boolean isTree() {
+            return mode == MODE_TREE;
+        }
+
+        /**
+         * Whether a regular (possibly executable) file; i.e. not a symlink or submodule.
+         */
+        public boolean isFile() {
+            return mode == MODE_FILE || mode == MODE_EXECUTABLE;
+        }
+    }
+
+    /**
+     * Opens the repository in the given directory: either a working tree (containing {@code .git},
+     * which may be a directory or a {@code gitdir:} file), or the git directory itself (e.g. a bare repository).
+     */
+    public static GitRepository open(Path dir) throws IOException {
+        Path gitDir;
+        Path dotGit = dir.resolve(".git");
+        if (Files.isDirectory(dotGit)) {
+            gitDir = dotGit;
+        } else if (Files.isRegularFile(dotGit)) {
+            String content = new String(Files.readAllBytes(dotGit), StandardCharsets.UTF_8).trim();
+            if (!content.startsWith("gitdir:")) {
+                throw new IOException("Not a git repository: "+dir+" (unexpected .git file)");
+            }
+            gitDir = dir.resolve(content.substring("gitdir:".length()).trim()).normalize();
+        } else {
+            gitDir = dir;
+        }
+        if (!Files.isRegularFile(gitDir.resolve("HEAD"))) {
+            throw new IOException("Not a git repository: "+dir);
+        }
+        return new GitRepository(gitDir);
+    }
+
+    private final Path gitDir;
+    private final Path commonDir;
+    private final String objectFormat;
+    private final int idLength;
+    private final List<Path> objectDirs;
+    /** The open packs; only ever added to (a pack's file remains readable once open, even if deleted). */
+    private volatile List<Pack> packs = ImmutableList.of();
+    private final Cache<PackOffset, GitObject> cache;
+
+    private GitRepository(Path gitDir) throws IOException {
+        this.gitDir = gitDir;
+        Path commonDirFile = gitDir.resolve("commondir");
+        this.commonDir = Files.isRegularFile(commonDirFile)
+                ? gitDir.resolve(new String(Files.readAllBytes(commonDirFile), StandardCharsets.UTF_8).trim()).normalize()
+                : gitDir;
+        this.objectFormat = readObjectFormat(commonDir.resolve("config"));
+        this.idLength = objectFormat.equals("sha256") ? 32 : 20;
+        this.objectDirs = listObjectDirs(commonDir.resolve("objects"));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(CACHE_MAX_BYTES)
+                .weigher(new Weigher<PackOffset, GitObject>() {
+                    @Override public int weigh(PackOffset key, GitObject value) {
+                        return value.data.length;
+                    }})
+                .build();
+        try {
+            scanPacks();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        LOGGER.fine("Opened git repository "+gitDir+" ("+objectFormat+", "+packs.size()+" packs)");
+    }
+
+    public Path getGitDir() {
+        return gitDir;
+    }
+
+    /**
+     * "sha1" or "sha256".
+     */
+    public String getObjectFormat() {
+        return objectFormat;
+    }
+
+    /**
+     * Resolves the revision (e.g. "HEAD", a branch or tag name, "refs/tags/v1.0", or a full or
+     * abbreviated object id) to an object id, without peeling tags.
+     *
+     * @throws IOException if the revision does not exist (or an abbreviated id is ambiguous)
+     */
+    public HashCode resolve(String revision) throws IOException {
+        checkNotNull(revision, "revision");
+        if (revision.length() == idLength * 2 && HEX.matcher(revision).matches()) {
+            return HashCode.fromString(revision.toLowerCase());
+        }
+        List<String> candidates = revision.equals("HEAD") || revision.startsWith("refs/")
+                ? ImmutableList.of(revision)
+                : ImmutableList.of(revision, "refs/"+revision, "refs/tags/"+revision, "refs/heads/"+revision, "refs/remotes/"+revision, "refs/remotes/"+revision+"/HEAD");
+        for (String candidate : candidates) {
+            HashCode result = readRef(candidate, 0);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (revision.length() >= MIN_ABBREV_LENGTH && revision.length() < idLength * 2 && HEX.matcher(revision).matches()) {
+            return resolveAbbreviated(revision.toLowerCase());
+        }
+        throw new IOException("Unknown revision "+revision+" in "+gitDir);
+    }
+
+    /**
+     * Resolves the revision to a tree id, peeling annotated tags and commits.
+     */
+    public HashCode resolveTree(String revision) throws IOException {
+        HashCode id = resolve(revision);
+        for (int i = 0; i < MAX_PEEL_DEPTH; i++) {
+            GitObject object = read(id);
+            switch (object.type) {
+            case OBJ_TAG: id = headerField(object, "object"); break;
+            case OBJ_COMMIT: return headerField(object, "tree");
+            case OBJ_TREE: return id;
+            default: throw new IOException("Revision "+revision+" is not a tree, commit or tag");
+            }
+        }
+        throw new IOException("Too many levels of tags for "+revision);
+    }
+
+    /**
+     * The entries of the given tree, in the tree's order.
+     */
+    public List<TreeEntry> readTree(HashCode treeId) throws IOException {
+        GitObject object = read(treeId);
+        if (object.type != OBJ_TREE) {
+            throw new IOException("Object "+treeId+" is not a tree");
+        }
+        byte[] data = object.data;
+        List<TreeEntry> result = Lists.newArrayList();
+        int pos = 0;
+        while (pos < data.length) {
+            int mode = 0;
+            while (data[pos] != ' ') {
+                mode = (mode << 3) + (data[pos++] - '0');
+            }
+            pos++;
+            int nameStart = pos;
+            while (data[pos] != 0) {
+                pos++;
+            }
+            String name = new String(data, nameStart, pos - nameStart, StandardCharsets.UTF_8);
+            pos++;
+            HashCode id = HashCode.fromBytes(Arrays.copyOfRange(data, pos, pos + idLength));
+            pos += idLength;
+            result.add(new TreeEntry(mode, name, id));
+        }
+        return result;
+    }
+
+    /**
+     * The blob, as a {@link SourceFile} whose {@link SourceFile#id()} is derived from the blob id;
+     * it is only read (and inflated) when its contents are asked for.
+     *
+     * @param name The file name, e.g. for choosing how to compare it; only its extension is part of its identity
+     */
+    public SourceFile blob(HashCode id, String name) {
+        return new GitBlob(id, name);
+    }
+
+    /**
+     * Reads and inflates the object.
+     *
+     * @throws NoSuchFileException if there is no such object
+     */
+    public GitObject read(HashCode id) throws IOException {
+        byte[] idBytes = id.asBytes();
+        for (int attempt = 0; ; attempt++) {
+            for (Pack pack : packs) {
+                long offset = pack.find(idBytes);
+                if (offset >= 0) {
+                    return pack.read(offset);
+                }
+            }
+            Path loose = loosePath(id);
+            if (loose != null) {
+                try {
+                    return readLoose(loose);
+                } catch (NoSuchFileException e) {
+                    // Packed (and pruned) since we looked
+                }
+            }
+            if (attempt > 0 || !scanPacks()) {
+                throw new NoSuchFileException("No object "+id+" in "+gitDir);
+            }
+        }
+    }
+
+    /**
+     * The size of the object's inflated contents, only inflating as much as needed to find it out.
+     */
+    public long size(HashCode id) throws IOException {
+        byte[] idBytes = id.asBytes();
+        for (int attempt = 0; ; attempt++) {
+            for (Pack pack : packs) {
+                long offset = pack.find(idBytes);
+                if (offset >= 0) {
+                    return pack.size(offset);
+                }
+            }
+            Path loose = loosePath(id);
+            if (loose != null) {
+                try {
+                    byte[] header = inflatePrefix(Files.readAllBytes(loose), 64);
+                    int nul = indexOf(header, (byte) 0);
+                    if (nul < 0) throw new IOException("Corrupt object "+loose);
+                    String[] typeAndSize = new String(header, 0, nul, StandardCharsets.US_ASCII).split(" ");
+                    return Long.parseLong(typeAndSize[1]);
+                } catch (NoSuchFileException e) {
+                    // Packed (and pruned) since we looked
+                }
+            }
+            if (attempt > 0 || !scanPacks()) {
+                throw new NoSuchFileException("No object "+id+" in "+gitDir);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Pack pack : packs) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        cache.invalidateAll();
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public String toString() {
+        return "GitRepository["+gitDir+"]";
+    }
+
+    /**
+     * Opens any packs not already open; returns whether there were any.
+     */
+    private synchronized boolean scanPacks() throws IOException {
+        Set<Path> open = Sets.newHashSet();
+        for (Pack pack : packs) {
+            open.add(pack.packFile);
+        }
+        List<Pack> added = Lists.newArrayList();
+        try {
+            for (Path objectDir : objectDirs) {
+                Path packDir = objectDir.resolve("pack");
+                if (!Files.isDirectory(packDir)) continue;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir, "*.idx")) {
+                    for (Path idx : stream) {
+                        String name = idx.getFileName().toString();
+                        Path pack = idx.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+                        if (!open.contains(pack) && Files.isRegularFile(pack)) {
+                            try {
+                                added.add(new Pack(idx, pack));
+                            } catch (NoSuchFileException e) {
+                                // Deleted (e.g. by a concurrent repack) since listed
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Pack pack : added) {
+                pack.close();
+            }
+            throw e;
+        }
+        if (added.isEmpty()) {
+            return false;
+        }
+        // Newest first, as they are most likely to have the objects not found in the others
+        packs = ImmutableList.<Pack>builder().addAll(added).addAll(packs).build();
+        return true;
+    }
+
+    private HashCode readRef(String name, int depth) throws IOException {
+        if (depth > MAX_REF_DEPTH) {
+            throw new IOException("Too many levels of symbolic refs for "+name);
+        }
+        for (Path dir : ImmutableList.of(gitDir, commonDir)) {
+            Path file = dir.resolve(name);
+            if (Files.isRegularFile(file)) {
+                String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+                if (content.startsWith("ref:")) {
+                    return readRef(content.substring("ref:".length()).trim(), depth + 1);
+                }
+                return HashCode.fromString(content.toLowerCase());
+            }
+            if (dir.equals(commonDir)) break;
+        }
+        Path packedRefs = commonDir.resolve("packed-refs");
+        if (Files.isRegularFile(packedRefs)) {
+            for (String line : Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("^")) continue;
+                int space = line.indexOf(' ');
+                if (space > 0 && line.substring(space + 1).equals(name)) {
+                    return HashCode.fromString(line.substring(0, space).toLowerCase());
+                }
+            }
+        }
+        return null;
+    }
+
+    private HashCode resolveAbbreviated(String prefix) throws IOException {
+        Set<HashCode> matches = Sets.newLinkedHashSet();
+        for (Pack pack : packs) {
+            pack.findPrefix(prefix, matches);
+        }
+        for (Path objectDir : objectDirs) {
+            Path dir = objectDir.resolve(prefix.substring(0, 2));
+            if (!Files.isDirectory(dir)) continue;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix.substring(2) + "*")) {
+                for (Path file : stream) {
+                    matches.add(HashCode.fromString(prefix.substring(0, 2) + file.getFileName()));
+                }
+            }
+        }
+        if (matches.size() == 1) {
+            return matches.iterator().next();
+        }
+        throw new IOException((matches.isEmpty() ? "Unknown revision " : "Ambiguous abbreviated object id ")+prefix+" in "+gitDir);
+    }
+
+    private HashCode headerField(GitObject object, String field) throws IOException {
+        String text = new String(object.data, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) break;
+            if (line.startsWith(field + " ")) {
+                return HashCode.fromString(line.substring(field.length() + 1).trim());
+            }
+        }
+        throw new IOException("No "+field+" in object");
+    }
+
+    private Path loosePath(HashCode id) {
+        String hex = id.toString();
+        for (Path objectDir : objectDirs) {
+            Path result = objectDir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+            if (Files.isRegularFile(result)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private GitObject readLoose(Path file) throws IOException {
+        byte[] raw = inflateAll(Files.readAllBytes(file));
+        int nul = indexOf(raw, (byte) 0);
+        if (nul < 0) throw new IOException("Corrupt object "+file);
+        String[] typeAndSize = new String(raw, 0, nul, StandardCharsets.US_ASCII).split(" ");
+        int type;
+        switch (typeAndSize[0]) {
+        case "commit": type = OBJ_COMMIT; break;
+        case "tree": type = OBJ_TREE; break;
+        case "blob": type = OBJ_BLOB; break;
+        case "tag": type = OBJ_TAG; break;
+        default: throw new IOException("Unknown object type "+typeAndSize[0]+" in "+file);
+        }
+        return new GitObject(type, Arrays.copyOfRange(raw, nul + 1, raw.length));
+    }
+
+    private static String readObjectFormat(Path config) throws IOException {
+        if (Files.isRegularFile(config)) {
+            for (String line : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim().toLowerCase().replace(" ", "").replace("\t", "");
+                if (trimmed.equals("objectformat=sha256")) {
+                    return "sha256";
+                }
+            }
+        }
+        return "sha1";
+    }
+
+    private static List<Path> listObjectDirs(Path objects) throws IOException {
+        List<Path> result = Lists.newArrayList();
+        result.add(objects);
+        Path alternates = objects.resolve("info").resolve("alternates");
+        if (Files.isRegularFile(alternates)) {
+            for (String line : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                result.add(objects.resolve(line).normalize());
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static int indexOf(byte[] bytes, byte val) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == val) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] inflateAll(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] result = new byte[Math.max(64, compressed.length * 4)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                int n = inflater.inflate(result, length, result.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Truncated compressed object");
+                }
+                length += n;
+            }
+            return Arrays.copyOf(result, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed object", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Inflates up to {@code max} bytes from the start of the compressed data.
+     */
+    private static byte[] inflatePrefix(byte[] compressed, int max) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] result = new byte[max];
+            int length = 0;
+            while (length < max && !inflater.finished()) {
+                int n = inflater.inflate(result, length, max - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+            return Arrays.copyOf(result, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed object", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long readVarint(byte[] bytes, int[] pos) throws IOException {
+        long result = 0;
+        int shift = 0;
+        int c;
+        do {
+            if (pos[0] >= bytes.length || shift > 63) {
+                throw new IOException("Corrupt delta (truncated size)");
+            }
+            c = bytes[pos[0]++] & 0xff;
+            result |= ((long) (c & 0x7f)) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * Applies the delta to its base, checking each copy and insert stays within the base, delta and result,
+     * so a corrupt delta fails with an {@link IOException} rather than an index out of bounds.
+     */
+    private static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+        int[] pos = {0};
+        long baseSize = readVarint(delta, pos);
+        long resultSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw new IOException("Delta base size "+base.length+" does not match expected "+baseSize);
+        }
+        if (resultSize > Integer.MAX_VALUE) {
+            throw new IOException("Delta result too large ("+resultSize+" bytes)");
+        }
+        byte[] result = new byte[(int) resultSize];
+        int out = 0;
+        int p = pos[0];
+        while (p < delta.length) {
+            int cmd = delta[p++] & 0xff;
+            if ((cmd & 0x80) != 0) {
+                if (p + Integer.bitCount(cmd & 0x7f) > delta.length) {
+                    throw new IOException("Corrupt delta (truncated copy instruction at "+(p - 1)+")");
+                }
+                long offset = 0;
+                int size = 0;
+                if ((cmd & 0x01) != 0) offset = delta[p++] & 0xff;
+                if ((cmd & 0x02) != 0) offset |= (delta[p++] & 0xff) << 8;
+                if ((cmd & 0x04) != 0) offset |= (delta[p++] & 0xff) << 16;
+                if ((cmd & 0x08) != 0) offset |= (delta[p++] & 0xffL) << 24;
+                if ((cmd & 0x10) != 0) size = delta[p++] & 0xff;
+                if ((cmd & 0x20) != 0) size |= (delta[p++] & 0xff) << 8;
+                if ((cmd & 0x40) != 0) size |= (delta[p++] & 0xff) << 16;
+                if (size == 0) size = 0x10000;
+                if (offset + size > base.length || out + size > result.length) {
+                    throw new IOException("Corrupt delta (copies "+size+" bytes from "+offset+" of "+base.length+"-byte base to "
+                            +out+" of "+result.length+"-byte result)");
+                }
+                System.arraycopy(base, (int) offset, result, out, size);
+                out += size;
+            } else if (cmd != 0) {
+                if (p + cmd > delta.length || out + cmd > result.length) {
+                    throw new IOException("Corrupt delta (inserts "+cmd+" bytes from "+p+" of "+delta.length+"-byte delta to "
+                            +out+" of "+result.length+"-byte result)");
+                }
+                System.arraycopy(delta, p, result, out, cmd);
+                p += cmd;
+                out += cmd;
+            } else {
+                throw new IOException("Corrupt delta (reserved instruction)");
+            }
+        }
+        if (out != result.length) {
+            throw new IOException("Delta produced "+out+" bytes, but expected "+result.length);
+        }
+        return result;
+    }
+
+    /**
+     * Identifies an object in a pack, for {@link GitRepository#cache}.
+     */
+    private static class PackOffset {
+        final Pack pack;
+        final long offset;
+
+        PackOffset(Pack pack, long offset) {
+            this.pack = pack;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof PackOffset) && ((PackOffset) obj).pack == pack && ((PackOffset) obj).offset == offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(pack) * 31 + (int) (offset ^ (offset >>> 32));
+        }
+    }
+
+    /**
+     * A packfile and its (memory-mapped) index.
+     */
+    private class Pack implements Closeable {
+        private static final int IDX_V2_MAGIC = 0xff744f63; // "\377tOc"
+        private static final int HEADER_BYTES = 64;
+        private static final int READ_CHUNK = 8192;
+
+        private final Path packFile;
+        private final FileChannel channel;
+        private final MappedByteBuffer idx;
+        private final int version;
+        private final int count;
+        /** Where the fan-out table, ids and (v2) offsets start in the index. */
+        private final int fanoutStart;
+        private final int idsStart;
+        private final int idStride;
+        private final int offsetsStart;
+        private final int largeOffsetsStart;
+
+        Pack(Path idxFile, Path packFile) throws IOException {
+            this.packFile = packFile;
+            try (FileChannel idxChannel = FileChannel.open(idxFile, StandardOpenOption.READ)) {
+                this.idx = idxChannel.map(FileChannel.MapMode.READ_ONLY, 0, idxChannel.size());
+            }
+            if (idx.getInt(0) == IDX_V2_MAGIC) {
+                version = idx.getInt(4);
+                if (version != 2) {
+                    throw new IOException("Unsupported pack index version "+version+": "+idxFile);
+                }
+                fanoutStart = 8;
+                count = idx.getInt(fanoutStart + 255 * 4);
+                idsStart = fanoutStart + 256 * 4;
+                idStride = idLength;
+                int crcsStart = idsStart + count * idLength;
+                offsetsStart = crcsStart + count * 4;
+                largeOffsetsStart = offsetsStart + count * 4;
+            } else {
+                version = 1;
+                fanoutStart = 0;
+                count = idx.getInt(255 * 4);
+                idsStart = 256 * 4;
+                idStride = idLength + 4;
+                offsetsStart = -1;
+                largeOffsetsStart = -1;
+            }
+            this.channel = FileChannel.open(packFile, StandardOpenOption.READ);
+        }
+
+        /**
+         * The offset of the object in the pack, or -1 if not in this pack.
+         */
+        long find(byte[] id) {
+            int first = id[0] & 0xff;
+            int low = (first == 0) ? 0 : idx.getInt(fanoutStart + (first - 1) * 4);
+            int high = idx.getInt(fanoutStart + first * 4) - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareId(mid, id);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return offset(mid);
+                }
+            }
+            return -1;
+        }
+
+        void findPrefix(String prefix, Set<HashCode> matches) {
+            byte[] lowest = new byte[idLength];
+            for (int i = 0; i + 1 < prefix.length(); i += 2) {
+                lowest[i / 2] = (byte) Integer.parseInt(prefix.substring(i, i + 2), 16);
+            }
+            if (prefix.length() % 2 == 1) {
+                lowest[prefix.length() / 2] = (byte) (Character.digit(prefix.charAt(prefix.length() - 1), 16) << 4);
+            }
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareId(mid, lowest) < 0) low = mid + 1; else high = mid;
+            }
+            for (int i = low; i < count; i++) {
+                HashCode id = id(i);
+                if (!id.toString().startsWith(prefix)) break;
+                matches.add(id);
+            }
+        }
+
+        GitObject read(final long offset) throws IOException {
+            PackOffset key = new PackOffset(this, offset);
+            GitObject result = cache.getIfPresent(key);
+            if (result == null) {
+                result = readUncached(offset);
+                if (result.data.length <= CACHE_MAX_OBJECT_SIZE) {
+                    cache.put(key, result);
+                }
+            }
+            return result;
+        }
+
+        long size(long offset) throws IOException {
+            Header header = readHeader(offset);
+            if (header.type != OBJ_OFS_DELTA && header.type != OBJ_REF_DELTA) {
+                return header.size;
+            }
+            // The delta starts with the base size then the result size
+            byte[] deltaHeader = inflate(header.dataStart, (int) Math.min(header.size, 20), false);
+            int[] pos = {0};
+            readVarint(deltaHeader, pos);
+            return readVarint(deltaHeader, pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private GitObject readUncached(long offset) throws IOException {
+            Header header = readHeader(offset);
+            if (header.size > Integer.MAX_VALUE) {
+                throw new IOException("Object too large ("+header.size+" bytes) in "+packFile);
+            }
+            byte[] data = inflate(header.dataStart, (int) header.size, true);
+            switch (header.type) {
+            case OBJ_COMMIT:
+            case OBJ_TREE:
+            case OBJ_BLOB:
+            case OBJ_TAG:
+                return new GitObject(header.type, data);
+            case OBJ_OFS_DELTA:
+                GitObject base = read(header.baseOffset);
+                return new GitObject(base.type, applyDelta(base.data, data, offset));
+            case OBJ_REF_DELTA:
+                GitObject refBase = GitRepository.this.read(header.baseId);
+                return new GitObject(refBase.type, applyDelta(refBase.data, data, offset));
+            default:
+                throw new IOException("Unknown object type "+header.type+" at "+offset+" in "+packFile);
+            }
+        }
+
+        private byte[] applyDelta(byte[] base, byte[] delta, long offset) throws IOException {
+            try {
+                return GitRepository.applyDelta(base, delta);
+            } catch (IOException e) {
+                throw new IOException("Cannot read object "+idAt(offset)+" at "+offset+" in "+packFile+": "+e.getMessage(), e);
+            }
+        }
+
+        private Header readHeader(long offset) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) break;
+            }
+            byte[] bytes = buf.array();
+            int pos = 0;
+            int c = bytes[pos++] & 0xff;
+            Header result = new Header();
+            result.type = (c >> 4) & 7;
+            long size = c & 0x0f;
+            int shift = 4;
+            while ((c & 0x80) != 0) {
+                c = bytes[pos++] & 0xff;
+                size |= ((long) (c & 0x7f)) << shift;
+                shift += 7;
+            }
+            result.size = size;
+            if (result.type == OBJ_OFS_DELTA) {
+                c = bytes[pos++] & 0xff;
+                long distance = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = bytes[pos++] & 0xff;
+                    distance = ((distance + 1) << 7) | (c & 0x7f);
+                }
+                result.baseOffset = offset - distance;
+            } else if (result.type == OBJ_REF_DELTA) {
+                result.baseId = HashCode.fromBytes(Arrays.copyOfRange(bytes, pos, pos + idLength));
+                pos += idLength;
+            }
+            result.dataStart = offset + pos;
+            return result;
+        }
+
+        /**
+         * Inflates the zlib stream at the given position in the pack.
+         *
+         * @param size  The number of bytes to inflate
+         * @param exact Whether the stream must inflate to exactly that size (or may be longer)
+         */
+        private byte[] inflate(long position, int size, boolean exact) throws IOException {
+            byte[] result = new byte[size];
+            if (size == 0) {
+                return result;
+            }
+            Inflater inflater = new Inflater();
+            try {
+                ByteBuffer in = ByteBuffer.allocate(READ_CHUNK);
+                long pos = position;
+                int length = 0;
+                while (length < size) {
+                    if (inflater.needsInput()) {
+                        in.clear();
+                        int n = channel.read(in, pos);
+                        if (n < 0) throw new EOFException("Truncated object at "+position+" in "+packFile);
+                        pos += n;
+                        inflater.setInput(in.array(), 0, n);
+                    }
+                    int n = inflater.inflate(result, length, size - length);
+                    if (n == 0 && (inflater.finished() || inflater.needsDictionary())) break;
+                    length += n;
+                }
+                if (length != size || (exact && !inflater.finished() && inflater.inflate(new byte[1]) > 0)) {
+                    throw new IOException("Object at "+position+" in "+packFile+" does not inflate to "+size+" bytes");
+                }
+                return result;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt object at "+position+" in "+packFile, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private int compareId(int index, byte[] id) {
+            int start = idsStart + index * idStride + (version == 1 ? 4 : 0);
+            for (int i = 0; i < idLength; i++) {
+                int cmp = (idx.get(start + i) & 0xff) - (id[i] & 0xff);
+                if (cmp != 0) return cmp;
+            }
+            return 0;
+        }
+
+        private HashCode id(int index) {
+            int start = idsStart + index * idStride + (version == 1 ? 4 : 0);
+            byte[] result = new byte[idLength];
+            for (int i = 0; i < idLength; i++) {
+                result[i] = idx.get(start + i);
+            }
+            return HashCode.fromBytes(result);
+        }
+
+        /**
+         * The id of the object at the given offset, for error messages (so found by scanning the index).
+         */
+        private String idAt(long offset) {
+            for (int i = 0; i < count; i++) {
+                if (offset(i) == offset) {
+                    return id(i).toString();
+                }
+            }
+            return "(unknown)";
+        }
+
+        private long offset(int index) {
+            if (version == 1) {
+                return idx.getInt(idsStart + index * idStride) & 0xffffffffL;
+            }
+            int offset = idx.getInt(offsetsStart + index * 4);
+            if ((offset & 0x80000000) == 0) {
+                return offset;
+            }
+            return idx.getLong(largeOffsetsStart + (offset & 0x7fffffff) * 8);
+        }
+    }
+
+    /**
+     * The header of an object in a pack.
+     */
+    private static class Header {
+        int type;
+        long size;
+        long baseOffset;
+        HashCode baseId;
+        long dataStart;
+    }
+
+    /**
+     * A blob, read lazily. Equal to another if the blob ids and the {@link NormalizationRegistry#extension(String)
+     * extensions} are equal, as the extension chooses how the blob is fingerprinted (so it is also in the id).
+     */
+    private class GitBlob extends SourceFile {
+        private final HashCode blobId;
+        private final String name;
+        private final String extension;
+        private volatile long size = -1;
+
+        GitBlob(HashCode blobId, String name) {
+            this.blobId = checkNotNull(blobId, "blobId");
+            this.name = checkNotNull(name, "name");
+            this.extension = NormalizationRegistry.extension(name);
+        }
+
+        @Override
+        public String id() {
+            return "git-"+objectFormat+":"+blobId+(extension.isEmpty() ? "" : "."+extension);
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long size() throws IOException {
+            long result = size;
+            if (result < 0) {
+                result = GitRepository.this.size(blobId);
+                size = result;
+            }
+            return result;
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            GitObject object = GitRepository.this.read(blobId);
+            if (object.type != OBJ_BLOB) {
+                throw new IOException("Object "+blobId+" is not a blob");
+            }
+            return new ByteArrayInputStream(object.data);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof GitBlob)) return false;
+            GitBlob o = (GitBlob) obj;
+            return o.blobId.equals(blobId) && o.extension.equals(extension) && o.repo() == GitRepository.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * blobId.hashCode() + extension.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name+"@"+blobId;
+        }
+
+        private GitRepository repo() {
+            return GitRepository.this;
+        }
+    }
+}
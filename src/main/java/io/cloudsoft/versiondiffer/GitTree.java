@@ -0,0 +1,181 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.hash.HashCode;
+
+import io.cloudsoft.versiondiffer.GitRepository.TreeEntry;
+
+/**
+ * The files of a commit (or tag, or tree) in a local git repository, read straight from its
+ * object store (see {@link GitRepository}), so no checkout is needed.
+ *
+ * Only the tree objects are read when constructed. The blob ids are the {@link #contentId(Path)}s,
+ * so {@link Differ} can tell which files are unchanged or moved without reading them; only blobs
+ * that differ are inflated (when compared). Sizes are read from the object headers, when first asked for.
+ *
+ * Symlinks and submodules are skipped. Paths passed to the filters use the default file system's
+ * separator, as for {@link FileLister}.
+ */
+public class GitTree implements SourceTree {
+
+    private final GitRepository repo;
+    private final String revision;
+    private final HashCode treeId;
+    private final FileSystem fileSystem = FileSystems.getDefault();
+
+    /** The relative paths of the files, in tree order. */
+    private final PathIndex index;
+
+    /** Per file (in tree order): the blob id's bytes, and the size (-1 until known). */
+    private final byte[] blobIds;
+    private final int idLength;
+    private final AtomicLongArray sizes;
+
+    public GitTree(GitRepository repo, String revision) throws IOException {
+        this(repo, revision, Predicates.alwaysTrue(), Predicates.alwaysTrue());
+    }
+
+    /**
+     * @param repo       The repository, which must be left open while this tree is used
+     * @param revision   The commit, tag or tree, e.g. "v1.0" or "HEAD"
+     * @param accepts    Whether to include a file, given its path relative to the root
+     * @param acceptsDir Whether to look inside a directory, given its path relative to the root
+     */
+    public GitTree(GitRepository repo, String revision, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        this.repo = checkNotNull(repo, "repo");
+        this.revision = checkNotNull(revision, "revision");
+        this.treeId = repo.resolveTree(revision);
+        this.idLength = repo.getObjectFormat().equals("sha256") ? 32 : 20;
+
+        PathIndex.Builder indexBuilder = new PathIndex.Builder(fileSystem);
+        Ids ids = new Ids();
+        walk(treeId, "", accepts, acceptsDir, indexBuilder, ids);
+        this.index = indexBuilder.build();
+        this.blobIds = Arrays.copyOf(ids.bytes, ids.length);
+        this.sizes = new AtomicLongArray(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            sizes.set(i, -1);
+        }
+    }
+
+    /**
+     * The blob ids, as they are found.
+     */
+    private static class Ids {
+        byte[] bytes = new byte[1024];
+        int length = 0;
+
+        void add(byte[] id) {
+            if (length + id.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + id.length));
+            }
+            System.arraycopy(id, 0, bytes, length, id.length);
+            length += id.length;
+        }
+    }
+
+    private void walk(HashCode tree, String relativeDir, Predicate<? super String> accepts, Predicate<? super String> acceptsDir,
+            PathIndex.Builder indexBuilder, Ids ids) throws IOException {
+        String separator = fileSystem.getSeparator();
+        for (TreeEntry entry : repo.readTree(tree)) {
+            String relativePath = relativeDir.isEmpty() ? entry.name : relativeDir + separator + entry.name;
+            if (entry.isTree()) {
+                if (acceptsDir.apply(relativePath)) {
+                    walk(entry.id, relativePath, accepts, acceptsDir, indexBuilder, ids);
+                }
+            } else if (entry.isFile() && accepts.apply(relativePath)) {
+                indexBuilder.add(relativeDir, entry.name);
+                ids.add(entry.id.asBytes());
+            }
+        }
+    }
+
+    public GitRepository getRepository() {
+        return repo;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public HashCode getTreeId() {
+        return treeId;
+    }
+
+    @Override
+    public Set<Path> listAll() {
+        return index.asSet();
+    }
+
+    @Override
+    public Collection<Path> findFilename(String filename) {
+        return index.findFilename(filename);
+    }
+
+    @Override
+    public boolean contains(Path relativePath) {
+        return index.indexOf(relativePath) >= 0;
+    }
+
+    @Override
+    public long size(Path relativePath) throws IOException {
+        int i = checkIndexOf(relativePath);
+        long result = sizes.get(i);
+        if (result < 0) {
+            result = repo.size(blobId(i));
+            sizes.set(i, result);
+        }
+        return result;
+    }
+
+    @Override
+    public SourceFile file(Path relativePath) {
+        int i = checkIndexOf(relativePath);
+        return repo.blob(blobId(i), relativePath.getFileName().toString());
+    }
+
+    /**
+     * "git-blob-sha1" (or "git-blob-sha256").
+     */
+    @Override
+    public String contentIdType() {
+        return "git-blob-"+repo.getObjectFormat();
+    }
+
+    /**
+     * The blob id.
+     */
+    @Override
+    public HashCode contentId(Path relativePath) {
+        return blobId(checkIndexOf(relativePath));
+    }
+
+    @Override
+    public String toString() {
+        return repo.getGitDir()+"@"+revision;
+    }
+
+    private HashCode blobId(int index) {
+        return HashCode.fromBytes(Arrays.copyOfRange(blobIds, index * idLength, (index + 1) * idLength));
+    }
+
+    private int checkIndexOf(Path relativePath) {
+        int result = index.indexOf(relativePath);
+        if (result < 0) {
+            throw new IllegalArgumentException("No such file "+relativePath+" in "+this);
+        }
+        return result;
+    }
+}
@@ -1,18 +1,7 @@
 package io.cloudsoft.versiondiffer;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
-
-import com.google.common.base.Joiner;
-import com.google.common.base.Predicates;
-import com.google.common.collect.FluentIterable;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
-
-import brooklyn.util.text.StringFunctions;
-import brooklyn.util.text.StringPredicates;
 
 /**
  * Compares the similarity of Java source files. Ignores things like
@@ -20,44 +9,104 @@ import brooklyn.util.text.StringPredicates;
  */
 public class JavaFileComparer implements FileComparer {
 
-    public static class Factory implements FileComparer.Factory {
-        public FileComparer newComparer(Path p1) throws IOException {
-            return new JavaFileComparer(p1);
+    /**
+     * Creates {@link JavaFileComparer}s that share a {@link FingerprintCache}, so each file
+     * is read and tokenized at most once (unless evicted from the cache).
+     * 
+     * Also a {@link Fingerprinter} (backed by that cache), for stages that work on fingerprints directly.
+     */
+    public static class Factory implements FileComparer.Factory, Fingerprinter {
+        private final FingerprintCache fingerprints;
+        
+        public Factory() {
+            this(FingerprintCache.DEFAULT_MAX_SIZE);
+        }
+        
+        public Factory(long maxCachedFingerprints) {
+            this(maxCachedFingerprints, FINGERPRINTER);
+        }
+        
+        /**
+         * @param maxCachedFingerprints The maximum number of fingerprints held in memory
+         * @param fingerprinter         Computes the fingerprints that are not cached, e.g. a {@link FingerprintStore}
+         *                              wrapping {@link JavaFileComparer#FINGERPRINTER}, or a {@link NormalizationRegistry}
+         *                              to also compare other kinds of file
+         */
+        public Factory(long maxCachedFingerprints, Fingerprinter fingerprinter) {
+            this.fingerprints = new FingerprintCache(fingerprinter, maxCachedFingerprints);
+        }
+        
+        public FileComparer newComparer(SourceFile f1) throws IOException {
+            return new JavaFileComparer(f1, fingerprints);
         }
+        
+        @Override
+        public FileFingerprint fingerprint(SourceFile file) throws IOException {
+            return fingerprints.fingerprint(file);
+        }
+        
+        public FingerprintCache getFingerprints() {
+            return fingerprints;
+        }
+    }
+    
+    /**
+     * Identifies the normalization done by {@link #FINGERPRINTER}, for {@link FingerprintStore#load(Path, String, Fingerprinter)}.
+     */
+    public static final String FINGERPRINT_FORMAT = "java-v3";
+    
+    /**
+     * Files at least this big are fingerprinted by {@link #FINGERPRINTER} as just a {@link DiceSketch}, so their
+     * similarities are estimates; see {@link #fingerprinter(long)}.
+     */
+    public static final long DEFAULT_SKETCH_THRESHOLD = 1024 * 1024;
+    
+    /**
+     * Fingerprints the Java source, ignoring imports and license header, in a single streaming pass.
+     */
+    public static final Fingerprinter FINGERPRINTER = fingerprinter(DEFAULT_SKETCH_THRESHOLD);
+
+    /**
+     * As {@link #FINGERPRINT_FORMAT}, but for {@link #fingerprinter(long)} with the given threshold.
+     */
+    public static String fingerprintFormat(long sketchThreshold) {
+        return (sketchThreshold == DEFAULT_SKETCH_THRESHOLD) ? FINGERPRINT_FORMAT : FINGERPRINT_FORMAT+"-sketch"+sketchThreshold;
     }
     
-    private static final List<String> LICENSE_HEADER = ImmutableList.of(
-            "/*",
-            " * Licensed to the Apache Software Foundation (ASF) under one",
-            " * or more contributor license agreements.  See the NOTICE file",
-            " * distributed with this work for additional information",
-            " * regarding copyright ownership.  The ASF licenses this file",
-            " * to you under the Apache License, Version 2.0 (the",
-            " * \"License\"); you may not use this file except in compliance",
-            " * with the License.  You may obtain a copy of the License at",
-            " *",
-            " *     http://www.apache.org/licenses/LICENSE-2.0",
-            " *",
-            " * Unless required by applicable law or agreed to in writing,",
-            " * software distributed under the License is distributed on an",
-            " * \"AS IS\" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY",
-            " * KIND, either express or implied.  See the License for the",
-            " * specific language governing permissions and limitations",
-            " * under the License.",
-            " */");
+    private static final Fingerprinter EXACT_FINGERPRINTER = fingerprinter(Long.MAX_VALUE);
+
+    /**
+     * As {@link #FINGERPRINTER}, but files of at least the given size (in bytes) are fingerprinted as just a
+     * {@link DiceSketch}; {@link Long#MAX_VALUE} for never.
+     */
+    public static Fingerprinter fingerprinter(long sketchThreshold) {
+        return new SourceScanner(NormalizationRules.java(), sketchThreshold);
+    }
     
-    private static final String LICENSE_HEADER_TRIMMED = trimAndJoinLines(LICENSE_HEADER);
+    /**
+     * The exact similarity of the two files, however big; e.g. to re-check a score that was estimated (see
+     * {@link FileFingerprint#isSketched()}) and is close to the threshold. Reads both files.
+     */
+    public static double exactSimilarity(SourceFile f1, SourceFile f2) throws IOException {
+        return EXACT_FINGERPRINTER.fingerprint(f1).similarity(EXACT_FINGERPRINTER.fingerprint(f2));
+    }
 
-    private final Path p1;
-    private final String s1;
+    private final SourceFile p1;
+    private final Fingerprinter fingerprinter;
+    private final FileFingerprint f1;
     
     public JavaFileComparer(Path p1) throws IOException {
+        this(SourceFile.of(p1), FINGERPRINTER);
+    }
+    
+    public JavaFileComparer(SourceFile p1, Fingerprinter fingerprinter) throws IOException {
         this.p1 = p1;
-        this.s1 = strippedJavaSource(p1);
+        this.fingerprinter = fingerprinter;
+        this.f1 = fingerprinter.fingerprint(p1);
     }
     
     public boolean isJavaSourceFile() {
-        return p1.getFileName().toString().endsWith(".java");
+        return p1.name().endsWith(".java");
     }
     
     /**
@@ -65,35 +114,20 @@ public class JavaFileComparer implements FileComparer {
      * imports and license header that are just noise.
      */
     @Override
-    public double similarity(Path p2) throws IOException {
-        String s2 = strippedJavaSource(p2);
+    public double similarity(SourceFile p2) throws IOException {
+        FileFingerprint f2 = fingerprinter.fingerprint(p2);
         
         // Extremely slow!
         // int threshold = (int) (0.25 * s1.length());
         // int result = StringUtils.getLevenshteinDistance(s1, s2, threshold);
         // return result >= 0;
         
-        double similarity = LetterPairSimilarity.compareStrings(s1, s2);
+        double similarity = f1.similarity(f2);
         return similarity;
     }
     
-    private String strippedJavaSource(Path path) throws IOException {
-        List<String> lines = Files.readAllLines(path);
-        if (startsWithLicenseHeader(lines)) {
-            lines = lines.subList(LICENSE_HEADER.size(), lines.size());
-        }
-        return Joiner.on("\n").join(FluentIterable.from(lines).filter(Predicates.not(StringPredicates.startsWith("import "))));
-    }
-    
-    private boolean startsWithLicenseHeader(List<String> lines) {
-        if (lines.size() < LICENSE_HEADER.size()) {
-            return false;
-        }
-        String start = trimAndJoinLines(lines.subList(0, LICENSE_HEADER.size()));
-        return start.equals(LICENSE_HEADER_TRIMMED);
-    }
-
-    private static String trimAndJoinLines(List<String> lines) {
-        return Joiner.on("\n").join(Lists.transform(lines, StringFunctions.trim()));
+    @Override
+    public boolean similarityAtLeast(SourceFile p2, double threshold) throws IOException {
+        return f1.similarityAtLeast(fingerprinter.fingerprint(p2), threshold);
     }
 }
@@ -0,0 +1,106 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Map;
+
+import com.google.common.base.Function;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * Writes each result as a JSON object on its own line (JSON Lines), with a {@code type} of
+ * {@code unchanged}, {@code moved}, {@code ambiguous} or {@code newFile}, and otherwise the same
+ * fields as {@link Differ.DifferResult}. For example:
+ *
+ * <pre>
+ * {"type":"moved","origPath":"a/Foo.java","newPath":"b/Foo.java","similarity":0.93}
+ * </pre>
+ *
+ * A similarity that is not a number (e.g. comparing two empty files) is written as {@code null}. One estimated
+ * from a sketch of a big file (see {@link FileFingerprint#isSketched()}) is followed by {@code "estimated":true}.
+ */
+public class JsonLinesResultWriter extends StreamingResultWriter {
+
+    public JsonLinesResultWriter(Writer out) {
+        this(out, null);
+    }
+
+    public JsonLinesResultWriter(Writer out, Function<? super Path, String> toFqn) {
+        super(out, toFqn);
+    }
+
+    @Override
+    protected void writeUnchanged(UnchangedResult result) throws IOException {
+        out.write("{\"type\":\"unchanged\"");
+        writePath("path", "fqn", result.path);
+        writeSimilarity(result.similarity, result.estimated);
+        out.write("}\n");
+    }
+
+    @Override
+    protected void writeMoved(MovedResult result) throws IOException {
+        out.write("{\"type\":\"moved\"");
+        writePath("origPath", "origFqn", result.origPath);
+        writePath("newPath", "newFqn", result.newPath);
+        writeSimilarity(result.similarity, result.estimated);
+        out.write("}\n");
+    }
+
+    @Override
+    protected void writeAmbiguous(AmbiguousResult result) throws IOException {
+        out.write("{\"type\":\"ambiguous\"");
+        writePath("origPath", "origFqn", result.origPath);
+        out.write(",\"msg\":");
+        out.write(quote(result.msg));
+        out.write(",\"newPaths\":[");
+        boolean first = true;
+        for (Map.Entry<Path, Double> entry : result.newPaths.entrySet()) {
+            out.write(first ? "{" : ",{");
+            first = false;
+            out.write("\"path\":");
+            out.write(quote(entry.getKey()));
+            if (hasFqns()) {
+                out.write(",\"fqn\":");
+                out.write(quoteFqn(entry.getKey()));
+            }
+            writeSimilarity(entry.getValue(), result.estimated.contains(entry.getKey()));
+            out.write("}");
+        }
+        out.write("]}\n");
+    }
+
+    @Override
+    protected void writeNewFile(Path path) throws IOException {
+        out.write("{\"type\":\"newFile\"");
+        writePath("path", "fqn", path);
+        out.write("}\n");
+    }
+
+    @Override
+    protected void writeUnevaluated(Path path) throws IOException {
+        out.write("{\"type\":\"unevaluated\"");
+        writePath("origPath", "origFqn", path);
+        out.write("}\n");
+    }
+
+    private void writePath(String pathKey, String fqnKey, Path path) throws IOException {
+        out.write(",\""+pathKey+"\":");
+        out.write(quote(path));
+        if (hasFqns()) {
+            out.write(",\""+fqnKey+"\":");
+            out.write(quoteFqn(path));
+        }
+    }
+
+    private void writeSimilarity(double similarity, boolean estimated) throws IOException {
+        out.write(",\"similarity\":");
+        out.write((Double.isNaN(similarity) || Double.isInfinite(similarity)) ? "null" : Double.toString(similarity));
+        if (estimated) {
+            out.write(",\"estimated\":true");
+        }
+    }
+}
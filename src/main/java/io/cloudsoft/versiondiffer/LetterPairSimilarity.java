@@ -1,60 +1,24 @@
 package io.cloudsoft.versiondiffer;
 
-import java.util.ArrayList;
-
 /**
  * Taken from http://www.catalysoft.com/articles/StrikeAMatch.html
  * 
  * With the following modifications:
  * - case-sensitive
  * - avoid NegativeArraySizeException in letterPairs
+ * - letter pairs are counted in a {@link BigramHistogram} rather than compared as lists
+ *   of 2-character Strings, so the comparison is linear rather than quadratic (the score
+ *   is unchanged: the number of matched pairs is the size of the multiset intersection)
  */
 public class LetterPairSimilarity {
 
     /** @return lexical similarity value in the range [0,1] */
     public static double compareStrings(String str1, String str2) {
-        ArrayList pairs1 = wordLetterPairs(str1);
-        ArrayList pairs2 = wordLetterPairs(str2);
-        int intersection = 0;
-        int union = pairs1.size() + pairs2.size();
-        for (int i=0; i<pairs1.size(); i++) {
-            Object pair1=pairs1.get(i);
-            for(int j=0; j<pairs2.size(); j++) {
-                Object pair2=pairs2.get(j);
-                if (pair1.equals(pair2)) {
-                    intersection++;
-                    pairs2.remove(j);
-                    break;
-                }
-            }
-        }
-        return (2.0*intersection)/union;
-    }
-    
-    /** @return an ArrayList of 2-character Strings. */
-    private static ArrayList wordLetterPairs(String str) {
-        ArrayList allPairs = new ArrayList();
-        // Tokenize the string and put the tokens/words into an array
-        String[] words = str.split("\\s");
-        // For each word
-        for (int w=0; w < words.length; w++) {
-            // Find the pairs of characters
-            String[] pairsInWord = letterPairs(words[w]);
-            for (int p=0; p < pairsInWord.length; p++) {
-                allPairs.add(pairsInWord[p]);
-            }
-        }
-        return allPairs;
+        return wordLetterPairs(str1).dice(wordLetterPairs(str2));
     }
     
-    /** @return an array of adjacent letter pairs contained in the input string */
-    private static String[] letterPairs(String str) {
-        if (str.isEmpty()) return new String[0];
-        int numPairs = str.length()-1;
-        String[] pairs = new String[numPairs];
-        for (int i=0; i<numPairs; i++) {
-            pairs[i] = str.substring(i,i+2);
-        }
-        return pairs;
+    /** @return the histogram of letter pairs within each whitespace-separated word. */
+    public static BigramHistogram wordLetterPairs(String str) {
+        return BigramHistogram.of(str);
     }
 }
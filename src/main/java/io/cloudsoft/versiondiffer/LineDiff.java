@@ -0,0 +1,329 @@
+package io.cloudsoft.versiondiffer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * How many lines were added, removed and changed between two versions of a file, as found by
+ * {@link #of(int[], int[])} from the files' line hashes (see {@link LineDiffComparer}).
+ *
+ * Lines are diffed with Myers' O(ND) algorithm (the linear-space variant), so the number of unchanged
+ * lines is the length of the longest common subsequence. Within each run of edits between unchanged lines,
+ * removed lines are paired up with added lines as changed lines; the rest are counted as added or removed.
+ */
+public class LineDiff {
+
+    private final int preLines;
+    private final int postLines;
+    private final int added;
+    private final int removed;
+    private final int changed;
+
+    public LineDiff(int preLines, int postLines, int added, int removed, int changed) {
+        this.preLines = preLines;
+        this.postLines = postLines;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Diffs the lines, given their hashes.
+     */
+    public static LineDiff of(int[] pre, int[] post) {
+        EditCounter counter = new EditCounter();
+        diff(pre, 0, pre.length, post, 0, post.length, counter);
+        counter.endRun();
+        return new LineDiff(pre.length, post.length, counter.added, counter.removed, counter.changed);
+    }
+
+    public int preLines() {
+        return preLines;
+    }
+
+    public int postLines() {
+        return postLines;
+    }
+
+    /** Lines only in the post file (not counting changed lines). */
+    public int added() {
+        return added;
+    }
+
+    /** Lines only in the pre file (not counting changed lines). */
+    public int removed() {
+        return removed;
+    }
+
+    /** Lines replaced by a different line. */
+    public int changed() {
+        return changed;
+    }
+
+    /** Lines in both (in the same order). */
+    public int unchanged() {
+        return preLines - removed - changed;
+    }
+
+    /**
+     * The proportion of lines that are unchanged: 1.0 if the files have the same lines, 0.0 if none in common.
+     * The same as {@link #similarity(int[], int[])}.
+     */
+    public double similarity() {
+        int total = preLines + postLines;
+        return (total == 0) ? 1.0 : 2.0 * unchanged() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "+"+added+" -"+removed+" ~"+changed;
+    }
+
+    /**
+     * The proportion of lines that are in both (in the same order): {@code 2 * lcs / (n + m)}. Cheaper than
+     * {@link #of(int[], int[])}, as it computes the length of the longest common subsequence with a
+     * bit-parallel algorithm (Allison-Dix / Hyyrö), taking O(n * m / 64) time regardless of how different
+     * the files are, without finding the edits themselves.
+     */
+    public static double similarity(int[] pre, int[] post) {
+        int total = pre.length + post.length;
+        return (total == 0) ? 1.0 : 2.0 * lcsLength(pre, post) / total;
+    }
+
+    /**
+     * The length of the longest common subsequence, computed a word (64 lines of the shorter sequence)
+     * at a time.
+     */
+    static int lcsLength(int[] a, int[] b) {
+        // Skip the common prefix and suffix, which are usually most of it
+        int prefix = commonPrefix(a, 0, a.length, b, 0, b.length);
+        int suffix = commonSuffix(a, prefix, a.length, b, prefix, b.length);
+        int aEnd = a.length - suffix;
+        int bEnd = b.length - suffix;
+        if (aEnd - prefix > bEnd - prefix) {
+            return prefix + suffix + lcsLength(b, prefix, bEnd, a, prefix, aEnd);
+        } else {
+            return prefix + suffix + lcsLength(a, prefix, aEnd, b, prefix, bEnd);
+        }
+    }
+
+    /**
+     * @param a The shorter sequence, whose positions are the bits
+     */
+    private static int lcsLength(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd) {
+        int m = aEnd - aStart;
+        if (m == 0 || bEnd == bStart) {
+            return 0;
+        }
+        int words = (m + 63) >>> 6;
+
+        // For each distinct line of a, the positions at which it occurs
+        Map<Integer, long[]> matches = Maps.newHashMapWithExpectedSize(m);
+        for (int i = 0; i < m; i++) {
+            long[] mask = matches.get(a[aStart + i]);
+            if (mask == null) {
+                mask = new long[words];
+                matches.put(a[aStart + i], mask);
+            }
+            mask[i >>> 6] |= 1L << (i & 63);
+        }
+
+        // Zero bits of v mark the positions that end a common subsequence; initially none
+        long[] v = new long[words];
+        Arrays.fill(v, -1L);
+        for (int j = bStart; j < bEnd; j++) {
+            long[] mask = matches.get(b[j]);
+            if (mask == null) {
+                continue; // v is unchanged, as u would be 0
+            }
+            // v = (v + (v & mask)) | (v & ~mask), with the addition carried across words
+            long carry = 0;
+            for (int w = 0; w < words; w++) {
+                long vw = v[w];
+                long u = vw & mask[w];
+                long sum = vw + u + carry;
+                // Carries if the (unsigned) sum wrapped round: it is then less than vw, or equal if u + carry was 2^64
+                carry = ((sum ^ Long.MIN_VALUE) < (vw ^ Long.MIN_VALUE) || (carry != 0 && sum == vw)) ? 1 : 0;
+                v[w] = sum | (vw & ~mask[w]);
+            }
+        }
+
+        int ones = 0;
+        for (int w = 0; w < words - 1; w++) {
+            ones += Long.bitCount(v[w]);
+        }
+        int lastBits = m - ((words - 1) << 6);
+        long lastMask = (lastBits == 64) ? -1L : (1L << lastBits) - 1;
+        ones += Long.bitCount(v[words - 1] & lastMask);
+        return m - ones;
+    }
+
+    /**
+     * Counts the edits as they are found, in order.
+     */
+    private static class EditCounter {
+        int added;
+        int removed;
+        int changed;
+
+        /** The edits since the last unchanged line. */
+        int runInserted;
+        int runDeleted;
+
+        void equal() {
+            endRun();
+        }
+
+        void delete(int count) {
+            runDeleted += count;
+        }
+
+        void insert(int count) {
+            runInserted += count;
+        }
+
+        void endRun() {
+            int runChanged = Math.min(runInserted, runDeleted);
+            changed += runChanged;
+            added += runInserted - runChanged;
+            removed += runDeleted - runChanged;
+            runInserted = 0;
+            runDeleted = 0;
+        }
+    }
+
+    /**
+     * Diffs {@code a[aStart, aEnd)} against {@code b[bStart, bEnd)}, passing the edits to the counter in order.
+     */
+    private static void diff(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, EditCounter counter) {
+        int prefix = commonPrefix(a, aStart, aEnd, b, bStart, bEnd);
+        if (prefix > 0) {
+            counter.equal();
+            aStart += prefix;
+            bStart += prefix;
+        }
+        int suffix = commonSuffix(a, aStart, aEnd, b, bStart, bEnd);
+        aEnd -= suffix;
+        bEnd -= suffix;
+
+        if (aStart == aEnd) {
+            counter.insert(bEnd - bStart);
+        } else if (bStart == bEnd) {
+            counter.delete(aEnd - aStart);
+        } else {
+            bisect(a, aStart, aEnd, b, bStart, bEnd, counter);
+        }
+
+        if (suffix > 0) {
+            counter.equal();
+        }
+    }
+
+    /**
+     * Finds the middle snake of the shortest edit script (searching forwards and backwards at once, in
+     * linear space), and diffs either side of it. The sequences have no common prefix or suffix.
+     */
+    private static void bisect(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, EditCounter counter) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // If the difference is odd, the paths meet on a forward step; otherwise on a backward step
+        boolean front = (delta % 2 != 0);
+        // Diagonals that have run off the edge of the grid, and need not be explored further
+        int k1Start = 0, k1End = 0, k2Start = 0, k2End = 0;
+
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1 = (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1]))
+                        ? forward[k1Offset + 1]
+                        : forward[k1Offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) {
+                    x1++;
+                    y1++;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1) {
+                        int x2 = n - backward[k2Offset];
+                        if (x1 >= x2) {
+                            split(a, aStart, aEnd, b, bStart, bEnd, x1, y1, counter);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2 = (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1]))
+                        ? backward[k2Offset + 1]
+                        : backward[k2Offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            split(a, aStart, aEnd, b, bStart, bEnd, x1, y1, counter);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // Only if nothing is in common (the paths would otherwise have met)
+        counter.delete(n);
+        counter.insert(m);
+    }
+
+    private static void split(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int x, int y, EditCounter counter) {
+        diff(a, aStart, aStart + x, b, bStart, bStart + y, counter);
+        diff(a, aStart + x, aEnd, b, bStart + y, bEnd, counter);
+    }
+
+    private static int commonPrefix(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd) {
+        int max = Math.min(aEnd - aStart, bEnd - bStart);
+        int result = 0;
+        while (result < max && a[aStart + result] == b[bStart + result]) {
+            result++;
+        }
+        return result;
+    }
+
+    private static int commonSuffix(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd) {
+        int max = Math.min(aEnd - aStart, bEnd - bStart);
+        int result = 0;
+        while (result < max && a[aEnd - 1 - result] == b[bEnd - 1 - result]) {
+            result++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Compares files line by line: the similarity is the proportion of (normalized) lines the files have
+ * in common, in the same order. Unlike {@link JavaFileComparer}, it can also say how many lines were
+ * added, removed and changed; see {@link #diff(SourceFile)}.
+ *
+ * Each line is normalized (trimmed, with runs of whitespace collapsed) and hashed to an int; blank lines,
+ * and lines starting with any of the dropped prefixes (e.g. {@code "import "}), are left out. The files
+ * are then diffed as arrays of ints (see {@link LineDiff}).
+ */
+public class LineDiffComparer implements FileComparer {
+
+    /**
+     * Creates {@link LineDiffComparer}s that share a cache of line hashes, so each file is read at most
+     * once (unless evicted from the cache). Thread-safe.
+     */
+    public static class Factory implements FileComparer.Factory {
+        public static final long DEFAULT_MAX_SIZE = 10000;
+
+        private final List<String> droppedLinePrefixes;
+        private final LoadingCache<SourceFile, int[]> lineHashes;
+
+        /**
+         * For Java source: drops imports.
+         */
+        public Factory() {
+            this(ImmutableList.of("import "), DEFAULT_MAX_SIZE);
+        }
+
+        /**
+         * @param droppedLinePrefixes Lines starting with any of these (after trimming) are left out
+         * @param maxCachedFiles      The maximum number of files whose line hashes are held in memory
+         */
+        public Factory(List<String> droppedLinePrefixes, long maxCachedFiles) {
+            this.droppedLinePrefixes = ImmutableList.copyOf(droppedLinePrefixes);
+            this.lineHashes = CacheBuilder.newBuilder()
+                    .maximumSize(maxCachedFiles)
+                    .build(new CacheLoader<SourceFile, int[]>() {
+                        @Override public int[] load(SourceFile file) throws IOException {
+                            return hashLines(file);
+                        }});
+        }
+
+        @Override
+        public LineDiffComparer newComparer(SourceFile f1) throws IOException {
+            return new LineDiffComparer(this, f1);
+        }
+
+        /**
+         * The hashes of the file's normalized lines, in order.
+         */
+        public int[] lineHashes(SourceFile file) throws IOException {
+            try {
+                return lineHashes.get(file);
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        private int[] hashLines(SourceFile file) throws IOException {
+            int[] result = new int[256];
+            int count = 0;
+            StringBuilder normalized = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.openStream(),
+                    StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    normalize(line, normalized);
+                    if (normalized.length() == 0 || isDropped(normalized)) {
+                        continue;
+                    }
+                    if (count == result.length) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = LINE_HASH.hashUnencodedChars(normalized).asInt();
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        private boolean isDropped(CharSequence line) {
+            for (String prefix : droppedLinePrefixes) {
+                if (startsWith(line, prefix)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final HashFunction LINE_HASH = Hashing.murmur3_32();
+
+    private final Factory factory;
+    private final SourceFile f1;
+    private final int[] lines1;
+
+    public LineDiffComparer(Factory factory, SourceFile f1) throws IOException {
+        this.factory = checkNotNull(factory, "factory");
+        this.f1 = checkNotNull(f1, "f1");
+        this.lines1 = factory.lineHashes(f1);
+    }
+
+    /**
+     * The proportion of lines in both files (in the same order), as for {@link LineDiff#similarity(int[], int[])}.
+     */
+    @Override
+    public double similarity(SourceFile f2) throws IOException {
+        return LineDiff.similarity(lines1, factory.lineHashes(f2));
+    }
+
+    /**
+     * Rejects files whose line counts differ too much without comparing the lines.
+     */
+    @Override
+    public boolean similarityAtLeast(SourceFile f2, double threshold) throws IOException {
+        int[] lines2 = factory.lineHashes(f2);
+        int total = lines1.length + lines2.length;
+        if (total > 0 && 2.0 * Math.min(lines1.length, lines2.length) / total < threshold) {
+            return false;
+        }
+        return LineDiff.similarity(lines1, lines2) >= threshold;
+    }
+
+    /**
+     * The lines added, removed and changed, going from the first file to {@code f2}.
+     */
+    public LineDiff diff(SourceFile f2) throws IOException {
+        return LineDiff.of(lines1, factory.lineHashes(f2));
+    }
+
+    @Override
+    public String toString() {
+        return "LineDiffComparer["+f1+"]";
+    }
+
+    /**
+     * Trims the line and collapses runs of whitespace to a single space, into {@code result}.
+     */
+    static void normalize(String line, StringBuilder result) {
+        result.setLength(0);
+        boolean space = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = result.length() > 0;
+            } else {
+                if (space) result.append(' ');
+                result.append(c);
+                space = false;
+            }
+        }
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
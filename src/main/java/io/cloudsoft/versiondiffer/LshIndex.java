@@ -0,0 +1,146 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * A locality-sensitive hashing index over {@link MinHash} signatures, using the banding
+ * technique: each signature is split into {@code bands} bands of {@code rows} rows, and two
+ * keys are candidates if any band is identical. The probability of that for two signatures
+ * with Jaccard index {@code j} is {@code 1-(1-j^rows)^bands}, so similar entries are found
+ * without comparing against every entry in the index.
+ * 
+ * Not thread-safe for modification.
+ */
+public class LshIndex<K> {
+
+    private final int bands;
+    private final int rows;
+    private final List<Multimap<Long, K>> buckets;
+    private final Map<K, Entry> entries = Maps.newLinkedHashMap();
+    private int nextSequence;
+
+    /**
+     * An index for signatures of length {@code bands * rows}.
+     */
+    public LshIndex(int bands, int rows) {
+        checkArgument(bands > 0 && rows > 0, "bands (%s) and rows (%s) must be positive", bands, rows);
+        this.bands = bands;
+        this.rows = rows;
+        this.buckets = Lists.newArrayListWithCapacity(bands);
+        for (int i = 0; i < bands; i++) {
+            Multimap<Long, K> bucket = ArrayListMultimap.create();
+            buckets.add(bucket);
+        }
+    }
+
+    /**
+     * An index for signatures from the given {@link MinHash}, with the bands and rows chosen so that
+     * pairs whose Jaccard index is at least the given threshold are very likely to be candidates.
+     */
+    public static <K> LshIndex<K> forThreshold(MinHash minHash, double jaccardThreshold) {
+        int numHashes = minHash.numHashes();
+        int bestRows = 1;
+        for (int rows = 1; rows <= numHashes; rows++) {
+            if (numHashes % rows != 0) continue;
+            int bands = numHashes / rows;
+            // The "S-curve" is steepest at roughly (1/bands)^(1/rows); keep that below the threshold
+            if (Math.pow(1.0 / bands, 1.0 / rows) <= jaccardThreshold) {
+                bestRows = rows;
+            }
+        }
+        return new LshIndex<K>(numHashes / bestRows, bestRows);
+    }
+
+    public void put(K key, int[] signature) {
+        checkArgument(signature.length == bands * rows, "Signature length %s, but expected %s", signature.length, bands * rows);
+        entries.put(key, new Entry(signature, nextSequence++));
+        for (int band = 0; band < bands; band++) {
+            buckets.get(band).put(bandHash(signature, band), key);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the keys that share at least one band with the given signature, most similar first
+     * (by estimated Jaccard index, then in the order they were put), limited to the given number.
+     */
+    public List<K> candidates(int[] signature, int maxCandidates) {
+        checkArgument(maxCandidates > 0, "maxCandidates must be positive, but was %s", maxCandidates);
+        Set<K> found = Sets.newLinkedHashSet();
+        for (int band = 0; band < bands; band++) {
+            found.addAll(buckets.get(band).get(bandHash(signature, band)));
+        }
+        // Keeps just the best so far, rather than sorting them all (there can be many, e.g. for boilerplate files);
+        // the head is the worst of those: least similar, then last added
+        PriorityQueue<Candidate<K>> best = new PriorityQueue<Candidate<K>>(maxCandidates + 1);
+        for (K key : found) {
+            Entry entry = entries.get(key);
+            Candidate<K> candidate = new Candidate<K>(key, MinHash.estimateJaccard(signature, entry.signature), entry.sequence);
+            if (best.size() < maxCandidates) {
+                best.add(candidate);
+            } else if (candidate.compareTo(best.peek()) > 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        }
+        List<K> result = Lists.newArrayListWithCapacity(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().key);
+        }
+        return Lists.reverse(result);
+    }
+
+    private static class Entry {
+        final int[] signature;
+        /** When it was {@link LshIndex#put(Object, int[]) put}, for breaking ties. */
+        final int sequence;
+
+        Entry(int[] signature, int sequence) {
+            this.signature = signature;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Candidate<K> implements Comparable<Candidate<K>> {
+        final K key;
+        final double estimate;
+        final int sequence;
+
+        Candidate(K key, double estimate, int sequence) {
+            this.key = key;
+            this.estimate = estimate;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Better is greater: more similar, then added earlier.
+         */
+        @Override
+        public int compareTo(Candidate<K> other) {
+            int result = Double.compare(estimate, other.estimate);
+            return (result != 0) ? result : Integer.compare(other.sequence, sequence);
+        }
+    }
+
+    private long bandHash(int[] signature, int band) {
+        long result = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            result = MinHash.mix(result * 31 + signature[i]);
+        }
+        return result;
+    }
+}
@@ -1,31 +1,65 @@
 package io.cloudsoft.versiondiffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
 
 import brooklyn.util.collections.MutableList;
 import brooklyn.util.text.StringPredicates;
+import io.cloudsoft.versiondiffer.ChainDiffer.ChainResult;
+import io.cloudsoft.versiondiffer.ChainDiffer.TreeOpener;
+import io.cloudsoft.versiondiffer.CloneDetector.CloneResult;
+import io.cloudsoft.versiondiffer.CloneDetector.Origin;
+import io.cloudsoft.versiondiffer.DiffMetrics.Phase;
 import io.cloudsoft.versiondiffer.Differ.DifferResult;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
 import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+import io.cloudsoft.versiondiffer.ProgressListener.Progress;
 
 /**
- * Compares the Java/Groovy source of Brooklyn, given two versions of the source tree.
- * Writes out files that have changed, including what classes have been moved and what is
- * ambiguous.
+ * Compares the Java/Groovy source of Brooklyn, given two versions of the source tree, along with the
+ * other files that have their own normalization rules (e.g. poms and properties files; see
+ * {@link NormalizationRegistry#standard(long)}). Writes out files that have changed, including what
+ * classes have been moved and what is ambiguous.
  */
 public class Main {
 
@@ -33,10 +67,16 @@ public class Main {
 
     private static final String FQN_REGEX = ".*src.main.java(.*)\\.(java|groovy)";
     private static final Pattern FQN_PATTERN = Pattern.compile(FQN_REGEX);
+    
+    /** The extensions of classes, which are only compared if under src/main/java (see {@link #FQN_REGEX}). */
+    private static final Set<String> CLASS_EXTENSIONS = ImmutableSet.of("java", "groovy");
 
     public static void main(String[] args) throws IOException {
-        String pre = "/Users/aled/repos/cloudsoft/staging-brooklyn";
-        String post = "/Users/aled/repos/apache/incubator-brooklyn";
+        // With -DgitRepository, pre and post are revisions (e.g. tags) in that repository rather than directories;
+        // otherwise each is a directory, or an archive (zip, tar or tar.gz)
+        String gitRepository = System.getProperty("gitRepository");
+        String pre = System.getProperty("pre", "/Users/aled/repos/cloudsoft/staging-brooklyn");
+        String post = System.getProperty("post", "/Users/aled/repos/apache/incubator-brooklyn");
         @SuppressWarnings("unchecked")
         Predicate<String> filter = Predicates.and(
                 Predicates.not(StringPredicates.startsWith("examples/")), 
@@ -44,36 +84,465 @@ public class Main {
                 Predicates.not(StringPredicates.startsWith("usage/qa/")), 
                 Predicates.not(StringPredicates.containsRegex("src.test.dependencies")),
                 Predicates.not(StringPredicates.containsRegex("src.test.resources")),
-                StringPredicates.matchesRegex(FQN_REGEX));
+                Predicates.or(
+                        StringPredicates.matchesRegex(FQN_REGEX),
+                        hasExtension(Sets.difference(NormalizationRegistry.standard(JavaFileComparer.DEFAULT_SKETCH_THRESHOLD).extensions(), CLASS_EXTENSIONS))));
+        @SuppressWarnings("unchecked")
+        Predicate<String> dirFilter = Predicates.and(
+                Predicates.not(StringPredicates.matchesRegex("examples|sandbox|usage.qa")), 
+                Predicates.not(StringPredicates.matchesRegex("(.*/)?\\.git")), 
+                Predicates.not(Predicates.and(StringPredicates.matchesRegex("(.*/)?target"), Predicates.not(StringPredicates.containsRegex("(^|/)src/")))), 
+                Predicates.not(StringPredicates.containsRegex("src.test.dependencies")),
+                Predicates.not(StringPredicates.containsRegex("src.test.resources")));
+        
+        int parallelism = Integer.getInteger("parallelism", Runtime.getRuntime().availableProcessors());
+        
+        String fingerprintStore = System.getProperty("fingerprintStore");
+        
+        String resultFile = System.getProperty("resultFile");
+        String lookup = System.getProperty("lookup");
+        if (resultFile != null && lookup != null) {
+            // Look up a path or class name in the results saved by an earlier run, rather than diffing
+            printLookup(ResultFile.open(FileSystems.getDefault().getPath(resultFile)), lookup);
+            return;
+        }
+        
+        Main main = new Main(pre, post, filter, dirFilter, parallelism);
+        if (fingerprintStore != null) {
+            main.fingerprintStore(FileSystems.getDefault().getPath(fingerprintStore));
+        }
+        if (gitRepository != null) {
+            main.gitRepository(FileSystems.getDefault().getPath(gitRepository));
+        }
+        main.lineStats(Boolean.getBoolean("lineStats"));
+        main.clones(Boolean.getBoolean("clones"));
+        main.readAhead(Integer.getInteger("readAhead", 0));
+        // Give up after this many seconds, reporting the files not yet evaluated
+        main.timeBudget(Long.getLong("timeBudget", 0), TimeUnit.SECONDS);
+        main.progress(Boolean.getBoolean("progress"));
+        main.sketchThreshold(Long.getLong("sketchAbove", JavaFileComparer.DEFAULT_SKETCH_THRESHOLD));
+        if (resultFile != null) {
+            main.resultFile(FileSystems.getDefault().getPath(resultFile));
+        }
+        String metricsReport = System.getProperty("metrics");
+        if (metricsReport != null) {
+            main.metricsReport(FileSystems.getDefault().getPath(metricsReport));
+        }
+        String serve = System.getProperty("serve");
+        if (metricsReport != null || serve != null) {
+            // Also watchable over JMX while running; unregistered when reported, or when the server is closed
+            main.metrics().registerMBean("main");
+        }
+        
+        if (serve != null) {
+            // Serve diffs over HTTP until killed, keeping the "warm" directories' fingerprints in memory
+            List<String> warm = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(System.getProperty("warm", ""));
+            main.serve(serve.isEmpty() ? DiffServer.DEFAULT_PORT : Integer.parseInt(serve), warm);
+            return;
+        }
+        
+        String trees = System.getProperty("trees");
+        if (trees != null) {
+            // A chain of trees (e.g. a release train), each compared with the next; instead of pre and post
+            List<String> chain = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(trees);
+            main.printChain(chain, main.diffChain(chain));
+            main.reportMetrics();
+            return;
+        }
         
-        Main main = new Main(pre, post, filter);
+        String output = System.getProperty("output");
+        if (output != null) {
+            // Stream each result as it is decided, rather than printing them all (sorted) at the end
+            try (StreamingResultWriter writer = main.newResultWriter(output, new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+                main.diff(writer);
+            }
+            main.reportMetrics();
+            return;
+        }
         DifferResult diff = main.diff();
+        main.writeResultFile(diff);
         main.printSizes(diff);
         main.printFullResult(diff);
         main.printRenames(diff);
+        main.printLineChanges(diff);
+        main.printClones();
+        main.reportMetrics();
     }
 
     private final String pre;
     private final String post;
     private final Predicate<? super String> filter;
+    private final Predicate<? super String> dirFilter;
+    private final int parallelism;
+    private Path fingerprintStore;
+    private Path gitRepository;
+    private boolean lineStats;
+    private Map<Path, LineDiff> lineChanges = ImmutableMap.of();
+    private boolean clones;
+    private CloneResult cloneResult;
+    private Path metricsReport;
+    private Path resultFile;
+    private int readAhead;
+    private long timeBudgetMillis;
+    private boolean progress;
+    private long sketchThreshold = JavaFileComparer.DEFAULT_SKETCH_THRESHOLD;
+    private final DiffMetrics metrics = new DiffMetrics();
 
     public Main(String pre, String post, Predicate<String> filter) {
+        this(pre, post, filter, Predicates.<String>alwaysTrue(), 1);
+    }
+
+    /**
+     * @param dirFilter   Which directories to look in (given their relative path); others are skipped entirely
+     * @param parallelism The number of threads for comparing files; 1 means sequential
+     */
+    public Main(String pre, String post, Predicate<String> filter, Predicate<String> dirFilter, int parallelism) {
         this.pre = pre;
         this.post = post;
         this.filter = filter;
+        this.dirFilter = dirFilter;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Persists fingerprints in the given file, so that re-runs only read files that have changed.
+     */
+    public Main fingerprintStore(Path val) {
+        this.fingerprintStore = val;
+        return this;
+    }
+
+    /**
+     * Reads pre and post from the given git repository's object store, in which case they are
+     * revisions (e.g. tags or commit ids) rather than directories. See {@link GitTree}.
+     */
+    public Main gitRepository(Path val) {
+        this.gitRepository = val;
+        return this;
+    }
+
+    /**
+     * Also diffs the lines of each unchanged and moved file, to count the lines added, removed and
+     * changed (see {@link LineDiffComparer}); only when the results are retained.
+     */
+    public Main lineStats(boolean val) {
+        this.lineStats = val;
+        return this;
+    }
+
+    /**
+     * Also finds the near-duplicate files in the post tree, and the existing file each new file was most
+     * likely copied from (see {@link CloneDetector}); only when the results are retained.
+     */
+    public Main clones(boolean val) {
+        this.clones = val;
+        return this;
+    }
+
+    /**
+     * Stops comparing once the given time has passed, reporting the files not yet evaluated; see
+     * {@link Differ#timeBudget(long, TimeUnit)}. 0 means no limit; cannot be combined with {@link #readAhead(int)}.
+     */
+    public Main timeBudget(long duration, TimeUnit unit) {
+        checkArgument(duration == 0 || readAhead == 0, "a time budget cannot be combined with read-ahead");
+        this.timeBudgetMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Compares files of at least this many bytes by a fixed-size sketch rather than exactly; see
+     * {@link JavaFileComparer#fingerprinter(long)}. Used for diffs and the fingerprint store.
+     */
+    public Main sketchThreshold(long val) {
+        this.sketchThreshold = val;
+        return this;
+    }
+
+    /**
+     * Reports progress on stderr while comparing; see {@link ProgressListener}.
+     */
+    public Main progress(boolean val) {
+        this.progress = val;
+        return this;
     }
 
+    /**
+     * Reads files ahead of comparing them, with the given number of threads; see {@link Differ#readAhead(int)}.
+     * Cannot be combined with a {@link #timeBudget(long, TimeUnit)}.
+     */
+    public Main readAhead(int threads) {
+        checkArgument(threads == 0 || timeBudgetMillis == 0, "read-ahead cannot be combined with a time budget");
+        this.readAhead = threads;
+        return this;
+    }
+    
+    /**
+     * Writes the {@link DiffMetrics} of the run to the given file, as JSON.
+     */
+    public Main metricsReport(Path val) {
+        this.metricsReport = val;
+        return this;
+    }
+    
+    /**
+     * Also saves the results to the given file, to be looked up later; see {@link ResultFile}.
+     */
+    public Main resultFile(Path val) {
+        this.resultFile = val;
+        return this;
+    }
+    
+    public DiffMetrics metrics() {
+        return metrics;
+    }
+    
     protected DifferResult diff() throws IOException {
-        FileLister preLister = new FileLister(FileSystems.getDefault().getPath(pre), filter);
-        FileLister postLister = new FileLister(FileSystems.getDefault().getPath(post), filter);
+        return diff(null);
+    }
+
+    /**
+     * Compares the trees, telling the given listener (if not null) about each result as it is decided.
+     * If there is a listener, the results are not retained so the returned {@link DifferResult} is empty;
+     * so it cannot be combined with the {@link #resultFile(Path)}, {@link #clones(boolean)} or
+     * {@link #lineStats(boolean)}, which need all the results.
+     */
+    protected DifferResult diff(DifferListener listener) throws IOException {
+        checkArgument(listener == null || (resultFile == null && !clones && !lineStats),
+                "Streaming results (-Doutput) cannot be combined with -DresultFile, -Dclones or -DlineStats");
+        if (gitRepository == null) {
+            Closer closer = Closer.create();
+            try {
+                SourceTree preTree = newTree(FileSystems.getDefault().getPath(pre));
+                if (preTree instanceof Closeable) closer.register((Closeable) preTree);
+                SourceTree postTree = newTree(FileSystems.getDefault().getPath(post));
+                if (postTree instanceof Closeable) closer.register((Closeable) postTree);
+                return diff(preTree, postTree, listener);
+            } catch (Throwable e) {
+                throw closer.rethrow(e, IOException.class);
+            } finally {
+                closer.close();
+            }
+        }
+        try (GitRepository repo = GitRepository.open(gitRepository)) {
+            SourceTree preTree = newTree(repo, pre);
+            SourceTree postTree = newTree(repo, post);
+            return diff(preTree, postTree, listener);
+        }
+    }
+
+    /**
+     * A {@link FileLister} for a directory, or otherwise an {@link ArchiveTree} (e.g. for a release's
+     * "-src.zip" or ".tar.gz"), which must be closed.
+     */
+    private SourceTree newTree(Path path) throws IOException {
+        DiffMetrics.Timer timer = metrics.time(Phase.LIST);
+        try {
+            if (Files.isDirectory(path)) {
+                return new FileLister(path, filter, dirFilter);
+            }
+            return ArchiveTree.open(path, ArchiveTree.AUTO_STRIP, filter, dirFilter);
+        } finally {
+            timer.stop();
+        }
+    }
+    
+    private SourceTree newTree(GitRepository repo, String revision) throws IOException {
+        DiffMetrics.Timer timer = metrics.time(Phase.LIST);
+        try {
+            return new GitTree(repo, revision, filter, dirFilter);
+        } finally {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * The {@link #fingerprintStore(Path)}, if any; files it does not have are fingerprinted as they are read,
+     * by a fingerprinter {@link DiffMetrics#instrument(Fingerprinter) instrumented} with the {@link #metrics()}
+     * (also for the {@link DiffServer}, which uses the store as given).
+     */
+    private FingerprintStore loadFingerprintStore() {
+        return (fingerprintStore == null) ? null
+                : FingerprintStore.load(fingerprintStore, NormalizationRegistry.fingerprintFormat(sketchThreshold),
+                        metrics.instrument(NormalizationRegistry.standard(sketchThreshold)));
+    }
+    
+    /**
+     * Saves and closes the store, and reports its hits.
+     */
+    private void saveFingerprintStore(FingerprintStore store) throws IOException {
+        try {
+            store.save();
+        } finally {
+            store.close();
+        }
+        System.err.println("Fingerprint store hits: "+store.hitCount()+"; misses: "+store.missCount()+"; hit ratio: "+store.hitRatio());
+    }
+    
+    /**
+     * Compares each of the trees with the next, opening each just once (see {@link ChainDiffer}). The trees are
+     * directories or archives, or revisions if there is a {@link #gitRepository(Path)}.
+     */
+    protected ChainResult diffChain(List<String> trees) throws IOException {
+        FingerprintStore store = loadFingerprintStore();
+        try {
+            ChainDiffer differ = new ChainDiffer(parallelism).fingerprintStore(store).metrics(metrics);
+            if (gitRepository == null) {
+                return differ.compare(treeOpeners(trees, null));
+            } else {
+                try (GitRepository repo = GitRepository.open(gitRepository)) {
+                    return differ.compare(treeOpeners(trees, repo));
+                }
+            }
+        } finally {
+            if (store != null) {
+                saveFingerprintStore(store);
+            }
+        }
+    }
+    
+    private List<TreeOpener> treeOpeners(List<String> trees, final GitRepository repo) {
+        List<TreeOpener> result = Lists.newArrayList();
+        for (final String tree : trees) {
+            result.add(new TreeOpener() {
+                @Override public SourceTree open() throws IOException {
+                    return (repo != null) ? newTree(repo, tree) : newTree(FileSystems.getDefault().getPath(tree));
+                }});
+        }
+        return result;
+    }
+
+    private DifferResult diff(SourceTree preTree, SourceTree postTree, DifferListener listener) throws IOException {
+        DifferResult result;
+        FingerprintStore store = loadFingerprintStore();
+        try {
+            JavaFileComparer.Factory factory;
+            if (store == null) {
+                factory = new JavaFileComparer.Factory(FingerprintCache.DEFAULT_MAX_SIZE, metrics.instrument(NormalizationRegistry.standard(sketchThreshold)));
+                result = newDiffer(listener).compare(preTree, postTree, factory);
+            } else {
+                factory = new JavaFileComparer.Factory(FingerprintCache.DEFAULT_MAX_SIZE, store);
+                result = newDiffer(listener).fingerprintStore(store).compare(preTree, postTree, factory);
+            }
+            if (clones) {
+                DiffMetrics.Timer timer = metrics.time(Phase.CLONES);
+                try {
+                    cloneResult = new CloneDetector(parallelism).detect(postTree, factory, result.newFiles());
+                } finally {
+                    timer.stop();
+                }
+            } else {
+                cloneResult = null;
+            }
+        } finally {
+            if (store != null) {
+                saveFingerprintStore(store);
+            }
+        }
+        if (lineStats) {
+            DiffMetrics.Timer timer = metrics.time(Phase.LINE_DIFF);
+            try {
+                lineChanges = diffLines(preTree, postTree, result);
+            } finally {
+                timer.stop();
+            }
+        } else {
+            lineChanges = ImmutableMap.of();
+        }
+        return result;
+    }
+    
+    /**
+     * Diffs the lines of each unchanged and moved file (in parallel), keyed by the original path.
+     * Files whose content ids are the same are not read.
+     */
+    private Map<Path, LineDiff> diffLines(final SourceTree preTree, final SourceTree postTree, DifferResult diff) throws IOException {
+        final LineDiffComparer.Factory factory = new LineDiffComparer.Factory();
+        final boolean useContentIds = preTree.contentIdType() != null && preTree.contentIdType().equals(postTree.contentIdType());
+        Map<Path, Path> pairs = Maps.newLinkedHashMap();
+        for (UnchangedResult unchanged : diff.unchanged()) {
+            pairs.put(unchanged.path, unchanged.path);
+        }
+        for (MovedResult moved : diff.moved()) {
+            pairs.put(moved.origPath, moved.newPath);
+        }
         
-        return new Differ().compare(preLister, postLister, new JavaFileComparer.Factory());
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            Map<Path, Future<LineDiff>> futures = Maps.newLinkedHashMap();
+            for (final Map.Entry<Path, Path> pair : pairs.entrySet()) {
+                futures.put(pair.getKey(), pool.submit(new Callable<LineDiff>() {
+                    @Override public LineDiff call() throws IOException {
+                        if (useContentIds && preTree.contentId(pair.getKey()).equals(postTree.contentId(pair.getValue()))) {
+                            return null;
+                        }
+                        return factory.newComparer(preTree.file(pair.getKey())).diff(postTree.file(pair.getValue()));
+                    }}));
+            }
+            Map<Path, LineDiff> result = Maps.newLinkedHashMap();
+            for (Map.Entry<Path, Future<LineDiff>> entry : futures.entrySet()) {
+                LineDiff lineDiff = entry.getValue().get();
+                if (lineDiff != null) result.put(entry.getKey(), lineDiff);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted diffing lines of "+preTree+" and "+postTree);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private Differ newDiffer(DifferListener listener) {
+        Differ result = new Differ(parallelism).listener(listener).retainResults(listener == null).metrics(metrics).readAhead(readAhead)
+                .timeBudget(timeBudgetMillis, TimeUnit.MILLISECONDS);
+        if (progress) {
+            result.progressListener(new ProgressListener() {
+                @Override public void onProgress(Progress progress) {
+                    System.err.println("Progress: "+progress);
+                }});
+        }
+        return result;
+    }
+
+    /**
+     * @param format "yaml" or "jsonl" (JSON Lines)
+     */
+    protected StreamingResultWriter newResultWriter(String format, Writer out) {
+        return StreamingResultWriter.create(format, out, toFqnFunction());
+    }
+    
+    protected Function<Path, String> toFqnFunction() {
+        return new Function<Path, String>() {
+            @Override public String apply(Path input) {
+                return toFqn(input);
+            }};
     }
     
+    /**
+     * Whether the file name has one of the given extensions (lower case, without the dot), ignoring case.
+     */
+    private static Predicate<String> hasExtension(final Set<String> extensions) {
+        return new Predicate<String>() {
+            @Override public boolean apply(String input) {
+                int dot = input.lastIndexOf('.');
+                return dot >= 0 && input.indexOf(File.separatorChar, dot) < 0
+                        && extensions.contains(input.substring(dot + 1).toLowerCase(Locale.ROOT));
+            }
+            @Override public String toString() {
+                return "hasExtension("+extensions+")";
+            }};
+    }
+    
+    /**
+     * The fully qualified class name of the file, or null if it is not a class (e.g. a pom or a properties file).
+     */
     protected String toFqn(Path path) {
         Matcher matcher = FQN_PATTERN.matcher(path.toString());
         if (!matcher.matches()) {
-            throw new IllegalStateException("Path "+path+" does not match regex "+FQN_REGEX);
+            return null;
         }
         String subpath = matcher.group(1);
         subpath = subpath.replaceAll(File.separator, ".");
@@ -82,11 +551,70 @@ public class Main {
         return subpath;
     }
     
+    /**
+     * The fully qualified class name of the file, or else (if it is not a class) its path; for printing.
+     */
+    protected String toName(Path path) {
+        String fqn = toFqn(path);
+        return (fqn != null) ? fqn : path.toString();
+    }
+    
+    /**
+     * Starts a {@link DiffServer} with the given directories registered, which runs until the JVM exits.
+     */
+    protected DiffServer serve(int port, List<String> warmDirs) throws IOException {
+        final DiffServer server = new DiffServer(filter, dirFilter, parallelism, loadFingerprintStore(), metrics).toFqn(toFqnFunction());
+        for (String dir : warmDirs) {
+            server.register(FileSystems.getDefault().getPath(dir));
+        }
+        InetSocketAddress address = server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close "+server+": "+e);
+                } finally {
+                    metrics.unregisterMBean();
+                }
+            }});
+        System.err.println("Serving diffs at http://"+address.getHostString()+":"+address.getPort()+"/diff?pre=<path>&post=<path>");
+        return server;
+    }
+    
+    /**
+     * Summarizes the {@link DiffMetrics} on stderr, and writes them to the {@link #metricsReport(Path)} (if any).
+     * Also unregisters their MBean, if registered.
+     */
+    protected void reportMetrics() throws IOException {
+        metrics.unregisterMBean();
+        System.err.println("Phase times (ms): "+metrics.getPhaseMillis()+"; files read: "+metrics.getFilesRead()
+                +" ("+metrics.getBytesRead()+" bytes); similarity calls: "+metrics.getSimilarityCalls()
+                +"; identical without comparing: "+metrics.getIdenticalFastPathHits());
+        if (metricsReport != null) {
+            try (Writer out = Files.newBufferedWriter(metricsReport, StandardCharsets.UTF_8)) {
+                metrics.writeJson(out);
+            }
+        }
+    }
+    
+    protected void printChain(List<String> trees, ChainResult chain) {
+        for (int i = 0; i < chain.steps().size(); i++) {
+            System.out.println();
+            System.out.println("Comparing "+trees.get(i)+" and "+trees.get(i + 1)+":");
+            printSizes(chain.steps().get(i));
+            printRenames(chain.steps().get(i));
+        }
+    }
+    
     protected void printSizes(DifferResult diff) {
         System.out.println("Unchanged files: "+diff.unchanged.size());
         System.out.println("Moved files    : "+diff.moved.size());
         System.out.println("Ambiguous files: "+diff.ambiguous.size());
         System.out.println("New files      : "+diff.newFiles.size());
+        if (!diff.unevaluated().isEmpty()) {
+            System.out.println("Not evaluated  : "+diff.unevaluated().size()+" (time budget ran out)");
+        }
     }
     
     protected void printFullResult(DifferResult diff) {
@@ -97,6 +625,7 @@ public class Main {
             System.out.println("  - fqn:        "+toFqn(unchanged.path));
             System.out.println("    path:       "+unchanged.path);
             System.out.println("    similarity: "+unchanged.similarity);
+            if (unchanged.estimated) System.out.println("    estimated:  true");
         }
         
         System.out.println("  moved:");
@@ -106,6 +635,7 @@ public class Main {
             System.out.println("    origPath: "+moved.origPath);
             System.out.println("    newPath:  "+moved.newPath);
             System.out.println("    similarity: "+moved.similarity);
+            if (moved.estimated) System.out.println("    estimated:  true");
         }
         
         System.out.println("  ambiguous:");
@@ -121,6 +651,7 @@ public class Main {
                     System.out.println("    - path:       "+entry.getKey());
                     System.out.println("      fqn:        "+toFqn(entry.getKey()));
                     System.out.println("      similarity: "+entry.getValue());
+                    if (ambiguous.estimated.contains(entry.getKey())) System.out.println("      estimated:  true");
                 }
             }
         }
@@ -130,35 +661,96 @@ public class Main {
             System.out.println("  - fqn:  "+toFqn(newFile));
             System.out.println("    path:   "+newFile);
         }
+        
+        if (!diff.unevaluated().isEmpty()) {
+            System.out.println("  unevaluated:");
+            for (Path path : sortPaths(diff.unevaluated())) {
+                System.out.println("  - origFqn:  "+toFqn(path));
+                System.out.println("    origPath: "+path);
+            }
+        }
     }
     
     protected void printRenames(DifferResult diff) {
         System.out.println();
         System.out.println("Moved files:");
         for (MovedResult moved : sortMoved(diff.moved())) {
-            String origFqn = toFqn(moved.origPath);
-            String newFqn = toFqn(moved.newPath);
+            String origFqn = toName(moved.origPath);
+            String newFqn = toName(moved.newPath);
             System.out.println(Strings.padEnd(origFqn, 80, ' ')+" : " + newFqn);
         }
 
         System.out.println();
         System.out.println("Ambiguous moved files:");
         for (AmbiguousResult ambiguous : sortAmbiguous(diff.ambiguous())) {
-            String origFqn = toFqn(ambiguous.origPath);
-            Map.Entry<Path, Double> best = null;
-            int numClose = 0;
-            for (Map.Entry<Path, Double> entry : ambiguous.newPaths.entrySet()) {
-                if (entry.getValue() > 0.75) numClose++;
-                if (best == null || best.getValue() < entry.getValue()) {
-                    best = entry;
-                }
+            // Any contender similar enough was matched with another file that is more similar to it
+            String origFqn = toName(ambiguous.origPath);
+            System.out.println(Strings.padEnd(origFqn, 80, ' ')+" : ????????????????");
+        }
+    }
+    
+    protected void printLineChanges(DifferResult diff) {
+        if (!lineStats) return;
+        
+        System.out.println();
+        System.out.println("Line changes (added, removed, changed):");
+        int added = 0, removed = 0, changed = 0;
+        for (Path path : sortPaths(MutableList.copyOf(lineChanges.keySet()))) {
+            LineDiff lineDiff = lineChanges.get(path);
+            added += lineDiff.added();
+            removed += lineDiff.removed();
+            changed += lineDiff.changed();
+            if (lineDiff.added() + lineDiff.removed() + lineDiff.changed() > 0) {
+                System.out.println(Strings.padEnd(toName(path), 80, ' ')+" : " + lineDiff);
             }
-            if (numClose == 1) {
-                System.out.println(Strings.padEnd(origFqn, 80, ' ')+" : " + toFqn(best.getKey()));
-            } else {
-                System.out.println(Strings.padEnd(origFqn, 80, ' ')+" : ????????????????");
+        }
+        System.out.println(Strings.padEnd("Total", 80, ' ')+" : +"+added+" -"+removed+" ~"+changed);
+    }
+    
+    protected void writeResultFile(DifferResult diff) throws IOException {
+        if (resultFile == null) return;
+        ResultFile.write(diff, toFqnFunction(), resultFile);
+        System.err.println("Results saved to "+resultFile);
+    }
+    
+    /**
+     * Prints the saved results for the given class name, or else for the given path (as the original or new path).
+     */
+    protected static void printLookup(ResultFile results, String key) {
+        List<ResultFile.Record> found = results.byFqn(key);
+        if (found.isEmpty()) {
+            found = Lists.newArrayList(results.byOrigPath(key));
+            for (ResultFile.Record record : results.byNewPath(key)) {
+                if (!key.equals(record.origPath)) found.add(record); // else already found, e.g. if unchanged
             }
         }
+        if (found.isEmpty()) {
+            System.out.println("No results for "+key+" in "+results);
+        }
+        for (ResultFile.Record record : found) {
+            System.out.println(record);
+        }
+    }
+    
+    protected void printClones() {
+        if (cloneResult == null) return;
+        
+        System.out.println();
+        System.out.println("Near-duplicate files:");
+        for (List<Path> cluster : cloneResult.clusters()) {
+            List<String> fqns = Lists.newArrayList();
+            for (Path path : cluster) {
+                fqns.add(toName(path));
+            }
+            System.out.println(Joiner.on(", ").join(fqns));
+        }
+        
+        System.out.println();
+        System.out.println("Origins of new files:");
+        for (Path path : sortPaths(MutableList.copyOf(cloneResult.origins().keySet()))) {
+            Origin origin = cloneResult.origins().get(path);
+            System.out.println(Strings.padEnd(toName(path), 80, ' ')+" : " + toName(origin.path)+" ("+origin.similarity+")");
+        }
     }
     
     protected List<UnchangedResult> sortUnchanged(List<UnchangedResult> orig) {
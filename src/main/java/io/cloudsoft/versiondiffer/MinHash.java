@@ -0,0 +1,109 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * MinHash signatures of letter-pair multisets, for cheaply estimating the similarity of files
+ * (e.g. to find candidates in an {@link LshIndex}) without comparing their full histograms.
+ * 
+ * Each occurrence of a pair is a distinct shingle (i.e. the n'th occurrence of "ab" is the
+ * shingle ("ab", n)), so the Jaccard index of two signatures estimates the multiset Jaccard
+ * index {@code sum(min)/sum(max)}, which is related to the {@link LetterPairSimilarity} Dice
+ * score by {@code dice = 2j/(1+j)}; see {@link #jaccardToDice(double)}.
+ * 
+ * The standard error of the Jaccard estimate is {@code sqrt(j(1-j)/numHashes)}.
+ * 
+ * Instances with the same number of hashes and seed produce comparable signatures.
+ * Thread-safe.
+ */
+public class MinHash {
+
+    public static final int DEFAULT_NUM_HASHES = 64;
+    
+    private static final long DEFAULT_SEED = 0x5EED5EEDL;
+
+    private final long[] multipliers;
+    private final long[] addends;
+
+    public MinHash() {
+        this(DEFAULT_NUM_HASHES, DEFAULT_SEED);
+    }
+    
+    public MinHash(int numHashes, long seed) {
+        checkArgument(numHashes > 0, "numHashes must be positive, but was %s", numHashes);
+        Random random = new Random(seed);
+        multipliers = new long[numHashes];
+        addends = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            multipliers[i] = random.nextLong() | 1L;
+            addends[i] = random.nextLong();
+        }
+    }
+
+    public int numHashes() {
+        return multipliers.length;
+    }
+
+    /**
+     * The signature of the given letter pairs: for each hash function, the minimum hash of any shingle.
+     */
+    public int[] signature(BigramHistogram bigrams) {
+        final long[] mins = new long[multipliers.length];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        bigrams.forEach(new BigramHistogram.PairVisitor() {
+            @Override public void visit(int pair, int count) {
+                for (int occurrence = 0; occurrence < count; occurrence++) {
+                    long shingle = mix(((long) pair << 32) | occurrence);
+                    for (int i = 0; i < mins.length; i++) {
+                        // unsigned upper 32 bits, so compare as non-negative longs
+                        long hash = (multipliers[i] * shingle + addends[i]) >>> 32;
+                        if (hash < mins[i]) mins[i] = hash;
+                    }
+                }
+            }});
+        int[] result = new int[mins.length];
+        for (int i = 0; i < mins.length; i++) {
+            result[i] = (int) mins[i];
+        }
+        return result;
+    }
+
+    /**
+     * Estimates the Jaccard index from the fraction of positions at which the two signatures agree.
+     */
+    public static double estimateJaccard(int[] sig1, int[] sig2) {
+        checkArgument(sig1.length == sig2.length, "Signature lengths differ: %s and %s", sig1.length, sig2.length);
+        int matches = 0;
+        for (int i = 0; i < sig1.length; i++) {
+            if (sig1[i] == sig2[i]) matches++;
+        }
+        return ((double) matches) / sig1.length;
+    }
+
+    /**
+     * Converts a (multiset) Jaccard index to the equivalent Dice coefficient.
+     */
+    public static double jaccardToDice(double jaccard) {
+        return (2 * jaccard) / (1 + jaccard);
+    }
+
+    /**
+     * Converts a Dice coefficient to the equivalent (multiset) Jaccard index.
+     */
+    public static double diceToJaccard(double dice) {
+        return dice / (2 - dice);
+    }
+
+    /** The 64-bit finalizer from MurmurHash3. */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,111 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link Fingerprinter} that normalizes each file by the {@link NormalizationRules} registered for its
+ * extension (or else by the default rules), each compiled into its own {@link SourceScanner}.
+ *
+ * It selects just the normalization, and the comparison of the fingerprints is the same for all files,
+ * so it is used beneath a single {@link JavaFileComparer.Factory} (and its cache) or {@link FingerprintStore}
+ * rather than choosing between several {@link FileComparer.Factory}s. Use {@link #standard(long)} for the
+ * standard rules; a different set of rules needs a different format id for a {@link FingerprintStore}.
+ *
+ * Thread-safe. Rules should all be registered before fingerprinting, as files already fingerprinted (and
+ * cached or stored) are not done again.
+ */
+public class NormalizationRegistry implements Fingerprinter {
+
+    /**
+     * Identifies the normalization done by {@link #standard(long)}, for {@link FingerprintStore#load(java.nio.file.Path, String, Fingerprinter)}.
+     */
+    public static final String FINGERPRINT_FORMAT = "standard-v1";
+
+    /**
+     * Java rules for Java and Groovy sources (and by default); and rules for XML (including Maven poms and
+     * schemas), YAML and properties files.
+     *
+     * @param sketchThreshold Files at least this big (in bytes) are fingerprinted as a {@link DiceSketch}; see
+     *                        {@link JavaFileComparer#DEFAULT_SKETCH_THRESHOLD}
+     */
+    public static NormalizationRegistry standard(long sketchThreshold) {
+        return new NormalizationRegistry(NormalizationRules.java(), sketchThreshold)
+                .register(NormalizationRules.java(), "java", "groovy")
+                .register(NormalizationRules.xml(), "xml", "pom", "xsd")
+                .register(NormalizationRules.yaml(), "yaml", "yml")
+                .register(NormalizationRules.properties(), "properties");
+    }
+
+    /**
+     * As {@link #FINGERPRINT_FORMAT}, but for {@link #standard(long)} with the given threshold.
+     */
+    public static String fingerprintFormat(long sketchThreshold) {
+        return (sketchThreshold == JavaFileComparer.DEFAULT_SKETCH_THRESHOLD) ? FINGERPRINT_FORMAT : FINGERPRINT_FORMAT+"-sketch"+sketchThreshold;
+    }
+
+    private final long sketchThreshold;
+    private final SourceScanner defaultScanner;
+    private volatile Map<String, SourceScanner> scanners = ImmutableMap.of();
+
+    /**
+     * @param defaultRules    For files whose extension has no rules registered (or that have none)
+     * @param sketchThreshold Files at least this big (in bytes) are fingerprinted as a {@link DiceSketch}
+     */
+    public NormalizationRegistry(NormalizationRules defaultRules, long sketchThreshold) {
+        this.sketchThreshold = sketchThreshold;
+        this.defaultScanner = new SourceScanner(checkNotNull(defaultRules, "defaultRules"), sketchThreshold);
+    }
+
+    /**
+     * Normalizes files with the given extensions (without the dot; case-insensitive) by the given rules,
+     * replacing any rules registered for them before.
+     */
+    public NormalizationRegistry register(NormalizationRules rules, String... extensions) {
+        SourceScanner scanner = new SourceScanner(rules, sketchThreshold);
+        Map<String, SourceScanner> result = Maps.newHashMap(scanners);
+        for (String extension : extensions) {
+            result.put(extension.toLowerCase(Locale.ROOT), scanner);
+        }
+        scanners = ImmutableMap.copyOf(result);
+        return this;
+    }
+
+    /**
+     * The extensions (lower case, without the dot) that have rules registered.
+     */
+    public Set<String> extensions() {
+        return scanners.keySet();
+    }
+
+    @Override
+    public FileFingerprint fingerprint(SourceFile file) throws IOException {
+        return scannerFor(file.name()).fingerprint(file);
+    }
+
+    private SourceScanner scannerFor(String name) {
+        SourceScanner result = scanners.get(extension(name));
+        return (result != null) ? result : defaultScanner;
+    }
+
+    /**
+     * The extension of the given file name that chooses its rules (lower case, without the dot), or
+     * empty if none; files with the same contents and extension are fingerprinted the same.
+     */
+    static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot < 0) ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return "NormalizationRegistry"+scanners.keySet();
+    }
+}
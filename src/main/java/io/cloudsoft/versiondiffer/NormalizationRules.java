@@ -0,0 +1,192 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Declares how a kind of source file is normalized before it is fingerprinted, so that noise (e.g.
+ * license headers, imports, comments and formatting) does not count as a difference. A
+ * {@link SourceScanner} compiles the rules into automata, and applies them all in a single pass
+ * over the file.
+ *
+ * In order:
+ * <ol>
+ * <li>a license header is dropped if the file starts with it; several can be given, of which the
+ *     longest that matches is dropped (lines are compared after trimming);
+ * <li>comments are dropped, as are lines left blank by that: line comments run to the end of the line,
+ *     and block comments to their end (possibly lines later). Comment starts within quotes (on one
+ *     line, with backslash escapes) are not comments;
+ * <li>if collapsing whitespace, leading and trailing whitespace is dropped, and each run of whitespace
+ *     within a line becomes a single space, and blank lines are dropped;
+ * <li>lines starting with any of the dropped prefixes are dropped (after collapsing whitespace, if
+ *     done, so ignoring indentation).
+ * </ol>
+ *
+ * See {@link #java()} and the other standard rules, and {@link NormalizationRegistry} for choosing the
+ * rules by file extension. Not thread-safe while being configured, as the fluent setters modify it.
+ */
+public class NormalizationRules {
+
+    /**
+     * The rules used for Java (and Groovy) sources, as they always have been: only the Apache license
+     * header and lines starting with {@code import } are dropped. Comments are kept, and whitespace is not
+     * collapsed, so that Java similarity scores are unchanged; the comment and whitespace rules (and license
+     * headers given as comments) are only used by the {@link #xml()}, {@link #yaml()} and
+     * {@link #properties()} rules.
+     */
+    public static NormalizationRules java() {
+        return new NormalizationRules()
+                .licenseHeader(APACHE_LICENSE_HEADER)
+                .droppedLinePrefixes("import ");
+    }
+
+    /**
+     * Drops comments (including license headers, which in XML are comments) and formatting.
+     */
+    public static NormalizationRules xml() {
+        return new NormalizationRules()
+                .blockComment("<!--", "-->")
+                .collapseWhitespace(true);
+    }
+
+    /**
+     * Drops comment lines and indentation.
+     */
+    public static NormalizationRules yaml() {
+        return new NormalizationRules()
+                .droppedLinePrefixes("#")
+                .collapseWhitespace(true);
+    }
+
+    /**
+     * Drops comment lines and indentation.
+     */
+    public static NormalizationRules properties() {
+        return new NormalizationRules()
+                .droppedLinePrefixes("#", "!")
+                .collapseWhitespace(true);
+    }
+
+    static final List<String> APACHE_LICENSE_HEADER = ImmutableList.of(
+            "/*",
+            " * Licensed to the Apache Software Foundation (ASF) under one",
+            " * or more contributor license agreements.  See the NOTICE file",
+            " * distributed with this work for additional information",
+            " * regarding copyright ownership.  The ASF licenses this file",
+            " * to you under the Apache License, Version 2.0 (the",
+            " * \"License\"); you may not use this file except in compliance",
+            " * with the License.  You may obtain a copy of the License at",
+            " *",
+            " *     http://www.apache.org/licenses/LICENSE-2.0",
+            " *",
+            " * Unless required by applicable law or agreed to in writing,",
+            " * software distributed under the License is distributed on an",
+            " * \"AS IS\" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY",
+            " * KIND, either express or implied.  See the License for the",
+            " * specific language governing permissions and limitations",
+            " * under the License.",
+            " */");
+
+    private final List<List<String>> licenseHeaders = Lists.newArrayList();
+    private final List<String> droppedLinePrefixes = Lists.newArrayList();
+    private final List<String> lineComments = Lists.newArrayList();
+    private final Map<String, String> blockComments = Maps.newLinkedHashMap();
+    private final List<Character> quotes = Lists.newArrayList();
+    private boolean collapseWhitespace;
+
+    /**
+     * Adds a license header to drop; its lines are compared after trimming.
+     */
+    public NormalizationRules licenseHeader(List<String> lines) {
+        checkArgument(!lines.isEmpty(), "License header must not be empty");
+        ImmutableList.Builder<String> trimmed = ImmutableList.builder();
+        for (String line : lines) {
+            trimmed.add(line.trim());
+        }
+        licenseHeaders.add(trimmed.build());
+        return this;
+    }
+
+    /**
+     * Adds prefixes of lines to drop, e.g. {@code "import "}.
+     */
+    public NormalizationRules droppedLinePrefixes(String... prefixes) {
+        for (String prefix : prefixes) {
+            checkArgument(!prefix.isEmpty(), "Dropped line prefix must not be empty");
+            droppedLinePrefixes.add(prefix);
+        }
+        return this;
+    }
+
+    /**
+     * Adds the start of a comment that runs to the end of the line, e.g. {@code "//"}.
+     */
+    public NormalizationRules lineComment(String start) {
+        checkArgument(!start.isEmpty(), "Comment start must not be empty");
+        lineComments.add(start);
+        return this;
+    }
+
+    /**
+     * Adds the start and end of a block comment, e.g. {@code "/*"} and <code>"*&#47;"</code>.
+     */
+    public NormalizationRules blockComment(String start, String end) {
+        checkArgument(!start.isEmpty() && !end.isEmpty(), "Comment start and end must not be empty");
+        blockComments.put(start, end);
+        return this;
+    }
+
+    /**
+     * Adds a quote char, within which comment starts are ignored; only needed if dropping comments.
+     */
+    public NormalizationRules quote(char quote) {
+        quotes.add(quote);
+        return this;
+    }
+
+    /**
+     * Whether to drop indentation, trailing whitespace and blank lines, and collapse other runs of whitespace.
+     */
+    public NormalizationRules collapseWhitespace(boolean val) {
+        this.collapseWhitespace = val;
+        return this;
+    }
+
+    List<List<String>> licenseHeaders() {
+        return ImmutableList.copyOf(licenseHeaders);
+    }
+
+    List<String> droppedLinePrefixes() {
+        return ImmutableList.copyOf(droppedLinePrefixes);
+    }
+
+    List<String> lineComments() {
+        return ImmutableList.copyOf(lineComments);
+    }
+
+    Map<String, String> blockComments() {
+        return ImmutableMap.copyOf(blockComments);
+    }
+
+    List<Character> quotes() {
+        return ImmutableList.copyOf(quotes);
+    }
+
+    boolean isCollapseWhitespace() {
+        return collapseWhitespace;
+    }
+
+    @Override
+    public String toString() {
+        return "NormalizationRules[headers="+licenseHeaders.size()+", droppedLinePrefixes="+droppedLinePrefixes
+                +", lineComments="+lineComments+", blockComments="+blockComments+", quotes="+quotes
+                +", collapseWhitespace="+collapseWhitespace+"]";
+    }
+}
@@ -0,0 +1,248 @@
+package io.cloudsoft.versiondiffer;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.UnmodifiableIterator;
+
+/**
+ * A compact index of the relative paths of the files in a {@link SourceTree}, numbered in the
+ * order they were added. Directories and file names are interned and referenced by id from primitive
+ * arrays, with postings from each name to its files, and a primitive hash table from (directory id,
+ * name id) to the file; {@link Path}s are created on demand.
+ *
+ * Trees keep any per-file data (e.g. sizes) in their own arrays, using the same numbering.
+ * Immutable once built.
+ */
+class PathIndex {
+
+    private static final int[] NO_FILES = new int[0];
+
+    /**
+     * Adds the files in order; not thread-safe.
+     */
+    static class Builder {
+        private final FileSystem fileSystem;
+        private final Map<String, Integer> dirIds = Maps.newHashMap();
+        private final Map<String, Integer> nameIds = Maps.newHashMap();
+        private final List<String> dirList = Lists.newArrayList();
+        private final List<String> nameList = Lists.newArrayList();
+        private int[] fileDirs = new int[16];
+        private int[] fileNames = new int[16];
+        private int[] nameCounts = new int[16];
+        private int numFiles = 0;
+
+        /**
+         * @param fileSystem For creating the relative {@link Path}s; directories must use its separator
+         */
+        Builder(FileSystem fileSystem) {
+            this.fileSystem = fileSystem;
+        }
+
+        /**
+         * Adds the file, returning its index.
+         *
+         * @param dir  The relative directory ("" for the root), using the file system's separator
+         * @param name The file name
+         */
+        int add(String dir, String name) {
+            if (numFiles == fileDirs.length) {
+                fileDirs = Arrays.copyOf(fileDirs, numFiles * 2);
+                fileNames = Arrays.copyOf(fileNames, numFiles * 2);
+            }
+            int nameId = intern(name, nameIds, nameList);
+            fileDirs[numFiles] = intern(dir, dirIds, dirList);
+            fileNames[numFiles] = nameId;
+            if (nameId >= nameCounts.length) nameCounts = Arrays.copyOf(nameCounts, nameCounts.length * 2);
+            nameCounts[nameId]++;
+            return numFiles++;
+        }
+
+        int size() {
+            return numFiles;
+        }
+
+        PathIndex build() {
+            return new PathIndex(this);
+        }
+
+        private static int intern(String val, Map<String, Integer> ids, List<String> vals) {
+            Integer result = ids.get(val);
+            if (result == null) {
+                result = vals.size();
+                ids.put(val, result);
+                vals.add(val);
+            }
+            return result;
+        }
+    }
+
+    private final FileSystem fileSystem;
+
+    /** Interned relative directory paths ("" for the root), indexed by directory id. */
+    private final String[] dirs;
+    private final Map<String, Integer> dirIds;
+
+    /** Interned file names, indexed by name id. */
+    private final String[] names;
+    private final Map<String, Integer> nameIds;
+
+    /** Per file: directory id and name id. */
+    private final int[] fileDirs;
+    private final int[] fileNames;
+
+    /** For each name id, the indexes of the files with that name (in order). */
+    private final int[][] nameToFiles;
+
+    /**
+     * Open-addressing table (with linear probing) from a file's directory id and name id to its index + 1,
+     * or 0 for an empty slot; the capacity is a power of two, more than twice the number of files.
+     */
+    private final int[] slots;
+
+    private PathIndex(Builder builder) {
+        fileSystem = builder.fileSystem;
+        dirs = builder.dirList.toArray(new String[builder.dirList.size()]);
+        dirIds = builder.dirIds;
+        names = builder.nameList.toArray(new String[builder.nameList.size()]);
+        nameIds = builder.nameIds;
+        fileDirs = Arrays.copyOf(builder.fileDirs, builder.numFiles);
+        fileNames = Arrays.copyOf(builder.fileNames, builder.numFiles);
+
+        int[] nameCounts = builder.nameCounts;
+        nameToFiles = new int[names.length][];
+        for (int nameId = 0; nameId < names.length; nameId++) {
+            nameToFiles[nameId] = new int[nameCounts[nameId]];
+            nameCounts[nameId] = 0;
+        }
+        for (int i = 0; i < fileDirs.length; i++) {
+            int nameId = fileNames[i];
+            nameToFiles[nameId][nameCounts[nameId]++] = i;
+        }
+
+        slots = new int[Integer.highestOneBit(fileDirs.length * 2 + 1) << 1];
+        for (int i = 0; i < fileDirs.length; i++) {
+            int slot = slot(fileDirs[i], fileNames[i]);
+            if (slots[slot] == 0) {
+                slots[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * The slot holding the file with the given directory and name ids, or else the empty slot where it would go.
+     */
+    private int slot(int dirId, int nameId) {
+        int mask = slots.length - 1;
+        int hash = (dirId * 0x9E3779B9 + nameId) * 0x85EBCA6B;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0 && (fileDirs[slots[slot] - 1] != dirId || fileNames[slots[slot] - 1] != nameId)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    int size() {
+        return fileDirs.length;
+    }
+
+    /**
+     * All the files, in order, as a view.
+     */
+    PathSet asSet() {
+        return new PathSet();
+    }
+
+    /**
+     * A view of all the files, in order, that also gives the index it is a view of; so that
+     * e.g. {@link Differ} can keep track of files by their index, rather than copying their paths.
+     */
+    class PathSet extends AbstractSet<Path> {
+        private PathSet() {
+        }
+        @Override public Iterator<Path> iterator() {
+            return new UnmodifiableIterator<Path>() {
+                int next = 0;
+                @Override public boolean hasNext() {
+                    return next < fileDirs.length;
+                }
+                @Override public Path next() {
+                    return path(next++);
+                }
+            };
+        }
+        @Override public int size() {
+            return fileDirs.length;
+        }
+        @Override public boolean contains(Object o) {
+            return (o instanceof Path) && indexOf((Path) o) >= 0;
+        }
+        PathIndex index() {
+            return PathIndex.this;
+        }
+    }
+
+    /**
+     * All the files, in order, as a view.
+     */
+    List<Path> asList() {
+        return Collections.unmodifiableList(new AbstractList<Path>() {
+            @Override public Path get(int index) {
+                return path(index);
+            }
+            @Override public int size() {
+                return fileDirs.length;
+            }
+        });
+    }
+
+    /**
+     * The files with the given name, in order, as a view.
+     */
+    Collection<Path> findFilename(String filename) {
+        Integer nameId = nameIds.get(filename);
+        final int[] indexes = (nameId == null) ? NO_FILES : nameToFiles[nameId];
+        return Collections.unmodifiableList(new AbstractList<Path>() {
+            @Override public Path get(int index) {
+                return path(indexes[index]);
+            }
+            @Override public int size() {
+                return indexes.length;
+            }
+        });
+    }
+
+    Path path(int index) {
+        String dir = dirs[fileDirs[index]];
+        String name = names[fileNames[index]];
+        return dir.isEmpty() ? fileSystem.getPath(name) : fileSystem.getPath(dir, name);
+    }
+
+    /**
+     * The index of the given relative path, or -1 if it is not in the index.
+     */
+    int indexOf(Path relativePath) {
+        Path filename = relativePath.getFileName();
+        Integer nameId = (filename == null) ? null : nameIds.get(filename.toString());
+        if (nameId == null) {
+            return -1;
+        }
+        Path parent = relativePath.getParent();
+        Integer dirId = dirIds.get((parent == null) ? "" : parent.toString());
+        if (dirId == null) {
+            return -1;
+        }
+        return slots[slot(dirId, nameId)] - 1;
+    }
+}
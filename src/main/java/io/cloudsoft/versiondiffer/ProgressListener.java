@@ -0,0 +1,67 @@
+package io.cloudsoft.versiondiffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Told how far {@link Differ#compare(SourceTree, SourceTree, FileComparer.Factory)} has got: when each
+ * {@link Stage} starts, at most every {@link #INTERVAL_MILLIS} while files are being compared, and
+ * once at the end.
+ *
+ * Called from the thread calling {@code compare}, so implementations need not be thread-safe; they should
+ * be quick, as comparing waits for them.
+ */
+public interface ProgressListener {
+
+    public static final long INTERVAL_MILLIS = 1000;
+
+    /**
+     * What is being done. Without a {@link Differ#timeBudget(long, TimeUnit)} the pre files are all compared
+     * in a single pass; with one, they are compared in stages, cheapest first, each taking just the files
+     * that were not decided by an earlier stage (and that it can decide).
+     */
+    public enum Stage {
+        /** Comparing each pre file with the post file(s) it could be, in a single pass. */
+        COMPARE,
+        /** Checking (by content hash or id) which files are identical to the post file at the same path, or to one elsewhere. */
+        IDENTICAL,
+        /** Scoring the files at the same path in the post tree, or with just one file of the same name there. */
+        SINGLE_CONTENDER,
+        /** Scoring the rest: files with several files of the same name in the post tree, or none. */
+        MULTIPLE_CONTENDERS,
+        /** Matching the moved files with their destinations, including looking for renamed files. */
+        MATCH;
+    }
+
+    public static class Progress {
+        public final Stage stage;
+        public final int filesDone;
+        public final int filesTotal;
+        public final long elapsedMillis;
+
+        /**
+         * A rough estimate, from the rate at which files have been done in the current stage (later stages
+         * are typically slower per file); -1 if unknown (e.g. while matching), and 0 once finished.
+         */
+        public final long estimatedRemainingMillis;
+
+        public Progress(Stage stage, int filesDone, int filesTotal, long elapsedMillis, long estimatedRemainingMillis) {
+            this.stage = stage;
+            this.filesDone = filesDone;
+            this.filesTotal = filesTotal;
+            this.elapsedMillis = elapsedMillis;
+            this.estimatedRemainingMillis = estimatedRemainingMillis;
+        }
+
+        @Override
+        public String toString() {
+            String remaining = (estimatedRemainingMillis < 0) ? "unknown" : (estimatedRemainingMillis / 1000)+"s";
+            return stage.name().toLowerCase()+": "+filesDone+" of "+filesTotal+" files done in "+(elapsedMillis / 1000)+"s"
+                    +"; estimated remaining "+remaining;
+        }
+    }
+
+    /**
+     * @param progress The number of pre files done (compared, though possibly not yet matched) so far
+     */
+    public void onProgress(Progress progress);
+}
@@ -0,0 +1,597 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * A {@link DifferResult} saved in a compact binary file, which is memory-mapped to look up the results
+ * for a given original path, new path or fully qualified class name, without reading the whole file.
+ * So the results of a large diff can be kept (or shared), and later asked e.g. where a class went.
+ *
+ * Written by {@link #write(DifferResult, Function, Path)}, and read by {@link #open(Path)}. The file
+ * holds:
+ * <ul>
+ * <li>a string table: each distinct path, class name and message once, as UTF-8, sorted (by their
+ *     bytes), so a string is found by binary search, and the order of string ids is that of the strings;
+ * <li>the results (records), column by column: type, original path and class name, new path and class
+ *     name, similarity, whether it was estimated, message, and where its candidates start (each as a
+ *     string id, or -1 if none);
+ * <li>the candidates of the ambiguous results, likewise column by column;
+ * <li>three indexes of (string id, record) pairs, sorted: by original path, by new path (including the
+ *     candidates of ambiguous results), and by class name (original, new or candidate).
+ * </ul>
+ * So a lookup is two binary searches: for the string's id, then for its first entry in the index. The
+ * file is limited to 2 GiB.
+ *
+ * The mapping is released once this is garbage collected (there is no portable way to unmap it sooner).
+ * Thread-safe.
+ */
+public class ResultFile {
+
+    private static final int MAGIC = 0x56445253; // "VDRS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 8;
+
+    private static final int NONE = -1;
+
+    private static final Type[] TYPES = Type.values();
+
+    public enum Type {
+        UNCHANGED, MOVED, AMBIGUOUS, NEW_FILE, UNEVALUATED;
+    }
+
+    /**
+     * A result, as per the corresponding {@link DifferResult} type. Paths are as per {@link Path#toString()};
+     * class names are null if not written, and paths are null if not applicable (e.g. the original path of
+     * a new file, or the new path of an ambiguous file, whose possible new paths are its candidates). The
+     * similarity is NaN for results without one (ambiguous, new and unevaluated files).
+     */
+    public static class Record {
+        public final Type type;
+        public final String origPath;
+        public final String origFqn;
+        public final String newPath;
+        public final String newFqn;
+        public final double similarity;
+        public final boolean estimated;
+        public final String msg;
+        public final List<Candidate> candidates;
+
+        Record(Type type, String origPath, String origFqn, String newPath, String newFqn, double similarity, boolean estimated,
+                String msg, List<Candidate> candidates) {
+            this.type = type;
+            this.origPath = origPath;
+            this.origFqn = origFqn;
+            this.newPath = newPath;
+            this.newFqn = newFqn;
+            this.similarity = similarity;
+            this.estimated = estimated;
+            this.msg = msg;
+            this.candidates = candidates;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+            case UNCHANGED: return "unchanged "+origPath+" ("+similarity+(estimated ? ", estimated" : "")+")";
+            case MOVED: return "moved "+origPath+" -> "+newPath+" ("+similarity+(estimated ? ", estimated" : "")+")";
+            case AMBIGUOUS: return "ambiguous "+origPath+" "+candidates+": "+msg;
+            case NEW_FILE: return "new "+newPath;
+            case UNEVALUATED: return "unevaluated "+origPath;
+            default: throw new IllegalStateException("Unknown type "+type);
+            }
+        }
+    }
+
+    /**
+     * A post file an ambiguous file could be, with its similarity.
+     */
+    public static class Candidate {
+        public final String path;
+        public final String fqn;
+        public final double similarity;
+        public final boolean estimated;
+
+        Candidate(String path, String fqn, double similarity, boolean estimated) {
+            this.path = path;
+            this.fqn = fqn;
+            this.similarity = similarity;
+            this.estimated = estimated;
+        }
+
+        @Override
+        public String toString() {
+            return path+"="+similarity;
+        }
+    }
+
+    /**
+     * Writes the results to the file (replacing it).
+     *
+     * @param toFqn For including the fully qualified class name of each path (which may be null for a file that is
+     *              not a class); or null to omit them
+     */
+    public static void write(DifferResult result, Function<? super Path, String> toFqn, Path file) throws IOException {
+        new Columns(toFqn).write(result, file);
+    }
+
+    /**
+     * Maps the file, checking its header.
+     */
+    public static ResultFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Result file "+file+" too big ("+size+" bytes)");
+            }
+            return new ResultFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Result file "+file+" is corrupt or truncated", e);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final Path file;
+    private final int numStrings;
+    private final int numRecords;
+    private final int numCandidates;
+    private final Index byOrigPath;
+    private final Index byNewPath;
+    private final Index byFqn;
+
+    // Where each section starts
+    private final int stringOffsets;
+    private final int stringBytes;
+    private final int types;
+    private final int origPaths;
+    private final int origFqns;
+    private final int newPaths;
+    private final int newFqns;
+    private final int similarities;
+    private final int estimates;
+    private final int msgs;
+    private final int candidateStarts;
+    private final int candidatePaths;
+    private final int candidateFqns;
+    private final int candidateSimilarities;
+    private final int candidateEstimates;
+
+    private ResultFile(ByteBuffer buffer, Path file) throws IOException {
+        this.buffer = buffer;
+        this.file = file;
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a result file: "+file);
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported version "+version+" of result file "+file);
+        }
+        numStrings = buffer.getInt(8);
+        numRecords = buffer.getInt(12);
+        numCandidates = buffer.getInt(16);
+        int numByOrigPath = buffer.getInt(20);
+        int numByNewPath = buffer.getInt(24);
+        int numByFqn = buffer.getInt(28);
+
+        stringOffsets = HEADER_BYTES;
+        stringBytes = stringOffsets + 4 * (numStrings + 1);
+        types = stringBytes + buffer.getInt(stringOffsets + 4 * numStrings);
+        origPaths = types + numRecords;
+        origFqns = origPaths + 4 * numRecords;
+        newPaths = origFqns + 4 * numRecords;
+        newFqns = newPaths + 4 * numRecords;
+        similarities = newFqns + 4 * numRecords;
+        estimates = similarities + 8 * numRecords;
+        msgs = estimates + numRecords;
+        candidateStarts = msgs + 4 * numRecords;
+        candidatePaths = candidateStarts + 4 * (numRecords + 1);
+        candidateFqns = candidatePaths + 4 * numCandidates;
+        candidateSimilarities = candidateFqns + 4 * numCandidates;
+        candidateEstimates = candidateSimilarities + 8 * numCandidates;
+        byOrigPath = new Index(candidateEstimates + numCandidates, numByOrigPath);
+        byNewPath = new Index(byOrigPath.end(), numByNewPath);
+        byFqn = new Index(byNewPath.end(), numByFqn);
+        if (byFqn.end() != buffer.limit()) {
+            throw new IOException("Result file "+file+" is corrupt or truncated: expected "+byFqn.end()+" bytes, but was "+buffer.limit());
+        }
+    }
+
+    /**
+     * The number of results.
+     */
+    public int size() {
+        return numRecords;
+    }
+
+    /**
+     * The result at the given position, in the order written: unchanged, moved, ambiguous, new and then
+     * unevaluated files (each as listed in the {@link DifferResult}).
+     */
+    public Record get(int index) {
+        checkElementIndex(index, numRecords);
+        return record(index);
+    }
+
+    /**
+     * The result for the pre file at the given path (as per {@link Path#toString()}), if any (so at most one).
+     */
+    public List<Record> byOrigPath(String path) {
+        return lookup(byOrigPath, path);
+    }
+
+    /**
+     * The results that the post file at the given path is, or could be, the outcome of: the unchanged,
+     * moved or new file at that path, and any ambiguous files it is a candidate of.
+     */
+    public List<Record> byNewPath(String path) {
+        return lookup(byNewPath, path);
+    }
+
+    /**
+     * The results involving the given fully qualified class name, as an original, new or candidate file;
+     * empty if the class names were not written.
+     */
+    public List<Record> byFqn(String fqn) {
+        return lookup(byFqn, fqn);
+    }
+
+    @Override
+    public String toString() {
+        return "ResultFile["+file+", results="+numRecords+"]";
+    }
+
+    private List<Record> lookup(Index index, String key) {
+        int id = findString(key.getBytes(StandardCharsets.UTF_8));
+        if (id < 0) {
+            return ImmutableList.of();
+        }
+        List<Record> result = Lists.newArrayList();
+        for (int i = index.first(id); i < index.size && index.key(i) == id; i++) {
+            result.add(record(index.record(i)));
+        }
+        return result;
+    }
+
+    private Record record(int i) {
+        int candidatesStart = buffer.getInt(candidateStarts + 4 * i);
+        int candidatesEnd = buffer.getInt(candidateStarts + 4 * (i + 1));
+        List<Candidate> candidates = Lists.newArrayListWithCapacity(candidatesEnd - candidatesStart);
+        for (int c = candidatesStart; c < candidatesEnd; c++) {
+            candidates.add(new Candidate(string(buffer.getInt(candidatePaths + 4 * c)), string(buffer.getInt(candidateFqns + 4 * c)),
+                    buffer.getDouble(candidateSimilarities + 8 * c), buffer.get(candidateEstimates + c) != 0));
+        }
+        return new Record(TYPES[buffer.get(types + i)],
+                string(buffer.getInt(origPaths + 4 * i)), string(buffer.getInt(origFqns + 4 * i)),
+                string(buffer.getInt(newPaths + 4 * i)), string(buffer.getInt(newFqns + 4 * i)),
+                buffer.getDouble(similarities + 8 * i), buffer.get(estimates + i) != 0,
+                string(buffer.getInt(msgs + 4 * i)), Collections.unmodifiableList(candidates));
+    }
+
+    private String string(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        int start = buffer.getInt(stringOffsets + 4 * id);
+        int end = buffer.getInt(stringOffsets + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringBytes + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The id of the string with the given UTF-8 bytes; or negative if there is none.
+     */
+    private int findString(byte[] key) {
+        int low = 0;
+        int high = numStrings - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareString(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the string with the given id to the key, by their UTF-8 bytes (unsigned), as the table is sorted.
+     */
+    private int compareString(int id, byte[] key) {
+        int start = stringBytes + buffer.getInt(stringOffsets + 4 * id);
+        int length = stringBytes + buffer.getInt(stringOffsets + 4 * (id + 1)) - start;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = UnsignedBytes.compare(buffer.get(start + i), key[i]);
+            if (cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * An index in the file: its (string id, record) pairs, sorted, as two columns.
+     */
+    private class Index {
+        final int keys;
+        final int records;
+        final int size;
+
+        Index(int start, int size) {
+            this.keys = start;
+            this.records = start + 4 * size;
+            this.size = size;
+        }
+
+        int end() {
+            return records + 4 * size;
+        }
+
+        int key(int i) {
+            return buffer.getInt(keys + 4 * i);
+        }
+
+        int record(int i) {
+            return buffer.getInt(records + 4 * i);
+        }
+
+        /**
+         * The position of the first entry with the given key, or (if none) where it would be.
+         */
+        int first(int id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (key(mid) < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Collects the results as columns, then writes them with the string table and indexes.
+     */
+    private static class Columns {
+        private final Function<? super Path, String> toFqn;
+        private final Map<String, Integer> stringIds = Maps.newHashMap();
+
+        private final List<Type> types = Lists.newArrayList();
+        private final List<String> origPaths = Lists.newArrayList();
+        private final List<String> newPaths = Lists.newArrayList();
+        private final List<Double> similarities = Lists.newArrayList();
+        private final List<Boolean> estimates = Lists.newArrayList();
+        private final List<String> msgs = Lists.newArrayList();
+        private final List<Integer> candidateStarts = Lists.newArrayList();
+        private final List<String> candidatePaths = Lists.newArrayList();
+        private final List<Double> candidateSimilarities = Lists.newArrayList();
+        private final List<Boolean> candidateEstimates = Lists.newArrayList();
+
+        Columns(Function<? super Path, String> toFqn) {
+            this.toFqn = toFqn;
+        }
+
+        void write(DifferResult result, Path file) throws IOException {
+            for (UnchangedResult unchanged : result.unchanged()) {
+                add(Type.UNCHANGED, unchanged.path, unchanged.path, unchanged.similarity, unchanged.estimated, null);
+            }
+            for (MovedResult moved : result.moved()) {
+                add(Type.MOVED, moved.origPath, moved.newPath, moved.similarity, moved.estimated, null);
+            }
+            for (AmbiguousResult ambiguous : result.ambiguous()) {
+                add(Type.AMBIGUOUS, ambiguous.origPath, null, Double.NaN, false, ambiguous.msg);
+                for (Map.Entry<Path, Double> entry : ambiguous.newPaths.entrySet()) {
+                    candidatePaths.add(entry.getKey().toString());
+                    candidateSimilarities.add(entry.getValue());
+                    candidateEstimates.add(ambiguous.estimated.contains(entry.getKey()));
+                }
+            }
+            for (Path newFile : result.newFiles()) {
+                add(Type.NEW_FILE, null, newFile, Double.NaN, false, null);
+            }
+            for (Path unevaluated : result.unevaluated()) {
+                add(Type.UNEVALUATED, unevaluated, null, Double.NaN, false, null);
+            }
+            candidateStarts.add(candidatePaths.size());
+
+            Map<String, String> fqns = Maps.newHashMap();
+            if (toFqn != null) {
+                for (Path path : allPaths(result)) {
+                    fqns.put(path.toString(), toFqn.apply(path));
+                }
+            }
+            byte[][] strings = stringTable(fqns);
+
+            int n = types.size();
+            int[] origPathIds = ids(origPaths);
+            int[] newPathIds = ids(newPaths);
+            int[] origFqnIds = fqnIds(origPaths, fqns);
+            int[] newFqnIds = fqnIds(newPaths, fqns);
+            int[] candidatePathIds = ids(candidatePaths);
+            int[] candidateFqnIds = fqnIds(candidatePaths, fqns);
+
+            long[] byOrigPath = new long[n];
+            int numByOrigPath = 0;
+            Set<Long> byNewPath = Sets.newHashSet();
+            Set<Long> byFqn = Sets.newHashSet();
+            for (int i = 0; i < n; i++) {
+                if (origPathIds[i] != NONE) byOrigPath[numByOrigPath++] = entry(origPathIds[i], i);
+                if (newPathIds[i] != NONE) byNewPath.add(entry(newPathIds[i], i));
+                if (origFqnIds[i] != NONE) byFqn.add(entry(origFqnIds[i], i));
+                if (newFqnIds[i] != NONE) byFqn.add(entry(newFqnIds[i], i));
+                for (int c = candidateStarts.get(i); c < candidateStarts.get(i + 1); c++) {
+                    byNewPath.add(entry(candidatePathIds[c], i));
+                    if (candidateFqnIds[c] != NONE) byFqn.add(entry(candidateFqnIds[c], i));
+                }
+            }
+
+            try (OutputStream out = Files.newOutputStream(file)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                data.writeInt(strings.length);
+                data.writeInt(n);
+                data.writeInt(candidatePaths.size());
+                data.writeInt(numByOrigPath);
+                data.writeInt(byNewPath.size());
+                data.writeInt(byFqn.size());
+
+                int offset = 0;
+                for (byte[] string : strings) {
+                    data.writeInt(offset);
+                    offset += string.length;
+                }
+                data.writeInt(offset);
+                for (byte[] string : strings) {
+                    data.write(string);
+                }
+
+                for (Type type : types) data.writeByte(type.ordinal());
+                writeInts(data, origPathIds);
+                writeInts(data, origFqnIds);
+                writeInts(data, newPathIds);
+                writeInts(data, newFqnIds);
+                for (double similarity : similarities) data.writeDouble(similarity);
+                for (boolean estimated : estimates) data.writeBoolean(estimated);
+                writeInts(data, ids(msgs));
+                for (int start : candidateStarts) data.writeInt(start);
+
+                writeInts(data, candidatePathIds);
+                writeInts(data, candidateFqnIds);
+                for (double similarity : candidateSimilarities) data.writeDouble(similarity);
+                for (boolean estimated : candidateEstimates) data.writeBoolean(estimated);
+
+                writeIndex(data, Arrays.copyOf(byOrigPath, numByOrigPath));
+                writeIndex(data, toArray(byNewPath));
+                writeIndex(data, toArray(byFqn));
+                data.flush();
+            }
+        }
+
+        private void add(Type type, Path origPath, Path newPath, double similarity, boolean estimated, String msg) {
+            types.add(type);
+            origPaths.add((origPath != null) ? origPath.toString() : null);
+            newPaths.add((newPath != null) ? newPath.toString() : null);
+            similarities.add(similarity);
+            estimates.add(estimated);
+            msgs.add(msg);
+            candidateStarts.add(candidatePaths.size());
+        }
+
+        private static List<Path> allPaths(DifferResult result) {
+            List<Path> paths = Lists.newArrayList();
+            for (UnchangedResult unchanged : result.unchanged()) paths.add(unchanged.path);
+            for (MovedResult moved : result.moved()) {
+                paths.add(moved.origPath);
+                paths.add(moved.newPath);
+            }
+            for (AmbiguousResult ambiguous : result.ambiguous()) {
+                paths.add(ambiguous.origPath);
+                paths.addAll(ambiguous.newPaths.keySet());
+            }
+            paths.addAll(result.newFiles());
+            paths.addAll(result.unevaluated());
+            return paths;
+        }
+
+        /**
+         * Sorts the distinct strings by their UTF-8 bytes, recording the id of each.
+         */
+        private byte[][] stringTable(Map<String, String> fqns) {
+            Set<String> distinct = Sets.newHashSet();
+            for (List<String> column : ImmutableList.of(origPaths, newPaths, msgs, candidatePaths)) {
+                distinct.addAll(column);
+            }
+            distinct.addAll(fqns.values());
+            distinct.remove(null);
+            byte[][] result = new byte[distinct.size()][];
+            int i = 0;
+            for (String string : distinct) {
+                result[i++] = string.getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(result, UnsignedBytes.lexicographicalComparator());
+            for (i = 0; i < result.length; i++) {
+                stringIds.put(new String(result[i], StandardCharsets.UTF_8), i);
+            }
+            return result;
+        }
+
+        private int[] ids(List<String> strings) {
+            int[] result = new int[strings.size()];
+            for (int i = 0; i < result.length; i++) {
+                String string = strings.get(i);
+                result[i] = (string != null) ? stringIds.get(string) : NONE;
+            }
+            return result;
+        }
+
+        private int[] fqnIds(List<String> paths, Map<String, String> fqns) {
+            int[] result = new int[paths.size()];
+            for (int i = 0; i < result.length; i++) {
+                String fqn = fqns.get(paths.get(i));
+                result[i] = (fqn != null) ? stringIds.get(fqn) : NONE;
+            }
+            return result;
+        }
+
+        /** An index entry, packed so that sorting them sorts by string id and then by record. */
+        private static long entry(int stringId, int record) {
+            return ((long) stringId << 32) | record;
+        }
+
+        private static long[] toArray(Set<Long> entries) {
+            long[] result = new long[entries.size()];
+            int i = 0;
+            for (long entry : entries) {
+                result[i++] = entry;
+            }
+            return result;
+        }
+
+        private static void writeIndex(DataOutputStream data, long[] entries) throws IOException {
+            Arrays.sort(entries);
+            for (long entry : entries) data.writeInt((int) (entry >>> 32));
+            for (long entry : entries) data.writeInt((int) entry);
+        }
+
+        private static void writeInts(DataOutputStream data, int[] vals) throws IOException {
+            for (int val : vals) data.writeInt(val);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+
+/**
+ * The contents of a file in a {@link SourceTree}: a file on disk, or e.g. a blob in a git repository.
+ *
+ * Equal {@link SourceFile}s have the same contents, so they can be used as cache keys (e.g. by
+ * {@link FingerprintCache}); a file on disk is equal to another only if the path, size and last-modified
+ * time are all the same. The {@link #id()} identifies the file across runs (e.g. for {@link FingerprintStore}),
+ * in which case the contents are assumed unchanged if the size and last-modified time are unchanged.
+ */
+public abstract class SourceFile extends ByteSource {
+
+    /**
+     * The file on disk at the given path, reading its size and last-modified time now.
+     */
+    public static SourceFile of(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return of(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * The file on disk at the given path, whose size and last-modified time are already known
+     * (e.g. from {@link FileLister}), so the file need not be touched until it is read.
+     */
+    public static SourceFile of(Path path, long size, long lastModified) {
+        return new PathSourceFile(path, size, lastModified);
+    }
+
+    /**
+     * Identifies the file, across runs, e.g. its absolute path.
+     */
+    public abstract String id();
+
+    /**
+     * The file name (without any directory), e.g. for choosing how to compare it.
+     */
+    public abstract String name();
+
+    @Override
+    public abstract long size() throws IOException;
+
+    /**
+     * The last-modified time in millis, or 0 if the contents can never change (e.g. a git blob).
+     */
+    public abstract long lastModified();
+
+    /**
+     * The file on disk, if that is what this is; callers can then read it more efficiently
+     * (e.g. memory-mapping it) than via {@link #openStream()}.
+     */
+    public Optional<Path> path() {
+        return Optional.absent();
+    }
+
+    private static class PathSourceFile extends SourceFile {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        PathSourceFile(Path path, long size, long lastModified) {
+            this.path = checkNotNull(path, "path");
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String id() {
+            return path.toAbsolutePath().normalize().toString();
+        }
+
+        @Override
+        public String name() {
+            Path filename = path.getFileName();
+            return (filename == null) ? "" : filename.toString();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public Optional<Path> path() {
+            return Optional.of(path);
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PathSourceFile)) return false;
+            PathSourceFile o = (PathSourceFile) obj;
+            return path.equals(o.path) && size == o.size && lastModified == o.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(path, size, lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+/**
+ * Normalizes a source file and fingerprints it in a single streaming pass, without holding
+ * the file (or its lines) in memory.
+ *
+ * Normalization is as declared by the {@link NormalizationRules} (e.g. dropping a license header,
+ * comments, imports and formatting). The rules are compiled up front: license headers into a set of
+ * candidates matched line by line, and comment and quote starts and dropped line prefixes each into a
+ * {@link CharTrie} (a small automaton), so each char of the file takes a step in each rather than being
+ * checked against each rule in turn. The remaining lines, joined with {@code "\n"}, are the normalized
+ * text: its letter pairs go straight into the fingerprint's {@link BigramHistogram}, and its chars into
+ * the normalized hash.
+ *
+ * The file is decoded as strict UTF-8 and split into lines like {@link java.nio.file.Files#readAllLines(Path)}.
+ * Large files on disk are memory-mapped; others (and files not on disk, e.g. git blobs) are read
+ * through a small buffer. Extra memory is constant, apart from buffering the first lines of the file
+ * while checking for a license header, and whitespace within a line while deciding whether to keep it
+ * (only when dropping comments or collapsing whitespace).
+ *
+ * Files of at least a given size (e.g. generated sources) can be fingerprinted as just a fixed-size
+ * {@link DiceSketch} of their letter pairs, so that their fingerprints are small however big the file,
+ * at the cost of their similarities being estimates; see {@link FileFingerprint#isSketched()}.
+ *
+ * Thread-safe (each call to {@link #fingerprint(SourceFile)} uses its own buffers).
+ */
+public class SourceScanner implements Fingerprinter {
+
+    /** Files at least this big are memory-mapped rather than read into a buffer. */
+    public static final long MMAP_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** What each comment or quote start (as numbered in the {@link #openers} trie) starts. */
+    private static final int LINE_COMMENT = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int QUOTED = 2;
+
+    /** Where the comment stage is: in code, or in something that an opener started. */
+    private static final int CODE = -1;
+
+    private final List<List<String>> licenseHeaders;
+    private final CharTrie droppedPrefixes;
+    private final int maxPrefixLength;
+    private final CharTrie openers;
+    private final int[] openerKinds;
+    private final String[] openerEnds;
+    /** For each block comment or quote end (or null for a line comment), its KMP failure table; see {@link #failures(String)}. */
+    private final int[][] openerEndFailures;
+    private final int maxOpenerLength;
+    private final boolean collapseWhitespace;
+    private final boolean holdWhitespace;
+    private final long sketchThreshold;
+
+    /**
+     * @param licenseHeader       The lines of the license header to drop (compared after trimming)
+     * @param droppedLinePrefixes Lines starting with any of these are dropped
+     */
+    public SourceScanner(List<String> licenseHeader, List<String> droppedLinePrefixes) {
+        this(licenseHeader, droppedLinePrefixes, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param licenseHeader       The lines of the license header to drop (compared after trimming)
+     * @param droppedLinePrefixes Lines starting with any of these are dropped
+     * @param sketchThreshold     Files at least this big (in bytes) are fingerprinted as a {@link DiceSketch}
+     */
+    public SourceScanner(List<String> licenseHeader, List<String> droppedLinePrefixes, long sketchThreshold) {
+        this(rules(licenseHeader, droppedLinePrefixes), sketchThreshold);
+    }
+
+    /**
+     * @param rules           How to normalize; compiled, so later changes to the rules are not seen
+     * @param sketchThreshold Files at least this big (in bytes) are fingerprinted as a {@link DiceSketch}
+     */
+    public SourceScanner(NormalizationRules rules, long sketchThreshold) {
+        this.licenseHeaders = rules.licenseHeaders();
+        this.droppedPrefixes = new CharTrie(rules.droppedLinePrefixes());
+        this.maxPrefixLength = droppedPrefixes.depth();
+
+        // Comment and quote starts are numbered in that order: line comments, block comments, then quotes
+        List<String> starts = Lists.newArrayList();
+        List<Integer> kinds = Lists.newArrayList();
+        List<String> ends = Lists.newArrayList();
+        for (String start : rules.lineComments()) {
+            starts.add(start);
+            kinds.add(LINE_COMMENT);
+            ends.add(null);
+        }
+        for (Map.Entry<String, String> entry : rules.blockComments().entrySet()) {
+            starts.add(entry.getKey());
+            kinds.add(BLOCK_COMMENT);
+            ends.add(entry.getValue());
+        }
+        for (char quote : rules.quotes()) {
+            starts.add(String.valueOf(quote));
+            kinds.add(QUOTED);
+            ends.add(String.valueOf(quote));
+        }
+        this.openers = new CharTrie(starts);
+        this.openerKinds = Ints.toArray(kinds);
+        this.openerEnds = ends.toArray(new String[ends.size()]);
+        this.openerEndFailures = new int[openerEnds.length][];
+        for (int i = 0; i < openerEnds.length; i++) {
+            openerEndFailures[i] = (openerEnds[i] != null) ? failures(openerEnds[i]) : null;
+        }
+        this.maxOpenerLength = openers.depth();
+        this.collapseWhitespace = rules.isCollapseWhitespace();
+        this.holdWhitespace = collapseWhitespace || !rules.lineComments().isEmpty() || !rules.blockComments().isEmpty();
+        this.sketchThreshold = sketchThreshold;
+    }
+
+    /**
+     * The Knuth-Morris-Pratt failure table of the string: for each prefix, the length of the longest proper prefix
+     * of it that is also a suffix of it; so when the next char does not continue a partial match, the longest
+     * shorter partial match it could continue is known, without looking back at the chars.
+     */
+    private static int[] failures(String string) {
+        int[] result = new int[string.length()];
+        int matched = 0;
+        for (int i = 1; i < string.length(); i++) {
+            while (matched > 0 && string.charAt(i) != string.charAt(matched)) {
+                matched = result[matched - 1];
+            }
+            if (string.charAt(i) == string.charAt(matched)) {
+                matched++;
+            }
+            result[i] = matched;
+        }
+        return result;
+    }
+
+    private static NormalizationRules rules(List<String> licenseHeader, List<String> droppedLinePrefixes) {
+        NormalizationRules result = new NormalizationRules();
+        if (!checkNotNull(licenseHeader, "licenseHeader").isEmpty()) {
+            result.licenseHeader(licenseHeader);
+        }
+        return result.droppedLinePrefixes(droppedLinePrefixes.toArray(new String[droppedLinePrefixes.size()]));
+    }
+
+    @Override
+    public FileFingerprint fingerprint(SourceFile file) throws IOException {
+        Scan scan = new Scan();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE / 4);
+
+        long size;
+        Optional<Path> path = file.path();
+        if (path.isPresent()) {
+            try (FileChannel channel = FileChannel.open(path.get(), StandardOpenOption.READ)) {
+                size = channel.size();
+                if (size >= MMAP_THRESHOLD) {
+                    MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    decode(decoder, bytes, chars, true, scan);
+                } else {
+                    read(channel, decoder, chars, scan);
+                }
+            }
+        } else {
+            size = file.size();
+            try (ReadableByteChannel channel = Channels.newChannel(file.openStream())) {
+                read(channel, decoder, chars, scan);
+            }
+        }
+        CoderResult result = decoder.flush(chars);
+        if (result.isError()) result.throwException();
+        scan.accept(chars);
+        return scan.finish(size >= sketchThreshold);
+    }
+
+    private void read(ReadableByteChannel channel, CharsetDecoder decoder, CharBuffer chars, Scan scan) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean eof = false;
+        while (!eof) {
+            eof = channel.read(bytes) < 0;
+            bytes.flip();
+            decode(decoder, bytes, chars, eof, scan);
+            bytes.compact();
+        }
+    }
+
+    private void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, boolean endOfInput, Scan scan) throws CharacterCodingException {
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            scan.accept(chars);
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * The state of scanning one file. Each char goes through the stages in turn: splitting lines, the
+     * license header, comments (see {@link #lex(char)}), whitespace (see {@link #code(char)}) and then
+     * dropped line prefixes (see {@link #lineChar(char)}), before being emitted to the fingerprint.
+     */
+    private class Scan {
+        private final BigramHistogram bigrams = new BigramHistogram();
+        private final Hasher hasher = Hashing.murmur3_128().newHasher();
+
+        private boolean atLineStart = true;
+        private boolean afterCarriageReturn = false;
+
+        /** Whether still checking for a license header, in which case lines are buffered. */
+        private boolean inHeader = !licenseHeaders.isEmpty();
+        private final List<String> headerLines = Lists.newArrayList();
+        private final StringBuilder headerLine = new StringBuilder();
+        /** Which of the license headers the lines so far match; and how many lines the longest fully matched has. */
+        private final boolean[] matchingHeaders = new boolean[licenseHeaders.size()];
+        private int matchedHeaderLines = 0;
+
+        /** A possible comment or quote start, held back until we know whether it is one. */
+        private final char[] opener = new char[maxOpenerLength];
+        private int openerLength = 0;
+        private int openerState = CharTrie.START;
+        private int inOpened = CODE;
+        private String openedEnd;
+        private int[] openedEndFailures;
+        private int endMatched = 0;
+        private boolean escaped = false;
+        private boolean commentInLine = false;
+
+        /** Whitespace held back until we know whether the line has anything else. */
+        private final StringBuilder whitespace = new StringBuilder();
+        private boolean contentInLine = false;
+
+        /** The start of the current line, buffered until we know whether it has a dropped prefix. */
+        private final char[] prefix = new char[maxPrefixLength];
+        private int prefixLength = 0;
+        private int prefixState = CharTrie.START;
+        private boolean decided = false;
+        private boolean dropping = false;
+
+        private int keptLines = 0;
+        private char prev = '\n';
+
+        Scan() {
+            Arrays.fill(matchingHeaders, true);
+        }
+
+        void accept(CharBuffer chars) {
+            chars.flip();
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                if (afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    if (c == '\n') continue;
+                }
+                if (c == '\n' || c == '\r') {
+                    afterCarriageReturn = (c == '\r');
+                    endLine();
+                } else {
+                    atLineStart = false;
+                    if (inHeader) {
+                        headerLine.append(c);
+                    } else {
+                        lex(c);
+                    }
+                }
+            }
+            chars.clear();
+        }
+
+        FileFingerprint finish(boolean sketch) {
+            if (!atLineStart) {
+                endLine();
+            }
+            if (inHeader) {
+                // Fewer lines than the header
+                endHeader();
+            }
+            return sketch ? new FileFingerprint(hasher.hash(), DiceSketch.of(bigrams)) : new FileFingerprint(hasher.hash(), bigrams);
+        }
+
+        private void endLine() {
+            atLineStart = true;
+            if (inHeader) {
+                String line = headerLine.toString();
+                headerLine.setLength(0);
+                headerLines.add(line);
+                matchHeaderLine(line.trim());
+            } else {
+                lexLineEnd();
+            }
+        }
+
+        /**
+         * Narrows down the license headers that the file could start with; once none could match any
+         * more lines, drops the longest that matched (if any), and passes on the rest of the lines.
+         */
+        private void matchHeaderLine(String trimmed) {
+            int lineCount = headerLines.size();
+            boolean anyMatching = false;
+            for (int h = 0; h < matchingHeaders.length; h++) {
+                if (!matchingHeaders[h]) continue;
+                List<String> header = licenseHeaders.get(h);
+                if (!header.get(lineCount - 1).equals(trimmed)) {
+                    matchingHeaders[h] = false;
+                } else if (header.size() == lineCount) {
+                    matchedHeaderLines = lineCount;
+                    matchingHeaders[h] = false;
+                } else {
+                    anyMatching = true;
+                }
+            }
+            if (!anyMatching) {
+                endHeader();
+            }
+        }
+
+        private void endHeader() {
+            inHeader = false;
+            for (String line : headerLines.subList(matchedHeaderLines, headerLines.size())) {
+                for (int i = 0; i < line.length(); i++) {
+                    lex(line.charAt(i));
+                }
+                lexLineEnd();
+            }
+            headerLines.clear();
+        }
+
+        /**
+         * Drops comments, passing on the rest (including quoted text) to {@link #code(char)}.
+         */
+        private void lex(char c) {
+            switch (inOpened) {
+            case CODE:
+                if (maxOpenerLength == 0) {
+                    code(c);
+                } else {
+                    open(c);
+                }
+                break;
+            case LINE_COMMENT:
+                break;
+            case BLOCK_COMMENT:
+                commentInLine = true;
+                if (endsOpened(c)) {
+                    inOpened = CODE;
+                }
+                break;
+            case QUOTED:
+                code(c);
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (endsOpened(c)) {
+                    inOpened = CODE;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown state "+inOpened);
+            }
+        }
+
+        private void open(char c) {
+            int next = openers.next(openerState, c);
+            if (next == CharTrie.NONE) {
+                if (openerLength == 0) {
+                    code(c);
+                } else {
+                    // Not a comment or quote after all: the first char held back is code, and the rest are looked at again
+                    char[] rest = Arrays.copyOfRange(opener, 1, openerLength);
+                    char first = opener[0];
+                    openerLength = 0;
+                    openerState = CharTrie.START;
+                    code(first);
+                    for (char held : rest) {
+                        lex(held);
+                    }
+                    lex(c);
+                }
+                return;
+            }
+            int matched = openers.match(next);
+            if (matched == CharTrie.NONE) {
+                opener[openerLength++] = c;
+                openerState = next;
+                return;
+            }
+            openerLength = 0;
+            openerState = CharTrie.START;
+            inOpened = openerKinds[matched];
+            openedEnd = openerEnds[matched];
+            openedEndFailures = openerEndFailures[matched];
+            endMatched = 0;
+            if (inOpened == QUOTED) {
+                escaped = false;
+                code(c);
+            } else {
+                commentInLine = true;
+            }
+        }
+
+        /**
+         * Whether the char completes the end of what was opened (a block comment or quote). A partial match
+         * that the char does not continue falls back (by the end's failure table) to the longest shorter one
+         * that it might, so this is exact even for ends that overlap themselves (e.g. {@code "-->"} in
+         * {@code "--->"}).
+         */
+        private boolean endsOpened(char c) {
+            while (endMatched > 0 && c != openedEnd.charAt(endMatched)) {
+                endMatched = openedEndFailures[endMatched - 1];
+            }
+            if (c == openedEnd.charAt(endMatched)) {
+                endMatched++;
+            }
+            if (endMatched == openedEnd.length()) {
+                endMatched = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private void lexLineEnd() {
+            if (openerLength > 0) {
+                // Comments and quotes start within a line, so the chars held back are code
+                for (int i = 0; i < openerLength; i++) {
+                    code(opener[i]);
+                }
+                openerLength = 0;
+                openerState = CharTrie.START;
+            }
+            if (inOpened == LINE_COMMENT || inOpened == QUOTED) {
+                inOpened = CODE;
+            }
+            if (inOpened == BLOCK_COMMENT) {
+                commentInLine = true;
+            }
+            codeLineEnd();
+            commentInLine = false;
+        }
+
+        /**
+         * Collapses whitespace (if configured), and holds it back so that lines left blank by dropping comments
+         * (or, if collapsing whitespace, all blank lines) can be dropped.
+         */
+        private void code(char c) {
+            if (!holdWhitespace) {
+                lineChar(c);
+                return;
+            }
+            if (Character.isWhitespace(c)) {
+                if (!collapseWhitespace) {
+                    whitespace.append(c);
+                } else if (contentInLine && whitespace.length() == 0) {
+                    whitespace.append(' ');
+                }
+                return;
+            }
+            releaseWhitespace();
+            contentInLine = true;
+            lineChar(c);
+        }
+
+        private void codeLineEnd() {
+            if (holdWhitespace) {
+                boolean blank = !contentInLine && (collapseWhitespace || commentInLine);
+                if (!blank && !collapseWhitespace) {
+                    releaseWhitespace();
+                }
+                whitespace.setLength(0);
+                contentInLine = false;
+                if (blank) {
+                    return;
+                }
+            }
+            lineEnd();
+        }
+
+        private void releaseWhitespace() {
+            for (int i = 0; i < whitespace.length(); i++) {
+                lineChar(whitespace.charAt(i));
+            }
+            whitespace.setLength(0);
+        }
+
+        private void lineChar(char c) {
+            if (!decided) {
+                if (maxPrefixLength == 0) {
+                    keepLine();
+                } else {
+                    // Buffer the char; it is emitted by keepLine if the line turns out not to be dropped
+                    prefix[prefixLength++] = c;
+                    decidePrefix(c);
+                    return;
+                }
+            }
+            if (!dropping) {
+                emit(c);
+            }
+        }
+
+        private void decidePrefix(char c) {
+            prefixState = droppedPrefixes.next(prefixState, c);
+            if (prefixState == CharTrie.NONE) {
+                keepLine();
+            } else if (droppedPrefixes.match(prefixState) != CharTrie.NONE) {
+                decided = true;
+                dropping = true;
+            }
+        }
+
+        private void lineEnd() {
+            if (!decided) {
+                keepLine();
+            }
+            decided = false;
+            dropping = false;
+            prefixLength = 0;
+            prefixState = CharTrie.START;
+        }
+
+        private void keepLine() {
+            decided = true;
+            dropping = false;
+            startKeptLine();
+            for (int i = 0; i < prefixLength; i++) {
+                emit(prefix[i]);
+            }
+        }
+
+        private void startKeptLine() {
+            if (keptLines > 0) {
+                emit('\n');
+            }
+            keptLines++;
+        }
+
+        private void emit(char c) {
+            if (!BigramHistogram.isSeparator(prev) && !BigramHistogram.isSeparator(c)) {
+                bigrams.add(prev, c);
+            }
+            hasher.putChar(c);
+            prev = c;
+        }
+    }
+
+    /**
+     * A trie of strings, as an automaton: from a state, each char leads to the next state (or to none, if no
+     * string continues that way), and a state matches the string that ends there (if any). Chars below 128
+     * are looked up in a table per state; others (rarely used in rules) in a map.
+     *
+     * Immutable once built.
+     */
+    static class CharTrie {
+        static final int START = 0;
+        static final int NONE = -1;
+
+        private static final int TABLE_SIZE = 128;
+
+        private final int[][] tables;
+        private final List<Map<Character, Integer>> others;
+        private final int[] matches;
+        private final int depth;
+
+        /**
+         * @param strings Numbered in order, for {@link #match(int)}; where one is a prefix of another, the
+         *                shorter matches first
+         */
+        CharTrie(List<String> strings) {
+            List<int[]> tables = Lists.newArrayList();
+            List<Map<Character, Integer>> others = Lists.newArrayList();
+            List<Integer> matches = Lists.newArrayList();
+            newState(tables, others, matches);
+            int depth = 0;
+            for (int i = 0; i < strings.size(); i++) {
+                String string = strings.get(i);
+                int state = START;
+                for (int j = 0; j < string.length(); j++) {
+                    char c = string.charAt(j);
+                    Integer next = (c < TABLE_SIZE) ? tables.get(state)[c] : others.get(state).get(c);
+                    if (next == null || next == NONE) {
+                        next = newState(tables, others, matches);
+                        if (c < TABLE_SIZE) {
+                            tables.get(state)[c] = next;
+                        } else {
+                            others.get(state).put(c, next);
+                        }
+                    }
+                    state = next;
+                }
+                if (matches.get(state) == NONE) {
+                    matches.set(state, i);
+                }
+                depth = Math.max(depth, string.length());
+            }
+            this.tables = tables.toArray(new int[tables.size()][]);
+            this.others = ImmutableList.copyOf(others);
+            this.matches = Ints.toArray(matches);
+            this.depth = depth;
+        }
+
+        int next(int state, char c) {
+            if (c < TABLE_SIZE) {
+                return tables[state][c];
+            }
+            Integer result = others.get(state).get(c);
+            return (result != null) ? result : NONE;
+        }
+
+        /**
+         * The number of the string that ends at the state, or {@link #NONE}.
+         */
+        int match(int state) {
+            return matches[state];
+        }
+
+        /**
+         * The length of the longest string.
+         */
+        int depth() {
+            return depth;
+        }
+
+        private static int newState(List<int[]> tables, List<Map<Character, Integer>> others, List<Integer> matches) {
+            int[] table = new int[TABLE_SIZE];
+            Arrays.fill(table, NONE);
+            tables.add(table);
+            others.add(Maps.<Character, Integer>newHashMap());
+            matches.add(NONE);
+            return tables.size() - 1;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * A snapshot of a tree of source files, as compared by {@link Differ}: e.g. a directory on disk
+ * ({@link FileLister}), a commit in a git repository ({@link GitTree}), or an archive ({@link ArchiveTree}).
+ *
+ * Files are identified by their path relative to the root of the tree.
+ */
+public interface SourceTree {
+
+    /**
+     * All files in the tree, in a consistent order.
+     */
+    public Set<Path> listAll();
+
+    /**
+     * The relative paths of all files with the given filename.
+     */
+    public Collection<Path> findFilename(String filename);
+
+    /**
+     * Whether the given relative path is a file in this tree.
+     */
+    public boolean contains(Path relativePath);
+
+    /**
+     * The size of the file, in bytes.
+     *
+     * @throws IllegalArgumentException if the file is not in this tree.
+     */
+    public long size(Path relativePath) throws IOException;
+
+    /**
+     * The contents of the file.
+     *
+     * @throws IllegalArgumentException if the file is not in this tree.
+     */
+    public SourceFile file(Path relativePath);
+
+    /**
+     * What kind of {@link #contentId(Path)} this tree provides (e.g. "git-blob-sha1"), or null if none.
+     * Content ids can only be compared between trees with the same type.
+     */
+    public String contentIdType();
+
+    /**
+     * An id derived from the file's contents alone (e.g. a git blob id), that is known without reading
+     * the file: files with different ids have different contents, and files with equal ids are taken
+     * to be identical. Null if this tree has no {@link #contentIdType()}.
+     *
+     * @throws IllegalArgumentException if the file is not in this tree.
+     */
+    public HashCode contentId(Path relativePath);
+}
@@ -0,0 +1,160 @@
+package io.cloudsoft.versiondiffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * A {@link DifferListener} that writes each result out as it is decided, so the output can be
+ * consumed while the diff is still running and results need not be held in memory.
+ *
+ * Output is buffered, but is flushed at least every {@link #FLUSH_INTERVAL_MILLIS} while results
+ * are being written (and on {@link #flush()} or {@link #close()}), so a consumer is never far behind.
+ *
+ * Not thread-safe (as per {@link DifferListener}).
+ */
+public abstract class StreamingResultWriter implements DifferListener, Flushable, Closeable {
+
+    public static final long FLUSH_INTERVAL_MILLIS = 250;
+
+    /**
+     * @param format "yaml" or "jsonl" (JSON Lines)
+     * @param toFqn  For including the fully qualified class name of each path (which may be null for a file that is
+     *               not a class); or null to omit them
+     */
+    public static StreamingResultWriter create(String format, Writer out, Function<? super Path, String> toFqn) {
+        switch (format) {
+        case "yaml": return new YamlResultWriter(out, toFqn);
+        case "jsonl": return new JsonLinesResultWriter(out, toFqn);
+        default: throw new IllegalArgumentException("Unknown output format "+format+"; expected yaml or jsonl");
+        }
+    }
+
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+
+    protected final Writer out;
+    private final Function<? super Path, String> toFqn;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * @param out   Where to write; wrapped in a {@link BufferedWriter}
+     * @param toFqn For including the fully qualified class name of each path (which may be null for a file that is
+     *              not a class); or null to omit them
+     */
+    protected StreamingResultWriter(Writer out, Function<? super Path, String> toFqn) {
+        this.out = new BufferedWriter(checkNotNull(out, "out"));
+        this.toFqn = toFqn;
+    }
+
+    @Override
+    public void onUnchanged(UnchangedResult result) throws IOException {
+        writeUnchanged(result);
+        recordWritten();
+    }
+
+    @Override
+    public void onMoved(MovedResult result) throws IOException {
+        writeMoved(result);
+        recordWritten();
+    }
+
+    @Override
+    public void onAmbiguous(AmbiguousResult result) throws IOException {
+        writeAmbiguous(result);
+        recordWritten();
+    }
+
+    @Override
+    public void onNewFile(Path path) throws IOException {
+        writeNewFile(path);
+        recordWritten();
+    }
+
+    @Override
+    public void onUnevaluated(Path path) throws IOException {
+        writeUnevaluated(path);
+        recordWritten();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        lastFlush = System.nanoTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    protected abstract void writeUnchanged(UnchangedResult result) throws IOException;
+
+    protected abstract void writeMoved(MovedResult result) throws IOException;
+
+    protected abstract void writeAmbiguous(AmbiguousResult result) throws IOException;
+
+    protected abstract void writeNewFile(Path path) throws IOException;
+
+    protected abstract void writeUnevaluated(Path path) throws IOException;
+
+    protected boolean hasFqns() {
+        return toFqn != null;
+    }
+
+    /**
+     * The class name of the path, quoted; or {@code null} (the same in JSON and YAML) if it is not a class.
+     */
+    protected String quoteFqn(Path path) {
+        String fqn = toFqn.apply(path);
+        return (fqn != null) ? quote(fqn) : "null";
+    }
+
+    /**
+     * The string as a double-quoted JSON string (which is also a valid YAML double-quoted scalar).
+     */
+    protected static String quote(String str) {
+        StringBuilder result = new StringBuilder(str.length() + 2);
+        result.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+            case '"': result.append("\\\""); break;
+            case '\\': result.append("\\\\"); break;
+            case '\n': result.append("\\n"); break;
+            case '\r': result.append("\\r"); break;
+            case '\t': result.append("\\t"); break;
+            default:
+                if (c < 0x20 || c == 0x7F || (c >= 0x80 && c <= 0x9F) || c == 0x2028 || c == 0x2029) {
+                    // Control chars (and, for YAML, the C1 and unicode line separators) must be escaped
+                    result.append(String.format("\\u%04x", (int) c));
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+        result.append('"');
+        return result.toString();
+    }
+
+    protected static String quote(Path path) {
+        return quote(path.toString());
+    }
+
+    private void recordWritten() throws IOException {
+        if (System.nanoTime() - lastFlush >= FLUSH_INTERVAL_NANOS) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Longs;
+
+/**
+ * The files in a tar, or a gzipped tar (".tar.gz" or ".tgz"), indexed by reading the archive once
+ * when constructed (a tar has no central directory). Understands ustar, GNU long names and pax
+ * extended headers; only regular files are included (not links).
+ *
+ * The CRC-32 of each included file is computed while indexing (see {@link ArchiveTree}). For a plain
+ * tar, the offset of each file's data is recorded and it is read in place when compared. A gzipped tar
+ * cannot be read from an arbitrary offset, so the included files' contents are kept in memory, deflated,
+ * instead; the filters should exclude whatever will not be compared.
+ */
+public class TarTree extends ArchiveTree {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final boolean gzipped;
+
+    /** Per file (in archive order): where its data starts, if not {@link #gzipped}. */
+    private final long[] offsets;
+
+    /** Per file (in archive order): its data, deflated, if {@link #gzipped}. */
+    private final byte[][] contents;
+
+    public TarTree(Path archive) throws IOException {
+        this(archive, AUTO_STRIP, Predicates.alwaysTrue(), Predicates.alwaysTrue());
+    }
+
+    /**
+     * See {@link ArchiveTree#open(Path, int, Predicate, Predicate)}. With {@link #AUTO_STRIP}, the
+     * archive is read a second time if it turns out not to have a single top-level directory.
+     */
+    public TarTree(Path archive, int stripComponents, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        super(archive);
+        this.gzipped = isGzipped(archive);
+        Scan scan;
+        if (stripComponents == AUTO_STRIP) {
+            scan = scan(1, true, accepts, acceptsDir);
+            if (scan == null) {
+                scan = scan(0, false, accepts, acceptsDir);
+            }
+        } else {
+            scan = scan(stripComponents, false, accepts, acceptsDir);
+        }
+        init(scan.entries);
+        this.offsets = gzipped ? null : Longs.toArray(scan.offsets);
+        this.contents = gzipped ? scan.contents.toArray(new byte[scan.contents.size()][]) : null;
+    }
+
+    private static boolean isGzipped(Path archive) throws IOException {
+        byte[] magic = new byte[6];
+        int len;
+        try (InputStream in = Files.newInputStream(archive)) {
+            len = ByteStreams.read(in, magic, 0, magic.length);
+        }
+        if (len >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return true;
+        }
+        if ((len >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h')
+                || (len >= 6 && Arrays.equals(magic, new byte[] {(byte) 0xfd, '7', 'z', 'X', 'Z', 0}))) {
+            throw new IOException("Unsupported compression (only gzip is supported) for "+archive);
+        }
+        return false;
+    }
+
+    /**
+     * The result of reading the archive.
+     */
+    private static class Scan {
+        final Entries entries;
+        final List<Long> offsets = Lists.newArrayList();
+        final List<byte[]> contents = Lists.newArrayList();
+
+        Scan(Entries entries) {
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Reads the archive, or returns null if {@code requireSingleRoot} and it does not have a single top-level directory.
+     */
+    private Scan scan(int stripComponents, boolean requireSingleRoot, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        Scan result = new Scan(new Entries(stripComponents, accepts, acceptsDir));
+        InputStream in = new BufferedInputStream(Files.newInputStream(archive), 65536);
+        try {
+            if (gzipped) {
+                in = new GZIPInputStream(in, 65536);
+            }
+            TarReader reader = new TarReader(in);
+            String root = null;
+            Header header;
+            while ((header = reader.next()) != null) {
+                if (!header.isFile()) {
+                    continue;
+                }
+                if (requireSingleRoot) {
+                    String entryRoot = root(header.name);
+                    if (entryRoot == null || (root != null && !root.equals(entryRoot))) {
+                        return null;
+                    }
+                    root = entryRoot;
+                }
+                String relativePath = result.entries.relativePath(header.name);
+                if (relativePath == null) {
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                if (gzipped) {
+                    result.contents.add(deflate(reader.data(), crc));
+                } else {
+                    result.offsets.add(header.dataOffset);
+                    update(crc, reader.data(), null);
+                }
+                result.entries.add(relativePath, header.size, (int) crc.getValue());
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] deflate(InputStream data, CRC32 crc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+            update(crc, data, out);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads all the data, updating the CRC and copying it to {@code out} if not null.
+     */
+    private static void update(CRC32 crc, InputStream data, DeflaterOutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = data.read(buf)) >= 0) {
+            crc.update(buf, 0, len);
+            if (out != null) out.write(buf, 0, len);
+        }
+    }
+
+    @Override
+    protected InputStream openEntry(int index) throws IOException {
+        if (gzipped) {
+            return new InflaterInputStream(new ByteArrayInputStream(contents[index]));
+        }
+        SeekableByteChannel channel = Files.newByteChannel(archive);
+        try {
+            channel.position(offsets[index]);
+            return ByteStreams.limit(Channels.newInputStream(channel), entrySize(index));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Nothing to release: a plain tar is opened for each read.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * An entry in the archive, with any long name or pax header applied.
+     */
+    private static class Header {
+        final String name;
+        final long size;
+        final byte type;
+        final long dataOffset;
+
+        Header(String name, long size, byte type, long dataOffset) {
+            this.name = name;
+            this.size = size;
+            this.type = type;
+            this.dataOffset = dataOffset;
+        }
+
+        boolean isFile() {
+            return type == '0' || type == 0 || type == '7';
+        }
+    }
+
+    /**
+     * Reads the headers in turn; the data of each entry can be read before asking for the next,
+     * otherwise it is skipped.
+     */
+    private static class TarReader {
+        private final CountingInputStream in;
+        private final byte[] block = new byte[BLOCK_SIZE];
+
+        /** The unread data of the current entry, and the padding after it. */
+        private long remaining = 0;
+        private long padding = 0;
+
+        TarReader(InputStream in) {
+            this.in = new CountingInputStream(in);
+        }
+
+        /**
+         * The next entry, or null at the end of the archive.
+         */
+        Header next() throws IOException {
+            String longName = null;
+            String paxPath = null;
+            long paxSize = -1;
+            while (true) {
+                ByteStreams.skipFully(in, remaining + padding);
+                remaining = 0;
+                padding = 0;
+
+                long headerOffset = in.getCount();
+                int len = ByteStreams.read(in, block, 0, BLOCK_SIZE);
+                if (len == 0 || (len == BLOCK_SIZE && isZeros(block))) {
+                    return null;
+                } else if (len < BLOCK_SIZE) {
+                    throw new EOFException("Truncated tar header at offset "+headerOffset);
+                }
+                if (!hasValidChecksum(block)) {
+                    throw new IOException("Not a tar archive (bad header checksum at offset "+headerOffset+")");
+                }
+
+                String name = parseString(block, 0, 100);
+                if (isUstar(block)) {
+                    String prefix = parseString(block, 345, 155);
+                    if (!prefix.isEmpty()) name = prefix + "/" + name;
+                }
+                long size = parseNumber(block, 124, 12);
+                byte type = block[156];
+                remaining = size;
+                padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+                if (type == 'L') {
+                    // GNU long name, for the next entry
+                    longName = trimNul(new String(readData(), StandardCharsets.UTF_8));
+                } else if (type == 'x') {
+                    // pax extended header, for the next entry: records of the form "<length> <key>=<value>\n"
+                    byte[] data = readData();
+                    int pos = 0;
+                    while (pos < data.length) {
+                        int space = indexOf(data, (byte) ' ', pos);
+                        if (space < 0) break;
+                        int recordLength = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII).trim());
+                        if (recordLength <= 0 || pos + recordLength > data.length) {
+                            throw new IOException("Invalid pax header at offset "+headerOffset);
+                        }
+                        String record = new String(data, space + 1, pos + recordLength - space - 2, StandardCharsets.UTF_8);
+                        int equals = record.indexOf('=');
+                        if (equals > 0) {
+                            String key = record.substring(0, equals);
+                            String value = record.substring(equals + 1);
+                            if (key.equals("path")) paxPath = value;
+                            if (key.equals("size")) paxSize = Long.parseLong(value);
+                        }
+                        pos += recordLength;
+                    }
+                } else if (type == 'g' || type == 'K') {
+                    // pax global header, or GNU long link name: not needed
+                } else {
+                    if (paxSize >= 0) {
+                        remaining = paxSize;
+                        padding = (BLOCK_SIZE - paxSize % BLOCK_SIZE) % BLOCK_SIZE;
+                    }
+                    String entryName = (paxPath != null) ? paxPath : (longName != null) ? longName : name;
+                    return new Header(entryName, remaining, type, in.getCount());
+                }
+            }
+        }
+
+        /**
+         * The data of the current entry, as a stream.
+         */
+        InputStream data() {
+            return new InputStream() {
+                @Override public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+                }
+                @Override public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining == 0) return -1;
+                    int result = in.read(b, off, (int) Math.min(len, remaining));
+                    if (result < 0) throw new EOFException("Truncated tar entry");
+                    remaining -= result;
+                    return result;
+                }
+            };
+        }
+
+        private byte[] readData() throws IOException {
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("Tar header too large: "+remaining+" bytes");
+            }
+            byte[] result = new byte[(int) remaining];
+            ByteStreams.readFully(in, result);
+            remaining = 0;
+            return result;
+        }
+
+        private static boolean isZeros(byte[] block) {
+            for (byte b : block) {
+                if (b != 0) return false;
+            }
+            return true;
+        }
+
+        private static boolean isUstar(byte[] block) {
+            return block[257] == 'u' && block[258] == 's' && block[259] == 't' && block[260] == 'a' && block[261] == 'r';
+        }
+
+        /**
+         * Whether the checksum field matches the sum of the header's bytes (with the checksum field
+         * taken to be spaces).
+         */
+        private static boolean hasValidChecksum(byte[] block) {
+            long sum = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                sum += (i >= 148 && i < 156) ? ' ' : (block[i] & 0xff);
+            }
+            try {
+                return sum == parseNumber(block, 148, 8);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * An octal number, NUL- or space-terminated, or (GNU) a big-endian binary number if the top bit is set.
+         */
+        private static long parseNumber(byte[] block, int offset, int length) throws IOException {
+            if ((block[offset] & 0x80) != 0) {
+                long result = block[offset] & 0x3f;
+                for (int i = 1; i < length; i++) {
+                    result = (result << 8) | (block[offset + i] & 0xff);
+                }
+                return result;
+            }
+            long result = 0;
+            int i = offset;
+            int end = offset + length;
+            while (i < end && (block[i] == ' ' || block[i] == 0)) i++;
+            for (; i < end && block[i] != ' ' && block[i] != 0; i++) {
+                if (block[i] < '0' || block[i] > '7') {
+                    throw new IOException("Invalid number in tar header");
+                }
+                result = (result << 3) + (block[i] - '0');
+            }
+            return result;
+        }
+
+        private static String parseString(byte[] block, int offset, int length) {
+            int end = offset;
+            while (end < offset + length && block[end] != 0) end++;
+            return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static String trimNul(String val) {
+            int end = val.indexOf('\0');
+            return (end < 0) ? val : val.substring(0, end);
+        }
+
+        private static int indexOf(byte[] data, byte val, int from) {
+            for (int i = from; i < data.length; i++) {
+                if (data[i] == val) return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Map;
+
+import com.google.common.base.Function;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+
+/**
+ * Writes the results as a YAML sequence, one item per result, so the document is valid at
+ * any point that a whole item has been written. Each item has a {@code type} of {@code unchanged},
+ * {@code moved}, {@code ambiguous} or {@code newFile}, and otherwise the same fields as
+ * {@link Differ.DifferResult}. For example:
+ *
+ * <pre>
+ * - type: moved
+ *   origPath: "a/Foo.java"
+ *   newPath:  "b/Foo.java"
+ *   similarity: 0.93
+ * </pre>
+ *
+ * A similarity estimated from a sketch of a big file (see {@link FileFingerprint#isSketched()}) is followed
+ * by {@code estimated: true}.
+ *
+ * Unlike {@link Main}'s output, results are not grouped by type (that would need them all first).
+ */
+public class YamlResultWriter extends StreamingResultWriter {
+
+    public YamlResultWriter(Writer out) {
+        this(out, null);
+    }
+
+    public YamlResultWriter(Writer out, Function<? super Path, String> toFqn) {
+        super(out, toFqn);
+    }
+
+    @Override
+    protected void writeUnchanged(UnchangedResult result) throws IOException {
+        out.write("- type: unchanged\n");
+        writePath("  ", "path:       ", "fqn:        ", result.path);
+        writeSimilarity("  ", result.similarity, result.estimated);
+    }
+
+    @Override
+    protected void writeMoved(MovedResult result) throws IOException {
+        out.write("- type: moved\n");
+        writePath("  ", "origPath: ", "origFqn:  ", result.origPath);
+        writePath("  ", "newPath:  ", "newFqn:   ", result.newPath);
+        writeSimilarity("  ", result.similarity, result.estimated);
+    }
+
+    @Override
+    protected void writeAmbiguous(AmbiguousResult result) throws IOException {
+        out.write("- type: ambiguous\n");
+        writePath("  ", "origPath: ", "origFqn:  ", result.origPath);
+        out.write("  msg:      "+quote(result.msg)+"\n");
+        if (result.newPaths.isEmpty()) {
+            out.write("  newPaths: []\n");
+        } else {
+            out.write("  newPaths:\n");
+            for (Map.Entry<Path, Double> entry : result.newPaths.entrySet()) {
+                out.write("  - path:       "+quote(entry.getKey())+"\n");
+                if (hasFqns()) {
+                    out.write("    fqn:        "+quoteFqn(entry.getKey())+"\n");
+                }
+                writeSimilarity("    ", entry.getValue(), result.estimated.contains(entry.getKey()));
+            }
+        }
+    }
+
+    @Override
+    protected void writeNewFile(Path path) throws IOException {
+        out.write("- type: newFile\n");
+        writePath("  ", "path: ", "fqn:  ", path);
+    }
+
+    @Override
+    protected void writeUnevaluated(Path path) throws IOException {
+        out.write("- type: unevaluated\n");
+        writePath("  ", "origPath: ", "origFqn:  ", path);
+    }
+
+    private void writePath(String indent, String pathKey, String fqnKey, Path path) throws IOException {
+        out.write(indent+pathKey+quote(path)+"\n");
+        if (hasFqns()) {
+            out.write(indent+fqnKey+quoteFqn(path)+"\n");
+        }
+    }
+
+    private void writeSimilarity(String indent, double similarity, boolean estimated) throws IOException {
+        String val;
+        if (Double.isNaN(similarity)) {
+            val = ".nan";
+        } else if (Double.isInfinite(similarity)) {
+            val = (similarity > 0) ? ".inf" : "-.inf";
+        } else {
+            val = Double.toString(similarity);
+        }
+        out.write(indent+"similarity: "+val+"\n");
+        if (estimated) {
+            out.write(indent+"estimated:  true\n");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.cloudsoft.versiondiffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+
+/**
+ * The files in a zip (or jar), as listed in its central directory: no entry is read until it is
+ * compared, and entries whose CRC and size match are not read at all (see {@link ArchiveTree}).
+ *
+ * Entries are read with {@link ZipFile}, which supports zip64 and concurrent reads.
+ */
+public class ZipTree extends ArchiveTree {
+
+    /**
+     * Whether the file starts like a zip: with a local file header, or the end of central directory
+     * record of an empty zip.
+     */
+    public static boolean isZip(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {}
+            int val = magic.hasRemaining() ? 0 : magic.getInt(0);
+            return val == 0x504b0304 || val == 0x504b0506;
+        }
+    }
+
+    private final ZipFile zip;
+
+    /** Per file (in archive order): the entry. */
+    private final ZipEntry[] entries;
+
+    public ZipTree(Path archive) throws IOException {
+        this(archive, AUTO_STRIP, Predicates.alwaysTrue(), Predicates.alwaysTrue());
+    }
+
+    /**
+     * See {@link ArchiveTree#open(Path, int, Predicate, Predicate)}.
+     */
+    public ZipTree(Path archive, int stripComponents, Predicate<? super String> accepts, Predicate<? super String> acceptsDir) throws IOException {
+        super(archive);
+        if (!Files.isRegularFile(archive)) {
+            throw new IOException("Not a file: "+archive);
+        }
+        this.zip = new ZipFile(archive.toFile());
+        try {
+            List<ZipEntry> files = Lists.newArrayList();
+            List<String> names = Lists.newArrayList();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory()) {
+                    files.add(entry);
+                    names.add(entry.getName());
+                }
+            }
+            if (stripComponents == AUTO_STRIP) {
+                stripComponents = hasSingleRoot(names) ? 1 : 0;
+            }
+
+            Entries entries = new Entries(stripComponents, accepts, acceptsDir);
+            List<ZipEntry> accepted = Lists.newArrayList();
+            for (ZipEntry entry : files) {
+                String relativePath = entries.relativePath(entry.getName());
+                if (relativePath != null) {
+                    entries.add(relativePath, entry.getSize(), (int) entry.getCrc());
+                    accepted.add(entry);
+                }
+            }
+            init(entries);
+            this.entries = accepted.toArray(new ZipEntry[accepted.size()]);
+        } catch (RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected InputStream openEntry(int index) throws IOException {
+        return zip.getInputStream(entries[index]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
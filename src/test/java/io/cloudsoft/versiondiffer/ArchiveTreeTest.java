@@ -0,0 +1,314 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Predicates;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+
+/**
+ * Reads {@link TarTree}s and {@link ZipTree}s built here, a header at a time for tars, so that each
+ * of the ways a tar can record a name or size is covered.
+ */
+public class ArchiveTreeTest {
+
+    private static final String LONG_DIR = Strings.repeat("long-directory-name/", 6);
+
+    private Path dir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testUstarPrefix() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.header("File.java", "root/"+LONG_DIR.substring(0, LONG_DIR.length() - 1), 5, '0', false);
+        tar.data(bytes("hello"));
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of(LONG_DIR+"File.java", "hello"));
+    }
+
+    @Test
+    public void testGnuLongName() throws Exception {
+        String name = "root/"+LONG_DIR+"File.java";
+        TarWriter tar = new TarWriter();
+        tar.header("././@LongLink", "", name.length() + 1, 'L', false);
+        tar.data(bytes(name+"\0"));
+        tar.file(name.substring(0, 99), "hello");
+        tar.file("root/Short.java", "short");
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of(LONG_DIR+"File.java", "hello", "Short.java", "short"));
+    }
+
+    @Test
+    public void testPaxHeaders() throws Exception {
+        String name = "root/"+LONG_DIR+"File.java";
+        TarWriter tar = new TarWriter();
+        byte[] pax = bytes(paxRecord("path", name)+paxRecord("mtime", "1400000000.5")+paxRecord("size", "11"));
+        tar.header("root/PaxHeaders/File.java", "", pax.length, 'x', false);
+        tar.data(pax);
+        // The header's own size is overridden by the pax size
+        tar.header("root/File.java", "", 0, '0', false);
+        tar.data(bytes("hello world"));
+        tar.file("root/Short.java", "short");
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of(LONG_DIR+"File.java", "hello world", "Short.java", "short"));
+    }
+
+    @Test
+    public void testBase256Size() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.header("root/Big.java", "", 600, '0', true);
+        tar.data(bytes(Strings.repeat("x", 600)));
+        tar.file("root/Small.java", "small");
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of("Big.java", Strings.repeat("x", 600), "Small.java", "small"));
+    }
+
+    @Test
+    public void testSkipsLinksAndDirectories() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.header("root/", "", 0, '5', false);
+        tar.file("root/File.java", "hello");
+        tar.header("root/Link.java", "", 0, '2', false);
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of("File.java", "hello"));
+    }
+
+    @Test
+    public void testBadChecksum() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.file("root/File.java", "hello");
+        tar.file("root/Other.java", "other");
+        byte[] bytes = tar.finish();
+        bytes[512 * 2 + 10]++; // the second header's name
+        Path file = dir.resolve("test.tar");
+        Files.write(file, bytes);
+        try {
+            new TarTree(file).close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("bad header checksum at offset 1024"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGzipped() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.file("root/a/File.java", "hello");
+        tar.file("root/b/Other.java", "other");
+        Path file = dir.resolve("test.tgz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(tar.finish());
+        }
+        Map<String, String> expected = ImmutableMap.of("a/File.java", "hello", "b/Other.java", "other");
+        assertFiles(file, expected);
+        try (ArchiveTree plain = ArchiveTree.open(tar.write(dir.resolve("test.tar"))); ArchiveTree gzipped = ArchiveTree.open(file)) {
+            for (String path : expected.keySet()) {
+                assertEquals(gzipped.contentId(path(path)), plain.contentId(path(path)));
+            }
+        }
+    }
+
+    @Test
+    public void testAutoStrip() throws Exception {
+        TarWriter tar = new TarWriter();
+        tar.file("one/File.java", "hello");
+        tar.file("two/File.java", "other");
+        assertFiles(tar.write(dir.resolve("test.tar")), ImmutableMap.of("one/File.java", "hello", "two/File.java", "other"));
+        assertFiles(zip(dir.resolve("test.zip"), ImmutableMap.of("one/File.java", "hello", "two/File.java", "other")),
+                ImmutableMap.of("one/File.java", "hello", "two/File.java", "other"));
+        assertFiles(zip(dir.resolve("root.zip"), ImmutableMap.of("root/one/File.java", "hello", "root/two/File.java", "other")),
+                ImmutableMap.of("one/File.java", "hello", "two/File.java", "other"));
+
+        // A file at the top level means there is no single root
+        tar = new TarWriter();
+        tar.file("root/File.java", "hello");
+        tar.file("README", "readme");
+        assertFiles(tar.write(dir.resolve("top.tar")), ImmutableMap.of("root/File.java", "hello", "README", "readme"));
+
+        try (ArchiveTree tree = new TarTree(dir.resolve("test.tar"), 1, Predicates.<String>alwaysTrue(), Predicates.<String>alwaysTrue())) {
+            assertEquals(tree.listAll(), ImmutableSet.of(path("File.java")));
+        }
+    }
+
+    @Test
+    public void testZipAndTarCompareByContentId() throws Exception {
+        Map<String, String> preFiles = ImmutableMap.of("root/a/Same.java", "class Same {}", "root/a/Moved.java", "class Moved {}",
+                "root/a/Changed.java", "class Changed {}");
+        Map<String, String> postFiles = ImmutableMap.of("root/a/Same.java", "class Same {}", "root/b/Moved.java", "class Moved {}",
+                "root/a/Changed.java", "class Changed { int x; }");
+        Path zip = zip(dir.resolve("pre.zip"), preFiles);
+        TarWriter tar = new TarWriter();
+        for (Map.Entry<String, String> entry : postFiles.entrySet()) {
+            tar.file(entry.getKey(), entry.getValue());
+        }
+        Path tarFile = tar.write(dir.resolve("post.tar"));
+
+        try (ArchiveTree preTree = ArchiveTree.open(zip); ArchiveTree postTree = ArchiveTree.open(tarFile)) {
+            assertTrue(preTree instanceof ZipTree);
+            assertTrue(postTree instanceof TarTree);
+            assertEquals(preTree.contentIdType(), postTree.contentIdType());
+            assertEquals(preTree.contentId(path("a/Same.java")), postTree.contentId(path("a/Same.java")));
+            assertFalse(preTree.contentId(path("a/Changed.java")).equals(postTree.contentId(path("a/Changed.java"))));
+
+            // Only the changed file is read: the identical ones are found by content id
+            Files.delete(tarFile);
+            try {
+                new Differ().compare(preTree, postTree, new JavaFileComparer.Factory());
+                fail("Expected the changed file to be read");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("post.tar"), e.getMessage());
+            }
+        }
+
+        tar.write(tarFile);
+        try (ArchiveTree preTree = ArchiveTree.open(zip); ArchiveTree postTree = ArchiveTree.open(tarFile)) {
+            DifferResult result = new Differ().compare(preTree, postTree, new JavaFileComparer.Factory());
+            assertEquals(result.moved().size(), 1, DifferTest.describe(result));
+            assertEquals(result.moved().get(0).newPath, path("b/Moved.java"));
+            assertEquals(result.unchanged().size() + result.ambiguous().size(), 2, DifferTest.describe(result));
+        }
+    }
+
+    private void assertFiles(Path archive, Map<String, String> expected) throws IOException {
+        try (ArchiveTree tree = ArchiveTree.open(archive)) {
+            ImmutableList.Builder<Path> paths = ImmutableList.builder();
+            for (String path : expected.keySet()) {
+                paths.add(path(path));
+            }
+            assertEquals(ImmutableList.copyOf(tree.listAll()), paths.build());
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                Path path = path(entry.getKey());
+                byte[] contents = bytes(entry.getValue());
+                assertEquals(tree.file(path).read(), contents, path.toString());
+                assertEquals(tree.size(path), contents.length, path.toString());
+            }
+        }
+    }
+
+    private static Path zip(Path file, Map<String, String> files) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(bytes(entry.getValue()));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static String paxRecord(String key, String value) {
+        // The length includes itself
+        String record = " "+key+"="+value+"\n";
+        int length = record.length() + 1;
+        while (length != record.length() + Integer.toString(length).length()) {
+            length = record.length() + Integer.toString(length).length();
+        }
+        return length + record;
+    }
+
+    private static byte[] bytes(String val) {
+        return val.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Path path(String relativePath) {
+        return Paths.get("", relativePath.split("/"));
+    }
+
+    /**
+     * Writes a tar a header (and its data) at a time.
+     */
+    private static class TarWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void file(String name, String contents) throws IOException {
+            byte[] data = bytes(contents);
+            header(name, "", data.length, '0', false);
+            data(data);
+        }
+
+        /**
+         * A ustar header: the size in octal, or (GNU) base-256.
+         */
+        void header(String name, String prefix, long size, char type, boolean base256) throws IOException {
+            byte[] block = new byte[512];
+            put(block, 0, 100, name);
+            put(block, 100, 8, "0000644");
+            put(block, 108, 8, "0000000");
+            put(block, 116, 8, "0000000");
+            if (base256) {
+                block[124] = (byte) 0x80;
+                for (int i = 0; i < 8; i++) {
+                    block[135 - i] = (byte) (size >>> (8 * i));
+                }
+            } else {
+                put(block, 124, 12, Strings.padStart(Long.toOctalString(size), 11, '0'));
+            }
+            put(block, 136, 12, "00000000000");
+            block[156] = (byte) type;
+            put(block, 257, 6, "ustar");
+            put(block, 263, 2, "00");
+            put(block, 345, 155, prefix);
+            Arrays.fill(block, 148, 156, (byte) ' ');
+            long sum = 0;
+            for (byte b : block) {
+                sum += b & 0xff;
+            }
+            put(block, 148, 7, Strings.padStart(Long.toOctalString(sum), 6, '0'));
+            out.write(block);
+        }
+
+        /**
+         * The data of the last header, padded to a whole block.
+         */
+        void data(byte[] data) throws IOException {
+            out.write(data);
+            out.write(new byte[(512 - data.length % 512) % 512]);
+        }
+
+        byte[] finish() {
+            byte[] result = out.toByteArray();
+            return Arrays.copyOf(result, result.length + 1024);
+        }
+
+        Path write(Path file) throws IOException {
+            Files.write(file, finish());
+            return file;
+        }
+
+        private static void put(byte[] block, int offset, int length, String val) {
+            byte[] bytes = bytes(val);
+            assertTrue(bytes.length <= length, val);
+            System.arraycopy(bytes, 0, block, offset, bytes.length);
+        }
+    }
+}
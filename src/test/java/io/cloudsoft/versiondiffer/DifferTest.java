@@ -0,0 +1,397 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.AmbiguousResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.MovedResult;
+import io.cloudsoft.versiondiffer.Differ.DifferResult.UnchangedResult;
+import io.cloudsoft.versiondiffer.ProgressListener.Stage;
+
+public class DifferTest {
+
+    private static final String MATCHED_ANOTHER = "Matching file was more similar to another original file";
+    private static final String UNCHANGED_AT_ORIGINAL_PATH = "Matching file is unchanged at its original path";
+    private static final String AT_ORIGINAL_PATH = "Matching file is still at its original path";
+
+    private Path preDir;
+    private Path postDir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        Path dir = Os.newTempDir(getClass()).toPath();
+        preDir = Files.createDirectory(dir.resolve("pre"));
+        postDir = Files.createDirectory(dir.resolve("post"));
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (preDir != null) Os.deleteRecursively(preDir.getParent().toFile());
+    }
+
+    @Test
+    public void testContestedFileGoesToMostSimilar() throws Exception {
+        // Both could be c/Foo.java, but b/Foo.java is more similar, though a/Foo.java is compared first
+        write(preDir, "a/Foo.java", javaClass("Foo", 0, "private String alpha = \"aaaa\";"));
+        write(preDir, "b/Foo.java", javaClass("Foo", 0, "private String beta = \"bbbb\";"));
+        write(postDir, "c/Foo.java", javaClass("Foo", 0, "private String beta = \"bbbb\";", "private String gamma;"));
+
+        DifferResult result = compare(new Differ());
+
+        assertEquals(result.moved().size(), 1, describe(result));
+        assertMoved(result.moved().get(0), "b/Foo.java", "c/Foo.java");
+        assertEquals(result.ambiguous().size(), 1, describe(result));
+        assertAmbiguous(result.ambiguous().get(0), "a/Foo.java", MATCHED_ANOTHER, "c/Foo.java");
+        assertTrue(result.newFiles().isEmpty(), describe(result));
+    }
+
+    @Test
+    public void testRenameFoundBySimilarity() throws Exception {
+        write(preDir, "a/OldName.java", javaClass("OldName", 100));
+        write(preDir, "a/Other.java", javaClass("Other", 200));
+        write(postDir, "a/NewName.java", javaClass("NewName", 100, "private String added;"));
+        write(postDir, "a/Other.java", javaClass("Other", 200));
+        write(postDir, "a/Unrelated.java", javaClass("Unrelated", 300));
+
+        DifferResult result = compare(new Differ());
+
+        assertEquals(result.moved().size(), 1, describe(result));
+        assertMoved(result.moved().get(0), "a/OldName.java", "a/NewName.java");
+        assertEquals(paths(result.unchanged()), ImmutableList.of(path("a/Other.java")));
+        assertTrue(result.ambiguous().isEmpty(), describe(result));
+        assertEquals(result.newFiles(), ImmutableList.of(path("a/Unrelated.java")));
+    }
+
+    @Test
+    public void testMatchingFileUnchangedAtOriginalPath() throws Exception {
+        write(preDir, "a/Foo.java", javaClass("Foo", 0, "private String alpha;"));
+        write(preDir, "b/Foo.java", javaClass("Foo", 0));
+        write(postDir, "b/Foo.java", javaClass("Foo", 0));
+
+        DifferResult result = compare(new Differ());
+
+        assertEquals(paths(result.unchanged()), ImmutableList.of(path("b/Foo.java")));
+        assertEquals(result.ambiguous().size(), 1, describe(result));
+        assertAmbiguous(result.ambiguous().get(0), "a/Foo.java", UNCHANGED_AT_ORIGINAL_PATH, "b/Foo.java");
+        assertTrue(result.moved().isEmpty(), describe(result));
+    }
+
+    @Test
+    public void testMatchingFileStillAtOriginalPath() throws Exception {
+        // Post b/Foo.java is identical to pre a/Foo.java, but accounted for (as significantly changed) by pre b/Foo.java
+        write(preDir, "a/Foo.java", javaClass("Foo", 0));
+        write(preDir, "b/Foo.java", javaClass("Foo", 500));
+        write(postDir, "b/Foo.java", javaClass("Foo", 0));
+
+        DifferResult result = compare(new Differ());
+
+        assertTrue(result.unchanged().isEmpty(), describe(result));
+        assertTrue(result.moved().isEmpty(), describe(result));
+        assertEquals(result.ambiguous().size(), 2, describe(result));
+        AmbiguousResult changed = result.ambiguous().get(0);
+        assertEquals(changed.origPath, path("b/Foo.java"));
+        assertTrue(changed.newPaths.get(path("b/Foo.java")) < Differ.DEFAULT_SIMILARITY_THRESHOLD, describe(result));
+        assertAmbiguous(result.ambiguous().get(1), "a/Foo.java", AT_ORIGINAL_PATH, "b/Foo.java");
+        assertEquals(result.ambiguous().get(1).newPaths.get(path("b/Foo.java")), 1.0);
+        assertTrue(result.newFiles().isEmpty(), describe(result));
+    }
+
+    @Test
+    public void testMovedResultsComeLast() throws Exception {
+        write(preDir, "a/Moved.java", javaClass("Moved", 0));
+        write(preDir, "b/Same.java", javaClass("Same", 100));
+        write(preDir, "c/Gone.java", javaClass("Gone", 200));
+        write(preDir, "d/Changed.java", javaClass("Changed", 300));
+        write(postDir, "b/Same.java", javaClass("Same", 100));
+        write(postDir, "d/Changed.java", javaClass("Changed", 300, "private String added;"));
+        write(postDir, "e/Moved.java", javaClass("Moved", 0));
+        write(postDir, "f/Extra.java", javaClass("Extra", 400));
+
+        FileLister preTree = new FileLister(preDir.toFile());
+        RecordingListener listener = new RecordingListener();
+        new Differ().listener(listener).retainResults(false).compare(preTree, new FileLister(postDir.toFile()), new JavaFileComparer.Factory());
+
+        // In the order of the pre tree (a directory walk, so not necessarily sorted), but moved files only once matched
+        List<String> expected = MutableList.of();
+        List<String> unresolved = MutableList.of();
+        for (Path path : preTree.listAll()) {
+            if (path.equals(path("b/Same.java")) || path.equals(path("d/Changed.java"))) {
+                expected.add("unchanged "+path);
+            } else if (path.equals(path("a/Moved.java"))) {
+                unresolved.add("moved "+path+" "+path("e/Moved.java"));
+            } else {
+                unresolved.add("ambiguous "+path);
+            }
+        }
+        expected.addAll(unresolved);
+        expected.add("new "+path("f/Extra.java"));
+        assertEquals(listener.events, expected);
+    }
+
+    @Test
+    public void testSameResultsWhateverTheParallelism() throws Exception {
+        writeMixedTrees();
+
+        RecordingListener sequentialListener = new RecordingListener();
+        String sequential = describe(compare(new Differ(1).listener(sequentialListener)));
+        for (int parallelism : new int[] {2, 8}) {
+            RecordingListener listener = new RecordingListener();
+            assertEquals(describe(compare(new Differ(parallelism).listener(listener))), sequential, "parallelism "+parallelism);
+            assertEquals(listener.events, sequentialListener.events, "parallelism "+parallelism);
+        }
+        assertTrue(sequential.contains("unchanged "), sequential);
+        assertTrue(sequential.contains("moved "), sequential);
+        assertTrue(sequential.contains("ambiguous "), sequential);
+        assertTrue(sequential.contains("new "), sequential);
+    }
+
+    @Test
+    public void testSameResultsWithReadAhead() throws Exception {
+        writeMixedTrees();
+
+        RecordingListener sequentialListener = new RecordingListener();
+        String sequential = describe(compare(new Differ(1).listener(sequentialListener)));
+        List<Differ> differs = ImmutableList.of(
+                new Differ(1).readAhead(1),
+                new Differ(4).readAhead(2).readAheadWindow(3),
+                // Hashes evicted before they are compared are just hashed again
+                new Differ(4).readAhead(3).readAheadWindow(1).contentHasher(new ContentHasher(null, null, 2)));
+        for (Differ differ : differs) {
+            RecordingListener listener = new RecordingListener();
+            assertEquals(describe(compare(differ.listener(listener))), sequential);
+            assertEquals(listener.events, sequentialListener.events);
+        }
+    }
+
+    @Test
+    public void testTimeBudgetComparesInStages() throws Exception {
+        writeStagedTrees();
+
+        StageRecorder progress = new StageRecorder();
+        DifferResult result = compare(new Differ().timeBudget(1, TimeUnit.HOURS).progressListener(progress));
+
+        // The files done by the time each stage starts: 3 identical, then 2 with a single contender, then the other 2
+        assertEquals(progress.doneAtStart, ImmutableMap.of(Stage.IDENTICAL, 0, Stage.SINGLE_CONTENDER, 3,
+                Stage.MULTIPLE_CONTENDERS, 5, Stage.MATCH, 7));
+        assertEquals(describe(result), describe(compare(new Differ())));
+        assertTrue(result.unevaluated().isEmpty(), describe(result));
+    }
+
+    @Test
+    public void testTimeBudgetRunsOut() throws Exception {
+        writeStagedTrees();
+
+        FileLister preTree = new FileLister(preDir.toFile());
+        DifferResult result = new Differ().timeBudget(1, TimeUnit.NANOSECONDS)
+                .compare(preTree, new FileLister(postDir.toFile()), new JavaFileComparer.Factory());
+
+        assertEquals(result.unevaluated(), ImmutableList.copyOf(preTree.listAll()));
+        assertTrue(result.unchanged().isEmpty(), describe(result));
+        assertTrue(result.moved().isEmpty(), describe(result));
+        assertTrue(result.ambiguous().isEmpty(), describe(result));
+        // Not the files at the same location as an unevaluated one
+        assertEquals(ImmutableSet.copyOf(result.newFiles()), ImmutableSet.of(path("n/Ident.java"), path("n/Single.java"),
+                path("n/Multi.java"), path("o/Multi.java"), path("o/Renamed.java")));
+    }
+
+    @Test
+    public void testTimeBudgetCannotBeCombinedWithReadAhead() throws Exception {
+        try {
+            new Differ().readAhead(2).timeBudget(1, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new Differ().timeBudget(1, TimeUnit.SECONDS).readAhead(2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        new Differ().readAhead(2).timeBudget(0, TimeUnit.SECONDS);
+    }
+
+    private DifferResult compare(Differ differ) throws IOException {
+        return differ.compare(new FileLister(preDir.toFile()), new FileLister(postDir.toFile()), new JavaFileComparer.Factory());
+    }
+
+    /**
+     * Trees with some of each kind of result: in each of a few directories, files that are unchanged, changed, moved,
+     * renamed (or contested by a same-named file), removed and added.
+     */
+    private void writeMixedTrees() throws IOException {
+        for (int d = 0; d < 6; d++) {
+            String dir = "dir"+d+"/";
+            String movedTo = "dir"+((d + 1) % 6)+"/moved/";
+            int seed = d * 100;
+            write(preDir, dir+"Same.java", javaClass("Same", seed));
+            write(postDir, dir+"Same.java", javaClass("Same", seed));
+            write(preDir, dir+"Changed.java", javaClass("Changed", seed + 1));
+            write(postDir, dir+"Changed.java", javaClass("Changed", seed + 1, "private String added;"));
+            write(preDir, dir+"Rewritten.java", javaClass("Rewritten", seed + 2));
+            write(postDir, dir+"Rewritten.java", javaClass("Rewritten", seed + 3));
+            write(preDir, dir+"Moved"+d+".java", javaClass("Moved", seed + 4));
+            write(postDir, movedTo+"Moved"+d+".java", javaClass("Moved", seed + 4, "private String added;"));
+            write(preDir, dir+"Common.java", javaClass("Common", (d % 2 == 0) ? 1000 : 1001 + d));
+            write(preDir, dir+"OldName.java", javaClass("OldName", seed + 5));
+            write(postDir, dir+"NewName.java", javaClass("NewName", seed + 5));
+            write(preDir, dir+"Removed.java", javaClass("Removed", seed + 6));
+            write(postDir, dir+"Added.java", javaClass("Added", seed + 7));
+        }
+        write(postDir, "common/Common.java", javaClass("Common", 1000, "private String added;"));
+    }
+
+    /**
+     * Trees with files for each stage of a time budget: identical at the same path or elsewhere; changed at the same
+     * path, or moved to the only file with the same name; and moved to one of several such files, or renamed.
+     */
+    private void writeStagedTrees() throws IOException {
+        write(preDir, "s/Same1.java", javaClass("Same1", 1));
+        write(postDir, "s/Same1.java", javaClass("Same1", 1));
+        write(preDir, "s/Same2.java", javaClass("Same2", 2));
+        write(postDir, "s/Same2.java", javaClass("Same2", 2));
+        write(preDir, "m/Ident.java", javaClass("Ident", 3));
+        write(postDir, "n/Ident.java", javaClass("Ident", 3));
+        write(preDir, "c/Changed.java", javaClass("Changed", 4));
+        write(postDir, "c/Changed.java", javaClass("Changed", 4, "private String added;"));
+        write(preDir, "m/Single.java", javaClass("Single", 5));
+        write(postDir, "n/Single.java", javaClass("Single", 5, "private String added;"));
+        write(preDir, "m/Multi.java", javaClass("Multi", 6));
+        write(postDir, "n/Multi.java", javaClass("Multi", 6, "private String added;"));
+        write(postDir, "o/Multi.java", javaClass("Multi", 7));
+        write(preDir, "m/Orphan.java", javaClass("Orphan", 8));
+        write(postDir, "o/Renamed.java", javaClass("Renamed", 8));
+    }
+
+    /**
+     * A class with a few dozen fields with random names, chosen by the given seed, so classes with different seeds are
+     * dissimilar, and then the given extra lines.
+     */
+    static String javaClass(String name, int seed, String... extraLines) {
+        Random random = new Random(seed);
+        List<String> lines = MutableList.of("package test;", "", "public class "+name+" {");
+        for (int i = 0; i < 30; i++) {
+            StringBuilder field = new StringBuilder();
+            for (int j = 0; j < 12; j++) {
+                field.append((char) ('a' + random.nextInt(26)));
+            }
+            lines.add("    private int "+field+" = "+random.nextInt()+";");
+        }
+        for (String line : extraLines) {
+            lines.add("    "+line);
+        }
+        lines.add("}");
+        return Joiner.on("\n").join(lines)+"\n";
+    }
+
+    static void write(Path dir, String relativePath, String contents) throws IOException {
+        Path file = dir.resolve(path(relativePath));
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Path path(String relativePath) {
+        return Paths.get("", relativePath.split("/"));
+    }
+
+    static String describe(DifferResult result) {
+        StringBuilder sb = new StringBuilder();
+        for (UnchangedResult unchanged : result.unchanged()) {
+            sb.append("unchanged "+unchanged.path+" "+unchanged.similarity+"; ");
+        }
+        for (MovedResult moved : result.moved()) {
+            sb.append("moved "+moved.origPath+" "+moved.newPath+" "+moved.similarity+"; ");
+        }
+        for (AmbiguousResult ambiguous : result.ambiguous()) {
+            sb.append("ambiguous "+ambiguous.origPath+" "+ambiguous.newPaths+" "+ambiguous.msg+"; ");
+        }
+        for (Path newFile : result.newFiles()) {
+            sb.append("new "+newFile+"; ");
+        }
+        for (Path unevaluated : result.unevaluated()) {
+            sb.append("unevaluated "+unevaluated+"; ");
+        }
+        return sb.toString();
+    }
+
+    private static void assertMoved(MovedResult moved, String origPath, String newPath) {
+        assertEquals(moved.origPath, path(origPath));
+        assertEquals(moved.newPath, path(newPath));
+        assertTrue(moved.similarity >= Differ.DEFAULT_SIMILARITY_THRESHOLD, "similarity "+moved.similarity);
+    }
+
+    private static void assertAmbiguous(AmbiguousResult ambiguous, String origPath, String msg, String newPath) {
+        assertEquals(ambiguous.origPath, path(origPath));
+        assertEquals(ambiguous.msg, msg);
+        assertEquals(ambiguous.newPaths.keySet(), ImmutableSet.of(path(newPath)));
+    }
+
+    private static List<Path> paths(List<UnchangedResult> results) {
+        List<Path> paths = MutableList.of();
+        for (UnchangedResult result : results) {
+            paths.add(result.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Records the number of files done when each stage started.
+     */
+    static class StageRecorder implements ProgressListener {
+        final Map<Stage, Integer> doneAtStart = Maps.newEnumMap(Stage.class);
+
+        @Override public void onProgress(Progress progress) {
+            if (progress.stage != null && !doneAtStart.containsKey(progress.stage)) {
+                doneAtStart.put(progress.stage, progress.filesDone);
+            }
+        }
+    }
+
+    /**
+     * Records the results it is told about, in order.
+     */
+    static class RecordingListener implements DifferListener {
+        final List<String> events = MutableList.of();
+
+        @Override public void onUnchanged(UnchangedResult result) {
+            events.add("unchanged "+result.path);
+        }
+        @Override public void onMoved(MovedResult result) {
+            events.add("moved "+result.origPath+" "+result.newPath);
+        }
+        @Override public void onAmbiguous(AmbiguousResult result) {
+            events.add("ambiguous "+result.origPath);
+        }
+        @Override public void onNewFile(Path path) {
+            events.add("new "+path);
+        }
+        @Override public void onUnevaluated(Path path) {
+            events.add("unevaluated "+path);
+        }
+    }
+}
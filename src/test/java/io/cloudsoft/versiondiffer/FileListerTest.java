@@ -0,0 +1,145 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+import brooklyn.util.collections.MutableSet;
+import brooklyn.util.os.Os;
+import brooklyn.util.text.StringPredicates;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+/**
+ * Lists directory trees in parallel, checking the order matches a sequential walk and that filtered
+ * directories are never looked in.
+ */
+public class FileListerTest {
+
+    /** As used by {@link Main}: skips git metadata, and build output other than under a source directory. */
+    @SuppressWarnings("unchecked")
+    private static final Predicate<String> DIR_FILTER = Predicates.and(
+            Predicates.not(StringPredicates.matchesRegex("(.*/)?\\.git")),
+            Predicates.not(Predicates.and(StringPredicates.matchesRegex("(.*/)?target"), Predicates.not(StringPredicates.containsRegex("(^|/)src/")))));
+
+    private Path dir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testSameOrderAsSequentialWalk() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            write("Top"+i+".java");
+            for (int j = 0; j < 5; j++) {
+                write("p"+i+"/Mid"+j+".java");
+                for (int k = 0; k < 3; k++) {
+                    write("p"+i+"/q"+j+"/Leaf"+k+".java");
+                }
+            }
+        }
+        List<Path> expected = walk();
+        assertEquals(expected.size(), 5 + 25 + 75);
+
+        for (int parallelism : new int[] {1, 2, 8}) {
+            FileLister lister = new FileLister(dir, Predicates.alwaysTrue(), Predicates.alwaysTrue(), parallelism);
+            assertEquals(MutableList.copyOf(lister.listAll()), expected, "parallelism "+parallelism);
+        }
+    }
+
+    @Test
+    public void testSharedPool() throws Exception {
+        write("a/A.java");
+        write("b/B.java");
+        List<Path> expected = walk();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                FileLister lister = new FileLister(dir, Predicates.alwaysTrue(), Predicates.alwaysTrue(), pool);
+                assertEquals(MutableList.copyOf(lister.listAll()), expected);
+            }
+            assertFalse(pool.isShutdown(), "Expected the caller's pool to be left running");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDirFilterPrunesGitAndTarget() throws Exception {
+        write("A.java");
+        write(".git/objects/ab/cdef");
+        write(".git/HEAD");
+        write("target/classes/A.class");
+        write("target/generated/B.java");
+        write("module/target/C.java");
+        write("module/src/main/java/D.java");
+        // Only skipped as build output, not when under a source directory
+        write("module/src/test/resources/target/E.java");
+
+        final List<String> dirsOffered = MutableList.of();
+        Predicate<String> recordingDirFilter = new Predicate<String>() {
+            @Override public boolean apply(String input) {
+                synchronized (dirsOffered) {
+                    dirsOffered.add(input);
+                }
+                return DIR_FILTER.apply(input);
+            }};
+        FileLister lister = new FileLister(dir, Predicates.alwaysTrue(), recordingDirFilter, 4);
+
+        assertEquals(lister.listAll(), MutableSet.of(
+                path("A.java"), path("module/src/main/java/D.java"), path("module/src/test/resources/target/E.java")));
+        assertTrue(lister.contains(path("module/src/main/java/D.java")));
+        assertFalse(lister.contains(path("target/generated/B.java")));
+        for (String offered : dirsOffered) {
+            assertFalse(offered.startsWith(".git/") || offered.startsWith("target/") || offered.startsWith("module/target/"),
+                    "Looked inside a filtered directory: "+offered);
+        }
+        assertTrue(dirsOffered.contains(".git"), "offered "+dirsOffered);
+    }
+
+    private void write(String relativePath) throws IOException {
+        Path path = dir.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.write(path, ("// "+relativePath+"\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path path(String relativePath) {
+        return dir.getFileSystem().getPath(relativePath);
+    }
+
+    /**
+     * The relative paths of all files, in the order of a sequential {@link Files#walkFileTree(Path, java.nio.file.FileVisitor)}.
+     */
+    private List<Path> walk() throws IOException {
+        final List<Path> result = MutableList.of();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                result.add(dir.relativize(file));
+                return FileVisitResult.CONTINUE;
+            }});
+        return result;
+    }
+}
@@ -0,0 +1,292 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+import brooklyn.util.os.Os;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Saves and loads {@link FingerprintStore}s, checking that what is read back (only when asked for) is what was
+ * computed, and that stale entries and unusable files are discarded rather than used.
+ */
+public class FingerprintStoreTest {
+
+    private static final String FORMAT = "test-v1";
+
+    /** Small enough that the larger files are sketched. */
+    private static final long SKETCH_THRESHOLD = 200;
+
+    private Path dir;
+    private Path storeFile;
+    private CountingFingerprinter delegate;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+        storeFile = dir.resolve("store").resolve("fingerprints.bin");
+        delegate = new CountingFingerprinter(JavaFileComparer.fingerprinter(SKETCH_THRESHOLD));
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<SourceFile> files = writeFiles("small", "large");
+        HashCode contentHash = Hashing.md5().hashString("contents", StandardCharsets.UTF_8);
+        List<FileFingerprint> computed = MutableList.of();
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            for (SourceFile file : files) {
+                computed.add(store.fingerprint(file));
+            }
+            store.putContentHash(files.get(0), contentHash);
+            assertEquals(store.missCount(), 2);
+            store.save();
+        }
+        assertFalse(computed.get(0).isSketched());
+        assertTrue(computed.get(1).isSketched());
+        assertEquals(delegate.count.get(), 2);
+
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            for (int i = 0; i < files.size(); i++) {
+                assertSameFingerprint(store.fingerprint(files.get(i)), computed.get(i));
+            }
+            assertEquals(store.getContentHash(files.get(0)), contentHash);
+            assertNull(store.getContentHash(files.get(1)));
+            assertEquals(store.hitCount(), 3);
+            assertEquals(store.missCount(), 1);
+        }
+        assertEquals(delegate.count.get(), 2);
+    }
+
+    @Test
+    public void testReadsFingerprintsWhenAskedFor() throws Exception {
+        List<SourceFile> files = writeFiles("small");
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.save();
+        }
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            // Cut off the end of the fingerprint once loaded: it is only read now, so is recomputed
+            try (FileChannel channel = FileChannel.open(storeFile, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 4);
+            }
+            store.fingerprint(files.get(0));
+            assertEquals(delegate.count.get(), 2);
+            assertEquals(store.missCount(), 1);
+        }
+    }
+
+    @Test
+    public void testKeepsFingerprintsComputedSinceLoading() throws Exception {
+        List<SourceFile> files = writeFiles("first", "second", "third");
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.save();
+            // Added to the journal after saving, then copied into the file by the next save
+            store.fingerprint(files.get(1));
+            assertEquals(store.hitCount(), 0);
+            store.fingerprint(files.get(0));
+            assertEquals(store.hitCount(), 1);
+            store.save();
+            // Only in the journal, so lost on close
+            store.fingerprint(files.get(2));
+        }
+        assertEquals(storeFiles(), MutableList.of(storeFile), "Expected no journal once closed");
+        assertEquals(delegate.count.get(), 3);
+
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.fingerprint(files.get(1));
+            assertEquals(store.hitCount(), 2);
+            store.fingerprint(files.get(2));
+            assertEquals(store.missCount(), 1);
+            store.save();
+        }
+        assertEquals(delegate.count.get(), 4);
+    }
+
+    @Test
+    public void testForgetsEntriesNotUsed() throws Exception {
+        List<SourceFile> files = writeFiles("first", "second");
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.fingerprint(files.get(1));
+            store.save();
+        }
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.save();
+        }
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.fingerprint(files.get(1));
+            assertEquals(store.hitCount(), 1);
+            assertEquals(store.missCount(), 1);
+        }
+    }
+
+    @Test
+    public void testChangedFilesAreRecomputed() throws Exception {
+        SourceFile file = writeFiles("file").get(0);
+        Path path = file.path().get();
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(file);
+            store.putContentHash(file, Hashing.md5().hashString("contents", StandardCharsets.UTF_8));
+            store.save();
+        }
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(SourceFile.of(path, file.size(), file.lastModified() + 1000));
+            store.fingerprint(SourceFile.of(path, file.size() + 1, file.lastModified()));
+            assertNull(store.getContentHash(SourceFile.of(path, file.size(), file.lastModified() + 1000)));
+            assertEquals(store.hitCount(), 0);
+            assertEquals(delegate.count.get(), 3);
+        }
+    }
+
+    @Test
+    public void testDiscardsStoreOfOtherFormatOrVersion() throws Exception {
+        SourceFile file = writeFiles("file").get(0);
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(file);
+            store.save();
+        }
+        assertDiscarded(FingerprintStore.load(storeFile, "test-v2", delegate), file);
+
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(storeFile))) {
+            out.writeInt(0x56444650);
+            out.writeInt(1);
+            out.writeUTF(FORMAT);
+            out.writeInt(0);
+        }
+        assertDiscarded(FingerprintStore.load(storeFile, FORMAT, delegate), file);
+    }
+
+    @Test
+    public void testDiscardsCorruptStore() throws Exception {
+        List<SourceFile> files = writeFiles("first", "second");
+        try (FingerprintStore store = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            store.fingerprint(files.get(0));
+            store.fingerprint(files.get(1));
+            store.save();
+        }
+        byte[] saved = Files.readAllBytes(storeFile);
+
+        // Truncated in the middle of the entries
+        try (OutputStream out = Files.newOutputStream(storeFile)) {
+            out.write(saved, 0, saved.length / 2);
+        }
+        assertDiscarded(FingerprintStore.load(storeFile, FORMAT, delegate), files.get(0));
+
+        // Not a store at all
+        Files.write(storeFile, "not a fingerprint store".getBytes(StandardCharsets.UTF_8));
+        assertDiscarded(FingerprintStore.load(storeFile, FORMAT, delegate), files.get(0));
+
+        // ... which is replaced when saved
+        try (FingerprintStore reloaded = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            reloaded.fingerprint(files.get(0));
+            assertEquals(reloaded.hitCount(), 0);
+            reloaded.save();
+        }
+        try (FingerprintStore reloaded = FingerprintStore.load(storeFile, FORMAT, delegate)) {
+            reloaded.fingerprint(files.get(0));
+            assertEquals(reloaded.hitCount(), 1);
+        }
+    }
+
+    /**
+     * Checks the store starts empty, and closes it.
+     */
+    private void assertDiscarded(FingerprintStore store, SourceFile file) throws IOException {
+        try {
+            int count = delegate.count.get();
+            store.fingerprint(file);
+            assertEquals(store.hitCount(), 0);
+            assertEquals(delegate.count.get(), count + 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void assertSameFingerprint(FileFingerprint actual, FileFingerprint expected) {
+        assertEquals(actual.normalizedHash(), expected.normalizedHash());
+        assertEquals(actual.isSketched(), expected.isSketched());
+        assertEquals(actual.letterPairs(), expected.letterPairs());
+        if (expected.isSketched()) {
+            assertEquals(actual.sketch().estimateDice(expected.sketch()), 1.0);
+        } else {
+            assertEquals(actual.bigrams().dice(expected.bigrams()), 1.0);
+            assertEquals(actual.bigrams().toString(), expected.bigrams().toString());
+        }
+    }
+
+    /**
+     * A Java file per name, of increasing size (so the later ones may be sketched).
+     */
+    private List<SourceFile> writeFiles(String... names) throws IOException {
+        List<SourceFile> result = MutableList.of();
+        for (int i = 0; i < names.length; i++) {
+            StringBuilder contents = new StringBuilder("public class "+names[i]+" {\n");
+            for (int j = 0; j < 1 + i * 20; j++) {
+                contents.append("    int "+names[i]+j+" = "+j+";\n");
+            }
+            contents.append("}\n");
+            Path path = dir.resolve(names[i]+".java");
+            Files.write(path, contents.toString().getBytes(StandardCharsets.UTF_8));
+            result.add(SourceFile.of(path));
+        }
+        return result;
+    }
+
+    private List<Path> storeFiles() throws IOException {
+        List<Path> result = MutableList.of();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(storeFile.getParent())) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the fingerprints computed.
+     */
+    private static class CountingFingerprinter implements Fingerprinter {
+        final Fingerprinter delegate;
+        final AtomicInteger count = new AtomicInteger();
+
+        CountingFingerprinter(Fingerprinter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public FileFingerprint fingerprint(SourceFile file) throws IOException {
+            count.incrementAndGet();
+            return delegate.fingerprint(file);
+        }
+    }
+}
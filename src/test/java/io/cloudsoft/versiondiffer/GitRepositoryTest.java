@@ -0,0 +1,338 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads trees from a repository made by the git command line (skipped if there is none), with its
+ * objects loose and then packed with offset and with ref deltas, and checks they match plain checkouts.
+ */
+public class GitRepositoryTest {
+
+    private Path dir;
+    private Path repoDir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+        repoDir = dir.resolve("repo");
+        Files.createDirectories(repoDir);
+        try {
+            git("init", "-q");
+        } catch (IOException e) {
+            throw new SkipException("Cannot run git: "+e);
+        }
+        commit("v1", preFiles());
+        commit("v2", postFiles());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testLooseObjects() throws Exception {
+        assertTrue(packs().isEmpty(), "Expected only loose objects, but got "+packs());
+        assertMatchesCheckouts();
+    }
+
+    @Test
+    public void testOffsetDeltas() throws Exception {
+        git("gc", "-q", "--prune=now");
+        assertPackedWithDeltas();
+        assertMatchesCheckouts();
+    }
+
+    @Test
+    public void testRefDeltas() throws Exception {
+        git("-c", "repack.useDeltaBaseOffset=false", "repack", "-a", "-d", "-f", "-q");
+        git("prune-packed");
+        assertPackedWithDeltas();
+        assertMatchesCheckouts();
+    }
+
+    @Test
+    public void testResolvesRevisions() throws Exception {
+        try (GitRepository repo = GitRepository.open(repoDir)) {
+            String head = git("rev-parse", "HEAD").trim();
+            assertEquals(repo.resolve("HEAD").toString(), head);
+            assertEquals(repo.resolve("v2").toString(), head);
+            assertEquals(repo.resolve(head.substring(0, 10)).toString(), head);
+            assertEquals(repo.resolveTree("v1").toString(), git("rev-parse", "v1^{tree}").trim());
+        }
+    }
+
+    @Test
+    public void testCorruptDeltaNamesObject() throws Exception {
+        // A delta copying bytes 10-15 of its 12-byte base
+        byte[] base = "hello world\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] delta = {12, 5, (byte) 0x91, 10, 5};
+        HashCode baseId = blobId(base);
+        HashCode deltaId = HashCode.fromString(Strings.repeat("ff", 20));
+        writePack(baseId, base, deltaId, delta);
+        try (GitRepository repo = GitRepository.open(repoDir)) {
+            assertEquals(repo.read(baseId).data, base);
+            try {
+                repo.read(deltaId);
+                fail("Expected corrupt delta to fail");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains(deltaId.toString()), e.getMessage());
+                assertTrue(e.getMessage().contains("Corrupt delta"), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testBlobsKeyedOnExtension() throws Exception {
+        // Comments are dropped from xml, but kept in java, so the same blob is fingerprinted differently
+        Path file = repoDir.resolve("blob.txt");
+        Files.write(file, "<a>\n<!-- comment -->\n<b/>\n</a>\n".getBytes(StandardCharsets.UTF_8));
+        HashCode id = HashCode.fromString(git("hash-object", "-w", file.toString()).trim());
+        try (GitRepository repo = GitRepository.open(repoDir)) {
+            SourceFile java = repo.blob(id, "Foo.java");
+            SourceFile xml = repo.blob(id, "foo.xml");
+            assertEquals(repo.blob(id, "Bar.JAVA"), java);
+            assertEquals(repo.blob(id, "Bar.JAVA").id(), java.id());
+            assertNotEquals(xml, java);
+            assertNotEquals(xml.id(), java.id());
+
+            FingerprintCache fingerprints = new FingerprintCache(NormalizationRegistry.standard(JavaFileComparer.DEFAULT_SKETCH_THRESHOLD));
+            FileFingerprint javaFingerprint = fingerprints.fingerprint(java);
+            FileFingerprint xmlFingerprint = fingerprints.fingerprint(xml);
+            assertNotEquals(xmlFingerprint.normalizedHash(), javaFingerprint.normalizedHash());
+        }
+    }
+
+    private void assertMatchesCheckouts() throws Exception {
+        FileLister preCheckout = checkout("v1");
+        FileLister postCheckout = checkout("v2");
+        try (GitRepository repo = GitRepository.open(repoDir)) {
+            GitTree preTree = new GitTree(repo, "v1");
+            GitTree postTree = new GitTree(repo, "v2");
+            assertSameFiles(preTree, preCheckout);
+            assertSameFiles(postTree, postCheckout);
+
+            Differ.DifferResult expected = new Differ().compare(preCheckout, postCheckout, new JavaFileComparer.Factory());
+            Differ.DifferResult actual = new Differ().compare(preTree, postTree, new JavaFileComparer.Factory());
+            assertEquals(describe(actual), describe(expected));
+        }
+    }
+
+    private void assertSameFiles(GitTree tree, FileLister checkout) throws Exception {
+        assertEquals(ImmutableSet.copyOf(tree.listAll()), ImmutableSet.copyOf(checkout.listAll()));
+        for (Path path : tree.listAll()) {
+            byte[] expected = Files.readAllBytes(checkout.toAbsolute(path));
+            assertEquals(tree.file(path).read(), expected, "Contents of "+path);
+            assertEquals(tree.size(path), expected.length, "Size of "+path);
+            assertEquals(tree.contentId(path), blobId(expected), "Id of "+path);
+        }
+    }
+
+    private void assertPackedWithDeltas() throws Exception {
+        List<Path> packs = packs();
+        assertEquals(packs.size(), 1, "Packs "+packs);
+        boolean deltas = false;
+        for (String line : git("verify-pack", "-v", packs.get(0).toString().replaceAll("\\.pack$", ".idx")).split("\n")) {
+            // Deltified objects also have their depth and base
+            deltas |= line.matches("[0-9a-f]{40} \\w+ +\\d+ \\d+ \\d+ \\d+ [0-9a-f]{40}");
+        }
+        assertTrue(deltas, "No deltas in "+packs.get(0));
+        assertTrue(git("count-objects", "-v").contains("count: 0\n"), "Loose objects remain");
+    }
+
+    /**
+     * Files similar enough between and within the revisions for git to store them as deltas: some unchanged,
+     * changed, moved (changed or not), deleted and new; and some with odd contents.
+     */
+    private static Map<String, String> preFiles() {
+        Map<String, String> result = Maps.newTreeMap();
+        for (int i = 0; i < 6; i++) {
+            result.put("src/main/java/org/example/Foo"+i+".java", javaClass("org.example", "Foo"+i, 100, i));
+        }
+        result.put("src/main/java/org/example/util/Strings.java", javaClass("org.example.util", "Strings", 40, 10));
+        result.put("src/main/resources/empty.txt", "");
+        result.put("src/main/resources/crlf.properties", "a=1\r\nb=2\r\n");
+        result.put("pom.xml", "<project>\n  <artifactId>example</artifactId>\n</project>\n");
+        result.put("README.md", "# Example\n");
+        return result;
+    }
+
+    private static Map<String, String> postFiles() {
+        Map<String, String> result = preFiles();
+        result.put("src/main/java/org/example/Foo1.java", result.get("src/main/java/org/example/Foo1.java").replace("return 7;", "return 8;"));
+        result.put("src/main/java/org/example/moved/Foo2.java", result.remove("src/main/java/org/example/Foo2.java"));
+        result.put("src/main/java/org/example/moved/Foo3.java", result.remove("src/main/java/org/example/Foo3.java").replace("return 3;", "return -3;"));
+        result.remove("src/main/java/org/example/Foo4.java");
+        result.put("src/main/java/org/example/Bar.java", javaClass("org.example", "Bar", 20, 99));
+        result.put("src/main/java/org/example.txt", "Sorts before the directory of the same name in git trees\n");
+        return result;
+    }
+
+    private static String javaClass(String packageName, String name, int methods, long seed) {
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder("package "+packageName+";\n\npublic class "+name+" {\n");
+        for (int i = 0; i < methods; i++) {
+            result.append("\n    public int method"+i+"(int x) {\n")
+                    .append("        if (x > "+random.nextInt(100)+") {\n")
+                    .append("            return x * "+random.nextInt(10)+";\n")
+                    .append("        }\n")
+                    .append("        return "+(i % 10)+";\n")
+                    .append("    }\n");
+        }
+        return result.append("}\n").toString();
+    }
+
+    private void commit(String tag, Map<String, String> files) throws Exception {
+        git("rm", "-r", "-q", "--cached", "--ignore-unmatch", ".");
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(repoDir)) {
+            for (Path path : paths) {
+                if (!path.getFileName().toString().equals(".git")) Os.deleteRecursively(path.toFile());
+            }
+        }
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            Path path = repoDir.resolve(entry.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        git("add", "-A");
+        git("commit", "-q", "-m", tag);
+        git("tag", tag);
+    }
+
+    /**
+     * Writes a pack of a blob and an offset delta against it, with a version 1 index.
+     */
+    private void writePack(HashCode baseId, byte[] base, HashCode deltaId, byte[] delta) throws IOException {
+        ByteArrayOutputStream pack = new ByteArrayOutputStream();
+        DataOutputStream packData = new DataOutputStream(pack);
+        packData.writeBytes("PACK");
+        packData.writeInt(2);
+        packData.writeInt(2);
+        int baseOffset = packData.size();
+        packData.writeByte((GitRepository.OBJ_BLOB << 4) | base.length); // Under 16 bytes, so one byte
+        packData.write(deflate(base));
+        int deltaOffset = packData.size();
+        packData.writeByte((6 << 4) | delta.length); // OFS_DELTA
+        packData.writeByte(deltaOffset - baseOffset); // Under 128 bytes back, so one byte
+        packData.write(deflate(delta));
+        packData.write(new byte[20]);
+
+        ByteArrayOutputStream idx = new ByteArrayOutputStream();
+        DataOutputStream idxData = new DataOutputStream(idx);
+        int baseFirst = baseId.asBytes()[0] & 0xff;
+        for (int i = 0; i < 256; i++) {
+            idxData.writeInt((i >= baseFirst ? 1 : 0) + (i == 255 ? 1 : 0));
+        }
+        idxData.writeInt(baseOffset);
+        idxData.write(baseId.asBytes());
+        idxData.writeInt(deltaOffset);
+        idxData.write(deltaId.asBytes());
+        idxData.write(new byte[40]);
+
+        Path packDir = repoDir.resolve(".git/objects/pack");
+        Files.createDirectories(packDir);
+        Files.write(packDir.resolve("pack-test.pack"), pack.toByteArray());
+        Files.write(packDir.resolve("pack-test.idx"), idx.toByteArray());
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(result)) {
+            out.write(data);
+        }
+        return result.toByteArray();
+    }
+
+    private FileLister checkout(String revision) throws Exception {
+        Path result = dir.resolve("checkout-"+revision);
+        Files.createDirectories(result);
+        git("--work-tree="+result, "checkout", "-q", revision, "--", ".");
+        return new FileLister(result.toFile());
+    }
+
+    private List<Path> packs() throws IOException {
+        List<Path> result = MutableList.of();
+        Path packDir = repoDir.resolve(".git/objects/pack");
+        if (Files.isDirectory(packDir)) {
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(packDir, "*.pack")) {
+                for (Path path : paths) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    private String git(String... args) throws IOException, InterruptedException {
+        List<String> command = MutableList.of("git", "-c", "user.name=Test", "-c", "user.email=test@example.com",
+                "-c", "commit.gpgsign=false", "-c", "tag.gpgsign=false", "-c", "gc.auto=0", "-c", "core.autocrlf=false");
+        Collections.addAll(command, args);
+        ProcessBuilder builder = new ProcessBuilder(command).directory(repoDir.toFile()).redirectErrorStream(true);
+        builder.environment().put("GIT_CONFIG_NOSYSTEM", "1");
+        builder.environment().put("HOME", dir.toString());
+        Process process = builder.start();
+        String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException(Joiner.on(" ").join(command)+" exited with "+exitCode+": "+output);
+        }
+        return output;
+    }
+
+    private static HashCode blobId(byte[] contents) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(("blob "+contents.length+"\0").getBytes(StandardCharsets.US_ASCII));
+        digest.update(contents);
+        return HashCode.fromBytes(digest.digest());
+    }
+
+    private static Map<String, Object> describe(Differ.DifferResult result) {
+        Map<String, Object> description = Maps.newTreeMap();
+        for (Differ.DifferResult.UnchangedResult unchanged : result.unchanged()) {
+            description.put("unchanged "+unchanged.path, unchanged.similarity);
+        }
+        for (Differ.DifferResult.MovedResult moved : result.moved()) {
+            description.put("moved "+moved.origPath+" to "+moved.newPath, moved.similarity);
+        }
+        for (Differ.DifferResult.AmbiguousResult ambiguous : result.ambiguous()) {
+            description.put("ambiguous "+ambiguous.origPath, ambiguous.msg+" "+ImmutableSortedMap.copyOf(ambiguous.newPaths));
+        }
+        for (Path path : result.newFiles()) {
+            description.put("new "+path, true);
+        }
+        return description;
+    }
+}
@@ -0,0 +1,138 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Checks that counting letter pairs in a {@link BigramHistogram} scores exactly as the original
+ * StrikeAMatch algorithm, which compared lists of 2-character strings.
+ */
+public class LetterPairSimilarityTest {
+
+    private static final String ALPHABET = "abcAB \t\n\u0000\u0001\u00e9\uffff";
+
+    @Test
+    public void testKnownScores() throws Exception {
+        assertEquals(LetterPairSimilarity.compareStrings("FRANCE", "FRENCH"), 0.4);
+        assertEquals(LetterPairSimilarity.compareStrings("Healed", "Sealed"), 0.8);
+        assertEquals(LetterPairSimilarity.compareStrings("Healed", "healed"), 0.8, "Case-sensitive");
+        assertEquals(LetterPairSimilarity.compareStrings("Web Database Applications", "Web Database Applications"), 1.0);
+        assertEquals(LetterPairSimilarity.compareStrings("ab", "cd"), 0.0);
+    }
+
+    @Test
+    public void testScoresUnchangedFromOriginal() throws Exception {
+        Random random = new Random(1234);
+        for (int i = 0; i < 2000; i++) {
+            String str1 = randomString(random, random.nextInt(60));
+            String str2 = (i % 3 == 0) ? mutate(random, str1) : randomString(random, random.nextInt(60));
+            assertScoresUnchanged(str1, str2);
+        }
+    }
+
+    @Test
+    public void testRepeatedPairs() throws Exception {
+        assertScoresUnchanged("aaaa", "aa");
+        assertScoresUnchanged("abab ab", "ba ba ab");
+        // Packs to 0, the histogram's empty slot marker
+        assertScoresUnchanged("\u0000\u0000\u0000", "x\u0000\u0000");
+    }
+
+    @Test
+    public void testNoLetterPairsIsNaN() throws Exception {
+        assertTrue(Double.isNaN(LetterPairSimilarity.compareStrings("", "")));
+        assertTrue(Double.isNaN(LetterPairSimilarity.compareStrings("a b", " \n")));
+        assertTrue(Double.isNaN(originalCompareStrings("a b", " \n")));
+        assertEquals(LetterPairSimilarity.compareStrings("", "ab"), 0.0);
+    }
+
+    @Test
+    public void testDiceAtLeastAgreesWithDice() throws Exception {
+        Random random = new Random(5678);
+        double[] thresholds = {0.0, 0.25, 0.5, 0.75, 0.9, 1.0};
+        for (int i = 0; i < 1000; i++) {
+            BigramHistogram bigrams1 = BigramHistogram.of(randomString(random, random.nextInt(40)));
+            BigramHistogram bigrams2 = BigramHistogram.of(randomString(random, random.nextInt(40)));
+            double dice = bigrams1.dice(bigrams2);
+            for (double threshold : thresholds) {
+                assertEquals(bigrams1.diceAtLeast(bigrams2, threshold), dice >= threshold, bigrams1+" and "+bigrams2+" at "+threshold);
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintSimilarity() throws Exception {
+        String text1 = "public class Foo {\n    int bar;\n}";
+        String text2 = "public class Foo {\n    long baz;\n}";
+        assertEquals(fingerprint(text1).similarity(fingerprint(text2)), originalCompareStrings(text1, text2));
+        assertTrue(fingerprint(text1).similarityAtLeast(fingerprint(text2), originalCompareStrings(text1, text2)));
+        assertEquals(fingerprint(text1).similarity(fingerprint(text1)), 1.0);
+        assertTrue(Double.isNaN(fingerprint("a").similarity(fingerprint("a"))));
+    }
+
+    private static void assertScoresUnchanged(String str1, String str2) {
+        double expected = originalCompareStrings(str1, str2);
+        double actual = LetterPairSimilarity.compareStrings(str1, str2);
+        if (Double.isNaN(expected)) {
+            assertTrue(Double.isNaN(actual), "Expected NaN for ["+str1+"] and ["+str2+"], but got "+actual);
+        } else {
+            assertEquals(actual, expected, "Score of ["+str1+"] and ["+str2+"]");
+        }
+    }
+
+    private static FileFingerprint fingerprint(String text) {
+        return new FileFingerprint(Hashing.md5().hashString(text, StandardCharsets.UTF_8), BigramHistogram.of(text));
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            result.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return result.toString();
+    }
+
+    private static String mutate(Random random, String str) {
+        StringBuilder result = new StringBuilder(str);
+        for (int i = 0; i < 3 && result.length() > 0; i++) {
+            result.setCharAt(random.nextInt(result.length()), ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return result.toString();
+    }
+
+    /**
+     * The original algorithm, from http://www.catalysoft.com/articles/StrikeAMatch.html (case-sensitive).
+     */
+    private static double originalCompareStrings(String str1, String str2) {
+        List<String> pairs1 = originalWordLetterPairs(str1);
+        List<String> pairs2 = originalWordLetterPairs(str2);
+        int intersection = 0;
+        int union = pairs1.size() + pairs2.size();
+        for (String pair1 : pairs1) {
+            if (pairs2.remove(pair1)) {
+                intersection++;
+            }
+        }
+        return (2.0*intersection)/union;
+    }
+
+    private static List<String> originalWordLetterPairs(String str) {
+        List<String> result = MutableList.of();
+        for (String word : str.split("\\s")) {
+            for (int i = 0; i < word.length() - 1; i++) {
+                result.add(word.substring(i, i + 2));
+            }
+        }
+        return result;
+    }
+}
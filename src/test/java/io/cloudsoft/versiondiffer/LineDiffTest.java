@@ -0,0 +1,144 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks {@link LineDiff} against the textbook dynamic programming longest common subsequence.
+ */
+public class LineDiffTest {
+
+    @Test
+    public void testCountsEditsWithinRuns() throws Exception {
+        LineDiff diff = LineDiff.of(new int[] {1, 2, 3, 4, 5}, new int[] {1, 9, 3, 4, 6, 7});
+        assertCounts(diff, 1, 0, 2);
+        assertEquals(diff.unchanged(), 3);
+        assertEquals(diff.similarity(), 6.0 / 11);
+
+        assertCounts(LineDiff.of(new int[] {1, 2, 3}, new int[] {4, 5}), 0, 1, 2);
+        assertCounts(LineDiff.of(new int[] {1, 2, 3}, new int[] {1, 2, 3}), 0, 0, 0);
+        assertCounts(LineDiff.of(new int[] {1, 2, 3}, new int[] {0, 1, 2, 3, 4}), 2, 0, 0);
+        assertCounts(LineDiff.of(new int[] {1, 2, 3, 4}, new int[] {2, 3}), 0, 2, 0);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(LineDiff.of(new int[0], new int[0]).similarity(), 1.0);
+        assertEquals(LineDiff.similarity(new int[0], new int[0]), 1.0);
+        assertCounts(LineDiff.of(new int[0], new int[] {1, 2}), 2, 0, 0);
+        assertCounts(LineDiff.of(new int[] {1, 2}, new int[0]), 0, 2, 0);
+        assertEquals(LineDiff.similarity(new int[] {1, 2}, new int[0]), 0.0);
+    }
+
+    @Test
+    public void testLcsLengthAcrossWords() throws Exception {
+        Random random = new Random(1234);
+        // Around the word size, so the addition carries (or not) across words
+        int[] lengths = {1, 2, 63, 64, 65, 127, 128, 129, 200, 300};
+        for (int aLength : lengths) {
+            for (int bLength : lengths) {
+                for (int alphabet : new int[] {1, 2, 4, 50}) {
+                    int[] a = randomLines(random, aLength, alphabet);
+                    int[] b = randomLines(random, bLength, alphabet);
+                    assertEquals(LineDiff.lcsLength(a, b), lcsLength(a, b), Arrays.toString(a)+" and "+Arrays.toString(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLcsLengthWhenEveryLineMatches() throws Exception {
+        // Every bit is set in every mask, so each addition carries through all the words
+        int[] a = new int[200];
+        int[] b = new int[150];
+        Arrays.fill(a, 7);
+        Arrays.fill(b, 7);
+        b[0] = 8; // Not a common prefix, so the bit-parallel loop is used
+        assertEquals(LineDiff.lcsLength(a, b), 149);
+        assertEquals(LineDiff.lcsLength(b, a), 149);
+    }
+
+    @Test
+    public void testDiffFindsLongestCommonSubsequence() throws Exception {
+        Random random = new Random(5678);
+        for (int i = 0; i < 500; i++) {
+            int[] a = randomLines(random, random.nextInt(150), 2 + random.nextInt(20));
+            int[] b = (i % 2 == 0) ? edit(random, a) : randomLines(random, random.nextInt(150), 2 + random.nextInt(20));
+            assertDiff(a, b);
+            assertDiff(b, a);
+        }
+    }
+
+    private static void assertDiff(int[] a, int[] b) {
+        String message = Arrays.toString(a)+" and "+Arrays.toString(b);
+        LineDiff diff = LineDiff.of(a, b);
+        int expected = lcsLength(a, b);
+        assertEquals(diff.unchanged(), expected, message);
+        assertEquals(diff.preLines(), diff.unchanged() + diff.removed() + diff.changed(), message);
+        assertEquals(diff.postLines(), diff.unchanged() + diff.added() + diff.changed(), message);
+        assertEquals(LineDiff.similarity(a, b), diff.similarity(), 1e-12, message);
+    }
+
+    private static void assertCounts(LineDiff diff, int added, int removed, int changed) {
+        assertEquals(diff.added(), added, "Added in "+diff);
+        assertEquals(diff.removed(), removed, "Removed in "+diff);
+        assertEquals(diff.changed(), changed, "Changed in "+diff);
+    }
+
+    private static int[] randomLines(Random random, int length, int alphabet) {
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = random.nextInt(alphabet);
+        }
+        return result;
+    }
+
+    /**
+     * A few lines inserted, deleted or replaced, as between versions of a file.
+     */
+    private static int[] edit(Random random, int[] lines) {
+        int[] result = lines.clone();
+        for (int i = random.nextInt(6); i >= 0; i--) {
+            int at = random.nextInt(result.length + 1);
+            switch (random.nextInt(3)) {
+            case 0:
+                result = concat(Arrays.copyOfRange(result, 0, at), new int[] {100 + random.nextInt(5)}, Arrays.copyOfRange(result, at, result.length));
+                break;
+            case 1:
+                if (at < result.length) result = concat(Arrays.copyOfRange(result, 0, at), Arrays.copyOfRange(result, at + 1, result.length));
+                break;
+            default:
+                if (at < result.length) result[at] = 100 + random.nextInt(5);
+            }
+        }
+        return result;
+    }
+
+    private static int[] concat(int[]... arrays) {
+        int length = 0;
+        for (int[] array : arrays) {
+            length += array.length;
+        }
+        int[] result = new int[length];
+        int pos = 0;
+        for (int[] array : arrays) {
+            System.arraycopy(array, 0, result, pos, array.length);
+            pos += array.length;
+        }
+        return result;
+    }
+
+    private static int lcsLength(int[] a, int[] b) {
+        int[][] lengths = new int[a.length + 1][b.length + 1];
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                lengths[i][j] = (a[i - 1] == b[j - 1]) ? lengths[i - 1][j - 1] + 1 : Math.max(lengths[i - 1][j], lengths[i][j - 1]);
+            }
+        }
+        return lengths[a.length][b.length];
+    }
+}
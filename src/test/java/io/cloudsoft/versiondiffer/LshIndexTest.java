@@ -0,0 +1,38 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks which keys {@link LshIndex#candidates(int[], int)} finds, and in what order.
+ */
+public class LshIndexTest {
+
+    @Test
+    public void testMostSimilarFirst() throws Exception {
+        LshIndex<String> index = new LshIndex<String>(4, 1);
+        index.put("half", new int[] {1, 2, 8, 9});
+        index.put("same", new int[] {1, 2, 3, 4});
+        index.put("quarter", new int[] {1, 7, 8, 9});
+        index.put("none", new int[] {6, 7, 8, 9});
+
+        assertEquals(index.candidates(new int[] {1, 2, 3, 4}, 10), Arrays.asList("same", "half", "quarter"));
+        assertEquals(index.candidates(new int[] {1, 2, 3, 4}, 2), Arrays.asList("same", "half"));
+        assertEquals(index.size(), 4);
+    }
+
+    @Test
+    public void testTiesInOrderAdded() throws Exception {
+        // Each shares one band with the query, but "second" is found first (in an earlier band)
+        LshIndex<String> index = new LshIndex<String>(4, 1);
+        index.put("first", new int[] {6, 7, 8, 4});
+        index.put("second", new int[] {1, 7, 8, 9});
+        index.put("third", new int[] {6, 7, 3, 9});
+
+        assertEquals(index.candidates(new int[] {1, 2, 3, 4}, 10), Arrays.asList("first", "second", "third"));
+        assertEquals(index.candidates(new int[] {1, 2, 3, 4}, 2), Arrays.asList("first", "second"));
+    }
+}
@@ -0,0 +1,193 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.collections.MutableList;
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import io.cloudsoft.versiondiffer.Differ.DifferResult;
+import io.cloudsoft.versiondiffer.ResultFile.Record;
+import io.cloudsoft.versiondiffer.ResultFile.Type;
+
+public class ResultFileTest {
+
+    private static final Function<Path, String> TO_FQN = new Function<Path, String>() {
+        @Override public String apply(Path input) {
+            String path = input.toString();
+            return path.endsWith(".java") ? path.substring(0, path.length() - ".java".length()).replace(input.getFileSystem().getSeparator(), ".") : null;
+        }};
+
+    private static final String SEVERAL_MATCHES = "Several files are similar";
+    private static final String MATCHED_ANOTHER = "Matching file was more similar to another original file";
+
+    private Path dir;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path file = dir.resolve("result.bin");
+        ResultFile.write(newResult(), TO_FQN, file);
+        ResultFile results = ResultFile.open(file);
+
+        assertEquals(results.size(), 9);
+        assertRecord(results.get(0), Type.UNCHANGED, path("a", "Foo.java"), path("a", "Foo.java"), 1.0, false);
+        assertRecord(results.get(1), Type.UNCHANGED, path("a", "foo.java"), path("a", "foo.java"), 0.95, true);
+        assertRecord(results.get(2), Type.MOVED, path("a", "Bar.java"), path("b", "Bar.java"), 0.9, false);
+        assertRecord(results.get(3), Type.MOVED, path("a", "config.xml"), path("b", "config.xml"), 0.8, false);
+        assertRecord(results.get(4), Type.AMBIGUOUS, path("a", "Baz.java"), null, Double.NaN, false);
+        assertRecord(results.get(5), Type.AMBIGUOUS, path("a", "Qux.java"), null, Double.NaN, false);
+        assertRecord(results.get(6), Type.NEW_FILE, null, path("b", "New.java"), Double.NaN, false);
+        assertRecord(results.get(7), Type.NEW_FILE, null, path("b", "new.properties"), Double.NaN, false);
+        assertRecord(results.get(8), Type.UNEVALUATED, path("a", "Slow.java"), null, Double.NaN, false);
+
+        Record moved = results.get(2);
+        assertEquals(moved.origFqn, "a.Bar");
+        assertEquals(moved.newFqn, "b.Bar");
+        assertNull(results.get(3).origFqn);
+        assertNull(results.get(3).newFqn);
+
+        Record ambiguous = results.get(4);
+        assertEquals(ambiguous.msg, SEVERAL_MATCHES);
+        assertEquals(ambiguous.candidates.size(), 2);
+        Map<String, ResultFile.Candidate> candidates = ImmutableMap.of(ambiguous.candidates.get(0).path, ambiguous.candidates.get(0),
+                ambiguous.candidates.get(1).path, ambiguous.candidates.get(1));
+        assertEquals(candidates.get(path("b", "Baz.java")).fqn, "b.Baz");
+        assertEquals(candidates.get(path("b", "Baz.java")).similarity, 0.85);
+        assertFalse(candidates.get(path("b", "Baz.java")).estimated);
+        assertEquals(candidates.get(path("c", "Baz.java")).similarity, 0.8);
+        assertTrue(candidates.get(path("c", "Baz.java")).estimated);
+        assertEquals(results.get(5).msg, MATCHED_ANOTHER);
+        assertTrue(results.get(5).candidates.isEmpty());
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        Path file = dir.resolve("result.bin");
+        ResultFile.write(newResult(), TO_FQN, file);
+        ResultFile results = ResultFile.open(file);
+
+        assertEquals(types(results.byOrigPath(path("a", "Bar.java"))), MutableList.of(Type.MOVED));
+        assertEquals(types(results.byOrigPath(path("a", "foo.java"))), MutableList.of(Type.UNCHANGED));
+        assertEquals(types(results.byOrigPath(path("a", "Slow.java"))), MutableList.of(Type.UNEVALUATED));
+        assertEquals(types(results.byOrigPath(path("b", "Bar.java"))), MutableList.of());
+
+        assertEquals(types(results.byNewPath(path("a", "Foo.java"))), MutableList.of(Type.UNCHANGED));
+        assertEquals(results.byNewPath(path("a", "foo.java")).get(0).similarity, 0.95);
+        assertEquals(types(results.byNewPath(path("b", "Bar.java"))), MutableList.of(Type.MOVED));
+        assertEquals(types(results.byNewPath(path("b", "New.java"))), MutableList.of(Type.NEW_FILE));
+        assertEquals(types(results.byNewPath(path("c", "Baz.java"))), MutableList.of(Type.AMBIGUOUS));
+        assertEquals(origPaths(results.byNewPath(path("b", "Baz.java"))), ImmutableSet.of(path("a", "Baz.java")));
+        assertEquals(types(results.byNewPath(path("a", "Bar.java"))), MutableList.of());
+
+        assertEquals(origPaths(results.byFqn("a.Bar")), ImmutableSet.of(path("a", "Bar.java")));
+        assertEquals(origPaths(results.byFqn("b.Bar")), ImmutableSet.of(path("a", "Bar.java")));
+        assertEquals(origPaths(results.byFqn("c.Baz")), ImmutableSet.of(path("a", "Baz.java")));
+        assertEquals(types(results.byFqn("b.New")), MutableList.of(Type.NEW_FILE));
+        assertEquals(types(results.byFqn("a.Missing")), MutableList.of());
+        assertEquals(types(results.byFqn("null")), MutableList.of());
+    }
+
+    @Test
+    public void testWithoutFqns() throws Exception {
+        Path file = dir.resolve("result.bin");
+        ResultFile.write(newResult(), null, file);
+        ResultFile results = ResultFile.open(file);
+
+        assertEquals(results.size(), 9);
+        for (int i = 0; i < results.size(); i++) {
+            assertNull(results.get(i).origFqn);
+            assertNull(results.get(i).newFqn);
+        }
+        assertTrue(results.byFqn("a.Bar").isEmpty());
+        assertEquals(types(results.byOrigPath(path("a", "Bar.java"))), MutableList.of(Type.MOVED));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Path file = dir.resolve("result.bin");
+        ResultFile.write(new DifferResult(), TO_FQN, file);
+        ResultFile results = ResultFile.open(file);
+
+        assertEquals(results.size(), 0);
+        assertTrue(results.byOrigPath(path("a", "Foo.java")).isEmpty());
+        assertTrue(results.byNewPath(path("a", "Foo.java")).isEmpty());
+        assertTrue(results.byFqn("a.Foo").isEmpty());
+    }
+
+    /**
+     * One or more of each type of result, including files that are not classes, and paths differing only in case.
+     */
+    private static DifferResult newResult() {
+        DifferResult result = new DifferResult();
+        result.unchanged.add(new DifferResult.UnchangedResult(Paths.get("a", "Foo.java"), 1.0));
+        result.unchanged.add(new DifferResult.UnchangedResult(Paths.get("a", "foo.java"), 0.95, true));
+        result.moved.add(new DifferResult.MovedResult(Paths.get("a", "Bar.java"), Paths.get("b", "Bar.java"), 0.9));
+        result.moved.add(new DifferResult.MovedResult(Paths.get("a", "config.xml"), Paths.get("b", "config.xml"), 0.8));
+        result.ambiguous.add(new DifferResult.AmbiguousResult(Paths.get("a", "Baz.java"),
+                ImmutableMap.of(Paths.get("b", "Baz.java"), 0.85, Paths.get("c", "Baz.java"), 0.8), SEVERAL_MATCHES,
+                ImmutableSet.of(Paths.get("c", "Baz.java"))));
+        result.ambiguous.add(new DifferResult.AmbiguousResult(Paths.get("a", "Qux.java"), ImmutableMap.<Path, Double>of(),
+                MATCHED_ANOTHER));
+        result.newFiles.add(Paths.get("b", "New.java"));
+        result.newFiles.add(Paths.get("b", "new.properties"));
+        result.unevaluated.add(Paths.get("a", "Slow.java"));
+        return result;
+    }
+
+    private static void assertRecord(Record record, Type type, String origPath, String newPath, double similarity, boolean estimated) {
+        assertEquals(record.type, type, record.toString());
+        assertEquals(record.origPath, origPath, record.toString());
+        assertEquals(record.newPath, newPath, record.toString());
+        if (Double.isNaN(similarity)) {
+            assertTrue(Double.isNaN(record.similarity), record.toString());
+        } else {
+            assertEquals(record.similarity, similarity, record.toString());
+        }
+        assertEquals(record.estimated, estimated, record.toString());
+    }
+
+    private static List<Type> types(List<Record> records) {
+        List<Type> result = MutableList.of();
+        for (Record record : records) {
+            result.add(record.type);
+        }
+        return result;
+    }
+
+    private static ImmutableSet<String> origPaths(List<Record> records) {
+        ImmutableSet.Builder<String> result = ImmutableSet.builder();
+        for (Record record : records) {
+            result.add(record.origPath);
+        }
+        return result.build();
+    }
+
+    private static String path(String first, String... more) {
+        return Paths.get(first, more).toString();
+    }
+}
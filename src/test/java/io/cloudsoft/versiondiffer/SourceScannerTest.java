@@ -0,0 +1,128 @@
+package io.cloudsoft.versiondiffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.os.Os;
+
+public class SourceScannerTest {
+
+    private Path dir;
+    private int numFiles;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        dir = Os.newTempDir(getClass()).toPath();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        if (dir != null) Os.deleteRecursively(dir.toFile());
+    }
+
+    @Test
+    public void testXmlCommentEndingWithExtraDash() throws Exception {
+        Fingerprinter xml = new SourceScanner(NormalizationRules.xml(), Long.MAX_VALUE);
+        assertEquivalent(xml, "<a/>\n<!-- x --->\n<b/>\n", "<a/>\n<b/>\n");
+        assertEquivalent(xml, "<a/><!-- x ---><b/>\n", "<a/><b/>\n");
+        assertEquivalent(xml, "<a/>\n<!-- x ----- y --->\n<b/>\n", "<a/>\n<b/>\n");
+    }
+
+    @Test
+    public void testXmlCommentsAndFormattingDropped() throws Exception {
+        Fingerprinter xml = new SourceScanner(NormalizationRules.xml(), Long.MAX_VALUE);
+        assertEquivalent(xml, "<!--\n  license\n-->\n<a>\n    <b>x  y</b>\n</a>\n", "<a>\n<b>x y</b>\n</a>");
+        assertNotEquivalent(xml, "<a>\n<b>x</b>\n</a>\n", "<a>\n<b>y</b>\n</a>\n");
+    }
+
+    @Test
+    public void testBlockCommentEndOverlappingItself() throws Exception {
+        Fingerprinter scanner = new SourceScanner(new NormalizationRules().blockComment("/*", "*/").blockComment("(*", "**)"), Long.MAX_VALUE);
+        assertEquivalent(scanner, "a /* x **/ b\n", "a  b\n");
+        assertEquivalent(scanner, "a (* x ***) b\n", "a  b\n");
+        assertEquivalent(scanner, "a (* x ** *)\n***) b\n", "a \n b\n");
+    }
+
+    @Test
+    public void testCommentStartsWithinQuotesAreKept() throws Exception {
+        Fingerprinter scanner = new SourceScanner(new NormalizationRules().lineComment("//").blockComment("/*", "*/").quote('"'), Long.MAX_VALUE);
+        // Whitespace before a comment is kept, as whitespace is not collapsed
+        assertEquivalent(scanner, "s = \"a//b\"; // comment\n", "s = \"a//b\"; \n");
+        assertEquivalent(scanner, "s = \"\\\"/*\"; /* comment */\n", "s = \"\\\"/*\"; \n");
+        assertNotEquivalent(scanner, "s = \"a//b\";\n", "s = \"a\";\n");
+    }
+
+    @Test
+    public void testJavaLicenseHeaderAndImportsDropped() throws Exception {
+        Fingerprinter java = new SourceScanner(NormalizationRules.java(), Long.MAX_VALUE);
+        String code = "package a;\n\nclass A {}\n";
+        StringBuilder header = new StringBuilder();
+        for (String line : NormalizationRules.APACHE_LICENSE_HEADER) {
+            header.append(line).append('\n');
+        }
+        assertEquivalent(java, header+"package a;\n\nimport java.util.List;\nclass A {}\n", code);
+        assertNotEquivalent(java, "package b;\n\nclass A {}\n", code);
+    }
+
+    @Test
+    public void testLineEndingsDoNotMatter() throws Exception {
+        Fingerprinter java = new SourceScanner(NormalizationRules.java(), Long.MAX_VALUE);
+        assertEquivalent(java, "a\r\nb\rc\n", "a\nb\nc");
+    }
+
+    @Test
+    public void testRegistryChoosesRulesByExtension() throws Exception {
+        Fingerprinter registry = NormalizationRegistry.standard(Long.MAX_VALUE);
+        FileFingerprint xml1 = registry.fingerprint(file("a.xml", "<a>\n  <!-- x -->\n  <b/>\n</a>\n"));
+        FileFingerprint xml2 = registry.fingerprint(file("b.xml", "<a>\n<b/>\n</a>\n"));
+        assertTrue(xml1.isEquivalent(xml2));
+
+        // Not XML, so the comment and indentation are kept
+        FileFingerprint java1 = registry.fingerprint(file("a.java", "<a>\n  <!-- x -->\n  <b/>\n</a>\n"));
+        FileFingerprint java2 = registry.fingerprint(file("b.java", "<a>\n<b/>\n</a>\n"));
+        assertFalse(java1.isEquivalent(java2));
+
+        FileFingerprint properties1 = registry.fingerprint(file("a.properties", "# comment\n  a=1\n! other\nb=2\n"));
+        FileFingerprint properties2 = registry.fingerprint(file("b.properties", "a=1\nb=2\n"));
+        assertTrue(properties1.isEquivalent(properties2));
+    }
+
+    @Test
+    public void testSimilarityMatchesLetterPairSimilarity() throws Exception {
+        Fingerprinter scanner = new SourceScanner(NormalizationRules.java(), Long.MAX_VALUE);
+        String text1 = "public class Foo {\n    int bar;\n}\n";
+        String text2 = "public class Foo {\n    long baz;\n}\n";
+        double expected = LetterPairSimilarity.compareStrings("public class Foo {\n    int bar;\n}", "public class Foo {\n    long baz;\n}");
+        FileFingerprint fingerprint1 = scanner.fingerprint(file("Foo.java", text1));
+        FileFingerprint fingerprint2 = scanner.fingerprint(file("Foo2.java", text2));
+        assertEquals(fingerprint1.similarity(fingerprint2), expected, 1e-12);
+    }
+
+    private void assertEquivalent(Fingerprinter fingerprinter, String text1, String text2) throws IOException {
+        assertTrue(equivalent(fingerprinter, text1, text2), "Expected equivalent: ["+text1+"] and ["+text2+"]");
+    }
+
+    private void assertNotEquivalent(Fingerprinter fingerprinter, String text1, String text2) throws IOException {
+        assertFalse(equivalent(fingerprinter, text1, text2), "Expected not equivalent: ["+text1+"] and ["+text2+"]");
+    }
+
+    private boolean equivalent(Fingerprinter fingerprinter, String text1, String text2) throws IOException {
+        return fingerprinter.fingerprint(file("file"+(numFiles++), text1)).isEquivalent(fingerprinter.fingerprint(file("file"+(numFiles++), text2)));
+    }
+
+    private SourceFile file(String name, String text) throws IOException {
+        Path result = dir.resolve(name);
+        Files.write(result, text.getBytes(StandardCharsets.UTF_8));
+        return SourceFile.of(result);
+    }
+}